@@ -0,0 +1,99 @@
+/*
+ * Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.partners.pubsub.kafka;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Orders {@link OutstandingMessage} leases by the time their acknowledgement deadline expires so
+ * that expired leases can be found without scanning every outstanding message.
+ *
+ * <p>Each entry captures the deadline that was in effect when it was added. Since deadlines can be
+ * extended by modifyAckDeadline after the fact, entries are re-evaluated when they reach the head
+ * of the index and are re-inserted if their lease is still valid. Leases that were acknowledged in
+ * the meantime are dropped at that point. Leases sharing a deadline are returned in the order they
+ * were added, so messages pulled together are redelivered in their original order.
+ */
+final class AckDeadlineIndex {
+
+  private final PriorityQueue<Entry> entries;
+  private long sequence;
+
+  AckDeadlineIndex() {
+    entries = new PriorityQueue<>();
+  }
+
+  /** Adds {@code lease} to the index using its current expiration time. */
+  synchronized void add(OutstandingMessage lease) {
+    entries.add(new Entry(lease.getExpiresAt().toEpochMilli(), sequence++, lease));
+  }
+
+  /**
+   * Removes and returns all unacknowledged leases which expired at or before {@code now}, so that a
+   * lease expired by a deadline of 0 seconds is returned right away. The caller is responsible for
+   * verifying that each returned lease is still the current one for its message.
+   */
+  synchronized List<OutstandingMessage> pollExpired(Instant now) {
+    List<OutstandingMessage> expired = new ArrayList<>();
+    List<OutstandingMessage> extended = new ArrayList<>();
+    long nowMillis = now.toEpochMilli();
+    Entry head;
+    while ((head = entries.peek()) != null && head.deadline <= nowMillis) {
+      entries.poll();
+      OutstandingMessage lease = head.lease;
+      if (lease.isAcknowledged()) {
+        continue;
+      }
+      if (lease.isExpired(now)) {
+        expired.add(lease);
+      } else {
+        // The deadline was extended after this entry was created, or lies later in this millisecond
+        extended.add(lease);
+      }
+    }
+    for (OutstandingMessage lease : extended) {
+      entries.add(new Entry(lease.getExpiresAt().toEpochMilli(), sequence++, lease));
+    }
+    return expired;
+  }
+
+  synchronized int size() {
+    return entries.size();
+  }
+
+  private static final class Entry implements Comparable<Entry> {
+
+    private final long deadline;
+    private final long sequence;
+    private final OutstandingMessage lease;
+
+    private Entry(long deadline, long sequence, OutstandingMessage lease) {
+      this.deadline = deadline;
+      this.sequence = sequence;
+      this.lease = lease;
+    }
+
+    @Override
+    public int compareTo(Entry other) {
+      int result = Long.compare(deadline, other.deadline);
+      return result != 0 ? result : Long.compare(sequence, other.sequence);
+    }
+  }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.partners.pubsub.kafka;
+
+import java.util.Arrays;
+
+/**
+ * Encodes and decodes the ack IDs handed out with each delivered message.
+ *
+ * <p>An ack ID packs a lease key, made up of the message's partition and offset, together with the
+ * generation of the delivery that produced it into 12 bytes which are written as 16 characters
+ * using the URL-safe Base64 alphabet. Decoding works directly on the characters of the String, so
+ * acknowledging a message does not need to split, parse or allocate anything.
+ *
+ * <p>Lease keys reserve the upper 16 bits for the partition and the remaining 48 bits for the
+ * offset, which comfortably exceeds the number of partitions and offsets any Kafka topic will have
+ * in practice.
+ */
+final class AckId {
+
+  static final long INVALID = -1;
+
+  private static final int LENGTH = 16;
+  private static final int OFFSET_BITS = 48;
+  private static final long MAX_OFFSET = (1L << OFFSET_BITS) - 1;
+  private static final int MAX_PARTITION = (1 << (63 - OFFSET_BITS)) - 1;
+  private static final char[] ALPHABET =
+      "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_".toCharArray();
+  private static final byte[] VALUES = new byte[128];
+
+  static {
+    Arrays.fill(VALUES, (byte) -1);
+    for (int i = 0; i < ALPHABET.length; i++) {
+      VALUES[ALPHABET[i]] = (byte) i;
+    }
+  }
+
+  private AckId() {}
+
+  /**
+   * Returns the key identifying the lease of the message at {@code offset} in {@code partition}.
+   */
+  static long key(int partition, long offset) {
+    if (partition < 0 || partition > MAX_PARTITION || offset < 0 || offset > MAX_OFFSET) {
+      throw new IllegalArgumentException(
+          "Unable to create ack ID for partition " + partition + " offset " + offset);
+    }
+    return (long) partition << OFFSET_BITS | offset;
+  }
+
+  static int partition(long key) {
+    return (int) (key >>> OFFSET_BITS);
+  }
+
+  static long offset(long key) {
+    return key & MAX_OFFSET;
+  }
+
+  /** Returns the ack ID for delivery {@code generation} of the lease identified by {@code key}. */
+  static String encode(long key, int generation) {
+    char[] chars = new char[LENGTH];
+    // The first 10 characters hold 60 bits of the key, the next spans its last 4 bits and the
+    // first 2 bits of the generation, and the remaining 5 hold the rest of the generation.
+    for (int i = 0; i < 10; i++) {
+      chars[i] = ALPHABET[(int) (key >>> (58 - 6 * i)) & 0x3f];
+    }
+    chars[10] = ALPHABET[(int) (key & 0xf) << 2 | generation >>> 30];
+    for (int i = 11; i < LENGTH; i++) {
+      chars[i] = ALPHABET[generation >>> (90 - 6 * i) & 0x3f];
+    }
+    return new String(chars);
+  }
+
+  /** Returns the lease key encoded in {@code ackId}, or {@link #INVALID} if it is malformed. */
+  static long decodeKey(String ackId) {
+    if (ackId.length() != LENGTH) {
+      return INVALID;
+    }
+    long key = 0;
+    for (int i = 0; i < 10; i++) {
+      int value = valueOf(ackId.charAt(i));
+      if (value < 0) {
+        return INVALID;
+      }
+      key = key << 6 | value;
+    }
+    for (int i = 10; i < LENGTH; i++) {
+      if (valueOf(ackId.charAt(i)) < 0) {
+        return INVALID;
+      }
+    }
+    return key << 4 | valueOf(ackId.charAt(10)) >>> 2;
+  }
+
+  /**
+   * Returns the delivery generation encoded in {@code ackId}. The result is only meaningful if
+   * {@link #decodeKey(String)} accepted the same ack ID.
+   */
+  static int decodeGeneration(String ackId) {
+    int generation = valueOf(ackId.charAt(10)) & 0x3;
+    for (int i = 11; i < LENGTH; i++) {
+      generation = generation << 6 | valueOf(ackId.charAt(i));
+    }
+    return generation;
+  }
+
+  private static int valueOf(char c) {
+    return c < VALUES.length ? VALUES[c] : -1;
+  }
+}
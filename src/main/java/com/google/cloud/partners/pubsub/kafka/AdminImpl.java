@@ -19,8 +19,12 @@ package com.google.cloud.partners.pubsub.kafka;
 import static com.google.cloud.partners.pubsub.kafka.Configuration.getApplicationProperties;
 import static com.google.cloud.partners.pubsub.kafka.enums.MetricProperty.AVG_LATENCY;
 import static com.google.cloud.partners.pubsub.kafka.enums.MetricProperty.ERROR_RATE;
+import static com.google.cloud.partners.pubsub.kafka.enums.MetricProperty.FETCHED_BYTES;
+import static com.google.cloud.partners.pubsub.kafka.enums.MetricProperty.FETCH_LATENCY;
 import static com.google.cloud.partners.pubsub.kafka.enums.MetricProperty.MESSAGE_COUNT;
+import static com.google.cloud.partners.pubsub.kafka.enums.MetricProperty.PREFETCH_DEPTH;
 import static com.google.cloud.partners.pubsub.kafka.enums.MetricProperty.QPS;
+import static com.google.cloud.partners.pubsub.kafka.enums.MetricProperty.REJECTED_COUNT;
 import static com.google.cloud.partners.pubsub.kafka.enums.MetricProperty.THROUGHPUT;
 import static java.lang.String.format;
 
@@ -102,7 +106,7 @@ class AdminImpl extends AdminImplBase {
             topic ->
                 StatisticsConsolidation.newBuilder()
                     .addAllMetrics(
-                        calculateInformation(
+                        calculateSubscriberInformation(
                             durationSeconds, subscriberInformationByTopic.get(topic)))
                     .build());
 
@@ -132,6 +136,16 @@ class AdminImpl extends AdminImplBase {
       long durationSeconds, StatisticsInformation information) {
     List<Metric> metrics = calculateInformation(durationSeconds, information);
     metrics.add(buildMetric(ERROR_RATE, information.getErrorRating(), DECIMAL_FORMAT));
+    metrics.add(buildMetric(REJECTED_COUNT, information.getRejectedCount().intValue(), FORMAT));
+    return metrics;
+  }
+
+  private List<Metric> calculateSubscriberInformation(
+      long durationSeconds, StatisticsInformation information) {
+    List<Metric> metrics = calculateInformation(durationSeconds, information);
+    metrics.add(buildMetric(PREFETCH_DEPTH, information.getPrefetchDepth(), FORMAT));
+    metrics.add(buildMetric(FETCH_LATENCY, information.getAverageFetchLatency(), DECIMAL_FORMAT));
+    metrics.add(buildMetric(FETCHED_BYTES, information.getFetchedBytes(), FORMAT));
     return metrics;
   }
 
@@ -0,0 +1,231 @@
+/*
+ * Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.partners.pubsub.kafka;
+
+import com.google.pubsub.v1.PubsubMessage;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+import org.apache.kafka.common.header.Header;
+import org.apache.kafka.common.header.Headers;
+import org.apache.kafka.common.header.internals.RecordHeader;
+import org.apache.kafka.common.header.internals.RecordHeaders;
+
+/**
+ * Converts PubsubMessage attributes to and from Kafka record headers.
+ *
+ * <p>Two layouts are supported. The default writes each attribute as its own header, which keeps
+ * records readable by other Kafka clients. The compact layout writes the whole attribute map into a
+ * single header named {@link #COMPACT_HEADER}, which saves the per-header overhead on the broker
+ * and the per-header allocations on both sides when messages carry several attributes. Decoding
+ * accepts either layout, so the layout can be switched without affecting records already written.
+ *
+ * <p>A compact header holds a format version byte followed by the number of attributes, and then
+ * each key and value. Lengths and counts are written as unsigned varints. A key is written either
+ * as {@code index << 1 | 1}, referring to an entry of {@link #COMMON_KEYS}, or as {@code length <<
+ * 1} followed by its UTF-8 bytes. Values are written as their length followed by their UTF-8 bytes.
+ */
+final class AttributeCodec {
+
+  static final String COMPACT_HEADER = "pubsub.attributes";
+
+  private static final Logger LOGGER = Logger.getLogger(AttributeCodec.class.getName());
+  private static final byte VERSION = 1;
+
+  /**
+   * Attribute keys commonly set by Google Cloud services and client libraries. Entries are
+   * referenced by index from encoded records, so new keys may only be appended.
+   */
+  private static final String[] COMMON_KEYS = {
+    "googclient_schemaencoding",
+    "googclient_schemaname",
+    "googclient_schemarevisionid",
+    "eventType",
+    "eventTime",
+    "payloadFormat",
+    "notificationConfig",
+    "bucketId",
+    "objectId",
+    "objectGeneration",
+    "overwroteGeneration",
+    "overwrittenByGeneration",
+    "content-type",
+    "contentType",
+    "traceparent",
+    "tracestate",
+    "id",
+    "type",
+    "source",
+    "timestamp",
+  };
+
+  private static final Map<String, Integer> COMMON_KEY_INDEX = new HashMap<>();
+
+  static {
+    for (int i = 0; i < COMMON_KEYS.length; i++) {
+      COMMON_KEY_INDEX.put(COMMON_KEYS[i], i);
+    }
+  }
+
+  private AttributeCodec() {}
+
+  /**
+   * Returns the headers for {@code attributes} using the compact layout if {@code compact} is true,
+   * or null if there are no attributes.
+   */
+  static Headers encode(Map<String, String> attributes, boolean compact) {
+    if (attributes == null || attributes.isEmpty()) {
+      return null;
+    }
+    if (!compact) {
+      List<Header> headers = new ArrayList<>(attributes.size());
+      for (Map.Entry<String, String> attribute : attributes.entrySet()) {
+        headers.add(
+            new RecordHeader(
+                attribute.getKey(), attribute.getValue().getBytes(StandardCharsets.UTF_8)));
+      }
+      return new RecordHeaders(headers);
+    }
+
+    // Encode every string up front so that the header can be allocated at its exact size
+    byte[][] keys = new byte[attributes.size()][];
+    int[] keyIndexes = new int[attributes.size()];
+    byte[][] values = new byte[attributes.size()][];
+    int size = 1 + varintSize(attributes.size());
+    int i = 0;
+    for (Map.Entry<String, String> attribute : attributes.entrySet()) {
+      Integer index = COMMON_KEY_INDEX.get(attribute.getKey());
+      if (index != null) {
+        keyIndexes[i] = index;
+        size += varintSize(index << 1 | 1);
+      } else {
+        keys[i] = attribute.getKey().getBytes(StandardCharsets.UTF_8);
+        size += varintSize(keys[i].length << 1) + keys[i].length;
+      }
+      values[i] = attribute.getValue().getBytes(StandardCharsets.UTF_8);
+      size += varintSize(values[i].length) + values[i].length;
+      i++;
+    }
+
+    byte[] encoded = new byte[size];
+    encoded[0] = VERSION;
+    int position = writeVarint(encoded, 1, attributes.size());
+    for (i = 0; i < keys.length; i++) {
+      if (keys[i] == null) {
+        position = writeVarint(encoded, position, keyIndexes[i] << 1 | 1);
+      } else {
+        position = writeVarint(encoded, position, keys[i].length << 1);
+        System.arraycopy(keys[i], 0, encoded, position, keys[i].length);
+        position += keys[i].length;
+      }
+      position = writeVarint(encoded, position, values[i].length);
+      System.arraycopy(values[i], 0, encoded, position, values[i].length);
+      position += values[i].length;
+    }
+    return new RecordHeaders(new Header[] {new RecordHeader(COMPACT_HEADER, encoded)});
+  }
+
+  /**
+   * Adds the attributes stored in {@code headers} to {@code builder}, accepting both the compact
+   * and the per-header layout. A compact header which cannot be decoded is treated as an attribute.
+   */
+  static void decode(Headers headers, PubsubMessage.Builder builder) {
+    if (headers == null) {
+      return;
+    }
+    for (Header header : headers) {
+      byte[] value = header.value();
+      if (COMPACT_HEADER.equals(header.key()) && value != null && decodeCompact(value, builder)) {
+        continue;
+      }
+      builder.putAttributes(
+          header.key(), value == null ? "" : new String(value, StandardCharsets.UTF_8));
+    }
+  }
+
+  /** Decodes a compact header into {@code builder}, returning false if it is malformed. */
+  private static boolean decodeCompact(byte[] encoded, PubsubMessage.Builder builder) {
+    if (encoded.length == 0 || encoded[0] != VERSION) {
+      return false;
+    }
+    Map<String, String> attributes = new HashMap<>();
+    try {
+      int[] position = {1};
+      int count = readVarint(encoded, position);
+      for (int i = 0; i < count; i++) {
+        int keyHeader = readVarint(encoded, position);
+        String key;
+        if ((keyHeader & 1) == 1) {
+          key = COMMON_KEYS[keyHeader >>> 1];
+        } else {
+          key = readString(encoded, position, keyHeader >>> 1);
+        }
+        attributes.put(key, readString(encoded, position, readVarint(encoded, position)));
+      }
+      if (position[0] != encoded.length) {
+        throw new IllegalArgumentException("Unexpected trailing bytes");
+      }
+    } catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+      LOGGER.warning("Unable to decode " + COMPACT_HEADER + " header: " + e.getMessage());
+      return false;
+    }
+    builder.putAllAttributes(attributes);
+    return true;
+  }
+
+  private static String readString(byte[] encoded, int[] position, int length) {
+    if (length < 0 || length > encoded.length - position[0]) {
+      throw new IllegalArgumentException("Invalid length " + length);
+    }
+    String value = new String(encoded, position[0], length, StandardCharsets.UTF_8);
+    position[0] += length;
+    return value;
+  }
+
+  private static int readVarint(byte[] encoded, int[] position) {
+    int value = 0;
+    for (int shift = 0; shift < 32; shift += 7) {
+      byte b = encoded[position[0]++];
+      value |= (b & 0x7f) << shift;
+      if (b >= 0) {
+        return value;
+      }
+    }
+    throw new IllegalArgumentException("Malformed varint");
+  }
+
+  private static int writeVarint(byte[] encoded, int position, int value) {
+    while ((value & ~0x7f) != 0) {
+      encoded[position++] = (byte) ((value & 0x7f) | 0x80);
+      value >>>= 7;
+    }
+    encoded[position++] = (byte) value;
+    return position;
+  }
+
+  private static int varintSize(int value) {
+    int size = 1;
+    while ((value & ~0x7f) != 0) {
+      value >>>= 7;
+      size++;
+    }
+    return size;
+  }
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.partners.pubsub.kafka;
+
+/**
+ * A concurrent map from primitive {@code long} keys to non-null values, used to index outstanding
+ * leases without boxing their keys or allocating an entry per mapping.
+ *
+ * <p>The map is split into a fixed number of segments which are each guarded by their own lock.
+ * Each segment is an open-addressing table using linear probing, with deletions performed by
+ * shifting subsequent entries back so that no tombstones accumulate.
+ *
+ * @param <V> the type of mapped values
+ */
+final class ConcurrentLongHashMap<V> {
+
+  private static final int SEGMENTS = 16; // must be a power of 2
+  private static final int INITIAL_CAPACITY = 64; // per segment, must be a power of 2
+
+  private final Segment<V>[] segments;
+
+  @SuppressWarnings("unchecked")
+  ConcurrentLongHashMap() {
+    segments = new Segment[SEGMENTS];
+    for (int i = 0; i < SEGMENTS; i++) {
+      segments[i] = new Segment<>();
+    }
+  }
+
+  /** Returns the value mapped to {@code key}, or null if there is none. */
+  V get(long key) {
+    long hash = hash(key);
+    return segmentFor(hash).get(key, hash);
+  }
+
+  /** Maps {@code key} to {@code value}, returning the previously mapped value or null. */
+  V put(long key, V value) {
+    if (value == null) {
+      throw new NullPointerException("value");
+    }
+    long hash = hash(key);
+    return segmentFor(hash).put(key, hash, value);
+  }
+
+  /** Removes the mapping for {@code key}, returning the value that was mapped or null. */
+  V remove(long key) {
+    long hash = hash(key);
+    return segmentFor(hash).remove(key, hash, null);
+  }
+
+  /** Removes the mapping for {@code key} only if it is currently mapped to {@code value}. */
+  boolean remove(long key, V value) {
+    long hash = hash(key);
+    return value != null && segmentFor(hash).remove(key, hash, value) != null;
+  }
+
+  /** Returns the number of mappings, which may be stale if the map is modified concurrently. */
+  int size() {
+    int size = 0;
+    for (Segment<V> segment : segments) {
+      size += segment.size();
+    }
+    return size;
+  }
+
+  private Segment<V> segmentFor(long hash) {
+    return segments[(int) (hash >>> 60) & (SEGMENTS - 1)];
+  }
+
+  /** Spreads the bits of {@code key} since offsets are sequential (MurmurHash3 finalizer). */
+  private static long hash(long key) {
+    key ^= key >>> 33;
+    key *= 0xff51afd7ed558ccdL;
+    key ^= key >>> 33;
+    key *= 0xc4ceb9fe1a85ec53L;
+    key ^= key >>> 33;
+    return key;
+  }
+
+  private static final class Segment<V> {
+
+    private long[] keys;
+    private Object[] values; // null marks an empty slot
+    private int size;
+
+    private Segment() {
+      keys = new long[INITIAL_CAPACITY];
+      values = new Object[INITIAL_CAPACITY];
+    }
+
+    @SuppressWarnings("unchecked")
+    private synchronized V get(long key, long hash) {
+      int mask = keys.length - 1;
+      for (int i = (int) hash & mask; values[i] != null; i = (i + 1) & mask) {
+        if (keys[i] == key) {
+          return (V) values[i];
+        }
+      }
+      return null;
+    }
+
+    @SuppressWarnings("unchecked")
+    private synchronized V put(long key, long hash, V value) {
+      int mask = keys.length - 1;
+      int i = (int) hash & mask;
+      for (; values[i] != null; i = (i + 1) & mask) {
+        if (keys[i] == key) {
+          V previous = (V) values[i];
+          values[i] = value;
+          return previous;
+        }
+      }
+      keys[i] = key;
+      values[i] = value;
+      if (++size > keys.length * 3 / 4) {
+        resize();
+      }
+      return null;
+    }
+
+    /** Removes {@code key} if it is mapped to {@code expected}, or to anything if that is null. */
+    @SuppressWarnings("unchecked")
+    private synchronized V remove(long key, long hash, V expected) {
+      int mask = keys.length - 1;
+      int i = (int) hash & mask;
+      for (; values[i] != null; i = (i + 1) & mask) {
+        if (keys[i] == key) {
+          break;
+        }
+      }
+      V removed = (V) values[i];
+      if (removed == null || (expected != null && removed != expected)) {
+        return null;
+      }
+      // Shift back any following entries that would no longer be reachable from their home slot
+      int hole = i;
+      for (int j = (hole + 1) & mask; values[j] != null; j = (j + 1) & mask) {
+        int home = (int) hash(keys[j]) & mask;
+        if (((j - home) & mask) >= ((j - hole) & mask)) {
+          keys[hole] = keys[j];
+          values[hole] = values[j];
+          hole = j;
+        }
+      }
+      values[hole] = null;
+      size--;
+      return removed;
+    }
+
+    private synchronized int size() {
+      return size;
+    }
+
+    private void resize() {
+      long[] oldKeys = keys;
+      Object[] oldValues = values;
+      keys = new long[oldKeys.length << 1];
+      values = new Object[oldValues.length << 1];
+      int mask = keys.length - 1;
+      for (int j = 0; j < oldKeys.length; j++) {
+        if (oldValues[j] != null) {
+          int i = (int) hash(oldKeys[j]) & mask;
+          while (values[i] != null) {
+            i = (i + 1) & mask;
+          }
+          keys[i] = oldKeys[j];
+          values[i] = oldValues[j];
+        }
+      }
+    }
+  }
+}
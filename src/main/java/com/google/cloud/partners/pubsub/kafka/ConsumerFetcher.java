@@ -0,0 +1,515 @@
+/*
+ * Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.partners.pubsub.kafka;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.clients.consumer.ConsumerRebalanceListener;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.ConsumerRecords;
+import org.apache.kafka.common.KafkaException;
+import org.apache.kafka.common.TopicPartition;
+
+/**
+ * Continuously polls a single KafkaConsumer and appends the records it returns to the {@link
+ * PrefetchBuffer} of its Subscription, so that pull requests can be served from memory rather than
+ * waiting on the broker.
+ *
+ * <p>KafkaConsumer objects are not threadsafe, so each poll is issued while synchronized on the
+ * consumer. Polls use a short timeout so that commits issued from other threads only wait for a
+ * brief moment to acquire the consumer, and the completion callbacks of those asynchronous commits
+ * are run by the fetcher as part of its poll. While the buffer is full, the consumer's partitions
+ * are paused and no records are fetched. Each iteration also runs the Subscription's maintenance
+ * task.
+ *
+ * <p>If the consumer fails, either during a poll or because a commit issued through it failed, or
+ * any step of an iteration throws unexpectedly, the fetcher is marked unhealthy and replaces the
+ * consumer on its next iteration. The failed consumer is closed and a new one assigned to the same
+ * partitions is requested from the reconnect function. Partitions resume from the next offset the
+ * fetcher had not yet received, or from the Subscription's committed offset if nothing was fetched
+ * from them. Failed reconnection attempts are retried with exponential backoff.
+ *
+ * <p>When created with a {@link PartitionListener}, the consumer subscribes to the topic as a
+ * member of its group instead of being assigned fixed partitions. Kafka revokes every partition of
+ * the member before each rebalance, so partitions that are assigned back to it keep fetching from
+ * the next offset the fetcher had not yet received, and only the partitions that moved to another
+ * member are reported as lost. A consumer that fails leaves the group, so all of its partitions are
+ * lost when it is replaced and the replacement rejoins the group.
+ *
+ * <p>When created with a {@link TopicTailCache}, every record fetched is added to the cache, and
+ * partitions whose next offset lies within the cached window of another fetcher of the topic are
+ * paused and read from the cache instead. A partition that stops being served from the cache
+ * resumes fetching from the next offset it has not yet received.
+ *
+ * <p>Partitions can be moved to other offsets with {@link #seek(Map)}, which is applied by the
+ * fetching thread before its next poll so that the records it already buffered for them can be
+ * discarded without racing a concurrent append.
+ */
+final class ConsumerFetcher implements Runnable {
+
+  private static final Logger LOGGER = Logger.getLogger(ConsumerFetcher.class.getName());
+  private static final long FETCH_TIMEOUT = 100; // 100 milliseconds
+  private static final long MAX_RECONNECT_BACKOFF = 5000; // 5 seconds
+  private static final int MAX_CACHED_READ = 500; // records per partition and iteration
+
+  private final String name;
+  private final String topic;
+  private final Set<TopicPartition> partitions;
+  private final Function<Set<TopicPartition>, Consumer<String, ByteBuffer>> reconnect;
+  private final PrefetchBuffer buffer;
+  private final Runnable maintenance;
+  private final PartitionListener partitionListener;
+  private final TopicTailCache tailCache;
+  private final Map<TopicPartition, Long> nextOffsets; // Only accessed by the fetching thread
+  private final Set<TopicPartition> revoking; // Only accessed by the fetching thread
+  private final Set<TopicPartition> cacheServed; // Only accessed by the fetching thread
+  private final Map<TopicPartition, Long> fetchPositions; // Only accessed by the fetching thread
+  private final Queue<PendingSeek> seeks;
+  private volatile Consumer<String, ByteBuffer> consumer;
+  private volatile boolean running;
+  private volatile boolean paused;
+  private volatile boolean healthy;
+  private long reconnectBackoff;
+
+  ConsumerFetcher(
+      String name,
+      String topic,
+      Consumer<String, ByteBuffer> consumer,
+      Function<Set<TopicPartition>, Consumer<String, ByteBuffer>> reconnect,
+      PrefetchBuffer buffer,
+      Runnable maintenance) {
+    this(name, topic, consumer, reconnect, buffer, maintenance, null, null);
+  }
+
+  /**
+   * Creates a fetcher whose consumer subscribes to {@code topic} as a member of its group if {@code
+   * partitionListener} is not null, which is notified as partitions are revoked and assigned. If
+   * {@code tailCache} is not null, records are shared with the other fetchers of the topic through
+   * it.
+   */
+  ConsumerFetcher(
+      String name,
+      String topic,
+      Consumer<String, ByteBuffer> consumer,
+      Function<Set<TopicPartition>, Consumer<String, ByteBuffer>> reconnect,
+      PrefetchBuffer buffer,
+      Runnable maintenance,
+      PartitionListener partitionListener,
+      TopicTailCache tailCache) {
+    this.name = name;
+    this.topic = topic;
+    this.consumer = consumer;
+    this.reconnect = reconnect;
+    this.buffer = buffer;
+    this.maintenance = maintenance;
+    this.partitionListener = partitionListener;
+    this.tailCache = tailCache;
+    partitions = ConcurrentHashMap.newKeySet();
+    partitions.addAll(consumer.assignment());
+    nextOffsets = new HashMap<>();
+    revoking = new HashSet<>();
+    cacheServed = new HashSet<>();
+    fetchPositions = new HashMap<>();
+    seeks = new ConcurrentLinkedQueue<>();
+    if (partitionListener != null) {
+      consumer.subscribe(Collections.singleton(topic), new RebalanceListener());
+    }
+    running = true;
+    healthy = true;
+    reconnectBackoff = FETCH_TIMEOUT;
+  }
+
+  @Override
+  public void run() {
+    LOGGER.fine("Fetcher " + name + " started");
+    while (running) {
+      try {
+        if (!fetch()) {
+          break;
+        }
+      } catch (RuntimeException e) {
+        // The consumer is replaced by the next iteration, which keeps the Subscription fetching
+        LOGGER.log(Level.WARNING, "Fetcher " + name + " failed unexpectedly, reconnecting", e);
+        healthy = false;
+        if (!sleep(reconnectBackoff)) {
+          break;
+        }
+      }
+    }
+    LOGGER.fine("Fetcher " + name + " stopped");
+  }
+
+  /**
+   * Runs a single iteration of the fetcher, reconnecting a failed consumer or polling the current
+   * one and buffering the records it returns.
+   *
+   * @return false if the fetcher should exit
+   */
+  private boolean fetch() {
+    maintenance.run();
+    if (!healthy && !reconnect()) {
+      if (!sleep(reconnectBackoff)) {
+        return false;
+      }
+      reconnectBackoff = Math.min(reconnectBackoff * 2, MAX_RECONNECT_BACKOFF);
+      return true;
+    }
+    long start = System.nanoTime();
+    ConsumerRecords<String, ByteBuffer> polled = null;
+    List<ConsumerRecord<String, ByteBuffer>> cached = Collections.emptyList();
+    Consumer<String, ByteBuffer> current = consumer;
+    synchronized (current) {
+      if (!running) {
+        return false;
+      }
+      try {
+        applySeeks();
+        if (tailCache != null) {
+          cached = readTailCache();
+        }
+        updatePaused();
+        // Keep reading from the cache without waiting if it had records
+        polled = current.poll(cached.isEmpty() ? FETCH_TIMEOUT : 0);
+      } catch (KafkaException e) {
+        LOGGER.log(Level.WARNING, "Fetcher " + name + " failed to poll, reconnecting", e);
+        healthy = false;
+      }
+    }
+    long elapsed = System.nanoTime() - start;
+
+    if (!cached.isEmpty()) {
+      buffer.addAll(cached);
+      LOGGER.fine("Fetcher " + name + " buffered " + cached.size() + " cached records");
+    }
+    if (polled != null && tailCache != null && !paused) {
+      for (Map.Entry<TopicPartition, Long> entry : fetchPositions.entrySet()) {
+        tailCache.append(entry.getKey(), entry.getValue(), polled.records(entry.getKey()), this);
+      }
+    }
+    if (polled != null && !polled.isEmpty()) {
+      buffer.recordFetch(elapsed);
+      buffer.addAll(polled.records(topic));
+      for (TopicPartition tp : polled.partitions()) {
+        List<ConsumerRecord<String, ByteBuffer>> records = polled.records(tp);
+        nextOffsets.put(tp, records.get(records.size() - 1).offset() + 1);
+      }
+      LOGGER.fine(
+          "Fetcher "
+              + name
+              + " buffered "
+              + polled.count()
+              + " records in "
+              + TimeUnit.NANOSECONDS.toMicros(elapsed)
+              + "us, buffer="
+              + buffer.size()
+              + ", bufferBytes="
+              + buffer.sizeBytes());
+    } else if (cached.isEmpty() && !sleep(FETCH_TIMEOUT - TimeUnit.NANOSECONDS.toMillis(elapsed))) {
+      // Paused, failed, or returned early without records, so wait out the rest of the timeout
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Signals the fetcher to exit. The consumer will not be polled again once this method returns,
+   * provided the caller is synchronized on the consumer.
+   */
+  void stop() {
+    running = false;
+  }
+
+  boolean isPaused() {
+    return paused;
+  }
+
+  boolean isHealthy() {
+    return healthy;
+  }
+
+  /**
+   * Returns the consumer currently used by this fetcher. Callers must synchronize on it, and should
+   * expect it to be closed if the fetcher replaces it concurrently.
+   */
+  Consumer<String, ByteBuffer> getConsumer() {
+    return consumer;
+  }
+
+  /**
+   * Returns the partitions currently assigned to the consumer. Callers must synchronize on the
+   * consumer for the partitions to remain assigned while they are using them.
+   */
+  Set<TopicPartition> getPartitions() {
+    return Collections.unmodifiableSet(partitions);
+  }
+
+  /**
+   * Moves each partition in {@code positions} that is assigned to the consumer to the given offset,
+   * discarding the records of those partitions that are still buffered. Partitions that are not
+   * assigned are ignored.
+   *
+   * @return a future which completes once the fetching thread has applied the seek
+   */
+  CompletableFuture<Void> seek(Map<TopicPartition, Long> positions) {
+    PendingSeek seek = new PendingSeek(positions);
+    seeks.add(seek);
+    return seek.applied;
+  }
+
+  /** Marks the consumer as failed so that it is replaced on the fetcher's next iteration. */
+  void markUnhealthy() {
+    healthy = false;
+  }
+
+  /**
+   * Closes the failed consumer and replaces it with a new one assigned to the same partitions.
+   *
+   * @return true if the consumer was replaced
+   */
+  private boolean reconnect() {
+    Consumer<String, ByteBuffer> failed = consumer;
+    synchronized (failed) {
+      if (partitionListener != null && !partitions.isEmpty()) {
+        // Closing the consumer leaves the group, so its partitions may be assigned to other members
+        partitionListener.onRevoking(failed, partitions);
+        partitionListener.onLost(new HashSet<>(partitions));
+        partitions.clear();
+        nextOffsets.clear();
+      }
+      try {
+        failed.close();
+      } catch (KafkaException e) {
+        LOGGER.log(Level.FINE, "Fetcher " + name + " failed to close consumer", e);
+      }
+    }
+    Consumer<String, ByteBuffer> replacement;
+    try {
+      replacement = reconnect.apply(partitions);
+      nextOffsets.forEach(replacement::seek);
+      if (partitionListener != null) {
+        replacement.subscribe(Collections.singleton(topic), new RebalanceListener());
+      }
+    } catch (KafkaException e) {
+      LOGGER.log(
+          Level.WARNING,
+          "Fetcher " + name + " failed to reconnect, retrying in " + reconnectBackoff + "ms",
+          e);
+      return false;
+    }
+    consumer = replacement;
+    cacheServed.clear();
+    paused = false;
+    healthy = true;
+    reconnectBackoff = FETCH_TIMEOUT;
+    if (!running) {
+      // Stopped while reconnecting, so the replacement may have been missed by the shutdown
+      synchronized (replacement) {
+        replacement.close();
+      }
+    }
+    LOGGER.info("Fetcher " + name + " reconnected to " + partitions);
+    return true;
+  }
+
+  /**
+   * Sleeps for {@code millis}, if positive.
+   *
+   * @return false if the thread was interrupted
+   */
+  private boolean sleep(long millis) {
+    if (millis > 0) {
+      try {
+        Thread.sleep(millis);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /** Applies the pending seeks. Must be called while synchronized on the consumer. */
+  private void applySeeks() {
+    PendingSeek seek;
+    while ((seek = seeks.poll()) != null) {
+      Set<Integer> moved = new HashSet<>();
+      try {
+        Set<TopicPartition> assignment = consumer.assignment();
+        for (Map.Entry<TopicPartition, Long> position : seek.positions.entrySet()) {
+          TopicPartition tp = position.getKey();
+          if (assignment.contains(tp)) {
+            consumer.seek(tp, position.getValue());
+            nextOffsets.put(tp, position.getValue());
+            cacheServed.remove(tp);
+            moved.add(tp.partition());
+          }
+        }
+      } catch (RuntimeException e) {
+        // Reported to the caller of seek, which must not commit the positions
+        seek.applied.completeExceptionally(e);
+        throw e;
+      }
+      int dropped = buffer.removePartitions(moved);
+      seek.applied.complete(null);
+      LOGGER.info(
+          "Fetcher " + name + " moved partitions " + moved + ", dropped " + dropped + " records");
+    }
+  }
+
+  /**
+   * Reads the records of each assigned partition that are available in the tail cache from its next
+   * offset, and determines which partitions are served from the cache rather than fetched. The
+   * consumer of a partition that is fetched again is rewound to the next offset, since records were
+   * taken from the cache while it was paused.
+   */
+  private List<ConsumerRecord<String, ByteBuffer>> readTailCache() {
+    List<ConsumerRecord<String, ByteBuffer>> cached = new ArrayList<>();
+    Set<TopicPartition> served = new HashSet<>();
+    fetchPositions.clear();
+    boolean full = buffer.isFull();
+    for (TopicPartition tp : consumer.assignment()) {
+      Long nextOffset = nextOffsets.get(tp);
+      long position = nextOffset != null ? nextOffset : consumer.position(tp);
+      int read = full ? 0 : tailCache.read(tp, position, MAX_CACHED_READ, cached);
+      if (read > 0) {
+        position = cached.get(cached.size() - 1).offset() + 1;
+        nextOffsets.put(tp, position);
+      }
+      if (tailCache.isServedFromCache(tp, position, this)) {
+        served.add(tp);
+      } else {
+        if (read > 0 || cacheServed.contains(tp)) {
+          consumer.seek(tp, position);
+        }
+        fetchPositions.put(tp, position);
+      }
+    }
+    cacheServed.clear();
+    cacheServed.addAll(served);
+    return cached;
+  }
+
+  /**
+   * Pauses or resumes all assigned partitions based on the current buffer level. While the buffer
+   * is not full, partitions served from the tail cache remain paused.
+   */
+  private void updatePaused() {
+    if (!paused && buffer.isFull()) {
+      paused = true;
+      LOGGER.fine("Fetcher " + name + " paused, buffer=" + buffer.size());
+    } else if (paused && buffer.canResume()) {
+      paused = false;
+      LOGGER.fine("Fetcher " + name + " resumed, buffer=" + buffer.size());
+    }
+    Set<TopicPartition> assignment = consumer.assignment();
+    Set<TopicPartition> pausing = new HashSet<>(paused ? assignment : cacheServed);
+    pausing.retainAll(assignment);
+    Set<TopicPartition> resuming = new HashSet<>(consumer.paused());
+    resuming.removeAll(pausing);
+    pausing.removeAll(consumer.paused());
+    if (!pausing.isEmpty()) {
+      consumer.pause(pausing);
+    }
+    if (!resuming.isEmpty()) {
+      consumer.resume(resuming);
+    }
+  }
+
+  /**
+   * Receives the partitions gained and lost by a fetcher whose consumer is a member of a group.
+   * Methods are invoked on the fetching thread while it is synchronized on the consumer.
+   */
+  interface PartitionListener {
+
+    /**
+     * Invoked before {@code partitions} are revoked from {@code consumer}, while offsets for them
+     * can still be committed through it.
+     */
+    void onRevoking(Consumer<String, ByteBuffer> consumer, Collection<TopicPartition> partitions);
+
+    /** Invoked once {@code partitions} are no longer assigned to the consumer after a rebalance. */
+    void onLost(Set<TopicPartition> partitions);
+
+    /** Invoked once {@code partitions} are newly assigned to {@code consumer}. */
+    void onAssigned(Consumer<String, ByteBuffer> consumer, Collection<TopicPartition> partitions);
+  }
+
+  /** A seek waiting to be applied by the fetching thread. */
+  private static final class PendingSeek {
+
+    private final Map<TopicPartition, Long> positions;
+    private final CompletableFuture<Void> applied = new CompletableFuture<>();
+
+    private PendingSeek(Map<TopicPartition, Long> positions) {
+      this.positions = new HashMap<>(positions);
+    }
+  }
+
+  /** Tracks the partitions of the consumer as the group rebalances. */
+  private final class RebalanceListener implements ConsumerRebalanceListener {
+
+    @Override
+    public void onPartitionsRevoked(Collection<TopicPartition> revoked) {
+      partitionListener.onRevoking(consumer, revoked);
+      revoking.addAll(revoked);
+    }
+
+    @Override
+    public void onPartitionsAssigned(Collection<TopicPartition> assigned) {
+      Set<TopicPartition> added = new HashSet<>();
+      for (TopicPartition tp : assigned) {
+        Long nextOffset = nextOffsets.get(tp);
+        if (revoking.remove(tp) && nextOffset != null) {
+          // Retained by this member, so continue after the records that were already fetched
+          consumer.seek(tp, nextOffset);
+        } else if (partitions.add(tp)) {
+          added.add(tp);
+        }
+      }
+      if (!revoking.isEmpty()) {
+        Set<TopicPartition> lost = new HashSet<>(revoking);
+        partitions.removeAll(lost);
+        nextOffsets.keySet().removeAll(lost);
+        revoking.clear();
+        partitionListener.onLost(lost);
+      }
+      if (paused) {
+        consumer.pause(consumer.assignment());
+      }
+      if (!added.isEmpty()) {
+        partitionListener.onAssigned(consumer, added);
+      }
+      LOGGER.info("Fetcher " + name + " assigned " + assigned);
+    }
+  }
+}
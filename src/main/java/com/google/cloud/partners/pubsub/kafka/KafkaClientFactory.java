@@ -16,6 +16,7 @@
 
 package com.google.cloud.partners.pubsub.kafka;
 
+import com.google.cloud.partners.pubsub.kafka.properties.ProducerProfileProperties;
 import java.nio.ByteBuffer;
 import org.apache.kafka.clients.consumer.Consumer;
 import org.apache.kafka.clients.producer.Producer;
@@ -26,4 +27,6 @@ interface KafkaClientFactory {
   Consumer<String, ByteBuffer> createConsumer(String subscription);
 
   Producer<String, ByteBuffer> createProducer();
+
+  Producer<String, ByteBuffer> createProducer(ProducerProfileProperties profile);
 }
@@ -23,12 +23,16 @@ import static org.apache.kafka.clients.consumer.ConsumerConfig.GROUP_ID_CONFIG;
 import static org.apache.kafka.clients.consumer.ConsumerConfig.KEY_DESERIALIZER_CLASS_CONFIG;
 import static org.apache.kafka.clients.consumer.ConsumerConfig.VALUE_DESERIALIZER_CLASS_CONFIG;
 import static org.apache.kafka.clients.producer.ProducerConfig.ACKS_CONFIG;
+import static org.apache.kafka.clients.producer.ProducerConfig.BATCH_SIZE_CONFIG;
+import static org.apache.kafka.clients.producer.ProducerConfig.COMPRESSION_TYPE_CONFIG;
 import static org.apache.kafka.clients.producer.ProducerConfig.KEY_SERIALIZER_CLASS_CONFIG;
+import static org.apache.kafka.clients.producer.ProducerConfig.LINGER_MS_CONFIG;
 import static org.apache.kafka.clients.producer.ProducerConfig.MAX_BLOCK_MS_CONFIG;
 import static org.apache.kafka.clients.producer.ProducerConfig.VALUE_SERIALIZER_CLASS_CONFIG;
 
 import com.google.cloud.partners.pubsub.kafka.properties.ApplicationProperties;
 import com.google.cloud.partners.pubsub.kafka.properties.ConsumerProperties;
+import com.google.cloud.partners.pubsub.kafka.properties.ProducerProfileProperties;
 import com.google.cloud.partners.pubsub.kafka.properties.ProducerProperties;
 import java.nio.ByteBuffer;
 import java.util.Properties;
@@ -89,10 +93,41 @@ public class KafkaClientFactoryImpl implements KafkaClientFactory {
   /** Builds and returns a new KafkaProducer object. */
   @Override
   public Producer<String, ByteBuffer> createProducer() {
+    return new KafkaProducer<>(buildProducerProperties(new Properties()));
+  }
+
+  /**
+   * Builds and returns a new KafkaProducer object whose configs are overridden by the settings of
+   * {@code profile}.
+   */
+  @Override
+  public Producer<String, ByteBuffer> createProducer(ProducerProfileProperties profile) {
+    Properties properties = buildProducerProperties(profile.getProperties());
+    if (profile.getAcks() != null) {
+      properties.setProperty(ACKS_CONFIG, profile.getAcks());
+    }
+    if (profile.getLingerMs() != null) {
+      properties.setProperty(LINGER_MS_CONFIG, String.valueOf(profile.getLingerMs()));
+    }
+    if (profile.getBatchSize() != null) {
+      properties.setProperty(BATCH_SIZE_CONFIG, String.valueOf(profile.getBatchSize()));
+    }
+    if (profile.getCompressionType() != null) {
+      properties.setProperty(COMPRESSION_TYPE_CONFIG, profile.getCompressionType());
+    }
+    return new KafkaProducer<>(properties);
+  }
+
+  /**
+   * Returns the configs shared by every KafkaProducer, with {@code overrides} applied on top of the
+   * configured producer properties.
+   */
+  private Properties buildProducerProperties(Properties overrides) {
     ProducerProperties producerProperties =
         applicationProperties.getKafkaProperties().getProducerProperties();
     Properties properties = new Properties();
     properties.putAll(producerProperties.getProperties());
+    properties.putAll(overrides);
     properties.setProperty(
         ProducerConfig.BOOTSTRAP_SERVERS_CONFIG,
         applicationProperties.getKafkaProperties().getBootstrapServers());
@@ -100,6 +135,6 @@ public class KafkaClientFactoryImpl implements KafkaClientFactory {
     properties.setProperty(KEY_SERIALIZER_CLASS_CONFIG, PRODUCER_KEY_SERIALIZER_CONFIG_VALUE);
     properties.setProperty(VALUE_SERIALIZER_CLASS_CONFIG, PRODUCER_VALUE_SERIALIZER_CONFIG_VALUE);
     properties.setProperty(MAX_BLOCK_MS_CONFIG, String.valueOf(MAX_BLOCK_MS_VALUE));
-    return new KafkaProducer<>(properties);
+    return properties;
   }
 }
@@ -0,0 +1,436 @@
+/*
+ * Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.partners.pubsub.kafka;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.ConsumerRecords;
+import org.apache.kafka.common.KafkaException;
+import org.apache.kafka.common.TopicPartition;
+
+/**
+ * Polls a single KafkaConsumer on behalf of every Subscription attached to it, appending the
+ * records it returns to the {@link PrefetchBuffer} of each of them. The consumer is assigned a
+ * fixed set of partitions and never commits, since the offsets of the Subscriptions are kept in a
+ * {@link SubscriptionOffsetStore}.
+ *
+ * <p>Each attached Subscription has its own position in every partition, which is the next offset
+ * it has not received yet. The consumer fetches from the lowest of these positions, seeking back
+ * whenever a Subscription attaches behind it, and each record is only appended to the buffers of
+ * the Subscriptions whose position it reached. Records are shared between the buffers rather than
+ * copied. A Subscription whose buffer is full stops receiving records while the fetcher keeps its
+ * position and carries on for the others. Once its buffer drains to half of its high watermarks,
+ * the consumer seeks back to its position if the others have moved past it, so that an idle
+ * Subscription never holds back the rest of the topic. Partitions are only paused while the buffers
+ * of every attached Subscription are full.
+ *
+ * <p>Attachments are applied by the fetching thread before its next poll, so positions only change
+ * while it is synchronized on the consumer. Attaching a Subscription that is already a member moves
+ * it to the new positions, discarding the records of the fetcher's partitions from its buffer. If
+ * the consumer fails, it is closed and replaced by one assigned to the same partitions, which
+ * resumes from the lowest position of the attached Subscriptions. Failed reconnection attempts are
+ * retried with exponential backoff. Any other failure of an iteration, including the maintenance
+ * task of a Subscription, is logged without stopping the fetcher.
+ */
+final class MultiplexedFetcher implements Runnable {
+
+  private static final Logger LOGGER = Logger.getLogger(MultiplexedFetcher.class.getName());
+  private static final long FETCH_TIMEOUT = 100; // 100 milliseconds
+  private static final long MAX_RECONNECT_BACKOFF = 5000; // 5 seconds
+
+  private final String name;
+  private final Set<TopicPartition> partitions;
+  private final Supplier<Consumer<String, ByteBuffer>> reconnect;
+  private final List<Member> members;
+  private final Queue<Member> attaching;
+  private volatile Consumer<String, ByteBuffer> consumer;
+  private volatile boolean running;
+  private boolean paused; // Only accessed by the fetching thread
+  private boolean healthy; // Only accessed by the fetching thread
+  private long reconnectBackoff;
+
+  /**
+   * Creates a fetcher which assigns {@code partitions} to {@code consumer}, and to the consumers
+   * returned by {@code reconnect} if it fails.
+   */
+  MultiplexedFetcher(
+      String name,
+      Consumer<String, ByteBuffer> consumer,
+      Set<TopicPartition> partitions,
+      Supplier<Consumer<String, ByteBuffer>> reconnect) {
+    this.name = name;
+    this.consumer = consumer;
+    this.partitions = new HashSet<>(partitions);
+    this.reconnect = reconnect;
+    members = new CopyOnWriteArrayList<>();
+    attaching = new ConcurrentLinkedQueue<>();
+    running = true;
+    healthy = true;
+    reconnectBackoff = FETCH_TIMEOUT;
+    consumer.assign(partitions);
+  }
+
+  Set<TopicPartition> getPartitions() {
+    return partitions;
+  }
+
+  /**
+   * Starts appending records to {@code buffer} from {@code positions}, which holds the next offset
+   * to deliver for each partition. Partitions without a position start from their earliest offset.
+   * The fetcher runs {@code maintenance} on each iteration on behalf of the Subscription. If {@code
+   * buffer} is already attached, it is moved to {@code positions} instead.
+   *
+   * @return a future which completes once the fetching thread has applied the attachment
+   */
+  CompletableFuture<Void> attach(
+      PrefetchBuffer buffer, Runnable maintenance, Map<TopicPartition, Long> positions) {
+    Member member = new Member(buffer, maintenance);
+    positions.forEach(
+        (tp, offset) -> {
+          if (partitions.contains(tp)) {
+            member.positions.put(tp, offset);
+          }
+        });
+    attaching.add(member);
+    return member.attached;
+  }
+
+  /** Stops appending records to {@code buffer}. */
+  void detach(PrefetchBuffer buffer) {
+    attaching.removeIf(member -> member.buffer == buffer);
+    members.removeIf(member -> member.buffer == buffer);
+  }
+
+  /** Returns the number of Subscriptions whose attachment has been applied. */
+  int members() {
+    return members.size();
+  }
+
+  /**
+   * Signals the fetcher to exit. The consumer will not be polled again once this method returns,
+   * provided the caller is synchronized on the consumer.
+   */
+  void stop() {
+    running = false;
+  }
+
+  /**
+   * Returns the consumer currently used by this fetcher. Callers must synchronize on it, and should
+   * expect it to be closed if the fetcher replaces it concurrently.
+   */
+  Consumer<String, ByteBuffer> getConsumer() {
+    return consumer;
+  }
+
+  @Override
+  public void run() {
+    LOGGER.fine("Fetcher " + name + " started");
+    while (running) {
+      try {
+        if (!fetch()) {
+          break;
+        }
+      } catch (RuntimeException e) {
+        // The consumer is replaced by the next iteration, which keeps every member fetching
+        LOGGER.log(Level.WARNING, "Fetcher " + name + " failed unexpectedly, reconnecting", e);
+        healthy = false;
+        if (!sleep(reconnectBackoff)) {
+          break;
+        }
+      }
+    }
+    LOGGER.fine("Fetcher " + name + " stopped");
+  }
+
+  /**
+   * Runs a single iteration of the fetcher, reconnecting a failed consumer or polling the current
+   * one and dispatching the records it returns.
+   *
+   * @return false if the fetcher should exit
+   */
+  private boolean fetch() {
+    for (Member member : members) {
+      try {
+        member.maintenance.run();
+      } catch (RuntimeException e) {
+        // Isolated so that a failing Subscription does not stop the others from fetching
+        LOGGER.log(Level.WARNING, "Fetcher " + name + " failed to run maintenance", e);
+      }
+    }
+    if (!healthy && !reconnect()) {
+      if (!sleep(reconnectBackoff)) {
+        return false;
+      }
+      reconnectBackoff = Math.min(reconnectBackoff * 2, MAX_RECONNECT_BACKOFF);
+      return true;
+    }
+    long start = System.nanoTime();
+    ConsumerRecords<String, ByteBuffer> polled = null;
+    Consumer<String, ByteBuffer> current = consumer;
+    synchronized (current) {
+      if (!running) {
+        return false;
+      }
+      try {
+        applyAttachments();
+        if (!members.isEmpty()) {
+          updatePaused();
+          polled = current.poll(FETCH_TIMEOUT);
+        }
+      } catch (KafkaException e) {
+        LOGGER.log(Level.WARNING, "Fetcher " + name + " failed to poll, reconnecting", e);
+        healthy = false;
+      }
+    }
+    long elapsed = System.nanoTime() - start;
+
+    if (polled != null && !polled.isEmpty()) {
+      dispatch(polled, elapsed);
+    } else if (!sleep(FETCH_TIMEOUT - TimeUnit.NANOSECONDS.toMillis(elapsed))) {
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Appends the records of each partition to the buffers of the members whose position they
+   * reached, and advances those positions past them. Members whose buffer is full are skipped and
+   * keep their positions. The records for a member are appended at once so that waiting subscribers
+   * see all of them.
+   */
+  private void dispatch(ConsumerRecords<String, ByteBuffer> polled, long elapsed) {
+    int dispatched = 0;
+    for (Member member : members) {
+      if (member.full) {
+        continue;
+      }
+      List<ConsumerRecord<String, ByteBuffer>> appended = new ArrayList<>();
+      for (TopicPartition tp : polled.partitions()) {
+        List<ConsumerRecord<String, ByteBuffer>> records = polled.records(tp);
+        Long position = member.positions.get(tp);
+        if (position == null) {
+          continue;
+        }
+        int from = 0;
+        while (from < records.size() && records.get(from).offset() < position) {
+          from++;
+        }
+        if (from < records.size()) {
+          appended.addAll(records.subList(from, records.size()));
+          member.positions.put(tp, records.get(records.size() - 1).offset() + 1);
+        }
+      }
+      if (!appended.isEmpty()) {
+        member.buffer.recordFetch(elapsed);
+        member.buffer.addAll(appended);
+        dispatched++;
+      }
+    }
+    LOGGER.fine(
+        "Fetcher "
+            + name
+            + " dispatched "
+            + polled.count()
+            + " records to "
+            + dispatched
+            + " Subscriptions in "
+            + TimeUnit.NANOSECONDS.toMicros(elapsed)
+            + "us");
+  }
+
+  /**
+   * Adds the Subscriptions waiting to attach to the members, resolving the positions they lack to
+   * the earliest offsets and seeking back to any position behind the lowest of the current members.
+   * A Subscription that was already a member replaces its previous attachment, and its buffered
+   * records are dropped since they were fetched from the previous positions. Must be called while
+   * synchronized on the consumer.
+   */
+  private void applyAttachments() {
+    Member member;
+    while ((member = attaching.peek()) != null) {
+      PrefetchBuffer buffer = member.buffer;
+      if (members.removeIf(current -> current.buffer == buffer)) {
+        buffer.removePartitions(
+            partitions.stream().map(TopicPartition::partition).collect(Collectors.toSet()));
+      }
+      Set<TopicPartition> missing = new HashSet<>(partitions);
+      missing.removeAll(member.positions.keySet());
+      if (!missing.isEmpty()) {
+        member.positions.putAll(consumer.beginningOffsets(missing));
+      }
+      for (TopicPartition tp : partitions) {
+        long position = member.positions.get(tp);
+        Long lowest = lowestPosition(tp);
+        if (lowest == null || position < lowest) {
+          consumer.seek(tp, position);
+        }
+      }
+      members.add(member);
+      attaching.poll();
+      member.attached.complete(null);
+      LOGGER.fine("Fetcher " + name + " attached a Subscription at " + member.positions);
+    }
+  }
+
+  /**
+   * Returns the lowest position in {@code tp} of the members receiving records, or null if there
+   * are none. Members whose buffer is full are ignored, since the consumer seeks back to their
+   * positions once they drain.
+   */
+  private Long lowestPosition(TopicPartition tp) {
+    Long lowest = null;
+    for (Member member : members) {
+      if (member.full) {
+        continue;
+      }
+      Long position = member.positions.get(tp);
+      if (position != null && (lowest == null || position < lowest)) {
+        lowest = position;
+      }
+    }
+    return lowest;
+  }
+
+  /**
+   * Closes the failed consumer and replaces it with a new one assigned to the same partitions,
+   * positioned at the lowest position of the members.
+   *
+   * @return true if the consumer was replaced
+   */
+  private boolean reconnect() {
+    Consumer<String, ByteBuffer> failed = consumer;
+    synchronized (failed) {
+      try {
+        failed.close();
+      } catch (KafkaException e) {
+        LOGGER.log(Level.FINE, "Fetcher " + name + " failed to close consumer", e);
+      }
+    }
+    Consumer<String, ByteBuffer> replacement;
+    try {
+      replacement = reconnect.get();
+      replacement.assign(partitions);
+      for (TopicPartition tp : partitions) {
+        Long lowest = lowestPosition(tp);
+        if (lowest != null) {
+          replacement.seek(tp, lowest);
+        }
+      }
+    } catch (KafkaException e) {
+      LOGGER.log(
+          Level.WARNING,
+          "Fetcher " + name + " failed to reconnect, retrying in " + reconnectBackoff + "ms",
+          e);
+      return false;
+    }
+    consumer = replacement;
+    paused = false;
+    healthy = true;
+    reconnectBackoff = FETCH_TIMEOUT;
+    if (!running) {
+      // Stopped while reconnecting, so the replacement may have been missed by the shutdown
+      synchronized (replacement) {
+        replacement.close();
+      }
+    }
+    LOGGER.info("Fetcher " + name + " reconnected to " + partitions);
+    return true;
+  }
+
+  /**
+   * Sleeps for {@code millis}, if positive.
+   *
+   * @return false if the thread was interrupted
+   */
+  private boolean sleep(long millis) {
+    if (millis > 0) {
+      try {
+        Thread.sleep(millis);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Stops dispatching to members once their buffer is full, and resumes them once it has drained to
+   * half of its high watermarks, seeking back to the positions of a resumed member that are behind
+   * the lowest position of the others. All assigned partitions are paused while every member is
+   * full. Must be called while synchronized on the consumer.
+   */
+  private void updatePaused() {
+    for (Member member : members) {
+      if (!member.full && member.buffer.isFull()) {
+        member.full = true;
+        LOGGER.fine("Fetcher " + name + " stopped dispatching to a full Subscription");
+      } else if (member.full && member.buffer.canResume()) {
+        for (TopicPartition tp : partitions) {
+          long position = member.positions.get(tp);
+          Long lowest = lowestPosition(tp);
+          if (lowest == null || position < lowest) {
+            consumer.seek(tp, position);
+          }
+        }
+        member.full = false;
+        LOGGER.fine("Fetcher " + name + " resumed dispatching at " + member.positions);
+      }
+    }
+    boolean allFull = members.stream().allMatch(member -> member.full);
+    if (!paused && allFull) {
+      consumer.pause(consumer.assignment());
+      paused = true;
+      LOGGER.fine("Fetcher " + name + " paused");
+    } else if (paused && !allFull) {
+      consumer.resume(consumer.assignment());
+      paused = false;
+      LOGGER.fine("Fetcher " + name + " resumed");
+    }
+  }
+
+  /** A Subscription attached to the fetcher. */
+  private static final class Member {
+
+    private final PrefetchBuffer buffer;
+    private final Runnable maintenance;
+    private final Map<TopicPartition, Long> positions = new ConcurrentHashMap<>();
+    private final CompletableFuture<Void> attached = new CompletableFuture<>();
+    private boolean full; // Only accessed by the fetching thread
+
+    private Member(PrefetchBuffer buffer, Runnable maintenance) {
+      this.buffer = buffer;
+      this.maintenance = maintenance;
+    }
+  }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.partners.pubsub.kafka;
+
+import java.util.ArrayDeque;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.Set;
+
+/**
+ * Enforces in-order delivery of messages sharing an ordering key.
+ *
+ * <p>Messages for an ordering key are delivered in batches: every message for the key that is
+ * available when a pull is filled may be returned by that pull, but no further messages for the key
+ * are delivered until each message of the batch has been acknowledged or has expired. Messages that
+ * arrive while a batch is outstanding, as well as expired messages that need to be redelivered, are
+ * held back in offset order. Once the outstanding batch is released, the key becomes ready and its
+ * held messages form the next batch. Since all messages for a key are written to the same
+ * partition, only messages sharing a key are serialized while other keys are delivered in parallel.
+ *
+ * <p>All methods are synchronized since pulls, acknowledgements and expirations for the same key
+ * can be issued from different threads.
+ */
+final class OrderingKeyScheduler {
+
+  private static final Comparator<OutstandingMessage> BY_OFFSET =
+      Comparator.comparingLong(OutstandingMessage::getOffset);
+
+  private final Map<String, KeyState> keys = new HashMap<>();
+  private final Queue<String> readyKeys = new ArrayDeque<>();
+
+  /**
+   * Fills {@code messages} with the held messages of keys whose previous batch was released,
+   * stopping once {@code maxMessages} or {@code maxBytes} are reached. Each key that contributes
+   * messages is added to {@code batchKeys}.
+   *
+   * @return the size of the messages added
+   */
+  synchronized long pollReady(
+      List<OutstandingMessage> messages, Set<String> batchKeys, int maxMessages, long maxBytes) {
+    long bytes = 0;
+    String key;
+    while (messages.size() < maxMessages && bytes < maxBytes && (key = readyKeys.poll()) != null) {
+      KeyState state = keys.get(key);
+      if (state == null || state.outstanding > 0) {
+        continue;
+      }
+      OutstandingMessage om;
+      while (messages.size() < maxMessages
+          && bytes < maxBytes
+          && (om = state.waiting.poll()) != null) {
+        messages.add(om);
+        bytes += om.getSize();
+        state.outstanding++;
+      }
+      batchKeys.add(key);
+      if (state.outstanding == 0) {
+        keys.remove(key);
+      }
+    }
+    return bytes;
+  }
+
+  /**
+   * Decides whether {@code om} can be delivered as part of the batch identified by {@code
+   * batchKeys}. A message is delivered if its key has nothing outstanding or held, or if the key
+   * already contributed to this batch and nothing is held for it. Otherwise the message is held
+   * until the key becomes ready again.
+   *
+   * @return true if the message should be delivered now, false if it was held
+   */
+  synchronized boolean admit(OutstandingMessage om, Set<String> batchKeys) {
+    String key = om.getOrderingKey();
+    KeyState state = keys.computeIfAbsent(key, k -> new KeyState());
+    boolean deliverable =
+        state.waiting.isEmpty() && (state.outstanding == 0 || batchKeys.contains(key));
+    if (!deliverable) {
+      state.waiting.add(om);
+      return false;
+    }
+    state.outstanding++;
+    batchKeys.add(key);
+    return true;
+  }
+
+  /**
+   * Holds {@code om}, whose lease expired, for redelivery with the next batch of its key. The
+   * expired lease must also be released using {@link #release(String)}.
+   */
+  synchronized void requeue(OutstandingMessage om) {
+    keys.computeIfAbsent(om.getOrderingKey(), k -> new KeyState()).waiting.add(om);
+  }
+
+  /**
+   * Releases one outstanding message of {@code key}, which was either acknowledged or expired.
+   *
+   * @return true if this released the last outstanding message of a key with held messages, which
+   *     means a subsequent pull can deliver them
+   */
+  synchronized boolean release(String key) {
+    KeyState state = keys.get(key);
+    if (state == null || state.outstanding == 0) {
+      return false;
+    }
+    if (--state.outstanding > 0) {
+      return false;
+    }
+    if (state.waiting.isEmpty()) {
+      keys.remove(key);
+      return false;
+    }
+    readyKeys.add(key);
+    return true;
+  }
+
+  /**
+   * Drops the held messages of {@code partitions}, which are no longer owned by the Subscription.
+   * The outstanding messages of those partitions must have been released beforehand, so that the
+   * state of their keys can be discarded.
+   *
+   * @return the number of held messages dropped
+   */
+  synchronized int removePartitions(Set<Integer> partitions) {
+    int removed = 0;
+    Iterator<KeyState> iterator = keys.values().iterator();
+    while (iterator.hasNext()) {
+      KeyState state = iterator.next();
+      int held = state.waiting.size();
+      state.waiting.removeIf(om -> partitions.contains(om.getPartition()));
+      removed += held - state.waiting.size();
+      if (state.waiting.isEmpty() && state.outstanding == 0) {
+        iterator.remove();
+      }
+    }
+    return removed;
+  }
+
+  /** Returns the number of messages being held back until their key becomes ready. */
+  synchronized int heldMessages() {
+    return keys.values().stream().mapToInt(state -> state.waiting.size()).sum();
+  }
+
+  private static final class KeyState {
+
+    private final Queue<OutstandingMessage> waiting = new PriorityQueue<>(BY_OFFSET);
+    private int outstanding; // Messages of the current batch not yet acknowledged or expired
+  }
+}
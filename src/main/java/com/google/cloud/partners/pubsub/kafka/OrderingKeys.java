@@ -0,0 +1,56 @@
+/*
+ * Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.partners.pubsub.kafka;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.UnknownFieldSet;
+import com.google.pubsub.v1.PubsubMessage;
+import java.util.List;
+
+/**
+ * Reads and writes the ordering key of a PubsubMessage.
+ *
+ * <p>The version of the Pub/Sub API this emulator is built against predates ordering keys, so the
+ * {@code ordering_key} field (number 5) of messages sent by newer clients is retained by protobuf
+ * as an unknown field. Accessing it through the unknown field set lets the emulator honor ordering
+ * keys on the wire without requiring a newer API artifact.
+ */
+final class OrderingKeys {
+
+  static final int ORDERING_KEY_FIELD_NUMBER = 5;
+
+  private OrderingKeys() {}
+
+  /** Returns the ordering key of {@code message}, or an empty String if it does not have one. */
+  static String get(PubsubMessage message) {
+    List<ByteString> values =
+        message.getUnknownFields().getField(ORDERING_KEY_FIELD_NUMBER).getLengthDelimitedList();
+    return values.isEmpty() ? "" : values.get(values.size() - 1).toStringUtf8();
+  }
+
+  /** Sets the ordering key of the message being built by {@code builder} to {@code orderingKey}. */
+  static PubsubMessage.Builder set(PubsubMessage.Builder builder, String orderingKey) {
+    return builder.mergeUnknownFields(
+        UnknownFieldSet.newBuilder()
+            .addField(
+                ORDERING_KEY_FIELD_NUMBER,
+                UnknownFieldSet.Field.newBuilder()
+                    .addLengthDelimited(ByteString.copyFromUtf8(orderingKey))
+                    .build())
+            .build());
+  }
+}
@@ -16,25 +16,33 @@
 
 package com.google.cloud.partners.pubsub.kafka;
 
+import com.google.pubsub.v1.PubsubMessage;
 import java.time.Instant;
 
 public final class OutstandingMessage {
 
   private final int partition;
   private final long offset;
-  private final String messageId;
+  private final int generation; // Distinguishes redeliveries of the same message
+  private final int size; // Size of the message data, counted against flow control limits
+  private final String orderingKey; // Null unless delivery is ordered for this message's key
   private final Instant pulledAt;
-  private Instant expiresAt; // Expiration can be changed, so this is not final
-  private boolean acknowledged;
+  // Extended by modifyAckDeadline on request threads while fetchers check it for expiry
+  private volatile Instant expiresAt;
+  private volatile boolean acknowledged;
+  private volatile PubsubMessage message; // Retained for redelivery until acknowledged
+  private boolean released;
 
   private OutstandingMessage(Builder builder) {
     partition = builder.partition;
     offset = builder.offset;
+    generation = builder.generation;
+    orderingKey = builder.orderingKey;
     pulledAt = builder.pulledAt;
     expiresAt = builder.expiresAt;
+    message = builder.message;
+    size = message == null ? 0 : message.getData().size();
     setAcknowledged(builder.acknowledged);
-
-    messageId = partition + "-" + offset;
   }
 
   public static Builder newBuilder() {
@@ -42,30 +50,48 @@ public final class OutstandingMessage {
   }
 
   /**
-   * Returns true if this object's expiration timestamp occurs after {@code checkTime}
+   * Returns true if this object's expiration timestamp is at or before {@code checkTime}, so that a
+   * message expired at the current instant is immediately eligible for redelivery.
    *
    * @param checkTime Instant to check
    */
   public boolean isExpired(Instant checkTime) {
-    return checkTime.isAfter(expiresAt);
+    return !checkTime.isBefore(expiresAt);
   }
 
   public boolean isAcknowledged() {
     return acknowledged;
   }
 
+  /**
+   * Sets the acknowledged bit. Once acknowledged, the retained message is released since it will
+   * never need to be redelivered.
+   */
   public void setAcknowledged(boolean acknowledged) {
     this.acknowledged = acknowledged;
+    if (acknowledged) {
+      message = null;
+    }
+  }
+
+  /** Expires this message at {@code expiresAt} so that it becomes eligible for redelivery. */
+  public synchronized void expireAt(Instant expiresAt) {
+    this.expiresAt = expiresAt;
+  }
+
+  /** Returns the message that was delivered, or null if it has already been acknowledged. */
+  public PubsubMessage getMessage() {
+    return message;
   }
 
   /** Adds {@code seconds} to the expiration timestamp and returns the new value. */
-  public Instant addSecondsToDeadline(int seconds) {
+  public synchronized Instant addSecondsToDeadline(int seconds) {
     expiresAt = expiresAt.plusSeconds(seconds);
     return expiresAt;
   }
 
   public String getMessageId() {
-    return messageId;
+    return partition + "-" + offset;
   }
 
   public Instant getPulledAt() {
@@ -84,12 +110,49 @@ public final class OutstandingMessage {
     return offset;
   }
 
+  public int getGeneration() {
+    return generation;
+  }
+
+  public int getSize() {
+    return size;
+  }
+
+  /**
+   * Returns the ordering key whose delivery order this message is subject to, or null if the
+   * message may be delivered independently of any other message.
+   */
+  public String getOrderingKey() {
+    return orderingKey;
+  }
+
+  /**
+   * Marks this lease as no longer outstanding, either because it was acknowledged or because it
+   * expired.
+   *
+   * @return true only for the first call, so that the lease is released from flow control once
+   */
+  public synchronized boolean release() {
+    if (released) {
+      return false;
+    }
+    released = true;
+    return true;
+  }
+
+  /** Returns the key which identifies this message's lease, see {@link AckId}. */
+  public long getKey() {
+    return AckId.key(partition, offset);
+  }
+
   @Override
   public String toString() {
     return "OutstandingMessage{"
         + "messageId='"
-        + messageId
+        + getMessageId()
         + '\''
+        + ", generation="
+        + generation
         + ", pulledAt="
         + pulledAt
         + ", expiresAt="
@@ -103,29 +166,14 @@ public final class OutstandingMessage {
     private Instant pulledAt;
     private Instant expiresAt;
     private boolean acknowledged;
+    private PubsubMessage message;
     private int partition;
     private long offset;
+    private int generation;
+    private String orderingKey;
 
     private Builder() {}
 
-    /**
-     * Sets the {@code messageId} and returns a reference to this Builder so that the methods can be
-     * chained together.
-     *
-     * @param val the {@code messageId} to set
-     * @return a reference to this Builder
-     */
-    public Builder setMessageId(String val) {
-      String[] pieces = val.split("-");
-      try {
-        partition = Integer.parseInt(pieces[0]);
-        offset = Long.parseLong(pieces[1]);
-        return this;
-      } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
-        throw new IllegalArgumentException("Message Id must be <partition>-<offset>");
-      }
-    }
-
     /**
      * Sets the {@code pulledAt} and returns a reference to this Builder so that the methods can be
      * chained together.
@@ -150,6 +198,18 @@ public final class OutstandingMessage {
       return this;
     }
 
+    /**
+     * Sets the {@code message} retained for redelivery and returns a reference to this Builder so
+     * that the methods can be chained together.
+     *
+     * @param val the {@code message} to set
+     * @return a reference to this Builder
+     */
+    public Builder setMessage(PubsubMessage val) {
+      message = val;
+      return this;
+    }
+
     /**
      * Sets the {@code acknowledged} and returns a reference to this Builder so that the methods can
      * be chained together.
@@ -195,5 +255,29 @@ public final class OutstandingMessage {
       offset = val;
       return this;
     }
+
+    /**
+     * Sets the {@code generation} and returns a reference to this Builder so that the methods can
+     * be chained together.
+     *
+     * @param val the {@code generation} to set
+     * @return a reference to this Builder
+     */
+    public Builder setGeneration(int val) {
+      generation = val;
+      return this;
+    }
+
+    /**
+     * Sets the {@code orderingKey} and returns a reference to this Builder so that the methods can
+     * be chained together.
+     *
+     * @param val the {@code orderingKey} to set
+     * @return a reference to this Builder
+     */
+    public Builder setOrderingKey(String val) {
+      orderingKey = val;
+      return this;
+    }
   }
 }
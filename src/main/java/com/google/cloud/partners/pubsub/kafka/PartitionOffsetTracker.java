@@ -0,0 +1,257 @@
+/*
+ * Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.partners.pubsub.kafka;
+
+import java.util.Arrays;
+import java.util.function.LongConsumer;
+
+/**
+ * Tracks the offsets delivered from a single TopicPartition so that the offset which is safe to
+ * commit can be determined without scanning every outstanding message.
+ *
+ * <p>Offsets are stored in a ring of bits that starts at the lowest offset which has not been
+ * released by a commit. The ring is anchored lazily at the first offset added rather than at the
+ * offset the partition is read from, so that it is not sized for a gap, and extends downward when
+ * concurrent pulls lease lower offsets after higher ones. Only offsets below the floor, which is
+ * the offset the partition started from or was last committed at, are refused. Two bits are kept
+ * for each offset: one indicating that the offset was delivered and one indicating that it is still
+ * waiting to be acknowledged. The commit watermark (the smallest unacknowledged offset, or one past
+ * the largest delivered offset when everything has been acknowledged) is advanced incrementally as
+ * acknowledgements arrive, so both computing and releasing a commit only cost as much as the number
+ * of offsets the watermark moved.
+ *
+ * <p>All methods are synchronized since acknowledgements, pulls and commits for the same partition
+ * can be issued from different threads.
+ */
+final class PartitionOffsetTracker {
+
+  private static final int INITIAL_CAPACITY = 1024; // offsets, must be a power of 2
+  private static final long EMPTY = -1;
+
+  private long[] delivered;
+  private long[] pending;
+  private int mask;
+  private long floor; // Offsets below it were released by a commit, or precede the start offset
+  private long base = EMPTY; // Lowest offset not yet released by a commit
+  private long watermark; // Lowest pending offset in [base, end), or end if there is none
+  private long end; // One past the largest offset being tracked
+
+  PartitionOffsetTracker() {
+    this(0);
+  }
+
+  /** Creates a tracker for a partition that is read from {@code startOffset}. */
+  PartitionOffsetTracker(long startOffset) {
+    floor = startOffset;
+    allocate(INITIAL_CAPACITY);
+  }
+
+  /**
+   * Marks {@code offset} as delivered and awaiting acknowledgement. Offsets below the floor have
+   * already been released by a commit, or precede the offset the partition started from, and are
+   * refused.
+   *
+   * @return true if the offset is now being tracked
+   */
+  synchronized boolean add(long offset) {
+    if (offset < floor) {
+      return false;
+    }
+    if (base == EMPTY || base == end) {
+      // Nothing is being tracked, so start the ring at this offset to avoid sizing it for a gap
+      base = watermark = end = offset;
+    } else if (offset < base) {
+      // Leased after higher offsets by a concurrent pull, so extend the ring downward
+      ensureCapacity(end - offset);
+      base = offset;
+    }
+    // Offsets between the previous end and this one were never delivered, so they do not hold back
+    // the watermark when nothing else is pending
+    boolean nonePending = watermark == end;
+    if (offset >= end) {
+      ensureCapacity(offset + 1 - base);
+      end = offset + 1;
+    }
+    int index = (int) (offset & mask);
+    delivered[index >>> 6] |= 1L << index;
+    pending[index >>> 6] |= 1L << index;
+    watermark = nonePending ? offset : Math.min(watermark, offset);
+    return true;
+  }
+
+  /**
+   * Clears the pending state of {@code offset} and advances the commit watermark past any
+   * contiguous run of acknowledged offsets.
+   *
+   * @return true if the offset was pending prior to this call
+   */
+  synchronized boolean acknowledge(long offset) {
+    if (base == EMPTY || offset < base || offset >= end) {
+      return false;
+    }
+    int index = (int) (offset & mask);
+    long bit = 1L << index;
+    if ((pending[index >>> 6] & bit) == 0) {
+      return false;
+    }
+    pending[index >>> 6] &= ~bit;
+    if (offset == watermark) {
+      advanceWatermark();
+    }
+    return true;
+  }
+
+  /**
+   * Returns the offset that should be committed for this partition, or null if no offsets have been
+   * delivered since the last call to {@link #release(long, LongConsumer)}.
+   */
+  synchronized Long getCommitOffset() {
+    if (base == EMPTY || base == end) {
+      return null;
+    }
+    return watermark;
+  }
+
+  /**
+   * Returns the delivered offsets at or above the commit watermark that were already acknowledged,
+   * in ascending order. These are the offsets that would be delivered again if the partition was
+   * read from its commit offset.
+   */
+  synchronized long[] getAcknowledged() {
+    if (base == EMPTY || watermark >= end) {
+      return new long[0];
+    }
+    long[] acknowledged = new long[16];
+    int count = 0;
+    long offset = watermark;
+    while (offset < end) {
+      int index = (int) (offset & mask);
+      int word = index >>> 6;
+      int shift = index & 63;
+      int span = (int) Math.min(64 - shift, end - offset);
+      long spanMask = (span == 64 ? -1L : (1L << span) - 1) << shift;
+      long bits = ((delivered[word] & ~pending[word]) & spanMask) >>> shift;
+      while (bits != 0) {
+        if (count == acknowledged.length) {
+          acknowledged = Arrays.copyOf(acknowledged, count * 2);
+        }
+        acknowledged[count++] = offset + Long.numberOfTrailingZeros(bits);
+        bits &= bits - 1;
+      }
+      offset += span;
+    }
+    return Arrays.copyOf(acknowledged, count);
+  }
+
+  /**
+   * Stops tracking every offset below {@code committedOffset}, invoking {@code onReleased} for each
+   * delivered offset that is dropped so that callers can purge any related state.
+   *
+   * @return the number of delivered offsets released
+   */
+  synchronized int release(long committedOffset, LongConsumer onReleased) {
+    floor = Math.max(floor, committedOffset);
+    if (base == EMPTY) {
+      return 0;
+    }
+    long limit = Math.min(committedOffset, end);
+    int released = 0;
+    long offset = base;
+    while (offset < limit) {
+      int index = (int) (offset & mask);
+      int word = index >>> 6;
+      int shift = index & 63;
+      int span = (int) Math.min(64 - shift, limit - offset);
+      long spanMask = (span == 64 ? -1L : (1L << span) - 1) << shift;
+      long bits = (delivered[word] & spanMask) >>> shift;
+      while (bits != 0) {
+        onReleased.accept(offset + Long.numberOfTrailingZeros(bits));
+        bits &= bits - 1;
+        released++;
+      }
+      delivered[word] &= ~spanMask;
+      pending[word] &= ~spanMask;
+      offset += span;
+    }
+    if (limit > base) {
+      base = limit;
+      if (watermark < base) {
+        watermark = base;
+        advanceWatermark();
+      }
+    }
+    return released;
+  }
+
+  @Override
+  public synchronized String toString() {
+    return "PartitionOffsetTracker{"
+        + "floor="
+        + floor
+        + ", base="
+        + base
+        + ", watermark="
+        + watermark
+        + ", end="
+        + end
+        + '}';
+  }
+
+  /** Moves the watermark to the next pending offset, skipping whole words of the ring at once. */
+  private void advanceWatermark() {
+    while (watermark < end) {
+      int index = (int) (watermark & mask);
+      long bits = pending[index >>> 6] >>> index;
+      if (bits != 0) {
+        watermark = Math.min(watermark + Long.numberOfTrailingZeros(bits), end);
+        return;
+      }
+      watermark += 64 - (index & 63);
+    }
+    watermark = end;
+  }
+
+  /** Grows the ring, if necessary, so that it is able to hold {@code size} offsets. */
+  private void ensureCapacity(long size) {
+    if (size <= mask + 1L) {
+      return;
+    }
+    if (size > Integer.MAX_VALUE / 2) {
+      throw new IllegalStateException("Unable to track " + size + " offsets in a single ring");
+    }
+    long[] oldDelivered = delivered;
+    long[] oldPending = pending;
+    int oldMask = mask;
+    allocate(Integer.highestOneBit((int) size - 1) << 1);
+    for (long offset = base; offset < end; offset++) {
+      int oldIndex = (int) (offset & oldMask);
+      int index = (int) (offset & mask);
+      if ((oldDelivered[oldIndex >>> 6] & (1L << oldIndex)) != 0) {
+        delivered[index >>> 6] |= 1L << index;
+      }
+      if ((oldPending[oldIndex >>> 6] & (1L << oldIndex)) != 0) {
+        pending[index >>> 6] |= 1L << index;
+      }
+    }
+  }
+
+  private void allocate(int capacity) {
+    delivered = new long[capacity >>> 6];
+    pending = new long[capacity >>> 6];
+    mask = capacity - 1;
+  }
+}
@@ -0,0 +1,327 @@
+/*
+ * Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.partners.pubsub.kafka;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+
+/**
+ * Holds the ConsumerRecords fetched in the background by each {@link ConsumerFetcher} of a
+ * Subscription until they are pulled by a subscriber.
+ *
+ * <p>The buffer is considered full once it reaches either its message or byte high watermark, at
+ * which point fetchers pause their partitions. Fetching resumes once the buffer drains to half of
+ * both watermarks so that partitions are not toggled on every pull. Both watermarks are soft limits
+ * since a single poll can return more records than the remaining capacity.
+ *
+ * <p>Subscribers waiting for records are parked as futures rather than blocking a thread, until the
+ * buffer changes after the last time they looked at it. When records arrive, at most one waiter is
+ * woken per record in order of their deadlines. Since records may be buffered without being
+ * deliverable, for instance while their ordering key is held, the Subscription also wakes every
+ * waiter whenever messages may have become available for other reasons. Waiters are completed on
+ * the waiter executor rather than on the fetcher's thread, so that the work dependent on a woken
+ * pull, such as leasing the records and writing the response, never delays the next fetch. Each
+ * waiter's deadline is enforced by a timer on the same executor, so parked pulls return on time
+ * even if no fetcher is running.
+ */
+final class PrefetchBuffer {
+
+  private final int maxMessages;
+  private final long maxBytes;
+  private final ArrayDeque<ConsumerRecord<String, ByteBuffer>> records;
+  private final LongAdder fetches;
+  private final LongAdder fetchLatencyNanos;
+  private final LongAdder fetchedBytes;
+  private final PriorityQueue<Waiter> waiters;
+  private final Runnable onRecords;
+  private final ScheduledExecutorService waiterExecutor;
+  private long sizeBytes;
+  private long changes; // Incremented whenever records are added or waiters are woken
+  private long waiterSequence;
+  private boolean closed;
+
+  PrefetchBuffer(int maxMessages, long maxBytes) {
+    this(maxMessages, maxBytes, () -> {}, null);
+  }
+
+  /**
+   * Creates a buffer which invokes {@code onRecords} on the fetcher's thread each time records are
+   * added, after any waiters have been woken. Waiters are completed and expired on {@code
+   * waiterExecutor}. If it is null, waiters are completed on the calling thread and only expire
+   * when {@link #expireWaiters()} is called.
+   */
+  PrefetchBuffer(
+      int maxMessages, long maxBytes, Runnable onRecords, ScheduledExecutorService waiterExecutor) {
+    this.maxMessages = maxMessages;
+    this.maxBytes = maxBytes;
+    this.onRecords = onRecords;
+    this.waiterExecutor = waiterExecutor;
+    records = new ArrayDeque<>();
+    fetches = new LongAdder();
+    fetchLatencyNanos = new LongAdder();
+    fetchedBytes = new LongAdder();
+    waiters = new PriorityQueue<>();
+  }
+
+  /** Appends {@code polled} to the tail of the buffer and wakes up waiting subscribers. */
+  void addAll(Iterable<ConsumerRecord<String, ByteBuffer>> polled) {
+    List<Waiter> woken = new ArrayList<>();
+    boolean added = false;
+    long addedBytes = 0;
+    synchronized (this) {
+      for (ConsumerRecord<String, ByteBuffer> record : polled) {
+        records.add(record);
+        addedBytes += recordSize(record);
+        added = true;
+      }
+      sizeBytes += addedBytes;
+      if (added) {
+        changes++;
+      }
+      while (woken.size() < records.size() && !waiters.isEmpty()) {
+        woken.add(waiters.poll());
+      }
+    }
+    // Listeners are notified first so that no notification for these records follows a woken pull's
+    // response
+    if (added) {
+      fetchedBytes.add(addedBytes);
+      onRecords.run();
+    }
+    woken.forEach(waiter -> complete(waiter, true));
+  }
+
+  /**
+   * Moves up to {@code maxRecords} from the head of the buffer into {@code drained}.
+   *
+   * @return the number of records moved
+   */
+  int drainTo(List<ConsumerRecord<String, ByteBuffer>> drained, int maxRecords) {
+    return drainTo(drained, maxRecords, Long.MAX_VALUE);
+  }
+
+  /**
+   * Moves up to {@code maxRecords} from the head of the buffer into {@code drained}, stopping once
+   * the size of the moved records reaches {@code maxBytes}. The last record moved may exceed the
+   * remaining bytes, so that a record larger than {@code maxBytes} can still be drained.
+   *
+   * @return the number of records moved
+   */
+  synchronized int drainTo(
+      List<ConsumerRecord<String, ByteBuffer>> drained, int maxRecords, long maxBytes) {
+    int count = 0;
+    long bytes = 0;
+    ConsumerRecord<String, ByteBuffer> record;
+    while (count < maxRecords && bytes < maxBytes && (record = records.poll()) != null) {
+      drained.add(record);
+      int size = recordSize(record);
+      sizeBytes -= size;
+      bytes += size;
+      count++;
+    }
+    return count;
+  }
+
+  /**
+   * Removes the records fetched from {@code partitions}, which are no longer owned by the
+   * Subscription.
+   *
+   * @return the number of records removed
+   */
+  synchronized int removePartitions(Set<Integer> partitions) {
+    int removed = 0;
+    Iterator<ConsumerRecord<String, ByteBuffer>> iterator = records.iterator();
+    while (iterator.hasNext()) {
+      ConsumerRecord<String, ByteBuffer> record = iterator.next();
+      if (partitions.contains(record.partition())) {
+        iterator.remove();
+        sizeBytes -= recordSize(record);
+        removed++;
+      }
+    }
+    return removed;
+  }
+
+  /**
+   * Returns the number of times records were added or waiters were woken, which a subscriber reads
+   * before looking for messages and passes to {@link #awaitChange(long, long)} if it found none.
+   */
+  synchronized long changes() {
+    return changes;
+  }
+
+  /**
+   * Returns a future which completes with true once the buffer changes after {@code since}, as
+   * returned by {@link #changes()}, or with false if the buffer is closed or {@code deadlineNanos},
+   * as measured by {@link System#nanoTime()}, passes first. The future is already complete if the
+   * buffer changed since then, while records that were already buffered do not complete it.
+   */
+  synchronized CompletableFuture<Boolean> awaitChange(long since, long deadlineNanos) {
+    if (changes != since) {
+      return CompletableFuture.completedFuture(true);
+    }
+    if (closed || deadlineNanos - System.nanoTime() <= 0) {
+      return CompletableFuture.completedFuture(false);
+    }
+    Waiter waiter = new Waiter(deadlineNanos, waiterSequence++);
+    waiters.add(waiter);
+    if (waiterExecutor != null) {
+      try {
+        waiter.timeout =
+            waiterExecutor.schedule(
+                this::expireWaiters, deadlineNanos - System.nanoTime(), TimeUnit.NANOSECONDS);
+      } catch (RejectedExecutionException e) {
+        // Only rejected once the Subscription is shutting down, which closes the buffer next
+      }
+    }
+    return waiter.future;
+  }
+
+  /** Completes the futures of every waiter with true, so that they look for messages again. */
+  void wakeWaiters() {
+    List<Waiter> woken;
+    synchronized (this) {
+      changes++;
+      woken = new ArrayList<>(waiters);
+      waiters.clear();
+    }
+    woken.forEach(waiter -> complete(waiter, true));
+  }
+
+  /** Completes the futures of every waiter whose deadline has passed with false. */
+  void expireWaiters() {
+    List<Waiter> expired = new ArrayList<>();
+    synchronized (this) {
+      long now = System.nanoTime();
+      while (!waiters.isEmpty() && waiters.peek().deadlineNanos - now <= 0) {
+        expired.add(waiters.poll());
+      }
+    }
+    expired.forEach(waiter -> complete(waiter, false));
+  }
+
+  /** Returns true once either high watermark has been reached. */
+  synchronized boolean isFull() {
+    return records.size() >= maxMessages || sizeBytes >= maxBytes;
+  }
+
+  /** Returns true if the buffer has drained to half of both high watermarks. */
+  synchronized boolean canResume() {
+    return records.size() <= maxMessages / 2 && sizeBytes <= maxBytes / 2;
+  }
+
+  /** Releases any subscribers waiting on records. */
+  void close() {
+    List<Waiter> released;
+    synchronized (this) {
+      closed = true;
+      released = new ArrayList<>(waiters);
+      waiters.clear();
+    }
+    released.forEach(waiter -> complete(waiter, false));
+  }
+
+  /** Records the latency of a poll that returned records from Kafka. */
+  void recordFetch(long latencyNanos) {
+    fetches.increment();
+    fetchLatencyNanos.add(latencyNanos);
+  }
+
+  /** Returns the number of records waiting to be pulled. */
+  synchronized int size() {
+    return records.size();
+  }
+
+  /** Returns the serialized size of the values of the records waiting to be pulled. */
+  synchronized long sizeBytes() {
+    return sizeBytes;
+  }
+
+  /** Returns the number of subscribers waiting for records. */
+  synchronized int waiters() {
+    return waiters.size();
+  }
+
+  long getFetchCount() {
+    return fetches.sum();
+  }
+
+  long getFetchLatencyNanos() {
+    return fetchLatencyNanos.sum();
+  }
+
+  /** Returns the total size of the values of every record added to the buffer. */
+  long getFetchedBytes() {
+    return fetchedBytes.sum();
+  }
+
+  /**
+   * Completes the future of a waiter that was removed from the queue on the waiter executor, or on
+   * the calling thread if there is none or it no longer accepts tasks.
+   */
+  private void complete(Waiter waiter, boolean available) {
+    if (waiter.timeout != null) {
+      waiter.timeout.cancel(false);
+    }
+    if (waiterExecutor != null) {
+      try {
+        waiterExecutor.execute(() -> waiter.future.complete(available));
+        return;
+      } catch (RejectedExecutionException e) {
+        // Fall through to complete the waiter on this thread
+      }
+    }
+    waiter.future.complete(available);
+  }
+
+  private static int recordSize(ConsumerRecord<String, ByteBuffer> record) {
+    return Math.max(record.serializedValueSize(), 0);
+  }
+
+  private static final class Waiter implements Comparable<Waiter> {
+
+    private final long deadlineNanos;
+    private final long sequence;
+    private final CompletableFuture<Boolean> future;
+    // Set while holding the buffer's lock, before the waiter can be removed from the queue
+    private ScheduledFuture<?> timeout;
+
+    private Waiter(long deadlineNanos, long sequence) {
+      this.deadlineNanos = deadlineNanos;
+      this.sequence = sequence;
+      future = new CompletableFuture<>();
+    }
+
+    @Override
+    public int compareTo(Waiter other) {
+      int result = Long.signum(deadlineNanos - other.deadlineNanos);
+      return result != 0 ? result : Long.compare(sequence, other.sequence);
+    }
+  }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.partners.pubsub.kafka;
+
+import com.google.cloud.partners.pubsub.kafka.properties.CircuitBreakerProperties;
+import java.time.Clock;
+import java.util.logging.Logger;
+
+/**
+ * Circuit breaker guarding the KafkaProducers of the publish path, so that publish requests fail
+ * immediately while Kafka is unreachable instead of each one waiting for the producer to give up.
+ *
+ * <p>The breaker opens once {@link CircuitBreakerProperties#getFailureThreshold()} consecutive
+ * requests have failed or timed out. While open, every request is refused. After {@link
+ * CircuitBreakerProperties#getOpenDurationMs()} the breaker becomes half-open and lets up to {@link
+ * CircuitBreakerProperties#getHalfOpenTrials()} requests through as trials: the first outcome
+ * reported closes the breaker on success or opens it again on failure. A failure threshold of 0
+ * disables the breaker.
+ */
+final class ProducerCircuitBreaker {
+
+  private static final Logger LOGGER = Logger.getLogger(ProducerCircuitBreaker.class.getName());
+
+  enum State {
+    CLOSED,
+    OPEN,
+    HALF_OPEN
+  }
+
+  private final int failureThreshold;
+  private final long openDurationMs;
+  private final int halfOpenTrials;
+  private final Clock clock;
+
+  private State state = State.CLOSED;
+  private int consecutiveFailures;
+  private int trials;
+  private long openedAt;
+
+  ProducerCircuitBreaker(CircuitBreakerProperties properties, Clock clock) {
+    this.failureThreshold = properties.getFailureThreshold();
+    this.openDurationMs = properties.getOpenDurationMs();
+    this.halfOpenTrials = Math.max(1, properties.getHalfOpenTrials());
+    this.clock = clock;
+  }
+
+  /**
+   * Determines whether a request may be sent to Kafka. Every request that is allowed through must
+   * report its outcome to {@link #onSuccess()} or {@link #onFailure()}, or return its permit to
+   * {@link #release()} if it sent nothing.
+   *
+   * @return true if the request may be sent
+   */
+  synchronized boolean tryAcquire() {
+    switch (state) {
+      case CLOSED:
+        return true;
+      case OPEN:
+        if (clock.millis() - openedAt < openDurationMs) {
+          return false;
+        }
+        LOGGER.info("Circuit breaker half-open, sending trial requests to Kafka");
+        state = State.HALF_OPEN;
+        trials = 1;
+        return true;
+      default:
+        if (trials < halfOpenTrials) {
+          trials++;
+          return true;
+        }
+        return false;
+    }
+  }
+
+  /**
+   * Returns the permit of a request which was allowed through but did not send anything to Kafka,
+   * such as one whose messages all repeat earlier ones, without recording an outcome.
+   */
+  synchronized void release() {
+    if (state == State.HALF_OPEN && trials > 0) {
+      trials--;
+    }
+  }
+
+  /** Records a request which was published successfully. */
+  synchronized void onSuccess() {
+    if (state == State.HALF_OPEN) {
+      LOGGER.info("Circuit breaker closed, Kafka is reachable again");
+      state = State.CLOSED;
+    }
+    if (state == State.CLOSED) {
+      consecutiveFailures = 0;
+    }
+  }
+
+  /** Records a request which failed or timed out. */
+  synchronized void onFailure() {
+    if (failureThreshold <= 0) {
+      return;
+    }
+    if (state == State.HALF_OPEN
+        || (state == State.CLOSED && ++consecutiveFailures >= failureThreshold)) {
+      LOGGER.warning(
+          "Circuit breaker opened, failing publish requests for the next " + openDurationMs + "ms");
+      state = State.OPEN;
+      openedAt = clock.millis();
+      consecutiveFailures = 0;
+    }
+  }
+
+  synchronized State getState() {
+    return state;
+  }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.partners.pubsub.kafka;
+
+import com.google.cloud.partners.pubsub.kafka.properties.PublishLimitProperties;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounds the publish requests and bytes that are in flight to Kafka, both across all topics and for
+ * individual topics, so that requests arriving while Kafka is slow are rejected right away instead
+ * of waiting behind a full producer buffer.
+ *
+ * <p>A request is admitted only if it fits into the global budget and, when one is configured, the
+ * budget of its topic. A request larger than a byte budget is still admitted when nothing else is
+ * in flight, otherwise it could never be published. Limits of 0 are unbounded.
+ */
+final class PublishAdmission {
+
+  private final Budget global;
+  private final Map<String, Budget> topics;
+
+  PublishAdmission(PublishLimitProperties limits, Map<String, PublishLimitProperties> topicLimits) {
+    global = new Budget(limits);
+    topics = new HashMap<>();
+    topicLimits.forEach((topic, topicLimit) -> topics.put(topic, new Budget(topicLimit)));
+  }
+
+  /**
+   * Reserves room for a request of {@code bytes} to {@code topic}. Every successful call must be
+   * followed by a call to {@link #release(String, long)} once the request is no longer in flight.
+   *
+   * @return true if the request was admitted
+   */
+  boolean tryAcquire(String topic, long bytes) {
+    if (!global.tryAcquire(bytes)) {
+      return false;
+    }
+    Budget budget = topics.get(topic);
+    if (budget != null && !budget.tryAcquire(bytes)) {
+      global.release(bytes);
+      return false;
+    }
+    return true;
+  }
+
+  /** Returns the room reserved for a request of {@code bytes} to {@code topic}. */
+  void release(String topic, long bytes) {
+    Budget budget = topics.get(topic);
+    if (budget != null) {
+      budget.release(bytes);
+    }
+    global.release(bytes);
+  }
+
+  /** Returns the number of bytes in flight across all topics. */
+  long getInFlightBytes() {
+    return global.bytes.get();
+  }
+
+  /** Returns the number of requests in flight across all topics. */
+  int getInFlightRequests() {
+    return global.requests.get();
+  }
+
+  private static final class Budget {
+
+    private final long maxBytes;
+    private final int maxRequests;
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicInteger requests = new AtomicInteger();
+
+    private Budget(PublishLimitProperties limits) {
+      maxBytes = limits.getMaxInFlightBytes();
+      maxRequests = limits.getMaxInFlightRequests();
+    }
+
+    private boolean tryAcquire(long size) {
+      int inFlight = requests.incrementAndGet();
+      if (maxRequests > 0 && inFlight > maxRequests) {
+        requests.decrementAndGet();
+        return false;
+      }
+      long current;
+      do {
+        current = bytes.get();
+        if (maxBytes > 0 && current > 0 && current + size > maxBytes) {
+          requests.decrementAndGet();
+          return false;
+        }
+      } while (!bytes.compareAndSet(current, current + size));
+      return true;
+    }
+
+    private void release(long size) {
+      bytes.addAndGet(-size);
+      requests.decrementAndGet();
+    }
+  }
+}
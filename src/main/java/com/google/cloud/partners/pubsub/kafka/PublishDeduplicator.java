@@ -0,0 +1,155 @@
+/*
+ * Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.partners.pubsub.kafka;
+
+import com.google.cloud.partners.pubsub.kafka.properties.DeduplicationProperties;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import com.google.pubsub.v1.PubsubMessage;
+import java.nio.charset.StandardCharsets;
+import java.time.Clock;
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Recognizes messages which are published again with the same idempotency key, so that client
+ * retries are answered with the message ID of the original instead of writing a duplicate.
+ *
+ * <p>The idempotency key is the value of the message attribute named by {@link
+ * DeduplicationProperties#getAttribute()}, scoped to the topic. Keys are remembered for {@link
+ * DeduplicationProperties#getWindowSeconds()} after they are first seen, up to {@link
+ * DeduplicationProperties#getMaxEntries()} keys, beyond which the oldest are forgotten early. Only
+ * a 64-bit fingerprint of each key is kept, so memory use does not depend on the size of the keys
+ * and two keys are mistaken for each other with negligible probability.
+ *
+ * <p>A repeat seen while the original is still being written to Kafka waits for its outcome. If the
+ * original fails, its key is forgotten and the waiting repeats fail along with it, so that the next
+ * retry is published.
+ */
+final class PublishDeduplicator {
+
+  private static final HashFunction FINGERPRINT = Hashing.murmur3_128();
+
+  private final String attribute;
+  private final long windowMillis;
+  private final int maxEntries;
+  private final Clock clock;
+  private final ConcurrentLongHashMap<Entry> entries = new ConcurrentLongHashMap<>();
+  private final ArrayDeque<Entry> expirations = new ArrayDeque<>(); // In order of expiry
+
+  PublishDeduplicator(DeduplicationProperties properties, Clock clock) {
+    this.attribute = properties.getAttribute();
+    this.windowMillis = properties.getWindowSeconds() * 1000L;
+    this.maxEntries = Math.max(1, properties.getMaxEntries());
+    this.clock = clock;
+  }
+
+  /**
+   * Looks up the idempotency key of {@code message}. If the key has not been seen, it is remembered
+   * and the returned entry is the original, whose outcome must be reported to {@link
+   * #published(Entry, String)} or {@link #failed(Entry, Throwable)}. Otherwise the entry of the
+   * original is returned.
+   *
+   * @return the entry for the message's key, or null if the message has no idempotency key
+   */
+  synchronized Entry claim(String topic, PubsubMessage message) {
+    String key = message.getAttributesMap().get(attribute);
+    if (key == null) {
+      return null;
+    }
+    long now = clock.millis();
+    expire(now);
+    long fingerprint =
+        FINGERPRINT
+            .newHasher()
+            .putString(topic, StandardCharsets.UTF_8)
+            .putByte((byte) 0)
+            .putString(key, StandardCharsets.UTF_8)
+            .hash()
+            .asLong();
+    Entry entry = entries.get(fingerprint);
+    if (entry != null) {
+      return entry.repeat();
+    }
+    entry = new Entry(fingerprint, now + windowMillis);
+    entries.put(fingerprint, entry);
+    expirations.addLast(entry);
+    return entry;
+  }
+
+  /** Records the message ID of an original message, completing any repeats waiting on it. */
+  void published(Entry entry, String messageId) {
+    entry.messageId.complete(messageId);
+  }
+
+  /** Forgets the key of an original message which was not published, failing its repeats. */
+  void failed(Entry entry, Throwable cause) {
+    synchronized (this) {
+      entries.remove(entry.fingerprint, entry);
+    }
+    entry.messageId.completeExceptionally(cause);
+  }
+
+  synchronized int size() {
+    return entries.size();
+  }
+
+  /** Forgets keys that are older than the window or beyond the maximum number of entries. */
+  private void expire(long now) {
+    Entry head;
+    while ((head = expirations.peekFirst()) != null
+        && (head.expiresAt <= now || expirations.size() >= maxEntries)) {
+      expirations.pollFirst();
+      entries.remove(head.fingerprint, head);
+    }
+  }
+
+  /** The idempotency key of a message along with the eventual message ID of the original. */
+  static final class Entry {
+
+    private final long fingerprint;
+    private final long expiresAt;
+    private final boolean original;
+    private final CompletableFuture<String> messageId;
+
+    private Entry(long fingerprint, long expiresAt) {
+      this(fingerprint, expiresAt, true, new CompletableFuture<>());
+    }
+
+    private Entry(
+        long fingerprint, long expiresAt, boolean original, CompletableFuture<String> messageId) {
+      this.fingerprint = fingerprint;
+      this.expiresAt = expiresAt;
+      this.original = original;
+      this.messageId = messageId;
+    }
+
+    private Entry repeat() {
+      return new Entry(fingerprint, expiresAt, false, messageId);
+    }
+
+    /** Returns true if this is the first message seen with its key. */
+    boolean isOriginal() {
+      return original;
+    }
+
+    /** Returns the message ID of the original once it has been published. */
+    CompletableFuture<String> getMessageId() {
+      return messageId;
+    }
+  }
+}
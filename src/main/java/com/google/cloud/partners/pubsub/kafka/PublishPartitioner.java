@@ -0,0 +1,47 @@
+/*
+ * Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.partners.pubsub.kafka;
+
+import com.google.cloud.partners.pubsub.kafka.properties.PartitionerProperties;
+import com.google.pubsub.v1.PubsubMessage;
+import java.util.function.ToIntFunction;
+
+/**
+ * Chooses the Kafka partitions that the messages of a PublishRequest are written to.
+ *
+ * <p>A partitioner is configured for a topic using {@code kafka.producer.partitioners}, either by
+ * naming one of the built-in strategies in {@link PublishPartitioners} or by giving the class name
+ * of an implementation with a public no-argument constructor. Messages with an ordering key are
+ * never passed to the partitioner, since their key determines their partition.
+ */
+public interface PublishPartitioner {
+
+  /** Returned for a message to let the KafkaProducer choose its partition. */
+  int UNASSIGNED = -1;
+
+  /** Called once after the partitioner is created with the properties configured for its topic. */
+  default void configure(PartitionerProperties properties) {}
+
+  /**
+   * Returns a function which is applied to each message of a single PublishRequest, in request
+   * order, and returns the partition the message should be written to, or {@link #UNASSIGNED}.
+   *
+   * @param topic the Kafka topic being published to
+   * @param partitions the number of partitions of {@code topic}, always greater than 0
+   */
+  ToIntFunction<PubsubMessage> forRequest(String topic, int partitions);
+}
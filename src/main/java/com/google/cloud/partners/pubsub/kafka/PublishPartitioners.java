@@ -0,0 +1,132 @@
+/*
+ * Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.partners.pubsub.kafka;
+
+import com.google.cloud.partners.pubsub.kafka.properties.PartitionerProperties;
+import com.google.pubsub.v1.PubsubMessage;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.ToIntFunction;
+import org.apache.kafka.common.utils.Utils;
+
+/**
+ * Creates the {@link PublishPartitioner} configured for a topic. The built-in strategies are:
+ *
+ * <ul>
+ *   <li>{@code sticky}: writes every message of a PublishRequest to the same partition, moving to
+ *       the next partition for each request. This lets the KafkaProducer build a single large batch
+ *       per request instead of one small batch per partition.
+ *   <li>{@code attribute-hash}: writes messages to the partition given by the hash of the value of
+ *       the attribute named by {@link PartitionerProperties#getAttribute()}, using the same hash
+ *       function Kafka applies to record keys. Messages without the attribute are left to the
+ *       KafkaProducer.
+ *   <li>{@code round-robin}: writes each message to the next partition in turn.
+ * </ul>
+ */
+final class PublishPartitioners {
+
+  static final String STICKY = "sticky";
+  static final String ATTRIBUTE_HASH = "attribute-hash";
+  static final String ROUND_ROBIN = "round-robin";
+
+  private PublishPartitioners() {}
+
+  /**
+   * Returns a new partitioner for {@code properties}, configured and ready to use.
+   *
+   * @throws IllegalArgumentException if the type is unknown or the partitioner cannot be created
+   */
+  static PublishPartitioner create(PartitionerProperties properties) {
+    String type = properties.getType();
+    if (type == null || type.isEmpty()) {
+      throw new IllegalArgumentException("A partitioner type is required");
+    }
+    PublishPartitioner partitioner;
+    switch (type) {
+      case STICKY:
+        partitioner = new StickyPartitioner();
+        break;
+      case ATTRIBUTE_HASH:
+        partitioner = new AttributeHashPartitioner();
+        break;
+      case ROUND_ROBIN:
+        partitioner = new RoundRobinPartitioner();
+        break;
+      default:
+        partitioner = newInstance(type);
+    }
+    partitioner.configure(properties);
+    return partitioner;
+  }
+
+  private static PublishPartitioner newInstance(String className) {
+    try {
+      return Class.forName(className)
+          .asSubclass(PublishPartitioner.class)
+          .getConstructor()
+          .newInstance();
+    } catch (ReflectiveOperationException | ClassCastException e) {
+      throw new IllegalArgumentException("Unable to create partitioner " + className, e);
+    }
+  }
+
+  private static final class StickyPartitioner implements PublishPartitioner {
+
+    private final AtomicInteger nextPartition = new AtomicInteger();
+
+    @Override
+    public ToIntFunction<PubsubMessage> forRequest(String topic, int partitions) {
+      int partition = Math.floorMod(nextPartition.getAndIncrement(), partitions);
+      return message -> partition;
+    }
+  }
+
+  private static final class RoundRobinPartitioner implements PublishPartitioner {
+
+    private final AtomicInteger nextPartition = new AtomicInteger();
+
+    @Override
+    public ToIntFunction<PubsubMessage> forRequest(String topic, int partitions) {
+      return message -> Math.floorMod(nextPartition.getAndIncrement(), partitions);
+    }
+  }
+
+  private static final class AttributeHashPartitioner implements PublishPartitioner {
+
+    private String attribute;
+
+    @Override
+    public void configure(PartitionerProperties properties) {
+      attribute = properties.getAttribute();
+      if (attribute == null || attribute.isEmpty()) {
+        throw new IllegalArgumentException(
+            "The " + ATTRIBUTE_HASH + " partitioner requires an attribute");
+      }
+    }
+
+    @Override
+    public ToIntFunction<PubsubMessage> forRequest(String topic, int partitions) {
+      return message -> {
+        String value = message.getAttributesMap().get(attribute);
+        if (value == null) {
+          return UNASSIGNED;
+        }
+        return Utils.toPositive(Utils.murmur2(value.getBytes(StandardCharsets.UTF_8))) % partitions;
+      };
+    }
+  }
+}
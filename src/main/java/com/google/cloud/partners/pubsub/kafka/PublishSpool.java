@@ -0,0 +1,299 @@
+/*
+ * Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.partners.pubsub.kafka;
+
+import com.google.cloud.partners.pubsub.kafka.properties.SpoolProperties;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.pubsub.v1.PublishRequest;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Write-ahead spool which holds publish requests on local disk while Kafka is unavailable, so that
+ * they can be acknowledged to clients and published once Kafka is reachable again.
+ *
+ * <p>Requests are appended to memory-mapped segment files named after the sequence number of the
+ * first message they hold. Each message is given a spool ID derived from its sequence number. Every
+ * entry starts with a header of its payload length, the CRC32 of the payload, the number of
+ * messages and a drained flag, followed by the serialized PublishRequest. The length is written
+ * last, so an entry torn by a crash reads as the end of the segment when the spool is recovered.
+ *
+ * <p>Entries are drained in the order they were appended. An entry is flagged once it has been
+ * published to Kafka, and a segment is deleted once every entry in it has been drained and writing
+ * has moved on to a newer segment. An entry published just before a crash, but not yet flagged, is
+ * published again after a restart.
+ *
+ * <p>The newest segment is kept even once it has been drained, since its name and entries are what
+ * the next sequence number is recovered from after a restart. Spool IDs are also the message IDs
+ * that repeated messages are answered with, so they must never be reused.
+ */
+final class PublishSpool {
+
+  private static final Logger LOGGER = Logger.getLogger(PublishSpool.class.getName());
+  private static final String SEGMENT_SUFFIX = ".spool";
+  private static final int HEADER_BYTES = 13;
+  private static final int CRC_OFFSET = 4;
+  private static final int COUNT_OFFSET = 8;
+  private static final int DRAINED_OFFSET = 12;
+
+  private final Path directory;
+  private final int segmentBytes;
+  private final long maxBytes;
+  private final boolean fsyncAlways;
+  private final Deque<Segment> segments = new ArrayDeque<>();
+  private long nextSequence;
+  private long sizeBytes; // Bytes written to segments that are still on disk
+
+  PublishSpool(SpoolProperties properties) {
+    directory = Paths.get(properties.getDirectory());
+    segmentBytes = properties.getSegmentBytes();
+    maxBytes = properties.getMaxBytes();
+    fsyncAlways = properties.getFsync() == SpoolProperties.FsyncPolicy.ALWAYS;
+    try {
+      Files.createDirectories(directory);
+      recover();
+    } catch (IOException e) {
+      throw new UncheckedIOException("Unable to open publish spool in " + directory, e);
+    }
+  }
+
+  /**
+   * Appends {@code request} to the spool, assigning a spool ID to each of its messages.
+   *
+   * @return the spool IDs in request order, or null if the spool has no room for the request
+   */
+  synchronized List<String> append(PublishRequest request) throws IOException {
+    byte[] payload = request.toByteArray();
+    int entryBytes = HEADER_BYTES + payload.length;
+    if (sizeBytes + entryBytes > maxBytes) {
+      return null;
+    }
+    Segment segment = segments.peekLast();
+    if (segment == null || segment.buffer.capacity() - segment.writePosition < entryBytes) {
+      Segment full = segment;
+      segment = createSegment(Math.max(segmentBytes, entryBytes));
+      if (full != null && full.readPosition == full.writePosition) {
+        // Every entry of the full segment has been drained already, and the new segment now holds
+        // the next sequence number
+        segments.remove(full);
+        full.delete();
+        sizeBytes -= full.writePosition;
+      }
+    }
+    CRC32 crc = new CRC32();
+    crc.update(payload);
+    ByteBuffer buffer = segment.buffer.duplicate();
+    buffer.position(segment.writePosition + CRC_OFFSET);
+    buffer.putInt((int) crc.getValue());
+    buffer.putInt(request.getMessagesCount());
+    buffer.put((byte) 0);
+    buffer.put(payload);
+    buffer.putInt(segment.writePosition, payload.length);
+    if (fsyncAlways) {
+      segment.buffer.force();
+    }
+    segment.writePosition += entryBytes;
+    sizeBytes += entryBytes;
+
+    List<String> spoolIds = new ArrayList<>(request.getMessagesCount());
+    for (int i = 0; i < request.getMessagesCount(); i++) {
+      spoolIds.add(spoolId(nextSequence++));
+    }
+    return spoolIds;
+  }
+
+  /** Returns the oldest entry which has not been drained, or null if the spool is empty. */
+  synchronized Entry peek() throws InvalidProtocolBufferException {
+    Segment segment = segments.peekFirst();
+    if (segment == null || segment.readPosition == segment.writePosition) {
+      return null;
+    }
+    ByteBuffer buffer = segment.buffer.duplicate();
+    int length = buffer.getInt(segment.readPosition);
+    buffer.position(segment.readPosition + HEADER_BYTES);
+    buffer.limit(segment.readPosition + HEADER_BYTES + length);
+    return new Entry(segment, segment.readPosition, PublishRequest.parseFrom(buffer));
+  }
+
+  /** Flags {@code entry}, which must be the one last returned by {@link #peek()}, as drained. */
+  synchronized void markDrained(Entry entry) throws IOException {
+    Segment segment = entry.segment;
+    segment.buffer.put(entry.position + DRAINED_OFFSET, (byte) 1);
+    segment.readPosition += HEADER_BYTES + segment.buffer.getInt(entry.position);
+    if (segment.readPosition == segment.writePosition && segments.size() > 1) {
+      segments.pollFirst();
+      segment.delete();
+      sizeBytes -= segment.writePosition;
+    }
+  }
+
+  /** Returns true if the spool holds entries which have not been drained. */
+  synchronized boolean isActive() {
+    Segment segment = segments.peekFirst();
+    return segment != null && segment.readPosition < segment.writePosition;
+  }
+
+  synchronized long getSizeBytes() {
+    return sizeBytes;
+  }
+
+  /** Forces every segment to disk. */
+  synchronized void force() {
+    segments.forEach(segment -> segment.buffer.force());
+  }
+
+  synchronized void close() {
+    force();
+    for (Segment segment : segments) {
+      try {
+        segment.channel.close();
+      } catch (IOException e) {
+        LOGGER.warning("Unable to close spool segment " + segment.path + ": " + e.getMessage());
+      }
+    }
+    segments.clear();
+  }
+
+  private static String spoolId(long sequence) {
+    return "spool-" + sequence;
+  }
+
+  /**
+   * Reopens the segments left behind by a previous run, positioning reads at the first entry that
+   * was not drained and writes after the last complete entry. Drained segments are deleted, except
+   * for the newest one which is kept to continue the sequence numbers.
+   */
+  private void recover() throws IOException {
+    List<Path> paths;
+    try (Stream<Path> files = Files.list(directory)) {
+      paths =
+          files
+              .filter(path -> path.getFileName().toString().endsWith(SEGMENT_SUFFIX))
+              .sorted()
+              .collect(Collectors.toList());
+    }
+    for (int i = 0; i < paths.size(); i++) {
+      Path path = paths.get(i);
+      String name = path.getFileName().toString();
+      long baseSequence =
+          Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+      Segment segment = new Segment(path, (int) Files.size(path));
+      nextSequence = baseSequence;
+      boolean drained = true;
+      while (segment.buffer.capacity() - segment.writePosition >= HEADER_BYTES) {
+        int position = segment.writePosition;
+        int length = segment.buffer.getInt(position);
+        if (length <= 0 || length > segment.buffer.capacity() - position - HEADER_BYTES) {
+          break;
+        }
+        ByteBuffer payload = segment.buffer.duplicate();
+        payload.position(position + HEADER_BYTES);
+        payload.limit(position + HEADER_BYTES + length);
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        if ((int) crc.getValue() != segment.buffer.getInt(position + CRC_OFFSET)) {
+          LOGGER.warning("Truncating spool segment " + path + " at corrupt entry " + position);
+          break;
+        }
+        drained &= segment.buffer.get(position + DRAINED_OFFSET) != 0;
+        if (drained) {
+          segment.readPosition = position + HEADER_BYTES + length;
+        }
+        segment.writePosition = position + HEADER_BYTES + length;
+        nextSequence += segment.buffer.getInt(position + COUNT_OFFSET);
+      }
+      if (segment.readPosition == segment.writePosition && i < paths.size() - 1) {
+        segment.delete();
+      } else {
+        segments.addLast(segment);
+        sizeBytes += segment.writePosition;
+      }
+    }
+    if (isActive()) {
+      LOGGER.info(
+          "Recovered "
+              + sizeBytes
+              + " bytes of spooled publish requests from "
+              + segments.size()
+              + " segments in "
+              + directory);
+    }
+  }
+
+  private Segment createSegment(int capacity) throws IOException {
+    Path path = directory.resolve(String.format("%020d%s", nextSequence, SEGMENT_SUFFIX));
+    Segment segment = new Segment(path, capacity);
+    segments.addLast(segment);
+    return segment;
+  }
+
+  /** A spooled PublishRequest along with its location in the spool. */
+  static final class Entry {
+
+    private final Segment segment;
+    private final int position;
+    private final PublishRequest request;
+
+    private Entry(Segment segment, int position, PublishRequest request) {
+      this.segment = segment;
+      this.position = position;
+      this.request = request;
+    }
+
+    PublishRequest getRequest() {
+      return request;
+    }
+  }
+
+  private static final class Segment {
+
+    private final Path path;
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    private int readPosition;
+    private int writePosition;
+
+    private Segment(Path path, int capacity) throws IOException {
+      this.path = path;
+      channel =
+          FileChannel.open(
+              path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+      buffer = channel.map(MapMode.READ_WRITE, 0, capacity);
+    }
+
+    private void delete() throws IOException {
+      channel.close();
+      Files.deleteIfExists(path);
+    }
+  }
+}
@@ -20,6 +20,7 @@ import static com.google.cloud.partners.pubsub.kafka.Configuration.getLastNodeIn
 
 import com.google.cloud.partners.pubsub.kafka.properties.ConsumerProperties;
 import com.google.cloud.partners.pubsub.kafka.properties.ProducerProperties;
+import com.google.cloud.partners.pubsub.kafka.properties.SpoolProperties;
 import com.google.cloud.partners.pubsub.kafka.properties.SubscriptionProperties;
 import com.google.protobuf.Empty;
 import com.google.pubsub.v1.DeleteTopicRequest;
@@ -36,23 +37,33 @@ import com.google.pubsub.v1.Topic;
 import io.grpc.Status;
 import io.grpc.StatusException;
 import io.grpc.stub.StreamObserver;
+import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.time.Clock;
 import java.time.Duration;
 import java.time.Instant;
 import java.util.ArrayList;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.ToIntFunction;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
 import org.apache.kafka.clients.producer.Producer;
 import org.apache.kafka.clients.producer.ProducerRecord;
-import org.apache.kafka.common.header.Headers;
-import org.apache.kafka.common.header.internals.RecordHeader;
-import org.apache.kafka.common.header.internals.RecordHeaders;
+import org.apache.kafka.clients.producer.RecordMetadata;
 
 /**
  * Implementation of <a
@@ -60,18 +71,57 @@ import org.apache.kafka.common.header.internals.RecordHeaders;
  * target="_blank"> Cloud Pub/Sub Publisher API.</a>
  *
  * <p>Utilizes up to {@link ProducerProperties#getExecutors()} KafkaProducers to publish messages to
- * the Kafka topic indicated in a PublishRequest.
+ * the Kafka topic indicated in a PublishRequest. Topics assigned to a producer profile through
+ * {@link ProducerProperties#getTopicProfiles()} are published by a separate pool of KafkaProducers
+ * configured by that profile instead.
+ *
+ * <p>Publish requests never block the calling thread. Each message is handed to the producer along
+ * with a callback that records its message ID in the slot matching its position in the request, and
+ * the response is sent by whichever callback completes the request last.
+ *
+ * <p>A message's ordering key becomes the key of its Kafka record, so that every message sharing an
+ * ordering key is written to the same partition. Such messages are also always sent through the
+ * same KafkaProducer to preserve their relative order across requests.
+ *
+ * <p>Messages without an ordering key are written to the partitions chosen by the {@link
+ * PublishPartitioner} configured for their topic, if any, and otherwise by the KafkaProducer.
+ *
+ * <p>Requests that would exceed the in-flight limits of {@link PublishAdmission} fail immediately
+ * with RESOURCE_EXHAUSTED so that clients back off while Kafka catches up. Requests fail with
+ * UNAVAILABLE while the {@link ProducerCircuitBreaker} is open after repeated failures or timeouts.
+ *
+ * <p>When a {@link PublishSpool} is configured, requests that the circuit breaker refuses are
+ * written to the spool and acknowledged with spool IDs instead. Every request that follows is
+ * spooled as well until a background task has drained the spool to Kafka, so that messages reach
+ * Kafka in the order they were accepted.
+ *
+ * <p>When a deduplication attribute is configured, messages repeating the idempotency key of a
+ * recent message are not written again, and are answered with the message ID of the original as
+ * tracked by {@link PublishDeduplicator}. This applies while spooling as well, where the spool ID
+ * of an original is the message ID its repeats are answered with.
  */
 class PublisherImpl extends PublisherImplBase {
 
   private static final Logger LOGGER = Logger.getLogger(PublisherImpl.class.getName());
   private static final int MAX_PUBLISH_WAIT = 10; // 10 seconds
+  private static final int SPOOL_DRAIN_INTERVAL_MS = 100;
+  private static final String DEFAULT_PROFILE = "default";
+
+  private final ProducerPool defaultPool;
+
+  private final Map<String, ProducerPool> topicPools;
 
-  private final List<Producer<String, ByteBuffer>> kafkaProducers;
+  private final List<ProducerPool> producerPools;
 
   private final Map<String, Topic> topicMap;
 
-  private final AtomicInteger nextProducerIndex;
+  private final Map<String, PublishPartitioner> partitioners;
+
+  private final PublishAdmission admission;
+
+  private final ProducerCircuitBreaker circuitBreaker;
+
+  private final PublishDeduplicator deduplicator;
 
   private final ConsumerProperties consumerProperties;
 
@@ -79,6 +129,12 @@ class PublisherImpl extends PublisherImplBase {
 
   private final StatisticsManager statisticsManager;
 
+  private final ScheduledExecutorService timeoutExecutorService;
+
+  private final PublishSpool spool;
+
+  private final ScheduledExecutorService spoolExecutorService;
+
   public PublisherImpl(KafkaClientFactory kafkaClientFactory, StatisticsManager statisticsManager) {
     this.statisticsManager = statisticsManager;
     this.producerProperties =
@@ -86,10 +142,38 @@ class PublisherImpl extends PublisherImplBase {
     this.consumerProperties =
         Configuration.getApplicationProperties().getKafkaProperties().getConsumerProperties();
 
-    kafkaProducers = new ArrayList<>();
+    producerPools = new ArrayList<>();
+    List<Producer<String, ByteBuffer>> defaultProducers = new ArrayList<>();
     for (int i = 0; i < producerProperties.getExecutors(); i++) {
-      kafkaProducers.add(kafkaClientFactory.createProducer());
+      defaultProducers.add(kafkaClientFactory.createProducer());
     }
+    defaultPool = new ProducerPool(DEFAULT_PROFILE, defaultProducers);
+    producerPools.add(defaultPool);
+    Map<String, ProducerPool> profilePools = new HashMap<>();
+    producerProperties
+        .getProfiles()
+        .forEach(
+            (name, profile) -> {
+              List<Producer<String, ByteBuffer>> producers = new ArrayList<>();
+              for (int i = 0; i < Math.max(1, profile.getExecutors()); i++) {
+                producers.add(kafkaClientFactory.createProducer(profile));
+              }
+              ProducerPool pool = new ProducerPool(name, producers);
+              profilePools.put(name, pool);
+              producerPools.add(pool);
+            });
+    topicPools = new HashMap<>();
+    producerProperties
+        .getTopicProfiles()
+        .forEach(
+            (topic, name) -> {
+              ProducerPool pool = profilePools.get(name);
+              if (pool == null) {
+                throw new IllegalArgumentException(
+                    "Topic " + topic + " refers to unknown producer profile " + name);
+              }
+              topicPools.put(topic, pool);
+            });
     topicMap =
         producerProperties
             .getTopics()
@@ -97,16 +181,73 @@ class PublisherImpl extends PublisherImplBase {
             .collect(
                 Collectors.toConcurrentMap(
                     topic -> topic, topic -> Topic.newBuilder().setName(topic).build()));
-    LOGGER.info("Created " + kafkaProducers.size() + " KafkaProducers");
-    nextProducerIndex = new AtomicInteger();
+    partitioners = new HashMap<>();
+    producerProperties
+        .getPartitioners()
+        .forEach(
+            (topic, properties) -> partitioners.put(topic, PublishPartitioners.create(properties)));
+    admission =
+        new PublishAdmission(producerProperties.getLimits(), producerProperties.getTopicLimits());
+    circuitBreaker =
+        new ProducerCircuitBreaker(producerProperties.getCircuitBreaker(), Clock.systemUTC());
+    deduplicator =
+        producerProperties.getDeduplication().getAttribute() == null
+            ? null
+            : new PublishDeduplicator(producerProperties.getDeduplication(), Clock.systemUTC());
+    LOGGER.info(
+        "Created "
+            + producerPools.stream().mapToInt(pool -> pool.producers.size()).sum()
+            + " KafkaProducers in "
+            + producerPools.size()
+            + " profiles");
+    timeoutExecutorService =
+        Executors.newSingleThreadScheduledExecutor(
+            Utils.newThreadFactoryWithGroupAndPrefix(
+                "publisher-timeout-threads", "publisher-timeout"));
+
+    SpoolProperties spoolProperties = producerProperties.getSpool();
+    if (spoolProperties.getDirectory() == null) {
+      spool = null;
+      spoolExecutorService = null;
+    } else {
+      spool = new PublishSpool(spoolProperties);
+      spoolExecutorService =
+          Executors.newSingleThreadScheduledExecutor(
+              Utils.newThreadFactoryWithGroupAndPrefix(
+                  "publisher-spool-threads", "publisher-spool"));
+      spoolExecutorService.scheduleWithFixedDelay(
+          this::drainSpool, 0, SPOOL_DRAIN_INTERVAL_MS, TimeUnit.MILLISECONDS);
+      if (spoolProperties.getFsync() == SpoolProperties.FsyncPolicy.INTERVAL) {
+        spoolExecutorService.scheduleAtFixedRate(
+            spool::force,
+            spoolProperties.getFsyncIntervalMs(),
+            spoolProperties.getFsyncIntervalMs(),
+            TimeUnit.MILLISECONDS);
+      }
+      LOGGER.info("Spooling publish requests to " + spoolProperties.getDirectory());
+    }
   }
 
   /** Shutdown hook should close all Producers. */
   public void shutdown() {
-    for (Producer<String, ByteBuffer> producer : kafkaProducers) {
-      producer.close();
+    timeoutExecutorService.shutdownNow();
+    if (spool != null) {
+      spoolExecutorService.shutdownNow();
+      try {
+        spoolExecutorService.awaitTermination(MAX_PUBLISH_WAIT, TimeUnit.SECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      spool.close();
+    }
+    int closed = 0;
+    for (ProducerPool pool : producerPools) {
+      for (Producer<String, ByteBuffer> producer : pool.producers) {
+        producer.close();
+        closed++;
+      }
     }
-    LOGGER.info("Closed " + kafkaProducers.size() + " KafkaProducers");
+    LOGGER.info("Closed " + closed + " KafkaProducers");
   }
 
   @Override
@@ -163,94 +304,493 @@ class PublisherImpl extends PublisherImplBase {
 
   @Override
   public void publish(PublishRequest request, StreamObserver<PublishResponse> responseObserver) {
-    Topic topic = topicMap.get(getLastNodeInTopic(request.getTopic()));
+    Topic topic = findTopic(request.getTopic());
     if (topic == null) {
       String message = request.getTopic() + " is not a valid Topic";
       LOGGER.warning(message);
       responseObserver.onError(Status.NOT_FOUND.withDescription(message).asException());
     } else {
-      Instant start = Instant.now();
-      int producerIndex =
-          nextProducerIndex.getAndUpdate((value) -> ++value % kafkaProducers.size());
-      Producer<String, ByteBuffer> producer = kafkaProducers.get(producerIndex);
+      publish(topic, request, responseObserver);
+    }
+  }
 
-      CountDownLatch callbacks = new CountDownLatch(request.getMessagesCount());
-      AtomicInteger failures = new AtomicInteger();
-      PublishResponse.Builder builder = PublishResponse.newBuilder();
-      request
-          .getMessagesList()
-          .forEach(
-              m -> {
-                ProducerRecord<String, ByteBuffer> producerRecord = buildProducerRecord(topic, m);
-                long publishedAt = System.currentTimeMillis();
-                producer.send(
-                    producerRecord,
-                    (recordMetadata, exception) -> {
-                      if (recordMetadata != null) {
-                        builder.addMessageIds(
-                            recordMetadata.partition() + "-" + recordMetadata.offset());
-                        callbacks.countDown();
-                        statisticsManager.computePublish(topic.getName(), m.getData(), publishedAt);
-                      } else {
-                        LOGGER.severe("Unable to Publish message: " + exception.getMessage());
-                        statisticsManager.computePublishError(topic.getName());
-                        failures.incrementAndGet();
-                      }
-                    });
-              });
+  /** Returns the Topic named by {@code topicName}, or null if there is no such topic. */
+  Topic findTopic(String topicName) {
+    return topicMap.get(getLastNodeInTopic(topicName));
+  }
 
+  /**
+   * Publishes the messages of {@code request} to {@code topic}, which the caller has already looked
+   * up. Used directly by {@link StreamingPublisherImpl} to skip the topic lookup for every batch.
+   */
+  void publish(
+      Topic topic, PublishRequest request, StreamObserver<PublishResponse> responseObserver) {
+    Instant start = Instant.now();
+    ProducerPool pool = topicPools.getOrDefault(topic.getName(), defaultPool);
+    int producerIndex = pool.nextIndex();
+    Producer<String, ByteBuffer> producer = pool.producers.get(producerIndex);
+
+    PendingPublish pending =
+        new PendingPublish(
+            topic.getName(),
+            pool.name + "-" + producerIndex,
+            request.getMessagesCount(),
+            request.getSerializedSize(),
+            start,
+            responseObserver);
+    if (request.getMessagesCount() == 0) {
+      pending.complete(false);
+      return;
+    }
+    if (spool != null && spool.isActive()) {
+      spoolRequest(topic.getName(), request, responseObserver);
+      return;
+    }
+    if (!admission.tryAcquire(topic.getName(), pending.bytes)) {
+      String message =
+          "Too many publish requests in flight to "
+              + topic.getName()
+              + ", "
+              + admission.getInFlightRequests()
+              + " requests and "
+              + admission.getInFlightBytes()
+              + " bytes outstanding";
+      LOGGER.fine(message);
+      statisticsManager.computePublishRejection(topic.getName());
+      responseObserver.onError(Status.RESOURCE_EXHAUSTED.withDescription(message).asException());
+      return;
+    }
+    if (!circuitBreaker.tryAcquire()) {
+      admission.release(topic.getName(), pending.bytes);
+      if (spool != null) {
+        spoolRequest(topic.getName(), request, responseObserver);
+        return;
+      }
+      String message = "Kafka is unavailable, publish to " + topic.getName() + " refused";
+      LOGGER.fine(message);
+      statisticsManager.computePublishRejection(topic.getName());
+      responseObserver.onError(Status.UNAVAILABLE.withDescription(message).asException());
+      return;
+    }
+    pending.guarded = true;
+    pending.timeout =
+        timeoutExecutorService.schedule(
+            () -> pending.complete(true), MAX_PUBLISH_WAIT, TimeUnit.SECONDS);
+    ToIntFunction<PubsubMessage> partitioning = getPartitioning(topic.getName(), producer);
+    for (int i = 0; i < request.getMessagesCount(); i++) {
+      int index = i;
+      PubsubMessage m = request.getMessages(i);
+      PublishDeduplicator.Entry claim =
+          deduplicator == null ? null : deduplicator.claim(topic.getName(), m);
+      if (claim != null && !claim.isOriginal()) {
+        claim
+            .getMessageId()
+            .whenComplete((messageId, exception) -> pending.onRepeat(index, messageId, exception));
+        continue;
+      }
+      String orderingKey = OrderingKeys.get(m);
+      long publishedAt = System.currentTimeMillis();
+      pending.onSend();
       try {
-        if (!callbacks.await(MAX_PUBLISH_WAIT, TimeUnit.SECONDS)) {
-          LOGGER.warning(
-              callbacks.getCount() + " callbacks remain after " + MAX_PUBLISH_WAIT + "s");
+        int partition =
+            partitioning == null || !orderingKey.isEmpty()
+                ? PublishPartitioner.UNASSIGNED
+                : partitioning.applyAsInt(m);
+        pool.getProducer(producer, orderingKey)
+            .send(
+                buildProducerRecord(topic, m, orderingKey, partition),
+                (recordMetadata, exception) ->
+                    pending.onSendComplete(
+                        index, m, publishedAt, recordMetadata, exception, claim));
+      } catch (RuntimeException e) {
+        pending.onSendComplete(index, m, publishedAt, null, e, claim);
+      }
+    }
+    pending.onSendsIssued();
+  }
+
+  /**
+   * Appends {@code request} to the spool and acknowledges it with spool IDs, or fails it with
+   * UNAVAILABLE if the spool is full. Messages repeating the idempotency key of a recent message
+   * are not spooled, and are answered with the message ID of the original once it is known.
+   */
+  private void spoolRequest(
+      String topic, PublishRequest request, StreamObserver<PublishResponse> responseObserver) {
+    List<PublishDeduplicator.Entry> claims = new ArrayList<>(request.getMessagesCount());
+    PublishRequest.Builder originals = request.toBuilder().clearMessages();
+    for (PubsubMessage m : request.getMessagesList()) {
+      PublishDeduplicator.Entry claim = deduplicator == null ? null : deduplicator.claim(topic, m);
+      claims.add(claim);
+      if (claim == null || claim.isOriginal()) {
+        originals.addMessages(m);
+      }
+    }
+    List<String> spoolIds = new ArrayList<>();
+    if (originals.getMessagesCount() > 0) {
+      try {
+        spoolIds = spool.append(originals.build());
+      } catch (IOException e) {
+        LOGGER.severe("Unable to spool publish request to " + topic + ": " + e.getMessage());
+        failClaims(claims, e);
+        responseObserver.onError(
+            Status.INTERNAL.withDescription("Unable to spool publish request").asException());
+        return;
+      }
+      if (spoolIds == null) {
+        String message =
+            "Kafka is unavailable and the publish spool is full, " + topic + " refused";
+        LOGGER.fine(message);
+        statisticsManager.computePublishRejection(topic);
+        StatusException exception = Status.UNAVAILABLE.withDescription(message).asException();
+        failClaims(claims, exception);
+        responseObserver.onError(exception);
+        return;
+      }
+    }
+    LOGGER.fine("Spooled " + spoolIds.size() + " messages to " + topic);
+
+    List<CompletableFuture<String>> messageIds = new ArrayList<>(claims.size());
+    int spooled = 0;
+    for (PublishDeduplicator.Entry claim : claims) {
+      if (claim == null || claim.isOriginal()) {
+        String spoolId = spoolIds.get(spooled++);
+        if (claim != null) {
+          deduplicator.published(claim, spoolId);
         }
+        messageIds.add(CompletableFuture.completedFuture(spoolId));
+      } else {
+        messageIds.add(claim.getMessageId());
+      }
+    }
+    CompletableFuture.allOf(messageIds.toArray(new CompletableFuture[0]))
+        .whenComplete(
+            (v, exception) -> {
+              if (exception != null) {
+                // The original was not published, so the key is free for the client's next retry
+                LOGGER.warning("Unable to Publish repeated message: " + exception.getMessage());
+                responseObserver.onError(
+                    Status.UNAVAILABLE
+                        .withDescription("Unable to publish repeated message")
+                        .asException());
+                return;
+              }
+              responseObserver.onNext(
+                  PublishResponse.newBuilder()
+                      .addAllMessageIds(
+                          messageIds
+                              .stream()
+                              .map(CompletableFuture::join)
+                              .collect(Collectors.toList()))
+                      .build());
+              responseObserver.onCompleted();
+            });
+  }
+
+  /** Forgets the keys of the original messages among {@code claims}, which were not spooled. */
+  private void failClaims(List<PublishDeduplicator.Entry> claims, Throwable cause) {
+    for (PublishDeduplicator.Entry claim : claims) {
+      if (claim != null && claim.isOriginal()) {
+        deduplicator.failed(claim, cause);
+      }
+    }
+  }
+
+  /**
+   * Publishes spooled requests to Kafka in the order they were spooled, for as long as the circuit
+   * breaker lets them through. Runs periodically on the spool executor.
+   */
+  private void drainSpool() {
+    try {
+      PublishSpool.Entry entry;
+      while ((entry = spool.peek()) != null && circuitBreaker.tryAcquire()) {
+        if (!publishSpooled(entry.getRequest())) {
+          circuitBreaker.onFailure();
+          return;
+        }
+        circuitBreaker.onSuccess();
+        spool.markDrained(entry);
+      }
+    } catch (IOException | RuntimeException e) {
+      LOGGER.warning("Unable to drain publish spool: " + e.getMessage());
+    }
+  }
 
-        LOGGER.fine(
-            "Published "
-                + builder.getMessageIdsCount()
-                + " of "
-                + request.getMessagesCount()
-                + " messages to "
-                + topic.getName()
-                + " using KafkaProducer "
-                + producerIndex
-                + " in "
-                + Duration.between(start, Instant.now()).toMillis()
-                + "ms");
-        if (failures.get() == 0) {
-          responseObserver.onNext(builder.build());
-          responseObserver.onCompleted();
+  /**
+   * Sends the messages of a spooled request to Kafka and waits for all of them to be acknowledged.
+   *
+   * @return true if every message was published, or the topic no longer exists
+   */
+  private boolean publishSpooled(PublishRequest request) {
+    Topic topic = topicMap.get(getLastNodeInTopic(request.getTopic()));
+    if (topic == null) {
+      LOGGER.warning(
+          "Dropping " + request.getMessagesCount() + " spooled messages to " + request.getTopic());
+      return true;
+    }
+    ProducerPool pool = topicPools.getOrDefault(topic.getName(), defaultPool);
+    Producer<String, ByteBuffer> producer = pool.producers.get(0);
+    ToIntFunction<PubsubMessage> partitioning = getPartitioning(topic.getName(), producer);
+    List<Future<RecordMetadata>> futures = new ArrayList<>(request.getMessagesCount());
+    long publishedAt = System.currentTimeMillis();
+    try {
+      for (PubsubMessage m : request.getMessagesList()) {
+        String orderingKey = OrderingKeys.get(m);
+        int partition =
+            partitioning == null || !orderingKey.isEmpty()
+                ? PublishPartitioner.UNASSIGNED
+                : partitioning.applyAsInt(m);
+        futures.add(
+            pool.getProducer(producer, orderingKey)
+                .send(buildProducerRecord(topic, m, orderingKey, partition)));
+      }
+      for (int i = 0; i < futures.size(); i++) {
+        futures.get(i).get(MAX_PUBLISH_WAIT, TimeUnit.SECONDS);
+        statisticsManager.computePublish(
+            topic.getName(), request.getMessages(i).getData(), publishedAt);
+      }
+      return true;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    } catch (ExecutionException | TimeoutException | RuntimeException e) {
+      LOGGER.warning("Unable to publish spooled messages to " + topic.getName() + ": " + e);
+      statisticsManager.computePublishError(topic.getName());
+      return false;
+    }
+  }
+
+  /**
+   * Tracks the outstanding producer callbacks for a single PublishRequest. Message IDs are written
+   * into the slot matching each message's position in the request so that they are returned in
+   * request order regardless of the order in which callbacks arrive. The response is sent exactly
+   * once, by the last callback, the first failure, or the publish timeout, whichever comes first.
+   */
+  private final class PendingPublish {
+
+    private final String topic;
+    private final String producerName;
+    private final Instant start;
+    private final StreamObserver<PublishResponse> responseObserver;
+    private final AtomicReferenceArray<String> messageIds;
+    private final long bytes; // Counted against the in-flight budget until every callback lands
+    private final AtomicInteger remaining;
+    private final AtomicInteger failures = new AtomicInteger();
+    private final AtomicBoolean completed = new AtomicBoolean();
+    // Sends to Kafka awaiting their callback, plus one until every message has been sent
+    private final AtomicInteger unsettled = new AtomicInteger(1);
+    private final AtomicInteger sendFailures = new AtomicInteger();
+    private final AtomicBoolean reported = new AtomicBoolean();
+    private volatile ScheduledFuture<?> timeout;
+    private volatile boolean guarded; // Whether the request holds a permit of the circuit breaker
+    private volatile boolean sent; // Whether any message was sent rather than deduplicated
+
+    private PendingPublish(
+        String topic,
+        String producerName,
+        int messages,
+        long bytes,
+        Instant start,
+        StreamObserver<PublishResponse> responseObserver) {
+      this.topic = topic;
+      this.bytes = bytes;
+      this.producerName = producerName;
+      this.start = start;
+      this.responseObserver = responseObserver;
+      messageIds = new AtomicReferenceArray<>(messages);
+      remaining = new AtomicInteger(messages);
+    }
+
+    /** Records that a message is about to be sent to Kafka. */
+    private void onSend() {
+      sent = true;
+      unsettled.incrementAndGet();
+    }
+
+    /** Records that every message of the request was either sent or found to be a repeat. */
+    private void onSendsIssued() {
+      if (unsettled.decrementAndGet() == 0) {
+        reportOutcome(false);
+      }
+    }
+
+    private void onSendComplete(
+        int index,
+        PubsubMessage message,
+        long publishedAt,
+        RecordMetadata recordMetadata,
+        Exception exception,
+        PublishDeduplicator.Entry claim) {
+      String messageId = null;
+      if (recordMetadata != null) {
+        statisticsManager.computePublish(topic, message.getData(), publishedAt);
+        messageId = recordMetadata.partition() + "-" + recordMetadata.offset();
+      } else {
+        LOGGER.severe("Unable to Publish message: " + exception.getMessage());
+        statisticsManager.computePublishError(topic);
+      }
+      if (claim != null) {
+        if (messageId != null) {
+          deduplicator.published(claim, messageId);
         } else {
-          String message =
-              failures.get() + " of " + request.getMessagesCount() + " Messages failed to Publish";
-          LOGGER.warning(message);
-          responseObserver.onError(Status.INTERNAL.withDescription(message).asException());
+          deduplicator.failed(claim, exception);
         }
-      } catch (InterruptedException e) {
-        responseObserver.onError(Status.INTERNAL.withCause(e).asException());
+      }
+      if (messageId == null) {
+        sendFailures.incrementAndGet();
+      }
+      // A failure is reported right away, while a success waits for the other sends
+      if (unsettled.decrementAndGet() == 0 || messageId == null) {
+        reportOutcome(false);
+      }
+      onMessageComplete(index, messageId);
+    }
+
+    /**
+     * Reports the outcome of the messages sent to Kafka to the circuit breaker, at most once. The
+     * outcome of repeated messages belongs to the requests that sent their originals, so a request
+     * which only repeated earlier messages returns its permit without reporting anything.
+     */
+    private void reportOutcome(boolean timedOut) {
+      if (!guarded || !reported.compareAndSet(false, true)) {
+        return;
+      }
+      if (!sent) {
+        circuitBreaker.release();
+      } else if (timedOut || sendFailures.get() > 0) {
+        circuitBreaker.onFailure();
+      } else {
+        circuitBreaker.onSuccess();
+      }
+    }
+
+    /** Completes a message that repeats the idempotency key of an earlier one. */
+    private void onRepeat(int index, String messageId, Throwable exception) {
+      if (exception != null) {
+        LOGGER.warning("Unable to Publish repeated message: " + exception.getMessage());
+      } else {
+        LOGGER.fine("Deduplicated message to " + topic + " as " + messageId);
+      }
+      onMessageComplete(index, messageId);
+    }
+
+    /** Records the outcome of the message at {@code index}, where a null ID means it failed. */
+    private void onMessageComplete(int index, String messageId) {
+      if (messageId != null) {
+        messageIds.set(index, messageId);
+      } else {
+        failures.incrementAndGet();
+      }
+      if (remaining.decrementAndGet() == 0) {
+        admission.release(topic, bytes);
+        complete(false);
+      } else if (failures.get() > 0) {
+        complete(false);
+      }
+    }
+
+    private void complete(boolean timedOut) {
+      if (!completed.compareAndSet(false, true)) {
+        return;
+      }
+      ScheduledFuture<?> scheduled = timeout;
+      if (scheduled != null) {
+        scheduled.cancel(false);
+      }
+      if (timedOut) {
+        LOGGER.warning(remaining.get() + " callbacks remain after " + MAX_PUBLISH_WAIT + "s");
+      }
+      if (timedOut) {
+        reportOutcome(true);
+      }
+
+      PublishResponse.Builder builder = PublishResponse.newBuilder();
+      for (int i = 0; i < messageIds.length(); i++) {
+        String messageId = messageIds.get(i);
+        if (messageId != null) {
+          builder.addMessageIds(messageId);
+        }
+      }
+      LOGGER.fine(
+          "Published "
+              + builder.getMessageIdsCount()
+              + " of "
+              + messageIds.length()
+              + " messages to "
+              + topic
+              + " using KafkaProducer "
+              + producerName
+              + " in "
+              + Duration.between(start, Instant.now()).toMillis()
+              + "ms");
+      if (failures.get() == 0) {
+        responseObserver.onNext(builder.build());
+        responseObserver.onCompleted();
+      } else {
+        String message =
+            failures.get() + " of " + messageIds.length() + " Messages failed to Publish";
+        LOGGER.warning(message);
+        responseObserver.onError(Status.INTERNAL.withDescription(message).asException());
       }
     }
   }
 
-  private ProducerRecord<String, ByteBuffer> buildProducerRecord(Topic topic, PubsubMessage m) {
-    return new ProducerRecord<String, ByteBuffer>(
-        topic.getName(),
-        null,
-        null,
-        m.getData().asReadOnlyByteBuffer(),
-        buildHeaders(m.getAttributesMap()));
+  /** The KafkaProducers that publish to the topics of a single producer profile. */
+  private static final class ProducerPool {
+
+    private final String name;
+    private final List<Producer<String, ByteBuffer>> producers;
+    private final AtomicInteger nextProducerIndex = new AtomicInteger();
+
+    private ProducerPool(String name, List<Producer<String, ByteBuffer>> producers) {
+      this.name = name;
+      this.producers = producers;
+    }
+
+    /** Returns the index of the KafkaProducer to use for the next request, in round-robin order. */
+    private int nextIndex() {
+      return nextProducerIndex.getAndUpdate((value) -> ++value % producers.size());
+    }
+
+    /**
+     * Returns the KafkaProducer for a message with {@code orderingKey}. Messages without an
+     * ordering key use the {@code defaultProducer} selected for the request.
+     */
+    private Producer<String, ByteBuffer> getProducer(
+        Producer<String, ByteBuffer> defaultProducer, String orderingKey) {
+      if (orderingKey.isEmpty()) {
+        return defaultProducer;
+      }
+      return producers.get(Math.floorMod(orderingKey.hashCode(), producers.size()));
+    }
   }
 
-  private Headers buildHeaders(Map<String, String> attributesMap) {
-    if (attributesMap == null || attributesMap.isEmpty()) {
+  /**
+   * Returns the partitioning function for a PublishRequest to {@code topic}, or null if the topic
+   * has no {@link PublishPartitioner} or its partitions are unknown to {@code producer}.
+   */
+  private ToIntFunction<PubsubMessage> getPartitioning(
+      String topic, Producer<String, ByteBuffer> producer) {
+    PublishPartitioner partitioner = partitioners.get(topic);
+    if (partitioner == null) {
+      return null;
+    }
+    try {
+      int partitions = producer.partitionsFor(topic).size();
+      return partitions > 0 ? partitioner.forRequest(topic, partitions) : null;
+    } catch (RuntimeException e) {
+      LOGGER.warning("Unable to determine partitions of " + topic + ": " + e.getMessage());
       return null;
     }
-    return new RecordHeaders(
-        attributesMap
-            .entrySet()
-            .parallelStream()
-            .map(attribute -> new RecordHeader(attribute.getKey(), attribute.getValue().getBytes()))
-            .collect(Collectors.toList()));
+  }
+
+  private ProducerRecord<String, ByteBuffer> buildProducerRecord(
+      Topic topic, PubsubMessage m, String orderingKey, int partition) {
+    return new ProducerRecord<String, ByteBuffer>(
+        topic.getName(),
+        partition == PublishPartitioner.UNASSIGNED ? null : partition,
+        orderingKey.isEmpty() ? null : orderingKey,
+        m.getData().asReadOnlyByteBuffer(),
+        AttributeCodec.encode(m.getAttributesMap(), producerProperties.isCompactAttributes()));
   }
 
   @Override
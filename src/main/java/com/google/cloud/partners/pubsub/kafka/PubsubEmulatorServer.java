@@ -22,6 +22,7 @@ import com.beust.jcommander.JCommander;
 import com.beust.jcommander.Parameter;
 import com.beust.jcommander.Parameters;
 import com.google.cloud.partners.pubsub.kafka.common.AdminGrpc;
+import com.google.cloud.partners.pubsub.kafka.common.StreamingPublisherGrpc;
 import com.google.cloud.partners.pubsub.kafka.properties.ApplicationProperties;
 import com.google.cloud.partners.pubsub.kafka.properties.SecurityProperties;
 import com.google.cloud.partners.pubsub.kafka.properties.ServerProperties;
@@ -70,6 +71,7 @@ public class PubsubEmulatorServer {
   private String configurationLocation;
 
   private PublisherImpl publisher;
+  private StreamingPublisherImpl streamingPublisher;
   private SubscriberImpl subscriber;
   private AdminImpl admin;
   private Server server;
@@ -108,6 +110,7 @@ public class PubsubEmulatorServer {
     healthStatusManager = new HealthStatusManager();
     admin = new AdminImpl(statisticsManager);
     publisher = new PublisherImpl(kafkaClientFactory, statisticsManager);
+    streamingPublisher = new StreamingPublisherImpl(publisher);
     subscriber =
         new SubscriberImpl(kafkaClientFactory, subscriptionManagerFactory, statisticsManager);
     server = initializeServer(applicationProperties.getServerProperties());
@@ -132,6 +135,7 @@ public class PubsubEmulatorServer {
     healthStatusManager.setStatus(PublisherGrpc.SERVICE_NAME, SERVING);
     healthStatusManager.setStatus(SubscriberGrpc.SERVICE_NAME, SERVING);
     healthStatusManager.setStatus(AdminGrpc.SERVICE_NAME, SERVING);
+    healthStatusManager.setStatus(StreamingPublisherGrpc.SERVICE_NAME, SERVING);
   }
 
   /** Stop serving requests, then shutdown Publisher and Subscriber services. */
@@ -189,6 +193,7 @@ public class PubsubEmulatorServer {
             .channelType(channelType)
             .maxMessageSize(MAX_MESSAGE_SIZE)
             .addService(publisher)
+            .addService(streamingPublisher)
             .addService(subscriber)
             .addService(admin)
             .addService(healthStatusManager.getHealthService())
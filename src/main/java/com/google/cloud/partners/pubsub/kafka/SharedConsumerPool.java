@@ -0,0 +1,181 @@
+/*
+ * Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.partners.pubsub.kafka;
+
+import com.google.cloud.partners.pubsub.kafka.properties.OffsetStoreProperties;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.common.KafkaException;
+import org.apache.kafka.common.PartitionInfo;
+import org.apache.kafka.common.TopicPartition;
+
+/**
+ * Shares a small pool of KafkaConsumers between every Subscription of a topic, so that the number
+ * of consumers, broker connections and fetch buffers depends on the number of topics rather than
+ * the number of Subscriptions. Since consumers no longer belong to the group of a Subscription, the
+ * offsets of each Subscription are kept in the {@link SubscriptionOffsetStore} of the pool.
+ *
+ * <p>The partitions of each topic are divided between up to {@link
+ * OffsetStoreProperties#getConsumersPerTopic()} consumers, each polled by a {@link
+ * MultiplexedFetcher}. Fetchers are created when the topic is first used by a Subscription and are
+ * kept until the pool is shut down, idling while no Subscription is attached.
+ */
+final class SharedConsumerPool {
+
+  private static final Logger LOGGER = Logger.getLogger(SharedConsumerPool.class.getName());
+
+  private final KafkaClientFactory kafkaClientFactory;
+  private final SubscriptionOffsetStore offsetStore;
+  private final int consumersPerTopic;
+  private final Map<String, List<MultiplexedFetcher>> fetchers;
+  private final ExecutorService fetchExecutorService;
+  private volatile boolean shutdown;
+
+  SharedConsumerPool(KafkaClientFactory kafkaClientFactory, OffsetStoreProperties properties) {
+    this.kafkaClientFactory = kafkaClientFactory;
+    offsetStore = new SubscriptionOffsetStore(kafkaClientFactory, properties);
+    consumersPerTopic = Math.max(1, properties.getConsumersPerTopic());
+    fetchers = new ConcurrentHashMap<>();
+    fetchExecutorService =
+        Executors.newCachedThreadPool(
+            Utils.newThreadFactoryWithGroupAndPrefix("shared-fetch-threads", "shared-fetcher"));
+  }
+
+  SubscriptionOffsetStore getOffsetStore() {
+    return offsetStore;
+  }
+
+  /** Returns the partitions of {@code topic}, creating the fetchers for the topic if needed. */
+  Set<TopicPartition> getPartitions(String topic) {
+    Set<TopicPartition> partitions = new HashSet<>();
+    getFetchers(topic).forEach(fetcher -> partitions.addAll(fetcher.getPartitions()));
+    return partitions;
+  }
+
+  /**
+   * Starts appending the records of {@code topic} to {@code buffer}, beginning at {@code
+   * positions}, or moves {@code buffer} to {@code positions} if it is already attached. See {@link
+   * MultiplexedFetcher#attach(PrefetchBuffer, Runnable, Map)}.
+   *
+   * @return a future which completes once every fetcher of the topic has applied the attachment
+   */
+  CompletableFuture<Void> attach(
+      String topic,
+      PrefetchBuffer buffer,
+      Runnable maintenance,
+      Map<TopicPartition, Long> positions) {
+    return CompletableFuture.allOf(
+        getFetchers(topic)
+            .stream()
+            .map(fetcher -> fetcher.attach(buffer, maintenance, positions))
+            .toArray(CompletableFuture[]::new));
+  }
+
+  /** Stops appending the records of {@code topic} to {@code buffer}. */
+  void detach(String topic, PrefetchBuffer buffer) {
+    fetchers.getOrDefault(topic, Collections.emptyList()).forEach(f -> f.detach(buffer));
+  }
+
+  /** Returns the number of Subscriptions whose attachment to {@code topic} has been applied. */
+  int attached(String topic) {
+    return fetchers
+        .getOrDefault(topic, Collections.emptyList())
+        .stream()
+        .mapToInt(MultiplexedFetcher::members)
+        .min()
+        .orElse(0);
+  }
+
+  /** Stops every fetcher, closes their consumers and then the offset store. */
+  void shutdown() {
+    shutdown = true;
+    List<MultiplexedFetcher> all =
+        fetchers.values().stream().flatMap(List::stream).collect(Collectors.toList());
+    all.forEach(MultiplexedFetcher::stop);
+    fetchExecutorService.shutdown();
+    for (MultiplexedFetcher fetcher : all) {
+      Consumer<String, ByteBuffer> consumer = fetcher.getConsumer();
+      synchronized (consumer) {
+        consumer.close();
+      }
+    }
+    offsetStore.close();
+    LOGGER.info("Closed " + all.size() + " shared KafkaConsumers");
+  }
+
+  private List<MultiplexedFetcher> getFetchers(String topic) {
+    if (shutdown) {
+      throw new IllegalStateException("Shared consumers have been shut down");
+    }
+    return fetchers.computeIfAbsent(topic, this::createFetchers);
+  }
+
+  /**
+   * Creates and starts the fetchers of {@code topic}, assigning its partitions to their consumers
+   * in round-robin fashion.
+   */
+  private List<MultiplexedFetcher> createFetchers(String topic) {
+    String group = offsetStore.getTopic() + "-" + topic;
+    Consumer<String, ByteBuffer> first = kafkaClientFactory.createConsumer(group);
+    List<PartitionInfo> partitionInfo;
+    try {
+      partitionInfo = first.partitionsFor(topic);
+    } catch (KafkaException e) {
+      first.close();
+      throw e;
+    }
+    int totalConsumers = Math.min(partitionInfo.size(), consumersPerTopic);
+    List<MultiplexedFetcher> topicFetchers = new ArrayList<>(totalConsumers);
+    for (int i = 0; i < totalConsumers; i++) {
+      int consumerIndex = i;
+      Set<TopicPartition> partitions =
+          partitionInfo
+              .stream()
+              .filter(p -> p.partition() % totalConsumers == consumerIndex)
+              .map(p -> new TopicPartition(topic, p.partition()))
+              .collect(Collectors.toSet());
+      MultiplexedFetcher fetcher =
+          new MultiplexedFetcher(
+              group + "-" + i,
+              i == 0 ? first : kafkaClientFactory.createConsumer(group),
+              partitions,
+              () -> kafkaClientFactory.createConsumer(group));
+      topicFetchers.add(fetcher);
+      fetchExecutorService.execute(fetcher);
+    }
+    LOGGER.info(
+        "Created "
+            + totalConsumers
+            + " shared KafkaConsumers for "
+            + partitionInfo.size()
+            + " partitions of "
+            + topic);
+    return Collections.unmodifiableList(topicFetchers);
+  }
+}
@@ -16,6 +16,9 @@
 
 package com.google.cloud.partners.pubsub.kafka;
 
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.LongAdder;
 
 /** Class to consolidate information of emulator, contain some calculation rules. */
@@ -29,6 +32,10 @@ public class StatisticsInformation {
 
   private final LongAdder error = new LongAdder();
 
+  private final LongAdder rejected = new LongAdder();
+
+  private final Set<PrefetchBuffer> prefetchBuffers = ConcurrentHashMap.newKeySet();
+
   public void compute(long latency, int bytes) {
     this.latency.add(latency);
     this.bytes.add(bytes);
@@ -39,10 +46,26 @@ public class StatisticsInformation {
     this.error.add(1);
   }
 
+  public void computeRejection() {
+    this.rejected.add(1);
+  }
+
+  public void addPrefetchBuffer(PrefetchBuffer prefetchBuffer) {
+    this.prefetchBuffers.add(prefetchBuffer);
+  }
+
+  public void removePrefetchBuffer(PrefetchBuffer prefetchBuffer) {
+    this.prefetchBuffers.remove(prefetchBuffer);
+  }
+
   public LongAdder getCount() {
     return count;
   }
 
+  public LongAdder getRejectedCount() {
+    return rejected;
+  }
+
   public Float getThroughput(long durationSeconds) {
     return this.bytes.floatValue() / durationSeconds;
   }
@@ -55,6 +78,24 @@ public class StatisticsInformation {
     return this.count.floatValue() / (float) durationSeconds;
   }
 
+  public long getPrefetchDepth() {
+    return this.prefetchBuffers.stream().mapToLong(PrefetchBuffer::size).sum();
+  }
+
+  public Float getAverageFetchLatency() {
+    long fetches = this.prefetchBuffers.stream().mapToLong(PrefetchBuffer::getFetchCount).sum();
+    if (fetches == 0) {
+      return 0F;
+    }
+    long latencyNanos =
+        this.prefetchBuffers.stream().mapToLong(PrefetchBuffer::getFetchLatencyNanos).sum();
+    return (float) latencyNanos / TimeUnit.MILLISECONDS.toNanos(1) / fetches;
+  }
+
+  public long getFetchedBytes() {
+    return this.prefetchBuffers.stream().mapToLong(PrefetchBuffer::getFetchedBytes).sum();
+  }
+
   public Float getErrorRating() {
     LongAdder totalMessages = new LongAdder();
     totalMessages.add(this.error.intValue());
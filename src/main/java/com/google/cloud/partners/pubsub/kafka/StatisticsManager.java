@@ -85,6 +85,14 @@ public class StatisticsManager {
     publishInformationByTopic.get(topic).computeError();
   }
 
+  public void computePublishRejection(String topic) {
+    if (!publishInformationByTopic.containsKey(topic)) {
+      LOGGER.info("Topic not found to compute publish information.");
+      return;
+    }
+    publishInformationByTopic.get(topic).computeRejection();
+  }
+
   public void computeSubscriber(
       String subscription, ByteString messageData, Timestamp publishTime) {
 
@@ -102,6 +110,20 @@ public class StatisticsManager {
         .compute(subscriptionLatency, messageData.toStringUtf8().length());
   }
 
+  public void addPrefetchBuffer(String topic, PrefetchBuffer prefetchBuffer) {
+    if (!subscriberInformationByTopic.containsKey(topic)) {
+      LOGGER.info("Topic not found to compute prefetch information.");
+      return;
+    }
+    subscriberInformationByTopic.get(topic).addPrefetchBuffer(prefetchBuffer);
+  }
+
+  public void removePrefetchBuffer(String topic, PrefetchBuffer prefetchBuffer) {
+    if (subscriberInformationByTopic.containsKey(topic)) {
+      subscriberInformationByTopic.get(topic).removePrefetchBuffer(prefetchBuffer);
+    }
+  }
+
   public void addSubscriberInformation(SubscriptionProperties subscriptionProperties) {
     this.getSubscriberInformationByTopic()
         .putIfAbsent(subscriptionProperties.getTopic(), new StatisticsInformation());
@@ -0,0 +1,206 @@
+/*
+ * Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.partners.pubsub.kafka;
+
+import com.google.cloud.partners.pubsub.kafka.common.StreamingPublishRequest;
+import com.google.cloud.partners.pubsub.kafka.common.StreamingPublishResponse;
+import com.google.cloud.partners.pubsub.kafka.common.StreamingPublisherGrpc.StreamingPublisherImplBase;
+import com.google.cloud.partners.pubsub.kafka.common.StreamingPubsubMessage;
+import com.google.common.base.Strings;
+import com.google.pubsub.v1.PublishRequest;
+import com.google.pubsub.v1.PublishResponse;
+import com.google.pubsub.v1.PubsubMessage;
+import com.google.pubsub.v1.Topic;
+import io.grpc.Status;
+import io.grpc.stub.ServerCallStreamObserver;
+import io.grpc.stub.StreamObserver;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * Emulator-specific streaming publish service which lets high-rate publishers send batches of
+ * messages to a single topic over one long-lived stream, rather than paying the cost of a unary
+ * Publish call for every batch.
+ *
+ * <p>The topic is resolved once, from the first request of the stream. Each batch is handed to
+ * {@link PublisherImpl} as it arrives and is acknowledged with its sequence number once Kafka has
+ * written it, so several batches can be in flight at once. A batch that fails is acknowledged with
+ * its error status and the stream stays open.
+ *
+ * <p>Flow control is applied by reading at most {@link
+ * com.google.cloud.partners.pubsub.kafka.properties.ProducerProperties#getStreamingPublishWindow()}
+ * batches ahead of their acknowledgements. The first response of each stream tells the client the
+ * size of this window.
+ */
+class StreamingPublisherImpl extends StreamingPublisherImplBase {
+
+  private static final Logger LOGGER = Logger.getLogger(StreamingPublisherImpl.class.getName());
+
+  private final PublisherImpl publisher;
+
+  private final int windowSize;
+
+  StreamingPublisherImpl(PublisherImpl publisher) {
+    this.publisher = publisher;
+    this.windowSize =
+        Math.max(
+            1,
+            Configuration.getApplicationProperties()
+                .getKafkaProperties()
+                .getProducerProperties()
+                .getStreamingPublishWindow());
+  }
+
+  @Override
+  public StreamObserver<StreamingPublishRequest> streamingPublish(
+      StreamObserver<StreamingPublishResponse> responseObserver) {
+    ServerCallStreamObserver<StreamingPublishResponse> serverCallStreamObserver =
+        (ServerCallStreamObserver<StreamingPublishResponse>) responseObserver;
+    serverCallStreamObserver.disableAutoInboundFlowControl();
+    PublishStream stream = new PublishStream(serverCallStreamObserver);
+    stream.send(StreamingPublishResponse.newBuilder().setWindowSize(windowSize).build());
+    serverCallStreamObserver.request(windowSize);
+    return stream;
+  }
+
+  /** The state of a single StreamingPublish call. */
+  private final class PublishStream implements StreamObserver<StreamingPublishRequest> {
+
+    private final ServerCallStreamObserver<StreamingPublishResponse> responseObserver;
+    private final AtomicInteger outstanding = new AtomicInteger();
+    private volatile Topic topic;
+    private volatile boolean halfClosed;
+    private volatile boolean closed; // Only changed while holding the responseObserver lock
+
+    private PublishStream(ServerCallStreamObserver<StreamingPublishResponse> responseObserver) {
+      this.responseObserver = responseObserver;
+    }
+
+    @Override
+    public void onNext(StreamingPublishRequest request) {
+      if (closed) {
+        return;
+      }
+      if (topic == null) {
+        topic = publisher.findTopic(request.getTopic());
+        if (topic == null) {
+          String message = request.getTopic() + " is not a valid Topic";
+          LOGGER.warning(message);
+          fail(Status.NOT_FOUND.withDescription(message));
+          return;
+        }
+        LOGGER.fine("Opened StreamingPublish to " + topic.getName());
+      }
+      PublishRequest.Builder builder = PublishRequest.newBuilder().setTopic(topic.getName());
+      for (StreamingPubsubMessage m : request.getMessagesList()) {
+        PubsubMessage.Builder message =
+            PubsubMessage.newBuilder().setData(m.getData()).putAllAttributes(m.getAttributesMap());
+        if (!m.getOrderingKey().isEmpty()) {
+          OrderingKeys.set(message, m.getOrderingKey());
+        }
+        builder.addMessages(message);
+      }
+      outstanding.incrementAndGet();
+      publisher.publish(topic, builder.build(), new BatchObserver(request.getSequenceNumber()));
+    }
+
+    @Override
+    public void onError(Throwable t) {
+      LOGGER.fine("StreamingPublish terminated by client: " + Status.fromThrowable(t));
+    }
+
+    @Override
+    public void onCompleted() {
+      halfClosed = true;
+      if (outstanding.get() == 0) {
+        complete();
+      }
+    }
+
+    /** Sends {@code response} unless the stream has already been closed or cancelled. */
+    private void send(StreamingPublishResponse response) {
+      synchronized (responseObserver) {
+        if (!closed && !responseObserver.isCancelled()) {
+          responseObserver.onNext(response);
+        }
+      }
+    }
+
+    private void complete() {
+      synchronized (responseObserver) {
+        if (!closed) {
+          closed = true;
+          responseObserver.onCompleted();
+        }
+      }
+    }
+
+    private void fail(Status status) {
+      synchronized (responseObserver) {
+        if (!closed) {
+          closed = true;
+          responseObserver.onError(status.asException());
+        }
+      }
+    }
+
+    /** Acknowledges a batch once it completes, then makes room in the window for another. */
+    private void onBatchComplete(StreamingPublishResponse response) {
+      send(response);
+      if (outstanding.decrementAndGet() == 0 && halfClosed) {
+        complete();
+      } else if (!halfClosed) {
+        responseObserver.request(1);
+      }
+    }
+
+    /** Translates the outcome of a single batch into its acknowledgement. */
+    private final class BatchObserver implements StreamObserver<PublishResponse> {
+
+      private final long sequenceNumber;
+
+      private BatchObserver(long sequenceNumber) {
+        this.sequenceNumber = sequenceNumber;
+      }
+
+      @Override
+      public void onNext(PublishResponse response) {
+        onBatchComplete(
+            StreamingPublishResponse.newBuilder()
+                .setSequenceNumber(sequenceNumber)
+                .addAllMessageIds(response.getMessageIdsList())
+                .build());
+      }
+
+      @Override
+      public void onError(Throwable t) {
+        Status status = Status.fromThrowable(t);
+        onBatchComplete(
+            StreamingPublishResponse.newBuilder()
+                .setSequenceNumber(sequenceNumber)
+                .setStatus(
+                    com.google.rpc.Status.newBuilder()
+                        .setCode(status.getCode().value())
+                        .setMessage(Strings.nullToEmpty(status.getDescription())))
+                .build());
+      }
+
+      @Override
+      public void onCompleted() {}
+    }
+  }
+}
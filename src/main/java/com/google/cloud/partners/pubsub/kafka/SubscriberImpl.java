@@ -25,9 +25,13 @@ import com.google.cloud.partners.pubsub.kafka.properties.ConsumerProperties;
 import com.google.cloud.partners.pubsub.kafka.properties.KafkaProperties;
 import com.google.cloud.partners.pubsub.kafka.properties.SubscriptionProperties;
 import com.google.protobuf.Empty;
+import com.google.protobuf.Timestamp;
 import com.google.pubsub.v1.AcknowledgeRequest;
+import com.google.pubsub.v1.CreateSnapshotRequest;
 import com.google.pubsub.v1.DeleteSubscriptionRequest;
 import com.google.pubsub.v1.GetSubscriptionRequest;
+import com.google.pubsub.v1.ListSnapshotsRequest;
+import com.google.pubsub.v1.ListSnapshotsResponse;
 import com.google.pubsub.v1.ListSubscriptionsRequest;
 import com.google.pubsub.v1.ListSubscriptionsResponse;
 import com.google.pubsub.v1.ModifyAckDeadlineRequest;
@@ -35,6 +39,9 @@ import com.google.pubsub.v1.PullRequest;
 import com.google.pubsub.v1.PullResponse;
 import com.google.pubsub.v1.PushConfig;
 import com.google.pubsub.v1.ReceivedMessage;
+import com.google.pubsub.v1.SeekRequest;
+import com.google.pubsub.v1.SeekResponse;
+import com.google.pubsub.v1.Snapshot;
 import com.google.pubsub.v1.StreamingPullRequest;
 import com.google.pubsub.v1.StreamingPullResponse;
 import com.google.pubsub.v1.SubscriberGrpc.SubscriberImplBase;
@@ -43,6 +50,7 @@ import io.grpc.Status;
 import io.grpc.StatusException;
 import io.grpc.stub.ServerCallStreamObserver;
 import io.grpc.stub.StreamObserver;
+import java.time.Instant;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
@@ -50,15 +58,16 @@ import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
+import org.apache.kafka.common.KafkaException;
+import org.apache.kafka.common.errors.TimeoutException;
 
 /**
  * Implementation of <a
@@ -68,7 +77,14 @@ import java.util.stream.Collectors;
  * <p>Builds a {@link SubscriptionManager} object for each Subscription that handles the
  * communication with Kafka to retrieving and acknowledging messages. The {@link
  * ConsumerProperties#getExecutors} setting determines how many consumers are available to poll for
- * each Subscription.
+ * each Subscription. If an offset store is configured, Subscriptions instead share the consumers of
+ * a {@link SharedConsumerPool} between every Subscription of a topic. Without an offset store, a
+ * {@link TopicTailCache} can be enabled so that Subscriptions of the same topic share the records
+ * their consumers fetch.
+ *
+ * <p>Snapshots are kept in memory until they expire, and record the position of a Subscription as
+ * Kafka offsets along with the offsets it already acknowledged beyond them. Seeking a Subscription
+ * to a snapshot or a point in time moves its consumers to the corresponding offsets.
  */
 class SubscriberImpl extends SubscriberImplBase {
 
@@ -78,9 +94,12 @@ class SubscriberImpl extends SubscriberImplBase {
   private final ScheduledExecutorService commitExecutorService;
   private final ExecutorService streamingPullExecutorService;
   private final Map<String, SubscriptionManager> subscriptions;
+  private final Map<String, SubscriptionSnapshot> snapshots;
   private final StatisticsManager statisticsManager;
   private final SubscriptionManagerFactory subscriptionManagerFactory;
   private final KafkaClientFactory kafkaClientFactory;
+  private final SharedConsumerPool sharedConsumers;
+  private final TopicTailCache tailCache;
 
   public SubscriberImpl(
       KafkaClientFactory kafkaClientFactory,
@@ -92,6 +111,14 @@ class SubscriberImpl extends SubscriberImplBase {
 
     ConsumerProperties consumerProperties =
         Configuration.getApplicationProperties().getKafkaProperties().getConsumerProperties();
+    sharedConsumers =
+        consumerProperties.getOffsetStore().getTopic() == null
+            ? null
+            : new SharedConsumerPool(kafkaClientFactory, consumerProperties.getOffsetStore());
+    tailCache =
+        sharedConsumers != null || consumerProperties.getTailCache().getMaxMessages() <= 0
+            ? null
+            : new TopicTailCache(consumerProperties.getTailCache());
 
     commitExecutorService =
         Executors.newScheduledThreadPool(
@@ -99,9 +126,11 @@ class SubscriberImpl extends SubscriberImplBase {
             Utils.newThreadFactoryWithGroupAndPrefix(
                 "subscriber-commit-threads", "subscriber-committer"));
     streamingPullExecutorService =
-        Executors.newCachedThreadPool(
+        Executors.newFixedThreadPool(
+            Runtime.getRuntime().availableProcessors(),
             Utils.newThreadFactoryWithGroupAndPrefix("streaming-pull-threads", "streaming-puller"));
 
+    snapshots = new ConcurrentHashMap<>();
     subscriptions =
         consumerProperties
             .getSubscriptions()
@@ -111,18 +140,32 @@ class SubscriberImpl extends SubscriberImplBase {
                     SubscriptionProperties::getName,
                     sc ->
                         subscriptionManagerFactory.create(
-                            sc, kafkaClientFactory, commitExecutorService)));
+                            sc,
+                            kafkaClientFactory,
+                            commitExecutorService,
+                            sharedConsumers,
+                            tailCache)));
+    subscriptions
+        .values()
+        .forEach(
+            sm ->
+                statisticsManager.addPrefetchBuffer(
+                    sm.getSubscriptionProperties().getTopic(), sm.getPrefetchBuffer()));
     LOGGER.info("Created " + subscriptions.size() + " SubscriptionManagers");
   }
 
   /**
    * Shutdown hook halts the scheduled executor service preventing new commit tasks from being
-   * submitted, executes commits for each {@link SubscriptionManager}, and then closes all
-   * KafkaConsumers.
+   * submitted, stops delivering to StreamingPull streams, executes commits for each {@link
+   * SubscriptionManager}, and then closes all KafkaConsumers.
    */
   public void shutdown() {
     commitExecutorService.shutdown();
+    streamingPullExecutorService.shutdown();
     subscriptions.values().forEach(SubscriptionManager::shutdown);
+    if (sharedConsumers != null) {
+      sharedConsumers.shutdown();
+    }
   }
 
   /**
@@ -150,11 +193,17 @@ class SubscriberImpl extends SubscriberImplBase {
         .getConsumerProperties()
         .getSubscriptions()
         .add(subscriptionProperties);
-    subscriptions.put(
-        subscriptionProperties.getName(),
+    SubscriptionManager subscriptionManager =
         subscriptionManagerFactory.create(
-            subscriptionProperties, kafkaClientFactory, commitExecutorService));
+            subscriptionProperties,
+            kafkaClientFactory,
+            commitExecutorService,
+            sharedConsumers,
+            tailCache);
+    subscriptions.put(subscriptionProperties.getName(), subscriptionManager);
     statisticsManager.addSubscriberInformation(subscriptionProperties);
+    statisticsManager.addPrefetchBuffer(
+        subscriptionProperties.getTopic(), subscriptionManager.getPrefetchBuffer());
   }
 
   @Override
@@ -191,6 +240,8 @@ class SubscriberImpl extends SubscriberImplBase {
           .removeIf(
               subscriptionProperties -> subscriptionProperties.getName().equals(subscription));
 
+      statisticsManager.removePrefetchBuffer(topic, subscriptionManager.getPrefetchBuffer());
+
       // verify if not contains anymore topic remove subscriber information from statistics.
       if (!kafkaProperties.getTopics().contains(topic)) {
         statisticsManager.removeSubscriberInformation(topic);
@@ -198,6 +249,9 @@ class SubscriberImpl extends SubscriberImplBase {
 
       // remove from subscriptions map
       subscriptions.remove(subscription);
+      if (sharedConsumers != null) {
+        sharedConsumers.getOffsetStore().delete(subscription);
+      }
 
       responseObserver.onNext(Empty.newBuilder().build());
       responseObserver.onCompleted();
@@ -257,30 +311,31 @@ class SubscriberImpl extends SubscriberImplBase {
       LOGGER.warning(message);
       responseObserver.onError(Status.NOT_FOUND.withDescription(message).asException());
     } else {
-      PullResponse response =
-          PullResponse.newBuilder()
-              .addAllReceivedMessages(
-                  subscriptionManager
-                      .pull(request.getMaxMessages(), request.getReturnImmediately())
-                      .stream()
-                      .map(
-                          rm -> {
-                            ReceivedMessage receivedMessage =
-                                ReceivedMessage.newBuilder()
-                                    .setAckId(rm.getMessageId())
-                                    .setMessage(rm)
-                                    .build();
-                            statisticsManager.computeSubscriber(
-                                subscription,
-                                receivedMessage.getMessage().getData(),
-                                receivedMessage.getMessage().getPublishTime());
-                            return receivedMessage;
-                          })
-                      .collect(Collectors.toList()))
-              .build();
-      LOGGER.fine("Returning " + response.getReceivedMessagesCount() + " messages");
-      responseObserver.onNext(response);
-      responseObserver.onCompleted();
+      // Long-polling requests are completed on the Subscription's pull thread, never a fetcher's
+      subscriptionManager
+          .pullAsync(
+              request.getMaxMessages(),
+              request.getReturnImmediately(),
+              subscriptionManager.getSubscriptionProperties().getAckDeadlineSeconds())
+          .whenComplete(
+              (messages, throwable) -> {
+                if (throwable != null) {
+                  LOGGER.warning("Unexpected error during pull: " + throwable.getMessage());
+                  responseObserver.onError(Status.fromThrowable(throwable).asException());
+                  return;
+                }
+                messages.forEach(
+                    rm ->
+                        statisticsManager.computeSubscriber(
+                            subscription,
+                            rm.getMessage().getData(),
+                            rm.getMessage().getPublishTime()));
+                PullResponse response =
+                    PullResponse.newBuilder().addAllReceivedMessages(messages).build();
+                LOGGER.fine("Returning " + response.getReceivedMessagesCount() + " messages");
+                responseObserver.onNext(response);
+                responseObserver.onCompleted();
+              });
     }
   }
 
@@ -319,6 +374,111 @@ class SubscriberImpl extends SubscriberImplBase {
     }
   }
 
+  @Override
+  public void createSnapshot(
+      CreateSnapshotRequest request, StreamObserver<Snapshot> responseObserver) {
+    try {
+      String snapshotId = getSnapshotId(request.getName());
+      if (snapshotId.isEmpty()) {
+        throw Status.INVALID_ARGUMENT.withDescription("Snapshot name is required.").asException();
+      }
+      SubscriptionManager subscriptionManager =
+          Optional.ofNullable(
+                  subscriptions.get(getLastNodeInSubscription(request.getSubscription())))
+              .orElseThrow(
+                  () -> Status.NOT_FOUND.withDescription("Subscription not found.").asException());
+      removeExpiredSnapshots();
+      if (snapshots.containsKey(snapshotId)) {
+        throw Status.ALREADY_EXISTS.withDescription("Snapshot already exists.").asException();
+      }
+      SubscriptionSnapshot snapshot =
+          subscriptionManager.createSnapshot(request.getName(), request.getLabelsMap());
+      if (snapshots.putIfAbsent(snapshotId, snapshot) != null) {
+        throw Status.ALREADY_EXISTS.withDescription("Snapshot already exists.").asException();
+      }
+      responseObserver.onNext(snapshotFromState(snapshot));
+      responseObserver.onCompleted();
+    } catch (StatusException e) {
+      responseObserver.onError(e);
+    } catch (KafkaException e) {
+      LOGGER.warning("Unable to create snapshot " + request.getName() + ": " + e.getMessage());
+      responseObserver.onError(Status.UNAVAILABLE.withDescription(e.getMessage()).asException());
+    }
+  }
+
+  @Override
+  public void listSnapshots(
+      ListSnapshotsRequest request, StreamObserver<ListSnapshotsResponse> responseObserver) {
+    removeExpiredSnapshots();
+    List<Snapshot> snapshotsToList =
+        snapshots
+            .values()
+            .stream()
+            .map(this::snapshotFromState)
+            .sorted(Comparator.comparing(Snapshot::getName))
+            .collect(Collectors.toList());
+
+    PaginationManager<Snapshot> paginationManager =
+        new PaginationManager<>(snapshotsToList, Snapshot::getName);
+
+    ListSnapshotsResponse response =
+        ListSnapshotsResponse.newBuilder()
+            .addAllSnapshots(
+                paginationManager.paginate(request.getPageSize(), request.getPageToken()))
+            .setNextPageToken(paginationManager.getNextToken(Snapshot::getName))
+            .build();
+
+    responseObserver.onNext(response);
+    responseObserver.onCompleted();
+  }
+
+  @Override
+  public void seek(SeekRequest request, StreamObserver<SeekResponse> responseObserver) {
+    try {
+      SubscriptionManager subscriptionManager =
+          Optional.ofNullable(
+                  subscriptions.get(getLastNodeInSubscription(request.getSubscription())))
+              .orElseThrow(
+                  () -> Status.NOT_FOUND.withDescription("Subscription not found.").asException());
+      switch (request.getTargetCase()) {
+        case TIME:
+          Timestamp time = request.getTime();
+          subscriptionManager.seekToTime(Instant.ofEpochSecond(time.getSeconds(), time.getNanos()));
+          break;
+        case SNAPSHOT:
+          removeExpiredSnapshots();
+          SubscriptionSnapshot snapshot =
+              Optional.ofNullable(snapshots.get(getSnapshotId(request.getSnapshot())))
+                  .orElseThrow(
+                      () -> Status.NOT_FOUND.withDescription("Snapshot not found.").asException());
+          if (!snapshot
+              .getTopic()
+              .equals(subscriptionManager.getSubscriptionProperties().getTopic())) {
+            throw Status.FAILED_PRECONDITION
+                .withDescription("Snapshot belongs to a different topic.")
+                .asException();
+          }
+          subscriptionManager.seekToSnapshot(snapshot);
+          break;
+        default:
+          throw Status.INVALID_ARGUMENT
+              .withDescription("Either a time or a snapshot is required.")
+              .asException();
+      }
+      responseObserver.onNext(SeekResponse.getDefaultInstance());
+      responseObserver.onCompleted();
+    } catch (StatusException e) {
+      responseObserver.onError(e);
+    } catch (TimeoutException e) {
+      LOGGER.warning("Timed out seeking " + request.getSubscription() + ": " + e.getMessage());
+      responseObserver.onError(
+          Status.DEADLINE_EXCEEDED.withDescription(e.getMessage()).asException());
+    } catch (KafkaException e) {
+      LOGGER.warning("Unable to seek " + request.getSubscription() + ": " + e.getMessage());
+      responseObserver.onError(Status.UNAVAILABLE.withDescription(e.getMessage()).asException());
+    }
+  }
+
   @Override
   public StreamObserver<StreamingPullRequest> streamingPull(
       StreamObserver<StreamingPullResponse> responseObserver) {
@@ -334,6 +494,29 @@ class SubscriberImpl extends SubscriberImplBase {
         .build();
   }
 
+  private Snapshot snapshotFromState(SubscriptionSnapshot snapshot) {
+    return Snapshot.newBuilder()
+        .setName(snapshot.getName())
+        .setTopic(snapshot.getTopic())
+        .setExpireTime(
+            Timestamp.newBuilder()
+                .setSeconds(snapshot.getExpireTime().getEpochSecond())
+                .setNanos(snapshot.getExpireTime().getNano()))
+        .putAllLabels(snapshot.getLabels())
+        .build();
+  }
+
+  /** Returns the final portion of a projects/{project}/snapshots/{snapshot} name. */
+  private static String getSnapshotId(String snapshotPath) {
+    return snapshotPath.substring(
+        snapshotPath.lastIndexOf(Configuration.RESOURCE_CHAR_SEPARATOR) + 1);
+  }
+
+  private void removeExpiredSnapshots() {
+    Instant now = Instant.now();
+    snapshots.values().removeIf(snapshot -> snapshot.isExpired(now));
+  }
+
   private SubscriptionProperties buildSubscriptionProperty(Subscription request) {
     SubscriptionProperties properties = new SubscriptionProperties();
     properties.setAckDeadlineSeconds(request.getAckDeadlineSeconds());
@@ -372,13 +555,14 @@ class SubscriberImpl extends SubscriberImplBase {
   private class StreamingPullStreamObserver implements StreamObserver<StreamingPullRequest> {
 
     private static final int MESSAGES_PER_STREAM = 500;
-    private static final int MIN_POLL_INTERVAL = 1;
-    private static final int MAX_POLL_INTERVAL = 2048;
 
     private final CompletableFuture<Void> terminationFuture;
     private final ServerCallStreamObserver<StreamingPullResponse> responseObserver;
+    private final AtomicInteger pendingSignals;
+    private final Runnable messageListener;
     private int streamAckDeadlineSecs;
     private String streamId;
+    private String subscription;
     private SubscriptionManager subscriptionManager;
 
     StreamingPullStreamObserver(StreamObserver<StreamingPullResponse> responseObserver) {
@@ -387,11 +571,23 @@ class SubscriberImpl extends SubscriberImplBase {
       this.responseObserver.disableAutoInboundFlowControl();
 
       terminationFuture = new CompletableFuture<>();
+      pendingSignals = new AtomicInteger();
+      messageListener = this::signal;
+      terminationFuture.whenComplete(
+          (result, throwable) -> {
+            try {
+              streamingPullExecutorService.execute(this::terminate);
+            } catch (RejectedExecutionException e) {
+              terminate();
+            }
+          });
 
       this.responseObserver.setOnReadyHandler(
           () -> {
             if (isNull(subscriptionManager)) {
               this.responseObserver.request(1);
+            } else {
+              signal();
             }
           });
       this.responseObserver.setOnCancelHandler(
@@ -436,15 +632,15 @@ class SubscriberImpl extends SubscriberImplBase {
 
     /**
      * Handles the initial client request in the stream which sets up the {@code
-     * SubscriptionManager} and resolves the future so that the pusher thread can begin sending
-     * messages.
+     * SubscriptionManager} and registers the stream to be signalled whenever messages become
+     * available.
      *
      * @param request information to process subscription
      * @throws StatusException if empty subscriptions informed will this exception will be thrown
      */
     private void processSubscription(StreamingPullRequest request) throws StatusException {
       if (isNull(subscriptionManager)) {
-        String subscription = getLastNodeInSubscription(request.getSubscription());
+        subscription = getLastNodeInSubscription(request.getSubscription());
         subscriptionManager = subscriptions.get(subscription);
         if (subscriptionManager == null) {
           String message = request.getSubscription() + " is not a valid Subscription";
@@ -464,7 +660,8 @@ class SubscriberImpl extends SubscriberImplBase {
               subscriptionManager.getSubscriptionProperties().getAckDeadlineSeconds();
         }
         LOGGER.info("StreamingPull " + streamId + " initialized by client");
-        streamingPullExecutorService.submit(() -> this.streamMessages(subscription));
+        subscriptionManager.addMessageListener(messageListener);
+        signal();
 
       } else if (!request.getSubscription().isEmpty()) {
         String message = "Subscription name can only be specified in first request";
@@ -529,63 +726,59 @@ class SubscriberImpl extends SubscriberImplBase {
     }
 
     /**
-     * Poll in a loop until messages are available from the {@link SubscriptionManager} or the
-     * stream is terminated by the client.
+     * Schedules delivery of any available messages on the streaming pull executor. Signals which
+     * arrive while a delivery is in progress are coalesced into another pass of that delivery, so
+     * only one thread sends on the stream at a time and idle streams do not occupy any thread.
      */
-    private void streamMessages(String subscription) {
-      int pollDelay = MIN_POLL_INTERVAL;
-      while (!(terminationFuture.isDone())) {
-        if (responseObserver.isReady()) {
-          pollDelay = MIN_POLL_INTERVAL;
-          StreamingPullResponse response =
-              StreamingPullResponse.newBuilder()
-                  .addAllReceivedMessages(
-                      subscriptionManager
-                          .pull(MESSAGES_PER_STREAM, true, streamAckDeadlineSecs)
-                          .stream()
-                          .map(
-                              rm -> {
-                                ReceivedMessage receivedMessage =
-                                    ReceivedMessage.newBuilder()
-                                        .setAckId(rm.getMessageId())
-                                        .setMessage(rm)
-                                        .build();
-                                statisticsManager.computeSubscriber(
-                                    subscription,
-                                    receivedMessage.getMessage().getData(),
-                                    receivedMessage.getMessage().getPublishTime());
-                                return receivedMessage;
-                              })
-                          .collect(Collectors.toList()))
-                  .build();
-
-          if (response.getReceivedMessagesCount() > 0) {
-            LOGGER.fine(
-                "StreamingPull "
-                    + streamId
-                    + " returning "
-                    + response.getReceivedMessagesCount()
-                    + " messages");
-            responseObserver.onNext(response);
-          }
-        } else {
-          pollDelay = Math.min(pollDelay * 2, MAX_POLL_INTERVAL);
-          LOGGER.fine(
-              "StreamingPull "
-                  + streamId
-                  + " peer is not ready, increased pollDelay to "
-                  + pollDelay);
-        }
-        // Block on the termination future, but swallow its TimeoutException
+    private void signal() {
+      if (pendingSignals.getAndIncrement() == 0) {
         try {
-          terminationFuture.get(pollDelay, TimeUnit.MILLISECONDS);
-        } catch (InterruptedException | TimeoutException ignored) {
-        } catch (ExecutionException e) {
-          LOGGER.severe("StreamingPull " + streamId + " encountered unrecoverable error " + e);
-          responseObserver.onError(Status.fromThrowable(e).asException());
+          streamingPullExecutorService.execute(this::deliverMessages);
+        } catch (RejectedExecutionException e) {
+          LOGGER.fine("StreamingPull " + streamId + " delivery rejected after shutdown");
         }
       }
+    }
+
+    /**
+     * Sends messages from the {@link SubscriptionManager} until none are available, the peer is no
+     * longer ready, or the stream is terminated by the client.
+     */
+    private void deliverMessages() {
+      int signals = 1;
+      do {
+        while (!terminationFuture.isDone() && responseObserver.isReady() && sendMessages()) {}
+        signals = pendingSignals.addAndGet(-signals);
+      } while (signals != 0);
+    }
+
+    /** Sends a single response containing the available messages, if there are any. */
+    private boolean sendMessages() {
+      List<ReceivedMessage> messages =
+          subscriptionManager.pull(MESSAGES_PER_STREAM, true, streamAckDeadlineSecs);
+      if (messages.isEmpty()) {
+        return false;
+      }
+      messages.forEach(
+          rm ->
+              statisticsManager.computeSubscriber(
+                  subscription, rm.getMessage().getData(), rm.getMessage().getPublishTime()));
+      StreamingPullResponse response =
+          StreamingPullResponse.newBuilder().addAllReceivedMessages(messages).build();
+      LOGGER.fine(
+          "StreamingPull "
+              + streamId
+              + " returning "
+              + response.getReceivedMessagesCount()
+              + " messages");
+      responseObserver.onNext(response);
+      return true;
+    }
+
+    /** Stops listening for messages and commits any acknowledgements received on the stream. */
+    private void terminate() {
       if (!isNull(subscriptionManager)) {
+        subscriptionManager.removeMessageListener(messageListener);
         subscriptionManager.commitFromAcknowledgments();
       }
     }
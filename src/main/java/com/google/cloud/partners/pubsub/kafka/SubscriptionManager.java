@@ -20,37 +20,54 @@ import com.google.cloud.partners.pubsub.kafka.properties.ConsumerProperties;
 import com.google.cloud.partners.pubsub.kafka.properties.SubscriptionProperties;
 import com.google.protobuf.ByteString;
 import com.google.protobuf.Timestamp;
+import com.google.protobuf.UnsafeByteOperations;
 import com.google.pubsub.v1.PubsubMessage;
+import com.google.pubsub.v1.ReceivedMessage;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
 import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.NoSuchElementException;
-import java.util.Objects;
 import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Function;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
+import java.util.stream.LongStream;
 import org.apache.kafka.clients.consumer.Consumer;
 import org.apache.kafka.clients.consumer.ConsumerRecord;
-import org.apache.kafka.clients.consumer.ConsumerRecords;
 import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.clients.consumer.OffsetAndTimestamp;
 import org.apache.kafka.common.KafkaException;
 import org.apache.kafka.common.PartitionInfo;
 import org.apache.kafka.common.TopicPartition;
-import org.apache.kafka.common.header.Headers;
+import org.apache.kafka.common.errors.InterruptException;
 
 /**
  * A {@code SubscriptionManager} is responsible for handling the communication with Kafka as a
@@ -58,53 +75,197 @@ import org.apache.kafka.common.header.Headers;
  * KafkaConsumers will be created and assigned to the partitions of the topic indicated by the
  * {@link SubscriptionProperties} provided.
  *
+ * <p>Each KafkaConsumer is polled in the background by a {@link ConsumerFetcher} which fills a
+ * shared {@link PrefetchBuffer} up to the configured high watermarks, so pull requests are served
+ * from memory. Fetchers are started by the first pull so that Subscriptions which are never read do
+ * not hold records in memory. A fetcher whose KafkaConsumer fails replaces it with a new one
+ * assigned to the same partitions, and commits skip its partitions until it has done so.
+ *
  * <p>KafkaConsumer objects are not threadsafe, so care must be taken to ensure that appropriate
  * synchronization controls are in place for any methods that need to interact with a consumer. We
- * synchronize on each KafkaConsumer when using their poll() or commitSync() methods.
+ * synchronize on each KafkaConsumer when using their poll() or commit methods.
+ *
+ * <p>Messages that are not acknowledged before their deadline expires are made available for
+ * redelivery from a retained copy, so they do not need to be fetched from Kafka again. Expired
+ * leases are collected from an {@link AckDeadlineIndex} by the fetchers, as well as whenever
+ * messages are pulled or offsets are committed. Since redeliveries never need Kafka, committing an
+ * offset leaves the fetch position of the consumer untouched, so records beyond the commit that
+ * were already fetched are not fetched and buffered a second time.
+ *
+ * <p>Each delivery is identified by an {@link AckId} encoding the message's partition and offset
+ * along with a generation that changes whenever the message is redelivered, so ack IDs from expired
+ * deliveries are not able to acknowledge or modify later ones.
+ *
+ * <p>Message listeners are notified whenever messages become available, either because they were
+ * fetched, because their previous delivery expired, or because acknowledgements brought the
+ * Subscription back under its flow control limits, so that streams can be served without polling.
+ *
+ * <p>The number and size of unacknowledged messages handed out can be bounded with {@link
+ * SubscriptionProperties#getMaxOutstandingMessages()} and {@link
+ * SubscriptionProperties#getMaxOutstandingBytes()}. Pulls made while a limit is reached return no
+ * messages, and since the buffer stops being drained the fetchers pause once it fills up.
+ *
+ * <p>In cluster mode, enabled by {@link ConsumerProperties#isClusterMode()}, the KafkaConsumers
+ * join the group named after the Subscription so that the partitions are shared by every emulator
+ * instance serving it. Pulls are only served from the partitions currently owned by this instance.
+ * Acknowledged offsets are committed whenever partitions are revoked, and once a partition is
+ * assigned to another member its outstanding leases, buffered records and pending redeliveries are
+ * dropped, leaving its unacknowledged messages to be delivered by the new owner.
+ *
+ * <p>When created with a {@link SharedConsumerPool}, the Subscription does not have KafkaConsumers
+ * of its own. Its records are fetched by the consumers the pool shares between every Subscription
+ * of the topic, and its offsets are committed to the pool's {@link SubscriptionOffsetStore}.
+ *
+ * <p>Otherwise, Subscriptions of the same topic can share the records fetched by their consumers
+ * through a {@link TopicTailCache}. Fetchers that are reading near the tail of a partition are then
+ * served from the records another Subscription already fetched, and cached records are converted
+ * into PubsubMessages only once.
+ *
+ * <p>The position of the Subscription can be captured as a {@link SubscriptionSnapshot}, holding
+ * the offset each partition would commit along with the offsets beyond it that were already
+ * acknowledged. Seeking to a snapshot, or to a point in time resolved with offsetsForTimes, drops
+ * the outstanding leases, pending redeliveries and buffered records of the Subscription, moves the
+ * fetchers to the new offsets and commits them, so a replay reads from the right offset rather than
+ * from the beginning of each partition. Pulls are held back while a seek is in progress. In cluster
+ * mode only the partitions currently owned by this instance are moved.
  */
 class SubscriptionManager {
 
   private static final Logger LOGGER = Logger.getLogger(SubscriptionManager.class.getName());
-  private static final int COMMIT_DELAY = 5; // 5 seconds
   private static final long POLL_TIMEOUT = 5000; // 5 seconds
+  private static final long STORE_COMMIT_TIMEOUT = 30000; // 30 seconds
+  private static final long SEEK_TIMEOUT = 30000; // 30 seconds
+  private static final long SNAPSHOT_RETENTION = 604800000; // 7 days
 
   private final KafkaClientFactory kafkaClientFactory;
+  private final SharedConsumerPool sharedConsumers;
+  private final TopicTailCache tailCache;
   private final SubscriptionProperties subscriptionProperties;
   private final ScheduledExecutorService commitExecutorService;
+  private final ExecutorService fetchExecutorService;
+  private final ScheduledExecutorService pullExecutorService;
 
-  // TODO: Recreate consumers if any lose connection with brokers
-  private final List<Consumer<String, ByteBuffer>> kafkaConsumers;
   private final Map<TopicPartition, OffsetAndMetadata> committedOffsets;
-  private final AtomicInteger nextConsumerIndex, queueSizeBytes;
-  private final Queue<ConsumerRecord<String, ByteBuffer>> buffer;
-  private final Map<String, OutstandingMessage> outstandingMessages;
+  private final Map<TopicPartition, Long> inFlightCommits;
+  private final AtomicInteger pendingAcknowledgements;
+  private final Map<Integer, PartitionOffsetTracker> offsetTrackers;
+  private final Set<Integer> ownedPartitions;
+  private final List<ConsumerFetcher> fetchers;
+  private final AtomicBoolean fetching;
+  private final PrefetchBuffer buffer;
+  private final ConcurrentLongHashMap<OutstandingMessage> outstandingMessages;
+  private final AtomicInteger deliveryGeneration;
+  private final AtomicInteger outstandingCount;
+  private final AtomicLong outstandingBytes;
+  private final AtomicBoolean flowControlled;
+  private final AtomicReference<Timestamp> lastPublishTime;
+  private final AckDeadlineIndex ackDeadlineIndex;
+  private final Queue<OutstandingMessage> redeliveryQueue;
+  private final OrderingKeyScheduler orderingKeyScheduler;
+  private final List<Runnable> messageListeners;
   private final AtomicReference<ScheduledFuture<?>> commitFuture;
+  private final ReadWriteLock seekLock;
+  private final Map<Integer, long[]> seekAcknowledged;
   private final int consumerExecutors;
+  private final boolean clusterMode;
   private String hostName;
   private boolean shutdown;
+  // Completed once no seek is moving the fetchers, only replaced while synchronized on the manager
+  private volatile CompletableFuture<Void> seekCompleted = CompletableFuture.completedFuture(null);
+  private volatile int seekEpoch; // Only modified while synchronized on the manager
 
   public SubscriptionManager(
       SubscriptionProperties subscriptionProperties,
       KafkaClientFactory kafkaClientFactory,
       ScheduledExecutorService commitExecutorService) {
-    this.consumerExecutors =
-        Configuration.getApplicationProperties()
-            .getKafkaProperties()
-            .getConsumerProperties()
-            .getExecutors();
+    this(subscriptionProperties, kafkaClientFactory, commitExecutorService, null, null);
+  }
+
+  /**
+   * Creates a SubscriptionManager whose records are fetched by the consumers of {@code
+   * sharedConsumers}, and whose offsets are kept in its offset store, unless it is null. Otherwise
+   * its own consumers share the records they fetch through {@code tailCache}, unless it is null.
+   */
+  SubscriptionManager(
+      SubscriptionProperties subscriptionProperties,
+      KafkaClientFactory kafkaClientFactory,
+      ScheduledExecutorService commitExecutorService,
+      SharedConsumerPool sharedConsumers,
+      TopicTailCache tailCache) {
+    ConsumerProperties consumerProperties =
+        Configuration.getApplicationProperties().getKafkaProperties().getConsumerProperties();
+    this.consumerExecutors = consumerProperties.getExecutors();
+    this.clusterMode = consumerProperties.isClusterMode();
+    if (clusterMode && sharedConsumers != null) {
+      throw new IllegalArgumentException("Cluster mode cannot be used with an offset store");
+    }
 
     this.subscriptionProperties = subscriptionProperties;
     this.kafkaClientFactory = kafkaClientFactory;
+    this.sharedConsumers = sharedConsumers;
+    this.tailCache = sharedConsumers == null ? tailCache : null;
     this.commitExecutorService = commitExecutorService;
 
-    committedOffsets = new HashMap<>();
-    kafkaConsumers = initializeConsumers();
+    committedOffsets = new ConcurrentHashMap<>();
+    inFlightCommits = new ConcurrentHashMap<>();
+    pendingAcknowledgements = new AtomicInteger();
+    offsetTrackers = new ConcurrentHashMap<>();
+    ownedPartitions = ConcurrentHashMap.newKeySet();
+    List<Consumer<String, ByteBuffer>> kafkaConsumers;
+    if (sharedConsumers == null) {
+      kafkaConsumers = initializeConsumers();
+    } else {
+      initializeSharedPartitions();
+      kafkaConsumers = Collections.emptyList();
+    }
 
-    buffer = new ConcurrentLinkedQueue<>();
-    outstandingMessages = new ConcurrentHashMap<>();
+    messageListeners = new CopyOnWriteArrayList<>();
+    // Completes and expires parked pulls off the fetchers' threads
+    pullExecutorService =
+        Executors.newSingleThreadScheduledExecutor(
+            Utils.newThreadFactoryWithGroupAndPrefix(
+                "subscriber-pull-threads", subscriptionProperties.getName() + "-puller"));
+    buffer =
+        new PrefetchBuffer(
+            consumerProperties.getPrefetchMaxMessages(),
+            subscriptionProperties.getMaxBufferedBytes() > 0
+                ? subscriptionProperties.getMaxBufferedBytes()
+                : consumerProperties.getPrefetchMaxBytes(),
+            this::notifyMessageListeners,
+            pullExecutorService);
+    fetchers = new ArrayList<>(kafkaConsumers.size());
+    for (int i = 0; i < kafkaConsumers.size(); i++) {
+      fetchers.add(
+          new ConsumerFetcher(
+              subscriptionProperties.getName() + "-" + i,
+              subscriptionProperties.getTopic(),
+              kafkaConsumers.get(i),
+              this::createConsumer,
+              buffer,
+              () -> expireLeases(Instant.now()),
+              clusterMode ? new PartitionOwnership() : null,
+              this.tailCache));
+    }
+    fetching = new AtomicBoolean();
+    fetchExecutorService =
+        kafkaConsumers.isEmpty()
+            ? null
+            : Executors.newFixedThreadPool(
+                kafkaConsumers.size(),
+                Utils.newThreadFactoryWithGroupAndPrefix(
+                    "subscriber-fetch-threads", subscriptionProperties.getName() + "-fetcher"));
+    outstandingMessages = new ConcurrentLongHashMap<>();
+    deliveryGeneration = new AtomicInteger();
+    outstandingCount = new AtomicInteger();
+    outstandingBytes = new AtomicLong();
+    flowControlled = new AtomicBoolean();
+    lastPublishTime = new AtomicReference<>();
+    ackDeadlineIndex = new AckDeadlineIndex();
+    redeliveryQueue = new ConcurrentLinkedQueue<>();
+    orderingKeyScheduler = new OrderingKeyScheduler();
     commitFuture = new AtomicReference<>();
-    nextConsumerIndex = new AtomicInteger();
-    queueSizeBytes = new AtomicInteger();
+    seekLock = new ReentrantReadWriteLock();
+    seekAcknowledged = new ConcurrentHashMap<>();
     shutdown = false;
     try {
       hostName = InetAddress.getLocalHost().getHostName();
@@ -117,12 +278,39 @@ class SubscriptionManager {
     return subscriptionProperties;
   }
 
-  /** Shutdown hook should close all Consumers */
+  /** Returns the buffer holding records that were fetched but not yet pulled. */
+  PrefetchBuffer getPrefetchBuffer() {
+    return buffer;
+  }
+
+  /**
+   * Registers {@code listener} to be invoked whenever messages become available to pull. Listeners
+   * are invoked on fetcher threads, so they should hand off any significant work.
+   */
+  void addMessageListener(Runnable listener) {
+    messageListeners.add(listener);
+  }
+
+  void removeMessageListener(Runnable listener) {
+    messageListeners.remove(listener);
+  }
+
+  /** Shutdown hook should stop all fetchers and close all Consumers */
   public void shutdown() {
-    commitFromAcknowledgments();
+    commitOffsets(true);
     shutdown = true;
+    fetchers.forEach(ConsumerFetcher::stop);
+    if (fetchExecutorService != null) {
+      fetchExecutorService.shutdown();
+    }
+    if (sharedConsumers != null) {
+      sharedConsumers.detach(subscriptionProperties.getTopic(), buffer);
+    }
+    buffer.close();
+    pullExecutorService.shutdown();
     int closed = 0;
-    for (Consumer<String, ByteBuffer> kafkaConsumer : kafkaConsumers) {
+    for (ConsumerFetcher fetcher : fetchers) {
+      Consumer<String, ByteBuffer> kafkaConsumer = fetcher.getConsumer();
       synchronized (kafkaConsumer) {
         kafkaConsumer.close();
       }
@@ -133,48 +321,209 @@ class SubscriptionManager {
 
   /**
    * Returns up to {@code maxMessages}. If {@code returnImmediately} is true, the method will
-   * respond by returning the contents of the in-memory queued messages, or the messages available
-   * from Kafka without incurring any delay.
+   * respond by returning the contents of the in-memory queued messages without incurring any delay.
+   * Otherwise, it waits up to 5 seconds for the fetchers to buffer messages if none are available.
    *
-   * @return List of PubsubMessage objects.
+   * @return List of ReceivedMessage objects.
    */
-  public List<PubsubMessage> pull(int maxMessages, boolean returnImmediately) {
+  public List<ReceivedMessage> pull(int maxMessages, boolean returnImmediately) {
     return pull(maxMessages, returnImmediately, subscriptionProperties.getAckDeadlineSeconds());
   }
 
   /**
    * Returns up to {@code maxMessages} with their acknowledgement deadline set to {@code
    * ackDeadlineSecs}. If {@code returnImmediately} is true, the method will respond by returning
-   * the contents of the in-memory queued messages, or the messages available from Kafka without
-   * incurring any delay.
+   * the contents of the in-memory queued messages without incurring any delay. Otherwise, it waits
+   * up to 5 seconds for the fetchers to buffer messages if none are available.
+   *
+   * <p>This method blocks the calling thread while waiting, see {@link #pullAsync(int, boolean,
+   * int)} for the non-blocking equivalent.
    *
-   * @return List of PubsubMessage objects.
+   * @return List of ReceivedMessage objects.
    */
-  public List<PubsubMessage> pull(int maxMessages, boolean returnImmediately, int ackDeadlineSecs) {
-    List<PubsubMessage> response = new ArrayList<>();
-    fillFromBuffer(response, maxMessages);
-    if ((!returnImmediately && response.size() < maxMessages) || response.isEmpty()) {
-      long timeout = returnImmediately ? 0 : POLL_TIMEOUT;
-      consumeFromTopic(timeout);
-      fillFromBuffer(response, maxMessages);
+  public List<ReceivedMessage> pull(
+      int maxMessages, boolean returnImmediately, int ackDeadlineSecs) {
+    return pullAsync(maxMessages, returnImmediately, ackDeadlineSecs).join();
+  }
+
+  /**
+   * Returns a future for up to {@code maxMessages} with their acknowledgement deadline set to
+   * {@code ackDeadlineSecs}. If messages are available in memory or {@code returnImmediately} is
+   * true, the returned future is already complete. Otherwise, the request is parked on the {@link
+   * PrefetchBuffer} without holding a thread or consumer, and completes as soon as the fetchers
+   * buffer messages or after 5 seconds with an empty List.
+   *
+   * @return CompletableFuture for a List of ReceivedMessage objects.
+   */
+  public CompletableFuture<List<ReceivedMessage>> pullAsync(
+      int maxMessages, boolean returnImmediately, int ackDeadlineSecs) {
+    startFetchers();
+    long since = buffer.changes();
+    List<ReceivedMessage> response = pollAndLease(maxMessages, ackDeadlineSecs);
+    if (!response.isEmpty() || returnImmediately || flowControlled.get()) {
+      return CompletableFuture.completedFuture(response);
     }
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(POLL_TIMEOUT);
+    return awaitMessages(maxMessages, ackDeadlineSecs, since, deadline);
+  }
 
-    // Add each message to the outstanding map
-    Instant now = Instant.now();
-    response.forEach(
-        m -> {
-          OutstandingMessage om =
-              OutstandingMessage.newBuilder()
-                  .setPulledAt(now)
-                  .setExpiresAt(now.plusSeconds(ackDeadlineSecs))
-                  .setMessageId(m.getMessageId())
-                  .build();
-          outstandingMessages.put(m.getMessageId(), om);
-        });
+  /**
+   * Waits for the buffer to change after {@code since} and then fills the response. Since several
+   * parked requests may be woken for the same records, and buffered records may not be deliverable
+   * yet, a request that finds no messages is parked again until its deadline passes. While a seek
+   * is moving the fetchers, requests wait for it to complete instead, since no messages are
+   * delivered in the meantime. The response is always filled on the pull executor, so that parking
+   * again never recurses on the caller's stack.
+   */
+  private CompletableFuture<List<ReceivedMessage>> awaitMessages(
+      int maxMessages, int ackDeadlineSecs, long since, long deadline) {
+    CompletableFuture<Void> seek = seekCompleted;
+    CompletableFuture<Boolean> woken =
+        seek.isDone() ? buffer.awaitChange(since, deadline) : awaitSeekCompleted(seek, deadline);
+    return woken.thenComposeAsync(
+        available -> {
+          long changes = buffer.changes();
+          List<ReceivedMessage> response = pollAndLease(maxMessages, ackDeadlineSecs);
+          if (response.isEmpty()
+              && available
+              && !flowControlled.get()
+              && deadline - System.nanoTime() > 0) {
+            return awaitMessages(maxMessages, ackDeadlineSecs, changes, deadline);
+          }
+          return CompletableFuture.completedFuture(response);
+        },
+        this::executePull);
+  }
+
+  /**
+   * Returns a future which completes with true once {@code seek} completes, or with false if {@code
+   * deadline}, as measured by {@link System#nanoTime()}, passes first.
+   */
+  private CompletableFuture<Boolean> awaitSeekCompleted(
+      CompletableFuture<Void> seek, long deadline) {
+    CompletableFuture<Boolean> completed = seek.thenApply(ignored -> true);
+    ScheduledFuture<?> timeout;
+    try {
+      timeout =
+          pullExecutorService.schedule(
+              () -> completed.complete(false), deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+    } catch (RejectedExecutionException e) {
+      return CompletableFuture.completedFuture(false);
+    }
+    completed.thenRun(() -> timeout.cancel(false));
+    return completed;
+  }
+
+  /** Runs {@code command} on the pull executor, or inline once it has been shut down. */
+  private void executePull(Runnable command) {
+    try {
+      pullExecutorService.execute(command);
+    } catch (RejectedExecutionException e) {
+      command.run();
+    }
+  }
+
+  /**
+   * Polls up to {@code maxMessages} and leases them with {@code ackDeadlineSecs}. Both happen while
+   * holding the read lock of the seek lock so that a seek cannot reset the Subscription in between,
+   * and no messages are returned while a seek is moving the fetchers.
+   */
+  private List<ReceivedMessage> pollAndLease(int maxMessages, int ackDeadlineSecs) {
+    seekLock.readLock().lock();
+    try {
+      if (!seekCompleted.isDone()) {
+        return Collections.emptyList();
+      }
+      return leaseMessages(pollMessages(maxMessages), ackDeadlineSecs);
+    } finally {
+      seekLock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Returns up to {@code maxMessages} from the messages awaiting redelivery, followed by the
+   * records in the buffer. The returned objects identify the messages to deliver but are not yet
+   * leased.
+   */
+  private List<OutstandingMessage> pollMessages(int maxMessages) {
+    List<OutstandingMessage> response = new ArrayList<>();
+    expireLeases(Instant.now());
+    int maxOutstandingMessages = subscriptionProperties.getMaxOutstandingMessages();
+    long maxOutstandingBytes = subscriptionProperties.getMaxOutstandingBytes();
+    if (maxOutstandingMessages > 0) {
+      maxMessages = Math.min(maxMessages, maxOutstandingMessages - outstandingCount.get());
+    }
+    long maxBytes =
+        maxOutstandingBytes > 0 ? maxOutstandingBytes - outstandingBytes.get() : Long.MAX_VALUE;
+    if (maxMessages <= 0 || maxBytes <= 0) {
+      flowControlled.set(true);
+      LOGGER.fine(subscriptionProperties.getName() + " reached its outstanding message limits");
+      return response;
+    }
+    Set<String> batchKeys = new HashSet<>();
+    long bytes = orderingKeyScheduler.pollReady(response, batchKeys, maxMessages, maxBytes);
+    bytes += fillFromRedeliveryQueue(response, maxMessages, maxBytes - bytes);
+    fillFromBuffer(response, batchKeys, maxMessages, maxBytes - bytes);
+    return response;
+  }
 
+  /**
+   * Adds a new lease for each message in {@code messages} to the outstanding map with its
+   * acknowledgement deadline set to {@code ackDeadlineSecs} from now, and returns the messages
+   * along with the ack IDs for their leases.
+   */
+  private List<ReceivedMessage> leaseMessages(
+      List<OutstandingMessage> messages, int ackDeadlineSecs) {
+    List<ReceivedMessage> response = new ArrayList<>(messages.size());
+    Instant now = Instant.now();
+    Instant expiresAt = now.plusSeconds(ackDeadlineSecs);
+    for (OutstandingMessage m : messages) {
+      OutstandingMessage om =
+          OutstandingMessage.newBuilder()
+              .setPartition(m.getPartition())
+              .setOffset(m.getOffset())
+              .setGeneration(deliveryGeneration.incrementAndGet())
+              .setOrderingKey(m.getOrderingKey())
+              .setPulledAt(now)
+              .setExpiresAt(expiresAt)
+              .setMessage(m.getMessage())
+              .build();
+      if (!offsetTrackers.get(om.getPartition()).add(om.getOffset())) {
+        // Already released by a commit, so delivering it again would go untracked
+        LOGGER.warning(
+            subscriptionProperties.getName()
+                + " refused to lease "
+                + om.getMessageId()
+                + " below the committed offset of its partition");
+        continue;
+      }
+      long key = om.getKey();
+      outstandingCount.incrementAndGet();
+      outstandingBytes.addAndGet(om.getSize());
+      outstandingMessages.put(key, om);
+      ackDeadlineIndex.add(om);
+      response.add(
+          ReceivedMessage.newBuilder()
+              .setAckId(AckId.encode(key, om.getGeneration()))
+              .setMessage(om.getMessage())
+              .build());
+    }
     return response;
   }
 
+  /**
+   * Returns the lease identified by {@code ackId}, or null if the ack ID is malformed, unknown or
+   * belongs to an earlier delivery of the message.
+   */
+  private OutstandingMessage getOutstandingMessage(String ackId) {
+    long key = AckId.decodeKey(ackId);
+    if (key == AckId.INVALID) {
+      return null;
+    }
+    OutstandingMessage om = outstandingMessages.get(key);
+    return om != null && om.getGeneration() == AckId.decodeGeneration(ackId) ? om : null;
+  }
+
   /**
    * Evaluate each ackId against the outstanding set setting its acknowledged bit if the ack was
    * received prior to its expiration. This method has no effect on Kafka's offsets as commits are
@@ -184,108 +533,178 @@ class SubscriptionManager {
    * @return List of ackIds that were successfully acknowledged before their expiration
    */
   public List<String> acknowledge(List<String> ackIds) {
-    List<String> response = new ArrayList<>();
+    List<String> response = new ArrayList<>(ackIds.size());
     Instant now = Instant.now();
-    ackIds
-        .stream()
-        .filter(outstandingMessages::containsKey)
-        .map(outstandingMessages::get)
-        .forEach(
-            om -> {
-              if (!om.isExpired(now)) {
-                om.setAcknowledged(true);
-                response.add(om.getMessageId());
-              } else {
-                LOGGER.fine(
-                    "Message "
-                        + om.getMessageId()
-                        + " expired at "
-                        + om.getExpiresAt().toEpochMilli());
-              }
-            });
+    boolean orderingKeysReady = false;
+    for (String ackId : ackIds) {
+      OutstandingMessage om = getOutstandingMessage(ackId);
+      if (om == null) {
+        continue;
+      }
+      if (!om.isExpired(now)) {
+        om.setAcknowledged(true);
+        offsetTrackers.get(om.getPartition()).acknowledge(om.getOffset());
+        orderingKeysReady |= releaseOutstanding(om);
+        response.add(ackId);
+      } else {
+        LOGGER.fine("Message " + om.getMessageId() + " expired at " + om.getExpiresAt());
+      }
+    }
 
-    // Schedule a commit operation if commitFuture is not already present
-    if (!response.isEmpty() && commitFuture.get() == null) {
-      commitFuture.set(
-          commitExecutorService.schedule(
-              () -> {
-                commitFromAcknowledgments();
-                commitFuture.set(null);
-              },
-              COMMIT_DELAY,
-              TimeUnit.SECONDS));
+    if (!response.isEmpty()) {
+      int pending = pendingAcknowledgements.addAndGet(response.size());
+      scheduleCommit(pending >= subscriptionProperties.getCommitBatchSize());
+      if (flowControlled.compareAndSet(true, false) || orderingKeysReady) {
+        notifyMessagesAvailable();
+      }
     }
     return response;
   }
 
+  /**
+   * Removes {@code om} from the outstanding message and byte counts used for flow control, and from
+   * the outstanding batch of its ordering key.
+   *
+   * @return true if messages held back for the ordering key of {@code om} can now be delivered
+   */
+  private boolean releaseOutstanding(OutstandingMessage om) {
+    if (!om.release()) {
+      return false;
+    }
+    outstandingCount.decrementAndGet();
+    outstandingBytes.addAndGet(-om.getSize());
+    return om.getOrderingKey() != null && orderingKeyScheduler.release(om.getOrderingKey());
+  }
+
+  /**
+   * Schedules a commit of the acknowledged offsets. Commits are coalesced so that at most one is
+   * scheduled at a time, running {@link SubscriptionProperties#getCommitIntervalMillis()} after the
+   * acknowledgement that scheduled it. If {@code immediately} is true because the Subscription's
+   * commit batch size was reached, a pending commit is brought forward to run right away.
+   */
+  private void scheduleCommit(boolean immediately) {
+    if (shutdown) {
+      return;
+    }
+    ScheduledFuture<?> scheduled = commitFuture.get();
+    if (scheduled != null
+        && (!immediately
+            || scheduled.getDelay(TimeUnit.MILLISECONDS) <= 0
+            || !scheduled.cancel(false))) {
+      return;
+    }
+    ScheduledFuture<?> next =
+        commitExecutorService.schedule(
+            () -> {
+              commitFuture.set(null);
+              commitFromAcknowledgments();
+            },
+            immediately ? 0 : subscriptionProperties.getCommitIntervalMillis(),
+            TimeUnit.MILLISECONDS);
+    if (!commitFuture.compareAndSet(scheduled, next)) {
+      next.cancel(false); // Another thread scheduled a commit concurrently
+    }
+  }
+
   /**
    * Process all acknowledged messages by setting the subscribed topic's partition offsets to the
    * largest acknowledged offset + 1. The committed offset for each partition is determined by
    * finding the smallest unacknowledged offset + 1. If all outstanding messages are acknowledged,
-   * the largest offset + 1 will be used. This method is synchronized so that the effect of
-   * evaluating the committed state is consistent between threads and we avoid unnecessary commit
-   * operations.
+   * the largest offset + 1 will be used. Each partition's {@link PartitionOffsetTracker} maintains
+   * this value as messages are acknowledged, so the cost of a commit is proportional to the number
+   * of partitions and the number of offsets committed rather than the number of outstanding
+   * messages. This method is synchronized so that the effect of evaluating the committed state is
+   * consistent between threads and we avoid unnecessary commit operations.
+   *
+   * <p>Commits are issued with commitAsync, so the consumer is only held for as long as it takes to
+   * queue the request and its round-trip to the broker is completed by the next poll. Offsets that
+   * are already being committed are not committed again until that commit completes, and failed
+   * commits are retried on the next scheduled commit since the watermarks they were computed from
+   * remain in place.
    *
    * @return Map of TopicPartitions and the offsets that are being committed
    */
-  public synchronized Map<TopicPartition, OffsetAndMetadata> commitFromAcknowledgments() {
-    Map<Integer, Long> smallestUnacked =
-        outstandingMessages
-            .values()
-            .stream()
-            .filter(m -> !m.isAcknowledged())
-            .collect(
-                Collectors.toMap(
-                    OutstandingMessage::getPartition,
-                    OutstandingMessage::getOffset,
-                    (o1, o2) -> o1.compareTo(o2) <= 0 ? o1 : o2));
-    Map<Integer, Long> largestAcked =
-        outstandingMessages
-            .values()
-            .stream()
-            .filter(OutstandingMessage::isAcknowledged)
-            .collect(
-                Collectors.toMap(
-                    OutstandingMessage::getPartition,
-                    OutstandingMessage::getOffset,
-                    (o1, o2) -> o1.compareTo(o2) >= 0 ? o1 : o2));
+  public Map<TopicPartition, OffsetAndMetadata> commitFromAcknowledgments() {
+    return commitOffsets(false);
+  }
 
+  /**
+   * Determines and issues the commits for every partition, using commitSync when {@code sync} is
+   * true so that the commits complete before the consumers are closed during shutdown.
+   */
+  private synchronized Map<TopicPartition, OffsetAndMetadata> commitOffsets(boolean sync) {
     Map<TopicPartition, OffsetAndMetadata> commits = new HashMap<>();
     if (shutdown) {
       LOGGER.warning("commitFromAcknowledgments called after shutdown will return immediately");
       return commits;
     }
+    expireLeases(Instant.now());
+    pendingAcknowledgements.set(0);
 
     String commitMetadata = "Committed at " + Instant.now().toEpochMilli() + " by " + hostName;
     // Determine new offsets for each TopicPartition
-    for (TopicPartition tp : committedOffsets.keySet()) {
-      // Check unacked set first
-      Long ackOffset = smallestUnacked.get(tp.partition());
-      if (ackOffset != null) {
-        commits.put(tp, new OffsetAndMetadata(ackOffset, commitMetadata));
-      } else {
-        ackOffset = largestAcked.get(tp.partition());
-        if (ackOffset != null) {
-          commits.put(tp, new OffsetAndMetadata(ackOffset + 1, commitMetadata));
-        }
+    for (Map.Entry<Integer, PartitionOffsetTracker> tracker : offsetTrackers.entrySet()) {
+      Long commitOffset = getCommitOffset(tracker.getValue());
+      if (commitOffset != null) {
+        commits.put(
+            new TopicPartition(subscriptionProperties.getTopic(), tracker.getKey()),
+            new OffsetAndMetadata(commitOffset, commitMetadata));
       }
     }
 
-    // Determine the commits to issue for each consumer
-    for (int i = 0; i < kafkaConsumers.size(); i++) {
+    if (sharedConsumers != null) {
+      commitToOffsetStore(commits, sync);
+    } else {
+      commitToConsumers(commits, sync);
+    }
+    return commits;
+  }
+
+  /**
+   * Returns the offset that should be committed according to {@code tracker}, or null if there is
+   * none. It is read under the write lock of the seek lock, since a pull may have polled lower
+   * offsets which it has not leased yet while a concurrent pull has already leased higher ones.
+   */
+  private Long getCommitOffset(PartitionOffsetTracker tracker) {
+    seekLock.writeLock().lock();
+    try {
+      return tracker.getCommitOffset();
+    } finally {
+      seekLock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Issues the offsets in {@code commits} that advance their partitions through the consumers the
+   * partitions are assigned to, using commitSync if {@code sync} is true. Must be called while
+   * synchronized on the manager.
+   */
+  private void commitToConsumers(Map<TopicPartition, OffsetAndMetadata> commits, boolean sync) {
+    int epoch = seekEpoch;
+    for (int i = 0; i < fetchers.size(); i++) {
+      ConsumerFetcher fetcher = fetchers.get(i);
+      if (!fetcher.isHealthy()) {
+        // Its partitions are committed once the fetcher has replaced the failed consumer
+        LOGGER.fine("Skipping commit for unhealthy consumer " + i);
+        scheduleCommit(false);
+        continue;
+      }
       Map<TopicPartition, OffsetAndMetadata> consumerCommits = new HashMap<>();
-      boolean shouldCommit = false;
-      for (int p = i; p < committedOffsets.keySet().size(); p += kafkaConsumers.size()) {
-        TopicPartition tp = new TopicPartition(subscriptionProperties.getTopic(), p);
-        OffsetAndMetadata current = committedOffsets.get(tp);
+      for (TopicPartition tp : fetcher.getPartitions()) {
         OffsetAndMetadata newOffset = commits.get(tp);
-        if (newOffset != null && (current == null || newOffset.offset() > current.offset())) {
-          shouldCommit = true;
+        if (isNewCommit(tp, newOffset)) {
           consumerCommits.put(tp, newOffset);
         }
       }
-      if (shouldCommit) {
-        synchronized (kafkaConsumers.get(i)) {
+      if (!consumerCommits.isEmpty()) {
+        Consumer<String, ByteBuffer> consumer = fetcher.getConsumer();
+        synchronized (consumer) {
+          // Partitions may have been revoked by a rebalance since the commits were determined
+          consumerCommits.keySet().retainAll(fetcher.getPartitions());
+          if (consumerCommits.isEmpty()) {
+            continue;
+          }
+          consumerCommits.forEach((tp, offset) -> inFlightCommits.put(tp, offset.offset()));
           LOGGER.fine(
               "Consumer "
                   + i
@@ -299,49 +718,396 @@ class SubscriptionManager {
                       .map(es -> "P" + es.getKey().partition() + ":" + es.getValue().offset())
                       .collect(Collectors.joining(", ")));
           try {
-            kafkaConsumers.get(i).commitSync(consumerCommits);
-            Consumer<String, ByteBuffer> finalConsumer = kafkaConsumers.get(i);
-            consumerCommits.forEach((t, o) -> finalConsumer.seek(t, o.offset()));
-            consumerCommits.forEach(
-                (key, value) -> purgeAcknowledged(key.partition(), value.offset()));
-            committedOffsets.putAll(consumerCommits);
+            if (sync) {
+              consumer.commitSync(consumerCommits);
+              onCommitComplete(consumerCommits, null, epoch);
+            } else {
+              consumer.commitAsync(consumerCommits, (o, e) -> onCommitComplete(o, e, epoch));
+            }
           } catch (KafkaException e) {
-            // TODO: Handle this which might include creating a new consumer
-            LOGGER.log(Level.WARNING, "Unexpected KafkaException during commit", e);
+            fetcher.markUnhealthy();
+            onCommitComplete(consumerCommits, e, epoch);
           }
         }
       }
     }
-    return commits;
+  }
+
+  /**
+   * Returns true if {@code offset} is ahead of both the committed offset of {@code tp} and any
+   * commit of it that is still in flight.
+   */
+  private boolean isNewCommit(TopicPartition tp, OffsetAndMetadata offset) {
+    OffsetAndMetadata current = committedOffsets.get(tp);
+    Long inFlight = inFlightCommits.get(tp);
+    return offset != null
+        && (current == null || offset.offset() > current.offset())
+        && (inFlight == null || offset.offset() > inFlight);
+  }
+
+  /**
+   * Writes the offsets in {@code commits} that advance their partitions to the offset store of the
+   * shared consumers, waiting for the write to complete if {@code sync} is true.
+   */
+  private void commitToOffsetStore(Map<TopicPartition, OffsetAndMetadata> commits, boolean sync) {
+    Map<TopicPartition, OffsetAndMetadata> storeCommits = new HashMap<>();
+    commits.forEach(
+        (tp, offset) -> {
+          if (isNewCommit(tp, offset)) {
+            storeCommits.put(tp, offset);
+          }
+        });
+    if (storeCommits.isEmpty()) {
+      return;
+    }
+    storeCommits.forEach((tp, offset) -> inFlightCommits.put(tp, offset.offset()));
+    LOGGER.fine(subscriptionProperties.getName() + " committing " + storeCommits);
+    int epoch = seekEpoch;
+    CompletableFuture<Void> written =
+        sharedConsumers
+            .getOffsetStore()
+            .commit(subscriptionProperties.getName(), storeCommits)
+            .whenComplete(
+                (v, t) ->
+                    onCommitComplete(
+                        storeCommits,
+                        t == null ? null : new KafkaException("Offset store write failed", t),
+                        epoch));
+    if (sync) {
+      try {
+        written.get(STORE_COMMIT_TIMEOUT, TimeUnit.MILLISECONDS);
+      } catch (ExecutionException e) {
+        // Already reported by onCommitComplete
+      } catch (TimeoutException e) {
+        LOGGER.warning("Timed out committing " + storeCommits + " to the offset store");
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  /**
+   * Invoked once a commit of {@code offsets} completes. Asynchronous commits complete during a
+   * later poll of the consumer, so this must not wait on anything a fetcher might be holding.
+   * Committed messages are purged from memory, while a failed commit schedules another attempt.
+   * Commits issued before the last seek, whose epoch is different, are ignored since the state they
+   * were determined from has been dropped.
+   */
+  private void onCommitComplete(
+      Map<TopicPartition, OffsetAndMetadata> offsets, Exception e, int epoch) {
+    if (epoch != seekEpoch) {
+      return;
+    }
+    offsets.forEach((tp, offset) -> inFlightCommits.remove(tp, offset.offset()));
+    if (e != null) {
+      LOGGER.log(Level.WARNING, "Unexpected exception during commit, will retry", e);
+      scheduleCommit(false);
+      return;
+    }
+    offsets.forEach(
+        (tp, offset) -> {
+          committedOffsets.merge(tp, offset, (a, b) -> a.offset() >= b.offset() ? a : b);
+          purgeAcknowledged(tp.partition(), offset.offset());
+        });
   }
 
   /**
    * Modify each provided and unacknowledged Message by setting its ackExpiration property to
-   * ackDeadlineSecs from now.
+   * ackDeadlineSecs from now. A deadline of 0 seconds expires the message immediately, making it
+   * available for redelivery on the next pull.
    *
    * @return List of ackIds that were successfully modified before their expiration
    */
   public List<String> modifyAckDeadline(List<String> ackIds, int ackDeadlineSecs) {
-    List<String> response = new ArrayList<>();
+    List<String> response = new ArrayList<>(ackIds.size());
     Instant now = Instant.now();
-    ackIds
-        .stream()
-        .filter(outstandingMessages::containsKey)
-        .map(outstandingMessages::get)
-        .forEach(
-            om -> {
-              if (!om.isExpired(now)) {
-                om.addSecondsToDeadline(ackDeadlineSecs);
-                response.add(om.getMessageId());
-              } else {
-                LOGGER.fine(
-                    "Message "
-                        + om.getMessageId()
-                        + " expired at "
-                        + om.getExpiresAt().toEpochMilli());
+    for (String ackId : ackIds) {
+      OutstandingMessage om = getOutstandingMessage(ackId);
+      if (om == null) {
+        continue;
+      }
+      if (!om.isExpired(now)) {
+        if (ackDeadlineSecs == 0) {
+          om.expireAt(now);
+          ackDeadlineIndex.add(om);
+        } else {
+          om.addSecondsToDeadline(ackDeadlineSecs);
+        }
+        response.add(ackId);
+      } else {
+        LOGGER.fine("Message " + om.getMessageId() + " expired at " + om.getExpiresAt());
+      }
+    }
+    return response;
+  }
+
+  /**
+   * Captures the position of the Subscription as a snapshot named {@code name}, which expires 7
+   * days from now. Partitions owned by this instance use the offset that would be committed for
+   * them along with the offsets beyond it that were already acknowledged. Other partitions, and
+   * those without any deliveries or commits, use their committed offset in Kafka, or their earliest
+   * offset if the Subscription never committed one.
+   */
+  synchronized SubscriptionSnapshot createSnapshot(String name, Map<String, String> labels) {
+    Map<Integer, Long> offsets = new HashMap<>();
+    Map<Integer, long[]> acknowledged = new HashMap<>();
+    Set<TopicPartition> unknown = new HashSet<>();
+    for (Map.Entry<Integer, PartitionOffsetTracker> entry : offsetTrackers.entrySet()) {
+      int partition = entry.getKey();
+      TopicPartition tp = new TopicPartition(subscriptionProperties.getTopic(), partition);
+      OffsetAndMetadata committed = committedOffsets.get(tp);
+      Long commitOffset = getCommitOffset(entry.getValue());
+      long[] acked = entry.getValue().getAcknowledged();
+      if (!ownedPartitions.contains(partition) || (commitOffset == null && committed == null)) {
+        unknown.add(tp);
+        continue;
+      } else if (commitOffset == null) {
+        commitOffset = committed.offset();
+      }
+      long[] pendingSeek = seekAcknowledged.get(partition);
+      if (pendingSeek != null) {
+        // Acknowledged in the snapshot that was last seeked to, but not read since then
+        long from = commitOffset;
+        acked =
+            LongStream.concat(Arrays.stream(acked), Arrays.stream(pendingSeek))
+                .filter(offset -> offset >= from)
+                .sorted()
+                .distinct()
+                .toArray();
+      }
+      offsets.put(partition, commitOffset);
+      if (acked.length > 0) {
+        acknowledged.put(partition, acked);
+      }
+    }
+    if (!unknown.isEmpty()) {
+      offsets.putAll(readCommittedOffsets(unknown));
+    }
+    SubscriptionSnapshot snapshot =
+        new SubscriptionSnapshot(
+            name,
+            subscriptionProperties.getTopic(),
+            Instant.now().plusMillis(SNAPSHOT_RETENTION),
+            labels,
+            offsets,
+            acknowledged);
+    LOGGER.info(subscriptionProperties.getName() + " created " + snapshot);
+    return snapshot;
+  }
+
+  /**
+   * Seeks the Subscription to {@code snapshot}, which must have been taken from a Subscription of
+   * the same topic. Messages that were unacknowledged when the snapshot was taken are delivered
+   * again, including those acknowledged since then, while messages that were already acknowledged
+   * are not.
+   */
+  void seekToSnapshot(SubscriptionSnapshot snapshot) {
+    seek(snapshot.getOffsets(), snapshot.getAcknowledged());
+  }
+
+  /**
+   * Seeks the Subscription to {@code time}, so that every message published at or after it is
+   * delivered again while earlier messages are treated as acknowledged. The offset of each
+   * partition is determined with offsetsForTimes, and partitions without messages published since
+   * {@code time} move to their end.
+   */
+  void seekToTime(Instant time) {
+    Map<Integer, Long> offsets =
+        withTemporaryConsumer(
+            consumer -> {
+              Map<TopicPartition, Long> timestamps = new HashMap<>();
+              for (int partition : offsetTrackers.keySet()) {
+                timestamps.put(
+                    new TopicPartition(subscriptionProperties.getTopic(), partition),
+                    time.toEpochMilli());
+              }
+              Map<TopicPartition, OffsetAndTimestamp> found = consumer.offsetsForTimes(timestamps);
+              Set<TopicPartition> missing = new HashSet<>(timestamps.keySet());
+              Map<Integer, Long> result = new HashMap<>();
+              found.forEach(
+                  (tp, offset) -> {
+                    if (offset != null) {
+                      result.put(tp.partition(), offset.offset());
+                      missing.remove(tp);
+                    }
+                  });
+              if (!missing.isEmpty()) {
+                consumer.endOffsets(missing).forEach((tp, end) -> result.put(tp.partition(), end));
               }
+              return result;
             });
-    return response;
+    seek(offsets, Collections.emptyMap());
+  }
+
+  /**
+   * Moves the partitions in {@code offsets} owned by this instance to their given offset, treating
+   * the offsets in {@code acknowledged} as already acknowledged. Outstanding leases, pending
+   * redeliveries and buffered records of those partitions are dropped while holding the write lock
+   * of the seek lock, and pulls return no messages until the fetchers have moved and the new
+   * offsets have been committed.
+   *
+   * <p>The manager is only synchronized on while resetting the Subscription and committing, so that
+   * commits are not held back while waiting for the fetchers. The new offsets are not committed if
+   * the fetchers fail to move, or if another seek started in the meantime.
+   *
+   * @throws org.apache.kafka.common.errors.TimeoutException if the fetchers did not move in time
+   * @throws KafkaException if the fetchers failed to move
+   */
+  private void seek(Map<Integer, Long> offsets, Map<Integer, long[]> acknowledged) {
+    Map<TopicPartition, Long> positions = new HashMap<>();
+    int dropped;
+    int buffered;
+    int epoch;
+    CompletableFuture<Void> applied;
+    synchronized (this) {
+      if (shutdown) {
+        throw new IllegalStateException(subscriptionProperties.getName() + " has been shut down");
+      }
+      startFetchers();
+      seekLock.writeLock().lock();
+      try {
+        if (seekCompleted.isDone()) {
+          seekCompleted = new CompletableFuture<>();
+        }
+        epoch = ++seekEpoch;
+        Set<Integer> moved = new HashSet<>(offsets.keySet());
+        moved.retainAll(ownedPartitions);
+        dropped = dropDeliveries(moved);
+        buffered = buffer.removePartitions(moved);
+        seekAcknowledged.keySet().removeAll(moved);
+        for (int partition : moved) {
+          // Start from the new offset, so that acknowledged offsets beyond it that are skipped
+          // while
+          // lower ones are still being leased are tracked without moving the commit past them
+          offsetTrackers.put(partition, new PartitionOffsetTracker(offsets.get(partition)));
+          positions.put(
+              new TopicPartition(subscriptionProperties.getTopic(), partition),
+              offsets.get(partition));
+          long[] acked = acknowledged.get(partition);
+          if (acked != null && acked.length > 0) {
+            seekAcknowledged.put(partition, acked);
+          }
+        }
+      } finally {
+        seekLock.writeLock().unlock();
+      }
+      applied = moveFetchers(positions);
+    }
+
+    try {
+      awaitSeek(applied, positions);
+      synchronized (this) {
+        if (epoch == seekEpoch) {
+          String commitMetadata = "Seeked at " + Instant.now().toEpochMilli() + " by " + hostName;
+          Map<TopicPartition, OffsetAndMetadata> commits = new HashMap<>();
+          positions.forEach(
+              (tp, offset) -> commits.put(tp, new OffsetAndMetadata(offset, commitMetadata)));
+          if (sharedConsumers != null) {
+            commitToOffsetStore(commits, true);
+          } else {
+            commitToConsumers(commits, true);
+          }
+        }
+      }
+    } finally {
+      synchronized (this) {
+        // A seek that started in the meantime holds back pulls until it completes itself
+        if (epoch == seekEpoch) {
+          seekCompleted.complete(null);
+          flowControlled.set(false);
+          notifyMessagesAvailable();
+        }
+      }
+    }
+    LOGGER.info(
+        subscriptionProperties.getName()
+            + " seeked to "
+            + positions
+            + ", dropped "
+            + dropped
+            + " delivered and "
+            + buffered
+            + " buffered messages");
+  }
+
+  /**
+   * Moves the fetchers of the Subscription to {@code positions}. The buffered records of the moved
+   * partitions are discarded once more by the fetchers, since they may have appended records
+   * fetched from the previous offsets in the meantime.
+   *
+   * @return a future which completes once every fetcher has moved
+   */
+  private CompletableFuture<Void> moveFetchers(Map<TopicPartition, Long> positions) {
+    if (sharedConsumers != null) {
+      return sharedConsumers.attach(
+          subscriptionProperties.getTopic(), buffer, () -> expireLeases(Instant.now()), positions);
+    }
+    return CompletableFuture.allOf(
+        fetchers
+            .stream()
+            .map(fetcher -> fetcher.seek(positions))
+            .toArray(CompletableFuture[]::new));
+  }
+
+  /**
+   * Waits up to 30 seconds for the fetchers to move to {@code positions}.
+   *
+   * @throws org.apache.kafka.common.errors.TimeoutException if the fetchers did not move in time
+   * @throws KafkaException if the fetchers failed to move
+   */
+  private void awaitSeek(CompletableFuture<Void> applied, Map<TopicPartition, Long> positions) {
+    try {
+      applied.get(SEEK_TIMEOUT, TimeUnit.MILLISECONDS);
+    } catch (ExecutionException e) {
+      throw new KafkaException("Failed to move the fetchers to " + positions, e.getCause());
+    } catch (TimeoutException e) {
+      throw new org.apache.kafka.common.errors.TimeoutException(
+          "Timed out waiting for the fetchers to move to " + positions);
+    } catch (InterruptedException e) {
+      throw new InterruptException(e);
+    }
+  }
+
+  /**
+   * Returns the committed offset of each of {@code partitions}, or its earliest offset if the
+   * Subscription has not committed one. With shared consumers the offset store holds the commits,
+   * so only the earliest offsets are read from Kafka.
+   */
+  private Map<Integer, Long> readCommittedOffsets(Set<TopicPartition> partitions) {
+    return withTemporaryConsumer(
+        consumer -> {
+          Map<Integer, Long> offsets = new HashMap<>();
+          Set<TopicPartition> missing = new HashSet<>();
+          for (TopicPartition tp : partitions) {
+            OffsetAndMetadata committed = sharedConsumers == null ? consumer.committed(tp) : null;
+            if (committed != null) {
+              offsets.put(tp.partition(), committed.offset());
+            } else {
+              missing.add(tp);
+            }
+          }
+          if (!missing.isEmpty()) {
+            consumer
+                .beginningOffsets(missing)
+                .forEach((tp, offset) -> offsets.put(tp.partition(), offset));
+          }
+          return offsets;
+        });
+  }
+
+  /**
+   * Applies {@code action} to a Consumer created for the Subscription, which is closed afterwards.
+   * The Consumer is never assigned any partitions, so it does not disturb the fetchers or the
+   * group.
+   */
+  private <T> T withTemporaryConsumer(Function<Consumer<String, ByteBuffer>, T> action) {
+    Consumer<String, ByteBuffer> consumer =
+        kafkaClientFactory.createConsumer(subscriptionProperties.getName());
+    try {
+      return action.apply(consumer);
+    } finally {
+      consumer.close();
+    }
   }
 
   @Override
@@ -354,91 +1120,249 @@ class SubscriptionManager {
         + ", buffer="
         + buffer.size()
         + ", bufferBytes="
-        + queueSizeBytes.get()
+        + buffer.sizeBytes()
+        + ", waitingPulls="
+        + buffer.waiters()
         + ", outstandingMessages="
         + outstandingMessages.size()
+        + ", outstandingBytes="
+        + outstandingBytes.get()
+        + ", redeliveryQueue="
+        + redeliveryQueue.size()
         + '}';
   }
 
   /**
-   * Fetches the next available {@link org.apache.kafka.clients.consumer.Consumer} from the pool and
-   * issues a poll request to the broker with the specified timeout.
-   *
-   * @param pollTimeout information of timeout
+   * Starts a fetcher for each consumer if they have not been started yet. With shared consumers,
+   * the Subscription is attached to them at its committed offsets instead.
    */
-  private void consumeFromTopic(long pollTimeout) {
-    int consumerIndex = nextConsumerIndex.getAndUpdate((value) -> ++value % kafkaConsumers.size());
-    int newMessages = 0;
-    ConsumerRecords<String, ByteBuffer> polled = null;
-    synchronized (kafkaConsumers.get(consumerIndex)) {
-      try {
-        polled = kafkaConsumers.get(consumerIndex).poll(pollTimeout);
-      } catch (KafkaException e) {
-        // TODO: Handle this which might include creating a new consumer
-        LOGGER.log(Level.WARNING, "Unexpected KafkaException during poll", e);
+  private void startFetchers() {
+    if (!fetching.get() && fetching.compareAndSet(false, true)) {
+      if (sharedConsumers != null) {
+        Map<TopicPartition, Long> positions = new HashMap<>();
+        committedOffsets.forEach((tp, offset) -> positions.put(tp, offset.offset()));
+        sharedConsumers.attach(
+            subscriptionProperties.getTopic(),
+            buffer,
+            () -> expireLeases(Instant.now()),
+            positions);
+        LOGGER.info("Attached " + subscriptionProperties.getName() + " to shared consumers");
+        return;
       }
+      fetchers.forEach(fetchExecutorService::execute);
+      LOGGER.info(
+          "Started " + fetchers.size() + " fetchers for " + subscriptionProperties.getName());
     }
+  }
 
-    if (polled != null) {
-      for (ConsumerRecord<String, ByteBuffer> record :
-          polled.records(subscriptionProperties.getTopic())) {
-        buffer.add(record);
-        newMessages++;
-        queueSizeBytes.addAndGet(record.serializedValueSize());
+  /**
+   * Removes every lease whose deadline expired before {@code now} from the outstanding set and
+   * queues its message for redelivery. The offset remains pending in its partition's {@link
+   * PartitionOffsetTracker} so that it will not be committed until the redelivered message is
+   * acknowledged. Leases are expired under the read lock of the seek lock, so that a seek does not
+   * have expired leases queued for redelivery after it dropped them.
+   */
+  private void expireLeases(Instant now) {
+    int expired = 0;
+    seekLock.readLock().lock();
+    try {
+      for (OutstandingMessage om : ackDeadlineIndex.pollExpired(now)) {
+        // A lease that was already superseded or acknowledged concurrently must not be redelivered
+        if (!om.isAcknowledged() && outstandingMessages.remove(om.getKey(), om)) {
+          if (om.getOrderingKey() != null) {
+            orderingKeyScheduler.requeue(om);
+          } else {
+            redeliveryQueue.add(om);
+          }
+          releaseOutstanding(om);
+          expired++;
+        }
       }
+    } finally {
+      seekLock.readLock().unlock();
+    }
+    if (expired > 0) {
+      flowControlled.set(false);
+      notifyMessagesAvailable();
       LOGGER.fine(
-          "poll("
-              + pollTimeout
-              + ") from consumer "
-              + consumerIndex
-              + " returned "
-              + newMessages
-              + " buffer="
-              + buffer.size()
-              + ", bufferBytes="
-              + queueSizeBytes.get());
+          "Expired "
+              + expired
+              + " messages from "
+              + subscriptionProperties.getName()
+              + " ("
+              + redeliveryQueue.size()
+              + " awaiting redelivery)");
     }
   }
 
+  private void notifyMessageListeners() {
+    messageListeners.forEach(Runnable::run);
+  }
+
+  /**
+   * Wakes the parked pulls and notifies the message listeners after messages may have become
+   * available without records being added to the buffer, such as when leases expire, ordering keys
+   * are released or flow control is lifted.
+   */
+  private void notifyMessagesAvailable() {
+    buffer.wakeWaiters();
+    notifyMessageListeners();
+  }
+
+  /**
+   * Fills the {@code returnedMessages} List with up to {@code maxMessages} Message objects whose
+   * previous deliveries expired without being acknowledged, stopping once their size reaches {@code
+   * maxBytes}.
+   *
+   * @return the size of the messages added
+   */
+  private long fillFromRedeliveryQueue(
+      List<OutstandingMessage> returnedMessages, int maxMessages, long maxBytes) {
+    long bytes = 0;
+    OutstandingMessage om;
+    while (returnedMessages.size() < maxMessages
+        && bytes < maxBytes
+        && (om = redeliveryQueue.poll()) != null) {
+      // The message is released if the lease was acknowledged while it was expiring
+      if (om.getMessage() != null && ownedPartitions.contains(om.getPartition())) {
+        returnedMessages.add(om);
+        bytes += om.getSize();
+      }
+    }
+    return bytes;
+  }
+
   /**
    * Fills the {@code returnedMessages} List with up to {@code maxMessages} Message objects by
-   * retrieving ConsumerRecords from the head of the buffered queue.
+   * retrieving ConsumerRecords from the head of the buffered queue, stopping once their size
+   * reaches {@code maxBytes}. When message ordering is enabled, records whose ordering key has a
+   * batch outstanding from another pull are held back by the {@link OrderingKeyScheduler} instead.
+   * Their offsets are tracked as pending right away so that they cannot be committed while held.
    */
-  private void fillFromBuffer(List<PubsubMessage> returnedMessages, int maxMessages) {
-    ConsumerRecord<String, ByteBuffer> record;
-    int dequeued = 0;
-    String messageId;
-    while (returnedMessages.size() < maxMessages && !buffer.isEmpty()) {
-      try {
-        record = buffer.remove();
-        dequeued++;
-        messageId = record.partition() + "-" + record.offset();
-        queueSizeBytes.addAndGet(-record.serializedValueSize());
-        returnedMessages.add(
-            PubsubMessage.newBuilder()
-                .putAllAttributes(buildAttributesMap(record.headers()))
-                .setData(ByteString.copyFrom(record.value()))
-                .setMessageId(messageId)
-                .setPublishTime(
-                    Timestamp.newBuilder()
-                        .setSeconds(record.timestamp() / 1000)
-                        .setNanos((int) ((record.timestamp() % 1000) * 1000000))
-                        .build())
-                .build());
-      } catch (NoSuchElementException e) {
-        break;
+  private void fillFromBuffer(
+      List<OutstandingMessage> returnedMessages,
+      Set<String> batchKeys,
+      int maxMessages,
+      long maxBytes) {
+    if (returnedMessages.size() >= maxMessages || maxBytes <= 0) {
+      return;
+    }
+    List<ConsumerRecord<String, ByteBuffer>> records = new ArrayList<>();
+    int dequeued = buffer.drainTo(records, maxMessages - returnedMessages.size(), maxBytes);
+    int skipped = 0;
+    for (ConsumerRecord<String, ByteBuffer> record : records) {
+      if (!ownedPartitions.contains(record.partition())) {
+        continue; // Fetched before its partition was assigned to another member
+      }
+      if (!seekAcknowledged.isEmpty() && isAcknowledgedBySeek(record)) {
+        skipped++;
+        continue;
+      }
+      String orderingKey = getOrderingKey(record);
+      OutstandingMessage om =
+          OutstandingMessage.newBuilder()
+              .setPartition(record.partition())
+              .setOffset(record.offset())
+              .setOrderingKey(orderingKey)
+              .setMessage(getMessage(record, orderingKey))
+              .build();
+      if (orderingKey != null && !orderingKeyScheduler.admit(om, batchKeys)) {
+        offsetTrackers.get(om.getPartition()).add(om.getOffset());
+        continue;
       }
+      returnedMessages.add(om);
+    }
+    if (skipped > 0) {
+      // Allow the commit to move past the skipped offsets even if nothing else is acknowledged
+      scheduleCommit(false);
     }
     LOGGER.fine("Dequeued " + dequeued + " messages from buffer");
   }
 
-  private Map<String, String> buildAttributesMap(Headers headers) {
-    if (Objects.isNull(headers)) {
-      return null;
+  /**
+   * Returns true if {@code record} was already acknowledged in the snapshot the Subscription last
+   * seeked to, in which case it is tracked as acknowledged rather than delivered again.
+   */
+  private boolean isAcknowledgedBySeek(ConsumerRecord<String, ByteBuffer> record) {
+    long[] acknowledged = seekAcknowledged.get(record.partition());
+    if (acknowledged == null) {
+      return false;
+    }
+    if (record.offset() >= acknowledged[acknowledged.length - 1]) {
+      seekAcknowledged.remove(record.partition(), acknowledged);
+    }
+    if (Arrays.binarySearch(acknowledged, record.offset()) < 0) {
+      return false;
+    }
+    PartitionOffsetTracker tracker = offsetTrackers.get(record.partition());
+    tracker.add(record.offset());
+    tracker.acknowledge(record.offset());
+    return true;
+  }
+
+  /**
+   * Returns the PubsubMessage for {@code record}, reusing the conversion made for another
+   * Subscription if the record came from the tail cache.
+   */
+  private PubsubMessage getMessage(ConsumerRecord<String, ByteBuffer> record, String orderingKey) {
+    if (tailCache == null) {
+      return toPubsubMessage(record, orderingKey);
+    }
+    return tailCache.getMessage(record, orderingKey != null, r -> toPubsubMessage(r, orderingKey));
+  }
+
+  /**
+   * Converts {@code record} into a PubsubMessage without copying its payload. The value buffer is
+   * allocated by the deserializer for each record and never modified afterwards, so it is wrapped
+   * rather than copied into the message. Headers are decoded straight into the message's attributes
+   * by the {@link AttributeCodec}.
+   */
+  private PubsubMessage toPubsubMessage(
+      ConsumerRecord<String, ByteBuffer> record, String orderingKey) {
+    PubsubMessage.Builder builder =
+        PubsubMessage.newBuilder()
+            .setData(
+                record.value() == null
+                    ? ByteString.EMPTY
+                    : UnsafeByteOperations.unsafeWrap(record.value()))
+            .setMessageId(record.partition() + "-" + record.offset())
+            .setPublishTime(getPublishTime(record.timestamp()));
+    if (orderingKey != null) {
+      OrderingKeys.set(builder, orderingKey);
+    }
+    AttributeCodec.decode(record.headers(), builder);
+    return builder.build();
+  }
+
+  /**
+   * Returns the ordering key of {@code record}, which is its Kafka key, if message ordering is
+   * enabled for the Subscription. Otherwise, or if the record has no key, returns null.
+   */
+  private String getOrderingKey(ConsumerRecord<String, ByteBuffer> record) {
+    String key = record.key();
+    return subscriptionProperties.isEnableMessageOrdering() && key != null && !key.isEmpty()
+        ? key
+        : null;
+  }
+
+  /**
+   * Returns the publish time for a record with the given {@code timestamp}. Records produced
+   * together usually share their timestamp, so the last Timestamp built is reused when it matches
+   * since they are immutable.
+   */
+  private Timestamp getPublishTime(long timestamp) {
+    Timestamp publishTime = lastPublishTime.get();
+    if (publishTime == null
+        || publishTime.getSeconds() != timestamp / 1000
+        || publishTime.getNanos() != (int) ((timestamp % 1000) * 1000000)) {
+      publishTime =
+          Timestamp.newBuilder()
+              .setSeconds(timestamp / 1000)
+              .setNanos((int) ((timestamp % 1000) * 1000000))
+              .build();
+      lastPublishTime.set(publishTime);
     }
-    Map<String, String> attributesMap = new HashMap<>();
-    headers.forEach(header -> attributesMap.put(header.key(), new String(header.value())));
-    return attributesMap;
+    return publishTime;
   }
 
   /**
@@ -446,18 +1370,14 @@ class SubscriptionManager {
    * less than {@code maxOffset}.
    */
   private void purgeAcknowledged(int partition, long maxOffset) {
-    List<String> purgeList =
-        outstandingMessages
-            .values()
-            .stream()
-            .filter(m -> m.getPartition() == partition && m.getOffset() < maxOffset)
-            .map(OutstandingMessage::getMessageId)
-            .collect(Collectors.toList());
-    purgeList.forEach(outstandingMessages::remove);
+    int purged =
+        offsetTrackers
+            .get(partition)
+            .release(maxOffset, offset -> outstandingMessages.remove(AckId.key(partition, offset)));
 
     LOGGER.fine(
         "Purged "
-            + purgeList.size()
+            + purged
             + " committed messages from partition "
             + partition
             + " ("
@@ -465,10 +1385,89 @@ class SubscriptionManager {
             + " outstanding)");
   }
 
+  /**
+   * Forgets the committed offsets, leases, pending redeliveries and held back messages of {@code
+   * partitions}. Acknowledgements for the dropped leases are rejected since their ack IDs are no
+   * longer known.
+   *
+   * @return the number of delivered messages dropped
+   */
+  private int dropDeliveries(Set<Integer> partitions) {
+    int dropped = 0;
+    for (int partition : partitions) {
+      TopicPartition tp = new TopicPartition(subscriptionProperties.getTopic(), partition);
+      committedOffsets.remove(tp);
+      inFlightCommits.remove(tp);
+      PartitionOffsetTracker tracker = offsetTrackers.put(partition, new PartitionOffsetTracker());
+      if (tracker != null) {
+        dropped +=
+            tracker.release(
+                Long.MAX_VALUE,
+                offset -> {
+                  OutstandingMessage om = outstandingMessages.remove(AckId.key(partition, offset));
+                  if (om != null) {
+                    releaseOutstanding(om);
+                  }
+                });
+      }
+    }
+    redeliveryQueue.removeIf(om -> partitions.contains(om.getPartition()));
+    orderingKeyScheduler.removePartitions(partitions);
+    return dropped;
+  }
+
+  /**
+   * Creates a Consumer assigned to {@code partitions}, used by the fetchers to replace a Consumer
+   * that failed. In cluster mode the fetcher subscribes the Consumer to the topic instead.
+   */
+  private Consumer<String, ByteBuffer> createConsumer(Set<TopicPartition> partitions) {
+    Consumer<String, ByteBuffer> consumer =
+        kafkaClientFactory.createConsumer(subscriptionProperties.getName());
+    if (clusterMode) {
+      return consumer;
+    }
+    try {
+      consumer.assign(partitions);
+    } catch (KafkaException e) {
+      consumer.close();
+      throw e;
+    }
+    return consumer;
+  }
+
+  /**
+   * Determines the partitions of the topic through the shared consumers, and loads the committed
+   * offsets of the Subscription from their offset store.
+   */
+  private void initializeSharedPartitions() {
+    Map<Integer, OffsetAndMetadata> committed =
+        sharedConsumers.getOffsetStore().committed(subscriptionProperties.getName());
+    for (TopicPartition tp : sharedConsumers.getPartitions(subscriptionProperties.getTopic())) {
+      OffsetAndMetadata offset = committed.get(tp.partition());
+      if (offset != null) {
+        committedOffsets.put(tp, offset);
+      }
+      offsetTrackers.put(
+          tp.partition(),
+          offset != null
+              ? new PartitionOffsetTracker(offset.offset())
+              : new PartitionOffsetTracker());
+      ownedPartitions.add(tp.partition());
+      LOGGER.info(
+          subscriptionProperties.getName()
+              + " using shared consumers for Partition: "
+              + tp.partition()
+              + " Committed: "
+              + offset);
+    }
+  }
+
   /**
    * Initializes and returns a List of Consumers that are manually assigned to specific
    * TopicPartitions. We choose to use manual assignment to avoid the timeout, blocking, and
-   * heartbeats required when using dynamic subscriptions.
+   * heartbeats required when using dynamic subscriptions, unless cluster mode requires the
+   * partitions to be shared with other emulator instances. In that case the Consumers are left
+   * unassigned, and their fetchers subscribe them to the topic.
    *
    * @return List of Consumers assigned to partitions from the topic
    */
@@ -480,9 +1479,16 @@ class SubscriptionManager {
 
     int totalConsumers = Math.min(partitionInfo.size(), consumerExecutors);
     List<Consumer<String, ByteBuffer>> consumers = new ArrayList<>(totalConsumers);
+    for (PartitionInfo p : partitionInfo) {
+      offsetTrackers.put(p.partition(), new PartitionOffsetTracker());
+    }
     for (int i = 0; i < totalConsumers; i++) {
       Consumer<String, ByteBuffer> consumer =
           i == 0 ? first : kafkaClientFactory.createConsumer(subscriptionProperties.getName());
+      if (clusterMode) {
+        consumers.add(consumer);
+        continue;
+      }
       int consumerIndex = i;
       Set<TopicPartition> partitionSet =
           partitionInfo
@@ -493,7 +1499,12 @@ class SubscriptionManager {
       consumer.assign(partitionSet);
       Map<TopicPartition, Long> endOffsets = consumer.endOffsets(partitionSet);
       for (TopicPartition tp : partitionSet) {
-        committedOffsets.put(tp, consumer.committed(tp));
+        OffsetAndMetadata committed = consumer.committed(tp);
+        if (committed != null) {
+          committedOffsets.put(tp, committed);
+          offsetTrackers.put(tp.partition(), new PartitionOffsetTracker(committed.offset()));
+        }
+        ownedPartitions.add(tp.partition());
         LOGGER.info(
             "Assigned KafkaConsumer "
                 + consumerIndex
@@ -503,10 +1514,105 @@ class SubscriptionManager {
                 + " End: "
                 + endOffsets.get(tp)
                 + " Committed: "
-                + consumer.committed(tp));
+                + committed);
       }
       consumers.add(consumer);
     }
     return consumers;
   }
+
+  /**
+   * Tracks the partitions owned by this instance in cluster mode. Since it is invoked on a
+   * fetcher's thread during a poll, it must not wait on anything that might be held while waiting
+   * on the fetcher's consumer, such as the lock taken by {@link #commitOffsets(boolean)}. The seek
+   * lock is never held while waiting on a consumer, so it may be taken.
+   */
+  private final class PartitionOwnership implements ConsumerFetcher.PartitionListener {
+
+    /**
+     * Synchronously commits the acknowledged offsets of {@code partitions} so that another member
+     * they are assigned to does not redeliver messages which were already acknowledged.
+     */
+    @Override
+    public void onRevoking(
+        Consumer<String, ByteBuffer> consumer, Collection<TopicPartition> partitions) {
+      Map<TopicPartition, OffsetAndMetadata> commits = new HashMap<>();
+      String commitMetadata = "Committed at " + Instant.now().toEpochMilli() + " by " + hostName;
+      for (TopicPartition tp : partitions) {
+        PartitionOffsetTracker tracker = offsetTrackers.get(tp.partition());
+        Long commitOffset = tracker != null ? getCommitOffset(tracker) : null;
+        OffsetAndMetadata current = committedOffsets.get(tp);
+        if (commitOffset != null && (current == null || commitOffset > current.offset())) {
+          commits.put(tp, new OffsetAndMetadata(commitOffset, commitMetadata));
+        }
+      }
+      if (commits.isEmpty() || shutdown) {
+        return;
+      }
+      try {
+        consumer.commitSync(commits);
+        onCommitComplete(commits, null, seekEpoch);
+        LOGGER.info("Committed " + commits + " before revoking partitions");
+      } catch (KafkaException e) {
+        LOGGER.log(Level.WARNING, "Failed to commit " + commits + " before revoking partitions", e);
+      }
+    }
+
+    /**
+     * Drops the leases, buffered records and pending redeliveries of {@code partitions}, which were
+     * assigned to another member. Acknowledgements for the dropped leases are rejected since their
+     * ack IDs are no longer known. Like a seek, this holds the write lock of the seek lock so that
+     * a concurrent pull cannot lease messages of the lost partitions.
+     */
+    @Override
+    public void onLost(Set<TopicPartition> partitions) {
+      Set<Integer> lost =
+          partitions.stream().map(TopicPartition::partition).collect(Collectors.toSet());
+      int dropped;
+      int buffered;
+      seekLock.writeLock().lock();
+      try {
+        ownedPartitions.removeAll(lost);
+        dropped = dropDeliveries(lost);
+        buffered = buffer.removePartitions(lost);
+      } finally {
+        seekLock.writeLock().unlock();
+      }
+      flowControlled.set(false);
+      notifyMessagesAvailable();
+      LOGGER.info(
+          subscriptionProperties.getName()
+              + " lost partitions "
+              + lost
+              + ", dropped "
+              + dropped
+              + " delivered and "
+              + buffered
+              + " buffered messages");
+    }
+
+    @Override
+    public void onAssigned(
+        Consumer<String, ByteBuffer> consumer, Collection<TopicPartition> partitions) {
+      for (TopicPartition tp : partitions) {
+        OffsetAndMetadata committed = consumer.committed(tp);
+        if (committed != null) {
+          committedOffsets.put(tp, committed);
+        }
+        offsetTrackers.computeIfAbsent(
+            tp.partition(),
+            p ->
+                committed != null
+                    ? new PartitionOffsetTracker(committed.offset())
+                    : new PartitionOffsetTracker());
+        ownedPartitions.add(tp.partition());
+        LOGGER.info(
+            subscriptionProperties.getName()
+                + " assigned Partition: "
+                + tp.partition()
+                + " Committed: "
+                + committed);
+      }
+    }
+  }
 }
@@ -21,8 +21,15 @@ import java.util.concurrent.ScheduledExecutorService;
 
 interface SubscriptionManagerFactory {
 
+  /**
+   * Creates the SubscriptionManager for {@code subscription}, which fetches through {@code
+   * sharedConsumers} unless it is null. Otherwise, its consumers share records through {@code
+   * tailCache} unless it is null.
+   */
   SubscriptionManager create(
       SubscriptionProperties subscription,
       KafkaClientFactory clientFactory,
-      ScheduledExecutorService commitExecutor);
+      ScheduledExecutorService commitExecutor,
+      SharedConsumerPool sharedConsumers,
+      TopicTailCache tailCache);
 }
@@ -25,7 +25,10 @@ public class SubscriptionManagerFactoryImpl implements SubscriptionManagerFactor
   public SubscriptionManager create(
       SubscriptionProperties subscription,
       KafkaClientFactory clientFactory,
-      ScheduledExecutorService commitExecutor) {
-    return new SubscriptionManager(subscription, clientFactory, commitExecutor);
+      ScheduledExecutorService commitExecutor,
+      SharedConsumerPool sharedConsumers,
+      TopicTailCache tailCache) {
+    return new SubscriptionManager(
+        subscription, clientFactory, commitExecutor, sharedConsumers, tailCache);
   }
 }
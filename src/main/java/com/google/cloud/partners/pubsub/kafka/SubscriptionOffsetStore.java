@@ -0,0 +1,320 @@
+/*
+ * Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.partners.pubsub.kafka;
+
+import com.google.cloud.partners.pubsub.kafka.properties.OffsetStoreProperties;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.clients.producer.Producer;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.KafkaException;
+import org.apache.kafka.common.PartitionInfo;
+import org.apache.kafka.common.TopicPartition;
+
+/**
+ * Keeps the committed offsets of every Subscription in a compacted Kafka topic owned by the
+ * emulator, rather than in a consumer group per Subscription, so that the KafkaConsumers fetching
+ * for Subscriptions do not have to belong to their groups and can be shared between them.
+ *
+ * <p>Each record is keyed by the name of a Subscription and a partition of its topic, and holds the
+ * committed offset followed by its metadata. Since only the latest record of each key matters, the
+ * topic should be created with {@code cleanup.policy=compact}. The topic is read from the beginning
+ * when the store is created to build an in-memory view of the offsets, which is then kept up to
+ * date as commits complete. Commits written by other emulator instances afterwards are not
+ * observed, so a Subscription should only be served by one instance at a time. The latest commit of
+ * a partition always wins, even if its offset is lower, so that seeking backwards is observed.
+ *
+ * <p>Deleting a Subscription writes a tombstone for each of its partitions, so that compaction
+ * eventually removes its offsets from the topic. Commits still in flight when the Subscription is
+ * deleted are dropped once they complete, and tombstoned again since their records may follow the
+ * first tombstones, so that a Subscription created again with the same name starts afresh.
+ */
+final class SubscriptionOffsetStore {
+
+  private static final Logger LOGGER = Logger.getLogger(SubscriptionOffsetStore.class.getName());
+  private static final long LOAD_POLL_TIMEOUT = 100; // 100 milliseconds
+  private static final char KEY_SEPARATOR = '/'; // Not allowed in Subscription names
+
+  private final String topic;
+  private final Map<String, Map<Integer, Committed>> offsets;
+  private final Map<String, Long> deletions; // Number of times each Subscription was deleted
+  private final AtomicLong commitSequence;
+  private final Producer<String, ByteBuffer> producer;
+
+  /**
+   * Creates a store backed by the topic named in {@code properties}, blocking until its contents
+   * have been loaded.
+   *
+   * @throws IllegalStateException if the topic does not exist or could not be read within {@link
+   *     OffsetStoreProperties#getLoadTimeoutMs()}
+   */
+  SubscriptionOffsetStore(KafkaClientFactory kafkaClientFactory, OffsetStoreProperties properties) {
+    topic = properties.getTopic();
+    offsets = new ConcurrentHashMap<>();
+    deletions = new ConcurrentHashMap<>();
+    commitSequence = new AtomicLong();
+    load(kafkaClientFactory.createConsumer(topic), properties.getLoadTimeoutMs());
+    producer = kafkaClientFactory.createProducer();
+  }
+
+  String getTopic() {
+    return topic;
+  }
+
+  /** Returns the committed offsets of {@code subscription} by partition. */
+  Map<Integer, OffsetAndMetadata> committed(String subscription) {
+    Map<Integer, Committed> committed = offsets.get(subscription);
+    if (committed == null) {
+      return Collections.emptyMap();
+    }
+    Map<Integer, OffsetAndMetadata> result = new HashMap<>();
+    committed.forEach((partition, c) -> result.put(partition, c.offset));
+    return Collections.unmodifiableMap(result);
+  }
+
+  /**
+   * Writes {@code commits} for {@code subscription} to the topic. The in-memory view is only
+   * updated once Kafka has acknowledged every record, so that a failed commit is not observed, and
+   * only with partitions that no later commit has updated in the meantime. The commits are dropped
+   * if {@code subscription} is deleted before they complete.
+   *
+   * @return a future which completes once the commits are durable
+   */
+  CompletableFuture<Void> commit(
+      String subscription, Map<TopicPartition, OffsetAndMetadata> commits) {
+    long deleted = deletions.getOrDefault(subscription, 0L);
+    long sequence = commitSequence.incrementAndGet();
+    List<CompletableFuture<Void>> writes = new ArrayList<>(commits.size());
+    commits.forEach(
+        (tp, offset) -> writes.add(write(key(subscription, tp.partition()), encode(offset))));
+    return CompletableFuture.allOf(writes.toArray(new CompletableFuture<?>[0]))
+        .thenRun(
+            () -> {
+              if (!applyCommits(subscription, commits, deleted, sequence)) {
+                // The records may have been written after the tombstones of the Subscription
+                LOGGER.fine("Dropping commits of deleted " + subscription + ": " + commits);
+                commits.keySet().forEach(tp -> writeTombstone(subscription, tp.partition()));
+              }
+            });
+  }
+
+  /** Forgets the offsets of {@code subscription} and writes tombstones for them to the topic. */
+  void delete(String subscription) {
+    Map<Integer, Committed> deleted;
+    synchronized (this) {
+      deletions.merge(subscription, 1L, Long::sum);
+      deleted = offsets.remove(subscription);
+    }
+    if (deleted == null) {
+      return;
+    }
+    deleted.keySet().forEach(partition -> writeTombstone(subscription, partition));
+    LOGGER.info("Deleted offsets of " + subscription + " from " + topic);
+  }
+
+  void close() {
+    producer.close();
+  }
+
+  /** Reads every record of the topic into the in-memory view, then closes {@code consumer}. */
+  private void load(Consumer<String, ByteBuffer> consumer, long timeoutMs) {
+    try {
+      List<PartitionInfo> partitionInfo = consumer.partitionsFor(topic);
+      if (partitionInfo == null || partitionInfo.isEmpty()) {
+        throw new IllegalStateException("Offset store topic " + topic + " does not exist");
+      }
+      Set<TopicPartition> partitions =
+          partitionInfo
+              .stream()
+              .map(p -> new TopicPartition(topic, p.partition()))
+              .collect(Collectors.toSet());
+      consumer.assign(partitions);
+      consumer.seekToBeginning(partitions);
+      Map<TopicPartition, Long> endOffsets = consumer.endOffsets(partitions);
+      long deadline = System.currentTimeMillis() + timeoutMs;
+      int loaded = 0;
+      while (!isLoaded(consumer, endOffsets)) {
+        if (System.currentTimeMillis() > deadline) {
+          throw new IllegalStateException(
+              "Unable to load offsets from " + topic + " within " + timeoutMs + "ms");
+        }
+        for (ConsumerRecord<String, ByteBuffer> record : consumer.poll(LOAD_POLL_TIMEOUT)) {
+          apply(record);
+          loaded++;
+        }
+      }
+      LOGGER.info(
+          "Loaded "
+              + loaded
+              + " records for "
+              + offsets.size()
+              + " Subscriptions from offset store "
+              + topic);
+    } finally {
+      consumer.close();
+    }
+  }
+
+  private static boolean isLoaded(
+      Consumer<String, ByteBuffer> consumer, Map<TopicPartition, Long> endOffsets) {
+    for (Map.Entry<TopicPartition, Long> end : endOffsets.entrySet()) {
+      if (consumer.position(end.getKey()) < end.getValue()) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /** Updates the in-memory view with {@code record}, ignoring records with malformed keys. */
+  private void apply(ConsumerRecord<String, ByteBuffer> record) {
+    String key = record.key();
+    int separator = key == null ? -1 : key.lastIndexOf(KEY_SEPARATOR);
+    if (separator <= 0) {
+      LOGGER.warning("Ignoring record with malformed key " + key + " in " + topic);
+      return;
+    }
+    String subscription = key.substring(0, separator);
+    int partition;
+    try {
+      partition = Integer.parseInt(key.substring(separator + 1));
+    } catch (NumberFormatException e) {
+      LOGGER.warning("Ignoring record with malformed key " + key + " in " + topic);
+      return;
+    }
+    if (record.value() == null) {
+      Map<Integer, Committed> committed = offsets.get(subscription);
+      if (committed != null) {
+        committed.remove(partition);
+        if (committed.isEmpty()) {
+          offsets.remove(subscription);
+        }
+      }
+    } else {
+      offsets
+          .computeIfAbsent(subscription, s -> new ConcurrentHashMap<>())
+          .put(partition, new Committed(decode(record.value()), 0));
+    }
+  }
+
+  /**
+   * Updates the in-memory view with the completed {@code commits} of {@code subscription}, unless
+   * it was deleted since they were written. Partitions updated by a later commit keep its offset.
+   *
+   * @return false if the commits were dropped since the Subscription was deleted
+   */
+  private synchronized boolean applyCommits(
+      String subscription,
+      Map<TopicPartition, OffsetAndMetadata> commits,
+      long deleted,
+      long sequence) {
+    if (deletions.getOrDefault(subscription, 0L) != deleted) {
+      return false;
+    }
+    Map<Integer, Committed> committed =
+        offsets.computeIfAbsent(subscription, s -> new ConcurrentHashMap<>());
+    commits.forEach(
+        (tp, offset) ->
+            committed.merge(
+                tp.partition(),
+                new Committed(offset, sequence),
+                (a, b) -> a.sequence > b.sequence ? a : b));
+    return true;
+  }
+
+  /** Writes a tombstone for the offset of {@code partition} of {@code subscription}. */
+  private void writeTombstone(String subscription, int partition) {
+    write(key(subscription, partition), null)
+        .whenComplete(
+            (v, t) -> {
+              if (t != null) {
+                LOGGER.log(
+                    Level.WARNING,
+                    "Failed to delete offsets of " + subscription + " from " + topic,
+                    t);
+              }
+            });
+  }
+
+  /** Sends a record to the topic, whose future completes once Kafka acknowledged it. */
+  private CompletableFuture<Void> write(String key, ByteBuffer value) {
+    CompletableFuture<Void> written = new CompletableFuture<>();
+    try {
+      producer.send(
+          new ProducerRecord<>(topic, key, value),
+          (metadata, e) -> {
+            if (e != null) {
+              written.completeExceptionally(e);
+            } else {
+              written.complete(null);
+            }
+          });
+    } catch (KafkaException e) {
+      written.completeExceptionally(e);
+    }
+    return written;
+  }
+
+  private static String key(String subscription, int partition) {
+    return subscription + KEY_SEPARATOR + partition;
+  }
+
+  private static ByteBuffer encode(OffsetAndMetadata offset) {
+    byte[] metadata =
+        offset.metadata() == null
+            ? new byte[0]
+            : offset.metadata().getBytes(StandardCharsets.UTF_8);
+    ByteBuffer value = ByteBuffer.allocate(Long.BYTES + metadata.length);
+    value.putLong(offset.offset()).put(metadata);
+    value.flip();
+    return value;
+  }
+
+  private static OffsetAndMetadata decode(ByteBuffer value) {
+    ByteBuffer buffer = value.duplicate();
+    long offset = buffer.getLong();
+    byte[] metadata = new byte[buffer.remaining()];
+    buffer.get(metadata);
+    return new OffsetAndMetadata(offset, new String(metadata, StandardCharsets.UTF_8));
+  }
+
+  /** A committed offset, along with the sequence of the commit which wrote it. */
+  private static final class Committed {
+
+    private final OffsetAndMetadata offset;
+    private final long sequence; // 0 for offsets loaded from the topic
+
+    private Committed(OffsetAndMetadata offset, long sequence) {
+      this.offset = offset;
+      this.sequence = sequence;
+    }
+  }
+}
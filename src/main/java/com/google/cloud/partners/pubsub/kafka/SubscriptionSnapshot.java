@@ -0,0 +1,112 @@
+/*
+ * Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.partners.pubsub.kafka;
+
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+/**
+ * The position of a Subscription captured by a snapshot, which a Subscription of the same topic can
+ * later seek to. For each partition it holds the offset that would have been committed at the time,
+ * along with the offsets beyond it that had already been acknowledged, so that seeking to the
+ * snapshot redelivers exactly the messages that were unacknowledged when it was taken.
+ *
+ * <p>Snapshots are immutable, and the arrays of acknowledged offsets must not be modified.
+ */
+final class SubscriptionSnapshot {
+
+  private final String name;
+  private final String topic;
+  private final Instant expireTime;
+  private final Map<String, String> labels;
+  private final Map<Integer, Long> offsets;
+  private final Map<Integer, long[]> acknowledged;
+
+  SubscriptionSnapshot(
+      String name,
+      String topic,
+      Instant expireTime,
+      Map<String, String> labels,
+      Map<Integer, Long> offsets,
+      Map<Integer, long[]> acknowledged) {
+    this.name = name;
+    this.topic = topic;
+    this.expireTime = expireTime;
+    this.labels = Collections.unmodifiableMap(new HashMap<>(labels));
+    this.offsets = Collections.unmodifiableMap(new HashMap<>(offsets));
+    this.acknowledged = Collections.unmodifiableMap(new HashMap<>(acknowledged));
+  }
+
+  String getName() {
+    return name;
+  }
+
+  String getTopic() {
+    return topic;
+  }
+
+  Instant getExpireTime() {
+    return expireTime;
+  }
+
+  Map<String, String> getLabels() {
+    return labels;
+  }
+
+  /** Returns the offset each partition resumes from when seeking to the snapshot. */
+  Map<Integer, Long> getOffsets() {
+    return offsets;
+  }
+
+  /**
+   * Returns the offsets at or after the resume offset of each partition which were already
+   * acknowledged, sorted in ascending order. Partitions without any are not included.
+   */
+  Map<Integer, long[]> getAcknowledged() {
+    return acknowledged;
+  }
+
+  boolean isExpired(Instant now) {
+    return !now.isBefore(expireTime);
+  }
+
+  @Override
+  public String toString() {
+    String acked =
+        acknowledged
+            .entrySet()
+            .stream()
+            .map(e -> e.getKey() + "=" + Arrays.toString(e.getValue()))
+            .collect(Collectors.joining(", ", "{", "}"));
+    return "SubscriptionSnapshot{"
+        + "name="
+        + name
+        + ", topic="
+        + topic
+        + ", expireTime="
+        + expireTime
+        + ", offsets="
+        + offsets
+        + ", acknowledged="
+        + acked
+        + '}';
+  }
+}
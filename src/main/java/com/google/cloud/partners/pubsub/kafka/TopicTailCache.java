@@ -0,0 +1,278 @@
+/*
+ * Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.partners.pubsub.kafka;
+
+import com.google.cloud.partners.pubsub.kafka.properties.TailCacheProperties;
+import com.google.pubsub.v1.PubsubMessage;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.common.TopicPartition;
+
+/**
+ * Keeps the most recently fetched records of each TopicPartition in memory so that every
+ * Subscription of a topic can be served by whichever of their fetchers reads the tail of the
+ * partition first, instead of each Subscription fetching the same records from the broker.
+ *
+ * <p>Each partition holds a bounded window of contiguous records, limited by {@link
+ * TailCacheProperties#getMaxMessages()} and {@link TailCacheProperties#getMaxBytes()}, with the
+ * oldest records evicted first. Fetchers append whatever they fetch, and records that extend the
+ * window are kept. A fetcher that reports a position beyond the end of the window starts a new
+ * window there, since the records in between were never seen.
+ *
+ * <p>The fetcher that most recently reached the end of the window is its leader and keeps fetching
+ * the partition, while other fetchers whose position lies within the window are served from it and
+ * leave their partition paused. A leader that stops fetching, because its buffer is full or its
+ * Subscription was shut down, is replaced by the next fetcher to reach the end of the window once
+ * {@link #LEADER_TIMEOUT} has elapsed. Fetchers positioned before the window fall back to fetching
+ * the partition themselves.
+ *
+ * <p>The PubsubMessage converted from a cached record is kept along with it, so that Subscriptions
+ * served from the same record share a single conversion.
+ */
+final class TopicTailCache {
+
+  private static final long LEADER_TIMEOUT = TimeUnit.MILLISECONDS.toNanos(500);
+  private static final int INITIAL_CAPACITY = 64;
+
+  private final int maxMessages;
+  private final long maxBytes;
+  private final Map<TopicPartition, PartitionTail> tails;
+
+  TopicTailCache(TailCacheProperties properties) {
+    maxMessages = Math.max(1, properties.getMaxMessages());
+    maxBytes = properties.getMaxBytes();
+    tails = new ConcurrentHashMap<>();
+  }
+
+  /**
+   * Adds {@code records} fetched by {@code reader} from {@code tp}, which were read starting at
+   * {@code position}. Records already in the window are ignored. Fetchers should call this after
+   * every poll of the partition, even if no records were returned, so that the leader of the
+   * partition remains known.
+   */
+  void append(
+      TopicPartition tp,
+      long position,
+      List<ConsumerRecord<String, ByteBuffer>> records,
+      Object reader) {
+    tails.computeIfAbsent(tp, k -> new PartitionTail(position)).append(position, records, reader);
+  }
+
+  /**
+   * Copies up to {@code maxRecords} cached records of {@code tp} at or after {@code position} into
+   * {@code out}, provided that {@code position} lies within the window.
+   *
+   * @return the number of records copied
+   */
+  int read(
+      TopicPartition tp,
+      long position,
+      int maxRecords,
+      List<ConsumerRecord<String, ByteBuffer>> out) {
+    PartitionTail tail = tails.get(tp);
+    return tail == null ? 0 : tail.read(position, maxRecords, out);
+  }
+
+  /**
+   * Returns true if a fetcher positioned at {@code position} should be served from the cache
+   * instead of fetching {@code tp} itself, which is the case when there are cached records left for
+   * it to read or when another fetcher is actively fetching the end of the window.
+   */
+  boolean isServedFromCache(TopicPartition tp, long position, Object reader) {
+    PartitionTail tail = tails.get(tp);
+    return tail != null && tail.isServedFromCache(position, reader);
+  }
+
+  /**
+   * Returns the PubsubMessage for {@code record}, converting it with {@code converter} only if the
+   * record is not cached or was not converted yet. Messages converted with and without their
+   * ordering key are kept apart.
+   */
+  PubsubMessage getMessage(
+      ConsumerRecord<String, ByteBuffer> record,
+      boolean ordered,
+      Function<ConsumerRecord<String, ByteBuffer>, PubsubMessage> converter) {
+    PartitionTail tail = tails.get(new TopicPartition(record.topic(), record.partition()));
+    Entry entry = tail == null ? null : tail.find(record);
+    if (entry == null) {
+      return converter.apply(record);
+    }
+    // Concurrent conversions of the same record are harmless, the last one is kept
+    PubsubMessage message = ordered ? entry.orderedMessage : entry.message;
+    if (message == null) {
+      message = converter.apply(record);
+      if (ordered) {
+        entry.orderedMessage = message;
+      } else {
+        entry.message = message;
+      }
+    }
+    return message;
+  }
+
+  /** Returns the number of records cached for {@code tp}. */
+  int size(TopicPartition tp) {
+    PartitionTail tail = tails.get(tp);
+    return tail == null ? 0 : tail.size();
+  }
+
+  private final class PartitionTail {
+
+    private Entry[] entries;
+    private int head;
+    private int count;
+    private long bytes;
+    private long start; // Position the window starts at, at or before its first record
+    private long end; // One past the last record in the window
+    private Object leader;
+    private long leaderNanos;
+
+    private PartitionTail(long position) {
+      entries =
+          new Entry
+              [maxMessages >= INITIAL_CAPACITY
+                  ? INITIAL_CAPACITY
+                  : Integer.highestOneBit(maxMessages) << 1];
+      start = end = position;
+    }
+
+    private synchronized void append(
+        long position, List<ConsumerRecord<String, ByteBuffer>> records, Object reader) {
+      if (position > end) {
+        // The reader skipped past the window, so start a new window where it is reading from
+        for (int i = 0; i < count; i++) {
+          entries[(head + i) & (entries.length - 1)] = null;
+        }
+        head = count = 0;
+        bytes = 0;
+        start = end = position;
+      }
+      for (ConsumerRecord<String, ByteBuffer> record : records) {
+        if (record.offset() >= end) {
+          add(new Entry(record));
+          end = record.offset() + 1;
+        }
+      }
+      long next = records.isEmpty() ? position : records.get(records.size() - 1).offset() + 1;
+      if (next == end) {
+        long now = System.nanoTime();
+        if (leader == null || leader == reader || now - leaderNanos > LEADER_TIMEOUT) {
+          leader = reader;
+          leaderNanos = now;
+        }
+      }
+    }
+
+    private synchronized int read(
+        long position, int maxRecords, List<ConsumerRecord<String, ByteBuffer>> out) {
+      if (position < start || position >= end) {
+        return 0;
+      }
+      int read = 0;
+      for (int i = indexOf(position); i < count && read < maxRecords; i++, read++) {
+        out.add(entries[(head + i) & (entries.length - 1)].record);
+      }
+      return read;
+    }
+
+    private synchronized boolean isServedFromCache(long position, Object reader) {
+      if (position < start || position > end) {
+        return false;
+      }
+      return position < end
+          || (leader != null
+              && leader != reader
+              && System.nanoTime() - leaderNanos <= LEADER_TIMEOUT);
+    }
+
+    private synchronized Entry find(ConsumerRecord<String, ByteBuffer> record) {
+      int index = indexOf(record.offset());
+      if (index == count) {
+        return null;
+      }
+      Entry entry = entries[(head + index) & (entries.length - 1)];
+      return entry.record == record ? entry : null;
+    }
+
+    private synchronized int size() {
+      return count;
+    }
+
+    /** Returns the index of the first record at or after {@code offset}, or count if none. */
+    private int indexOf(long offset) {
+      int low = 0;
+      int high = count;
+      while (low < high) {
+        int mid = (low + high) >>> 1;
+        if (entries[(head + mid) & (entries.length - 1)].record.offset() < offset) {
+          low = mid + 1;
+        } else {
+          high = mid;
+        }
+      }
+      return low;
+    }
+
+    private void add(Entry entry) {
+      if (count == entries.length) {
+        if (count < maxMessages) {
+          Entry[] grown = new Entry[entries.length << 1];
+          for (int i = 0; i < count; i++) {
+            grown[i] = entries[(head + i) & (entries.length - 1)];
+          }
+          entries = grown;
+          head = 0;
+        } else {
+          evict();
+        }
+      }
+      entries[(head + count) & (entries.length - 1)] = entry;
+      count++;
+      bytes += entry.size;
+      while (count > maxMessages || (bytes > maxBytes && count > 1)) {
+        evict();
+      }
+    }
+
+    private void evict() {
+      Entry oldest = entries[head];
+      entries[head] = null;
+      head = (head + 1) & (entries.length - 1);
+      count--;
+      bytes -= oldest.size;
+      start = oldest.record.offset() + 1;
+    }
+  }
+
+  private static final class Entry {
+
+    private final ConsumerRecord<String, ByteBuffer> record;
+    private final int size;
+    private volatile PubsubMessage message;
+    private volatile PubsubMessage orderedMessage;
+
+    private Entry(ConsumerRecord<String, ByteBuffer> record) {
+      this.record = record;
+      size = Math.max(record.serializedValueSize(), 0);
+    }
+  }
+}
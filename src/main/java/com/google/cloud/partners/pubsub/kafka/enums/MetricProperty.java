@@ -21,7 +21,13 @@ public enum MetricProperty {
   AVG_LATENCY("average_latency", "Average latency per request in milliseconds."),
   QPS("qps", "QPS."),
   THROUGHPUT("throughput", "Throughput in bytes per second"),
-  ERROR_RATE("error_rate", "Percentage of requests resulting in errors.");
+  ERROR_RATE("error_rate", "Percentage of requests resulting in errors."),
+  REJECTED_COUNT(
+      "rejected_count",
+      "Count of publish requests rejected because too many were in flight or Kafka was unavailable."),
+  PREFETCH_DEPTH("prefetch_depth", "Count of messages fetched from Kafka awaiting delivery."),
+  FETCH_LATENCY("average_fetch_latency", "Average latency per Kafka fetch in milliseconds."),
+  FETCHED_BYTES("fetched_bytes", "Bytes of message data fetched from Kafka for delivery.");
 
   private final String name;
 
@@ -0,0 +1,62 @@
+/*
+ * Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.partners.pubsub.kafka.properties;
+
+public class CircuitBreakerProperties {
+
+  private int failureThreshold = 5;
+
+  private long openDurationMs = 5000;
+
+  private int halfOpenTrials = 1;
+
+  public int getFailureThreshold() {
+    return failureThreshold;
+  }
+
+  public void setFailureThreshold(int failureThreshold) {
+    this.failureThreshold = failureThreshold;
+  }
+
+  public long getOpenDurationMs() {
+    return openDurationMs;
+  }
+
+  public void setOpenDurationMs(long openDurationMs) {
+    this.openDurationMs = openDurationMs;
+  }
+
+  public int getHalfOpenTrials() {
+    return halfOpenTrials;
+  }
+
+  public void setHalfOpenTrials(int halfOpenTrials) {
+    this.halfOpenTrials = halfOpenTrials;
+  }
+
+  @Override
+  public String toString() {
+    return "CircuitBreakerProperties{"
+        + "failureThreshold="
+        + failureThreshold
+        + ", openDurationMs="
+        + openDurationMs
+        + ", halfOpenTrials="
+        + halfOpenTrials
+        + '}';
+  }
+}
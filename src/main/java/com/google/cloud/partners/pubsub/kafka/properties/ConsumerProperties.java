@@ -23,6 +23,16 @@ public class ConsumerProperties {
 
   private int executors = Runtime.getRuntime().availableProcessors();
 
+  private int prefetchMaxMessages = 10000;
+
+  private long prefetchMaxBytes = 64L * 1024 * 1024;
+
+  private boolean clusterMode;
+
+  private OffsetStoreProperties offsetStore = new OffsetStoreProperties();
+
+  private TailCacheProperties tailCache = new TailCacheProperties();
+
   private List<SubscriptionProperties> subscriptions;
 
   private Properties properties = new Properties();
@@ -35,6 +45,46 @@ public class ConsumerProperties {
     this.executors = executors;
   }
 
+  public int getPrefetchMaxMessages() {
+    return prefetchMaxMessages;
+  }
+
+  public void setPrefetchMaxMessages(int prefetchMaxMessages) {
+    this.prefetchMaxMessages = prefetchMaxMessages;
+  }
+
+  public long getPrefetchMaxBytes() {
+    return prefetchMaxBytes;
+  }
+
+  public void setPrefetchMaxBytes(long prefetchMaxBytes) {
+    this.prefetchMaxBytes = prefetchMaxBytes;
+  }
+
+  public boolean isClusterMode() {
+    return clusterMode;
+  }
+
+  public void setClusterMode(boolean clusterMode) {
+    this.clusterMode = clusterMode;
+  }
+
+  public OffsetStoreProperties getOffsetStore() {
+    return offsetStore;
+  }
+
+  public void setOffsetStore(OffsetStoreProperties offsetStore) {
+    this.offsetStore = offsetStore;
+  }
+
+  public TailCacheProperties getTailCache() {
+    return tailCache;
+  }
+
+  public void setTailCache(TailCacheProperties tailCache) {
+    this.tailCache = tailCache;
+  }
+
   public List<SubscriptionProperties> getSubscriptions() {
     return subscriptions;
   }
@@ -57,6 +107,16 @@ public class ConsumerProperties {
         + "executors='"
         + executors
         + '\''
+        + ", prefetchMaxMessages="
+        + prefetchMaxMessages
+        + ", prefetchMaxBytes="
+        + prefetchMaxBytes
+        + ", clusterMode="
+        + clusterMode
+        + ", offsetStore="
+        + offsetStore
+        + ", tailCache="
+        + tailCache
         + ", subscriptions="
         + subscriptions
         + ", properties="
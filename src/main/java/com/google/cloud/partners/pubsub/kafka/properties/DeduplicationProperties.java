@@ -0,0 +1,63 @@
+/*
+ * Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.partners.pubsub.kafka.properties;
+
+public class DeduplicationProperties {
+
+  private String attribute;
+
+  private int windowSeconds = 600;
+
+  private int maxEntries = 1000000;
+
+  public String getAttribute() {
+    return attribute;
+  }
+
+  public void setAttribute(String attribute) {
+    this.attribute = attribute;
+  }
+
+  public int getWindowSeconds() {
+    return windowSeconds;
+  }
+
+  public void setWindowSeconds(int windowSeconds) {
+    this.windowSeconds = windowSeconds;
+  }
+
+  public int getMaxEntries() {
+    return maxEntries;
+  }
+
+  public void setMaxEntries(int maxEntries) {
+    this.maxEntries = maxEntries;
+  }
+
+  @Override
+  public String toString() {
+    return "DeduplicationProperties{"
+        + "attribute='"
+        + attribute
+        + '\''
+        + ", windowSeconds="
+        + windowSeconds
+        + ", maxEntries="
+        + maxEntries
+        + '}';
+  }
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.partners.pubsub.kafka.properties;
+
+public class OffsetStoreProperties {
+
+  private String topic;
+
+  private int consumersPerTopic = 1;
+
+  private long loadTimeoutMs = 30000;
+
+  public String getTopic() {
+    return topic;
+  }
+
+  public void setTopic(String topic) {
+    this.topic = topic;
+  }
+
+  public int getConsumersPerTopic() {
+    return consumersPerTopic;
+  }
+
+  public void setConsumersPerTopic(int consumersPerTopic) {
+    this.consumersPerTopic = consumersPerTopic;
+  }
+
+  public long getLoadTimeoutMs() {
+    return loadTimeoutMs;
+  }
+
+  public void setLoadTimeoutMs(long loadTimeoutMs) {
+    this.loadTimeoutMs = loadTimeoutMs;
+  }
+
+  @Override
+  public String toString() {
+    return "OffsetStoreProperties{"
+        + "topic='"
+        + topic
+        + '\''
+        + ", consumersPerTopic="
+        + consumersPerTopic
+        + ", loadTimeoutMs="
+        + loadTimeoutMs
+        + '}';
+  }
+}
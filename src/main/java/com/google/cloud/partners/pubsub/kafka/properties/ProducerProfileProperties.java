@@ -0,0 +1,102 @@
+/*
+ * Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.partners.pubsub.kafka.properties;
+
+import java.util.Properties;
+
+public class ProducerProfileProperties {
+
+  private int executors = 1;
+
+  private String acks;
+
+  private Integer lingerMs;
+
+  private Integer batchSize;
+
+  private String compressionType;
+
+  private Properties properties = new Properties();
+
+  public int getExecutors() {
+    return executors;
+  }
+
+  public void setExecutors(int executors) {
+    this.executors = executors;
+  }
+
+  public String getAcks() {
+    return acks;
+  }
+
+  public void setAcks(String acks) {
+    this.acks = acks;
+  }
+
+  public Integer getLingerMs() {
+    return lingerMs;
+  }
+
+  public void setLingerMs(Integer lingerMs) {
+    this.lingerMs = lingerMs;
+  }
+
+  public Integer getBatchSize() {
+    return batchSize;
+  }
+
+  public void setBatchSize(Integer batchSize) {
+    this.batchSize = batchSize;
+  }
+
+  public String getCompressionType() {
+    return compressionType;
+  }
+
+  public void setCompressionType(String compressionType) {
+    this.compressionType = compressionType;
+  }
+
+  public Properties getProperties() {
+    return properties;
+  }
+
+  public void setProperties(Properties properties) {
+    this.properties = properties;
+  }
+
+  @Override
+  public String toString() {
+    return "ProducerProfileProperties{"
+        + "executors="
+        + executors
+        + ", acks='"
+        + acks
+        + '\''
+        + ", lingerMs="
+        + lingerMs
+        + ", batchSize="
+        + batchSize
+        + ", compressionType='"
+        + compressionType
+        + '\''
+        + ", properties="
+        + properties
+        + '}';
+  }
+}
@@ -16,7 +16,9 @@
 
 package com.google.cloud.partners.pubsub.kafka.properties;
 
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 
 public class ProducerProperties {
@@ -25,6 +27,26 @@ public class ProducerProperties {
 
   private List<String> topics;
 
+  private Map<String, PartitionerProperties> partitioners = new HashMap<>();
+
+  private boolean compactAttributes;
+
+  private PublishLimitProperties limits = new PublishLimitProperties();
+
+  private Map<String, PublishLimitProperties> topicLimits = new HashMap<>();
+
+  private CircuitBreakerProperties circuitBreaker = new CircuitBreakerProperties();
+
+  private SpoolProperties spool = new SpoolProperties();
+
+  private Map<String, ProducerProfileProperties> profiles = new HashMap<>();
+
+  private Map<String, String> topicProfiles = new HashMap<>();
+
+  private int streamingPublishWindow = 64;
+
+  private DeduplicationProperties deduplication = new DeduplicationProperties();
+
   private Properties properties = new Properties();
 
   public int getExecutors() {
@@ -43,6 +65,86 @@ public class ProducerProperties {
     this.topics = topics;
   }
 
+  public Map<String, PartitionerProperties> getPartitioners() {
+    return partitioners;
+  }
+
+  public void setPartitioners(Map<String, PartitionerProperties> partitioners) {
+    this.partitioners = partitioners;
+  }
+
+  public boolean isCompactAttributes() {
+    return compactAttributes;
+  }
+
+  public void setCompactAttributes(boolean compactAttributes) {
+    this.compactAttributes = compactAttributes;
+  }
+
+  public PublishLimitProperties getLimits() {
+    return limits;
+  }
+
+  public void setLimits(PublishLimitProperties limits) {
+    this.limits = limits;
+  }
+
+  public Map<String, PublishLimitProperties> getTopicLimits() {
+    return topicLimits;
+  }
+
+  public void setTopicLimits(Map<String, PublishLimitProperties> topicLimits) {
+    this.topicLimits = topicLimits;
+  }
+
+  public CircuitBreakerProperties getCircuitBreaker() {
+    return circuitBreaker;
+  }
+
+  public void setCircuitBreaker(CircuitBreakerProperties circuitBreaker) {
+    this.circuitBreaker = circuitBreaker;
+  }
+
+  public SpoolProperties getSpool() {
+    return spool;
+  }
+
+  public void setSpool(SpoolProperties spool) {
+    this.spool = spool;
+  }
+
+  public Map<String, ProducerProfileProperties> getProfiles() {
+    return profiles;
+  }
+
+  public void setProfiles(Map<String, ProducerProfileProperties> profiles) {
+    this.profiles = profiles;
+  }
+
+  public Map<String, String> getTopicProfiles() {
+    return topicProfiles;
+  }
+
+  public void setTopicProfiles(Map<String, String> topicProfiles) {
+    this.topicProfiles = topicProfiles;
+  }
+
+  public int getStreamingPublishWindow() {
+    return streamingPublishWindow;
+  }
+
+  public void setStreamingPublishWindow(int streamingPublishWindow) {
+    this.streamingPublishWindow = streamingPublishWindow;
+  }
+
+  public DeduplicationProperties getDeduplication() {
+    return deduplication;
+  }
+
+  public void setDeduplication(DeduplicationProperties deduplication) {
+    this.deduplication = deduplication;
+  }
+
   public Properties getProperties() {
     return properties;
   }
@@ -59,6 +161,26 @@ public class ProducerProperties {
         + '\''
         + ", topics="
         + topics
+        + ", partitioners="
+        + partitioners
+        + ", compactAttributes="
+        + compactAttributes
+        + ", limits="
+        + limits
+        + ", topicLimits="
+        + topicLimits
+        + ", circuitBreaker="
+        + circuitBreaker
+        + ", spool="
+        + spool
+        + ", profiles="
+        + profiles
+        + ", topicProfiles="
+        + topicProfiles
+        + ", streamingPublishWindow="
+        + streamingPublishWindow
+        + ", deduplication="
+        + deduplication
         + ", properties="
         + properties
         + '}';
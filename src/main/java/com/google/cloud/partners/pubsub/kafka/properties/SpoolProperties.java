@@ -0,0 +1,97 @@
+/*
+ * Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.partners.pubsub.kafka.properties;
+
+public class SpoolProperties {
+
+  private String directory;
+
+  private int segmentBytes = 16 * 1024 * 1024;
+
+  private long maxBytes = 1024L * 1024 * 1024;
+
+  private FsyncPolicy fsync = FsyncPolicy.INTERVAL;
+
+  private long fsyncIntervalMs = 1000;
+
+  public String getDirectory() {
+    return directory;
+  }
+
+  public void setDirectory(String directory) {
+    this.directory = directory;
+  }
+
+  public int getSegmentBytes() {
+    return segmentBytes;
+  }
+
+  public void setSegmentBytes(int segmentBytes) {
+    this.segmentBytes = segmentBytes;
+  }
+
+  public long getMaxBytes() {
+    return maxBytes;
+  }
+
+  public void setMaxBytes(long maxBytes) {
+    this.maxBytes = maxBytes;
+  }
+
+  public FsyncPolicy getFsync() {
+    return fsync;
+  }
+
+  public void setFsync(FsyncPolicy fsync) {
+    this.fsync = fsync;
+  }
+
+  public long getFsyncIntervalMs() {
+    return fsyncIntervalMs;
+  }
+
+  public void setFsyncIntervalMs(long fsyncIntervalMs) {
+    this.fsyncIntervalMs = fsyncIntervalMs;
+  }
+
+  @Override
+  public String toString() {
+    return "SpoolProperties{"
+        + "directory='"
+        + directory
+        + '\''
+        + ", segmentBytes="
+        + segmentBytes
+        + ", maxBytes="
+        + maxBytes
+        + ", fsync="
+        + fsync
+        + ", fsyncIntervalMs="
+        + fsyncIntervalMs
+        + '}';
+  }
+
+  /** Determines when spooled publish requests are forced to disk. */
+  public enum FsyncPolicy {
+    /** Before each spooled request is acknowledged. */
+    ALWAYS,
+    /** Every fsyncIntervalMs. */
+    INTERVAL,
+    /** Whenever the operating system writes the pages back. */
+    NEVER
+  }
+}
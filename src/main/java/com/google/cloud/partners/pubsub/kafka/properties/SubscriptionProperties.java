@@ -27,6 +27,18 @@ public class SubscriptionProperties {
 
   private int ackDeadlineSeconds;
 
+  private int commitIntervalMillis = 5000;
+
+  private int commitBatchSize = 1000;
+
+  private int maxOutstandingMessages;
+
+  private long maxOutstandingBytes;
+
+  private long maxBufferedBytes;
+
+  private boolean enableMessageOrdering;
+
   public String getName() {
     return name;
   }
@@ -59,6 +71,54 @@ public class SubscriptionProperties {
     this.ackDeadlineSeconds = ackDeadlineSeconds;
   }
 
+  public int getCommitIntervalMillis() {
+    return commitIntervalMillis;
+  }
+
+  public void setCommitIntervalMillis(int commitIntervalMillis) {
+    this.commitIntervalMillis = commitIntervalMillis;
+  }
+
+  public int getCommitBatchSize() {
+    return commitBatchSize;
+  }
+
+  public void setCommitBatchSize(int commitBatchSize) {
+    this.commitBatchSize = commitBatchSize;
+  }
+
+  public int getMaxOutstandingMessages() {
+    return maxOutstandingMessages;
+  }
+
+  public void setMaxOutstandingMessages(int maxOutstandingMessages) {
+    this.maxOutstandingMessages = maxOutstandingMessages;
+  }
+
+  public long getMaxOutstandingBytes() {
+    return maxOutstandingBytes;
+  }
+
+  public void setMaxOutstandingBytes(long maxOutstandingBytes) {
+    this.maxOutstandingBytes = maxOutstandingBytes;
+  }
+
+  public long getMaxBufferedBytes() {
+    return maxBufferedBytes;
+  }
+
+  public void setMaxBufferedBytes(long maxBufferedBytes) {
+    this.maxBufferedBytes = maxBufferedBytes;
+  }
+
+  public boolean isEnableMessageOrdering() {
+    return enableMessageOrdering;
+  }
+
+  public void setEnableMessageOrdering(boolean enableMessageOrdering) {
+    this.enableMessageOrdering = enableMessageOrdering;
+  }
+
   @Override
   public String toString() {
     return "SubscriptionProperties{"
@@ -69,6 +129,18 @@ public class SubscriptionProperties {
         + topic
         + ", ackDeadlineSeconds="
         + ackDeadlineSeconds
+        + ", commitIntervalMillis="
+        + commitIntervalMillis
+        + ", commitBatchSize="
+        + commitBatchSize
+        + ", maxOutstandingMessages="
+        + maxOutstandingMessages
+        + ", maxOutstandingBytes="
+        + maxOutstandingBytes
+        + ", maxBufferedBytes="
+        + maxBufferedBytes
+        + ", enableMessageOrdering="
+        + enableMessageOrdering
         + '}';
   }
 }
@@ -0,0 +1,45 @@
+/*
+ * Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.partners.pubsub.kafka.properties;
+
+public class TailCacheProperties {
+
+  private int maxMessages;
+
+  private long maxBytes = 16L * 1024 * 1024;
+
+  public int getMaxMessages() {
+    return maxMessages;
+  }
+
+  public void setMaxMessages(int maxMessages) {
+    this.maxMessages = maxMessages;
+  }
+
+  public long getMaxBytes() {
+    return maxBytes;
+  }
+
+  public void setMaxBytes(long maxBytes) {
+    this.maxBytes = maxBytes;
+  }
+
+  @Override
+  public String toString() {
+    return "TailCacheProperties{" + "maxMessages=" + maxMessages + ", maxBytes=" + maxBytes + '}';
+  }
+}
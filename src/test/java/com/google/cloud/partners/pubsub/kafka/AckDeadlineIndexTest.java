@@ -0,0 +1,94 @@
+/*
+ * Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.partners.pubsub.kafka;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.time.Instant;
+import java.util.Arrays;
+import org.junit.Before;
+import org.junit.Test;
+
+public class AckDeadlineIndexTest {
+
+  private static final Instant NOW = Instant.ofEpochMilli(1000000);
+
+  private AckDeadlineIndex index;
+
+  @Before
+  public void setUp() {
+    index = new AckDeadlineIndex();
+  }
+
+  @Test
+  public void pollExpiredReturnsLeasesInDeadlineOrder() {
+    OutstandingMessage later = lease(1, NOW.plusSeconds(2));
+    OutstandingMessage earlier = lease(2, NOW.plusSeconds(1));
+    OutstandingMessage active = lease(3, NOW.plusSeconds(10));
+    index.add(later);
+    index.add(earlier);
+    index.add(active);
+
+    assertTrue(index.pollExpired(NOW).isEmpty());
+    assertEquals(Arrays.asList(earlier, later), index.pollExpired(NOW.plusSeconds(5)));
+    assertEquals(1, index.size());
+  }
+
+  @Test
+  public void pollExpiredDropsAcknowledgedLeases() {
+    OutstandingMessage lease = lease(0, NOW);
+    index.add(lease);
+    lease.setAcknowledged(true);
+
+    assertTrue(index.pollExpired(NOW.plusSeconds(1)).isEmpty());
+    assertEquals(0, index.size());
+  }
+
+  @Test
+  public void pollExpiredRequeuesExtendedLeases() {
+    OutstandingMessage lease = lease(0, NOW);
+    index.add(lease);
+    lease.addSecondsToDeadline(10);
+
+    assertTrue(index.pollExpired(NOW.plusSeconds(1)).isEmpty());
+    assertEquals(1, index.size());
+    assertEquals(Arrays.asList(lease), index.pollExpired(NOW.plusSeconds(11)));
+    assertEquals(0, index.size());
+  }
+
+  @Test
+  public void pollExpiredReturnsLeasesExpiringNow() {
+    OutstandingMessage expiring = lease(0, NOW);
+    OutstandingMessage laterInMillisecond = lease(1, NOW.plusNanos(500000));
+    index.add(expiring);
+    index.add(laterInMillisecond);
+
+    assertEquals(Arrays.asList(expiring), index.pollExpired(NOW));
+    assertEquals(1, index.size());
+    assertEquals(Arrays.asList(laterInMillisecond), index.pollExpired(NOW.plusMillis(1)));
+  }
+
+  private static OutstandingMessage lease(long offset, Instant expiresAt) {
+    return OutstandingMessage.newBuilder()
+        .setPartition(0)
+        .setOffset(offset)
+        .setPulledAt(NOW)
+        .setExpiresAt(expiresAt)
+        .build();
+  }
+}
@@ -0,0 +1,52 @@
+/*
+ * Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.partners.pubsub.kafka;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class AckIdTest {
+
+  @Test
+  public void encodeAndDecode() {
+    long[][] cases = {{0, 0, 0}, {3, 12345, 7}, {32767, (1L << 48) - 1, -1}, {1, 1, 0x80000000}};
+    for (long[] c : cases) {
+      long key = AckId.key((int) c[0], c[1]);
+      String ackId = AckId.encode(key, (int) c[2]);
+      assertEquals(16, ackId.length());
+      assertEquals(key, AckId.decodeKey(ackId));
+      assertEquals((int) c[0], AckId.partition(key));
+      assertEquals(c[1], AckId.offset(key));
+      assertEquals((int) c[2], AckId.decodeGeneration(ackId));
+    }
+  }
+
+  @Test
+  public void decodeRejectsMalformedAckIds() {
+    assertEquals(AckId.INVALID, AckId.decodeKey(""));
+    assertEquals(AckId.INVALID, AckId.decodeKey("0-0"));
+    assertEquals(AckId.INVALID, AckId.decodeKey("AAAAAAAAAAAAAAA="));
+    assertEquals(AckId.INVALID, AckId.decodeKey("AAAAAAAAAAAAAAA\u00e9"));
+    assertEquals(AckId.INVALID, AckId.decodeKey(AckId.encode(0, 0) + "A"));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void keyRejectsOffsetsOutOfRange() {
+    AckId.key(0, 1L << 48);
+  }
+}
@@ -18,8 +18,12 @@ package com.google.cloud.partners.pubsub.kafka;
 
 import static com.google.cloud.partners.pubsub.kafka.enums.MetricProperty.AVG_LATENCY;
 import static com.google.cloud.partners.pubsub.kafka.enums.MetricProperty.ERROR_RATE;
+import static com.google.cloud.partners.pubsub.kafka.enums.MetricProperty.FETCHED_BYTES;
+import static com.google.cloud.partners.pubsub.kafka.enums.MetricProperty.FETCH_LATENCY;
 import static com.google.cloud.partners.pubsub.kafka.enums.MetricProperty.MESSAGE_COUNT;
+import static com.google.cloud.partners.pubsub.kafka.enums.MetricProperty.PREFETCH_DEPTH;
 import static com.google.cloud.partners.pubsub.kafka.enums.MetricProperty.QPS;
+import static com.google.cloud.partners.pubsub.kafka.enums.MetricProperty.REJECTED_COUNT;
 import static com.google.cloud.partners.pubsub.kafka.enums.MetricProperty.THROUGHPUT;
 import static java.lang.Float.parseFloat;
 import static org.junit.Assert.assertEquals;
@@ -40,6 +44,7 @@ import com.google.cloud.partners.pubsub.kafka.common.StatisticsResponse;
 import io.grpc.testing.GrpcServerRule;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 import org.junit.Before;
 import org.junit.BeforeClass;
@@ -107,6 +112,7 @@ public class AdminImplTest {
         deltaForThroughput);
     assertEquals(2.0F, parseFloat(publisherMetricsForTopic1.get(QPS.getName())), deltaForQPS);
     assertEquals(9.09F, parseFloat(publisherMetricsForTopic1.get(ERROR_RATE.getName())), noDelta);
+    assertEquals(2, Integer.parseInt(publisherMetricsForTopic1.get(REJECTED_COUNT.getName())));
 
     // assert information for publisher of topic 2
     Map<String, String> publisherMetricsForTopic2 =
@@ -133,6 +139,10 @@ public class AdminImplTest {
         deltaForThroughput);
     assertEquals(0.6F, parseFloat(subscriberMetricsForTopic1.get(QPS.getName())), deltaForQPS);
     assertNull(subscriberMetricsForTopic1.get(ERROR_RATE.getName()));
+    assertEquals(2, Integer.parseInt(subscriberMetricsForTopic1.get(PREFETCH_DEPTH.getName())));
+    assertEquals(
+        15.0F, parseFloat(subscriberMetricsForTopic1.get(FETCH_LATENCY.getName())), noDelta);
+    assertEquals(24, Integer.parseInt(subscriberMetricsForTopic1.get(FETCHED_BYTES.getName())));
 
     // assert information for subscriber of topic 2 (with no compute information)
     Map<String, String> subscriberMetricsForTopic2 =
@@ -143,6 +153,10 @@ public class AdminImplTest {
     assertEquals(0.00F, parseFloat(subscriberMetricsForTopic2.get(THROUGHPUT.getName())), noDelta);
     assertEquals(0.00F, parseFloat(subscriberMetricsForTopic2.get(QPS.getName())), noDelta);
     assertNull(subscriberMetricsForTopic2.get(ERROR_RATE.getName()));
+    assertEquals(0, Integer.parseInt(subscriberMetricsForTopic2.get(PREFETCH_DEPTH.getName())));
+    assertEquals(
+        0.00F, parseFloat(subscriberMetricsForTopic2.get(FETCH_LATENCY.getName())), noDelta);
+    assertEquals(0, Integer.parseInt(subscriberMetricsForTopic2.get(FETCHED_BYTES.getName())));
   }
 
   @Test
@@ -162,7 +176,13 @@ public class AdminImplTest {
 
   private Map<String, StatisticsInformation> givenSubscriberInformation() {
     Map<String, StatisticsInformation> map = new HashMap<>();
-    map.put(TEST_TOPIC_1, givenStatisticsInformation(0, 200L, 50L, 100L));
+    StatisticsInformation information = givenStatisticsInformation(0, 200L, 50L, 100L);
+    PrefetchBuffer prefetchBuffer = new PrefetchBuffer(10, 1000);
+    prefetchBuffer.addAll(TestHelpers.generateConsumerRecords(TEST_TOPIC_1, 1, 2, null));
+    prefetchBuffer.recordFetch(TimeUnit.MILLISECONDS.toNanos(10));
+    prefetchBuffer.recordFetch(TimeUnit.MILLISECONDS.toNanos(20));
+    information.addPrefetchBuffer(prefetchBuffer);
+    map.put(TEST_TOPIC_1, information);
     map.put(TEST_TOPIC_2, new StatisticsInformation());
     return map;
   }
@@ -172,6 +192,8 @@ public class AdminImplTest {
     map.put(
         TEST_TOPIC_1,
         givenStatisticsInformation(1, 10L, 55L, 500L, 59L, 19L, 10L, 11L, 1L, 91L, 5L));
+    map.get(TEST_TOPIC_1).computeRejection();
+    map.get(TEST_TOPIC_1).computeRejection();
     map.put(TEST_TOPIC_2, givenStatisticsInformation(0, 90L, 90L));
     return map;
   }
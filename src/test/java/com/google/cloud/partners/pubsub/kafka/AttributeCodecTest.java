@@ -0,0 +1,91 @@
+/*
+ * Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.partners.pubsub.kafka;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.pubsub.v1.PubsubMessage;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import org.apache.kafka.common.header.Header;
+import org.apache.kafka.common.header.Headers;
+import org.apache.kafka.common.header.internals.RecordHeader;
+import org.apache.kafka.common.header.internals.RecordHeaders;
+import org.junit.Test;
+
+public class AttributeCodecTest {
+
+  private static final Map<String, String> ATTRIBUTES =
+      ImmutableMap.of("eventType", "OBJECT_FINALIZE", "k\u00e9y", "v\u00e4lue", "empty", "");
+
+  private static Map<String, String> decode(Headers headers) {
+    PubsubMessage.Builder builder = PubsubMessage.newBuilder();
+    AttributeCodec.decode(headers, builder);
+    return builder.getAttributesMap();
+  }
+
+  @Test
+  public void encodesEachAttributeAsHeader() {
+    Headers headers = AttributeCodec.encode(ATTRIBUTES, false);
+    assertEquals(3, headers.toArray().length);
+    assertEquals(
+        "v\u00e4lue", new String(headers.lastHeader("k\u00e9y").value(), StandardCharsets.UTF_8));
+    assertEquals(ATTRIBUTES, decode(headers));
+  }
+
+  @Test
+  public void encodesAttributesIntoSingleHeader() {
+    Headers headers = AttributeCodec.encode(ATTRIBUTES, true);
+    Header[] encoded = headers.toArray();
+    assertEquals(1, encoded.length);
+    assertEquals(AttributeCodec.COMPACT_HEADER, encoded[0].key());
+    assertEquals(ATTRIBUTES, decode(headers));
+
+    // Common keys are written as a single byte
+    Headers common = AttributeCodec.encode(Collections.singletonMap("eventType", "x"), true);
+    assertEquals(5, common.lastHeader(AttributeCodec.COMPACT_HEADER).value().length);
+  }
+
+  @Test
+  public void encodesNothingWithoutAttributes() {
+    assertNull(AttributeCodec.encode(Collections.emptyMap(), true));
+    assertNull(AttributeCodec.encode(null, false));
+    assertTrue(decode(null).isEmpty());
+  }
+
+  @Test
+  public void malformedCompactHeaderIsTreatedAsAttribute() {
+    byte[] truncated = AttributeCodec.encode(ATTRIBUTES, true).toArray()[0].value();
+    truncated = Arrays.copyOf(truncated, truncated.length - 1);
+    Headers headers =
+        new RecordHeaders(
+            new Header[] {
+              new RecordHeader(AttributeCodec.COMPACT_HEADER, truncated),
+              new RecordHeader("legacy", "value".getBytes(StandardCharsets.UTF_8))
+            });
+
+    Map<String, String> attributes = decode(headers);
+    assertEquals(2, attributes.size());
+    assertEquals("value", attributes.get("legacy"));
+    assertTrue(attributes.containsKey(AttributeCodec.COMPACT_HEADER));
+  }
+}
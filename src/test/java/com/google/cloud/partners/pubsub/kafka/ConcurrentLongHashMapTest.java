@@ -0,0 +1,75 @@
+/*
+ * Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.partners.pubsub.kafka;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import org.junit.Test;
+
+public class ConcurrentLongHashMapTest {
+
+  @Test
+  public void putGetAndRemove() {
+    ConcurrentLongHashMap<String> map = new ConcurrentLongHashMap<>();
+    assertNull(map.put(AckId.key(1, 10), "1-10"));
+    assertNull(map.put(AckId.key(2, 10), "2-10"));
+    assertEquals("1-10", map.put(AckId.key(1, 10), "replaced"));
+    assertEquals(2, map.size());
+
+    assertEquals("replaced", map.get(AckId.key(1, 10)));
+    assertNull(map.get(AckId.key(1, 11)));
+    assertEquals("2-10", map.remove(AckId.key(2, 10)));
+    assertNull(map.remove(AckId.key(2, 10)));
+    assertEquals(1, map.size());
+  }
+
+  @Test
+  public void conditionalRemoveRequiresSameValue() {
+    ConcurrentLongHashMap<String> map = new ConcurrentLongHashMap<>();
+    String value = "value";
+    map.put(5, value);
+    assertTrue(!map.remove(5, new String(value)));
+    assertSame(value, map.get(5));
+    assertTrue(map.remove(5, value));
+    assertNull(map.get(5));
+  }
+
+  @Test
+  public void matchesHashMapUnderRandomOperations() {
+    ConcurrentLongHashMap<Long> map = new ConcurrentLongHashMap<>();
+    Map<Long, Long> expected = new HashMap<>();
+    Random random = new Random(0);
+    for (int i = 0; i < 200000; i++) {
+      long key = random.nextInt(5000);
+      if (random.nextBoolean()) {
+        assertEquals(expected.put(key, (long) i), map.put(key, (long) i));
+      } else {
+        assertEquals(expected.remove(key), map.remove(key));
+      }
+    }
+    assertEquals(expected.size(), map.size());
+    for (long key = 0; key < 5000; key++) {
+      assertEquals(expected.get(key), map.get(key));
+    }
+  }
+}
@@ -16,45 +16,99 @@
 
 package com.google.cloud.partners.pubsub.kafka;
 
+import com.google.cloud.partners.pubsub.kafka.properties.ProducerProfileProperties;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.clients.consumer.ConsumerRebalanceListener;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
 import org.apache.kafka.clients.consumer.MockConsumer;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.clients.consumer.OffsetAndTimestamp;
 import org.apache.kafka.clients.consumer.OffsetResetStrategy;
 import org.apache.kafka.clients.producer.MockProducer;
 import org.apache.kafka.clients.producer.Producer;
+import org.apache.kafka.clients.producer.internals.DefaultPartitioner;
+import org.apache.kafka.common.Cluster;
 import org.apache.kafka.common.Node;
 import org.apache.kafka.common.PartitionInfo;
 import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.serialization.ByteBufferSerializer;
+import org.apache.kafka.common.serialization.StringSerializer;
 
 public class MockKafkaClientFactoryImpl implements KafkaClientFactory {
 
   private final List<MockProducer<String, ByteBuffer>> createdProducers;
   private final Map<String, List<MockConsumer<String, ByteBuffer>>> createdConsumers;
   private final Map<String, MockConsumerConfiguration> consumerConfigurations;
+  private final Map<String, List<ConsumerRecord<String, ByteBuffer>>> consumerRecords;
+  private final List<PartitionInfo> producerPartitions;
+  private final Map<Producer<String, ByteBuffer>, ProducerProfileProperties> producerProfiles;
+  private final Map<Consumer<String, ByteBuffer>, ConsumerRebalanceListener> rebalanceListeners;
+  private final Map<String, Map<TopicPartition, Long>> timeOffsets;
 
   public MockKafkaClientFactoryImpl() {
     createdProducers = new ArrayList<>();
-    createdConsumers = new HashMap<>();
+    createdConsumers = new ConcurrentHashMap<>();
     consumerConfigurations = new HashMap<>();
+    consumerRecords = new HashMap<>();
+    producerPartitions = new ArrayList<>();
+    producerProfiles = new HashMap<>();
+    rebalanceListeners = new ConcurrentHashMap<>();
+    timeOffsets = new ConcurrentHashMap<>();
   }
 
   public List<MockProducer<String, ByteBuffer>> getCreatedProducers() {
     return createdProducers;
   }
 
+  /** Returns the profile {@code producer} was created with, or null for the default profile. */
+  public ProducerProfileProperties getProducerProfile(Producer<String, ByteBuffer> producer) {
+    return producerProfiles.get(producer);
+  }
+
   public List<MockConsumer<String, ByteBuffer>> getConsumersForSubscription(String subscription) {
     return createdConsumers.get(subscription);
   }
 
   @Override
   public Consumer<String, ByteBuffer> createConsumer(String subscription) {
-    MockConsumer<String, ByteBuffer> consumer = new MockConsumer<>(OffsetResetStrategy.EARLIEST);
+    MockConsumer<String, ByteBuffer> consumer =
+        new MockConsumer<String, ByteBuffer>(OffsetResetStrategy.EARLIEST) {
+          @Override
+          public synchronized void subscribe(
+              Collection<String> topics, ConsumerRebalanceListener listener) {
+            super.subscribe(topics, listener);
+            rebalanceListeners.put(this, listener);
+          }
+
+          @Override
+          public Map<TopicPartition, OffsetAndTimestamp> offsetsForTimes(
+              Map<TopicPartition, Long> timestampsToSearch) {
+            Map<TopicPartition, Long> offsets =
+                timeOffsets.getOrDefault(subscription, Collections.emptyMap());
+            Map<TopicPartition, OffsetAndTimestamp> result = new HashMap<>();
+            timestampsToSearch.forEach(
+                (tp, timestamp) -> {
+                  Long offset = offsets.get(tp);
+                  result.put(tp, offset == null ? null : new OffsetAndTimestamp(offset, timestamp));
+                });
+            return result;
+          }
+        };
     if (!createdConsumers.containsKey(subscription)) {
-      createdConsumers.put(subscription, new ArrayList<>());
+      // Consumers may be recreated by fetcher threads while tests are inspecting them
+      createdConsumers.put(subscription, new CopyOnWriteArrayList<>());
     }
     createdConsumers.get(subscription).add(consumer);
 
@@ -64,16 +118,96 @@ public class MockKafkaClientFactoryImpl implements KafkaClientFactory {
       consumer.updateBeginningOffsets(configuration.startOffsets);
       consumer.updateEndOffsets(configuration.endOffsets);
     }
+    List<ConsumerRecord<String, ByteBuffer>> records = consumerRecords.get(subscription);
+    if (records != null) {
+      consumer.schedulePollTask(() -> records.forEach(consumer::addRecord));
+    }
     return consumer;
   }
 
   @Override
   public Producer<String, ByteBuffer> createProducer() {
-    MockProducer<String, ByteBuffer> producer = new MockProducer<>();
+    MockProducer<String, ByteBuffer> producer =
+        producerPartitions.isEmpty()
+            ? new MockProducer<>()
+            : new MockProducer<>(
+                new Cluster(
+                    null,
+                    Collections.emptyList(),
+                    producerPartitions,
+                    Collections.emptySet(),
+                    Collections.emptySet()),
+                false,
+                new DefaultPartitioner(),
+                new StringSerializer(),
+                new ByteBufferSerializer());
     createdProducers.add(producer);
     return producer;
   }
 
+  @Override
+  public Producer<String, ByteBuffer> createProducer(ProducerProfileProperties profile) {
+    Producer<String, ByteBuffer> producer = createProducer();
+    producerProfiles.put(producer, profile);
+    return producer;
+  }
+
+  /**
+   * Simulates a rebalance of the group during the next poll of {@code consumer}, which must have
+   * subscribed to a topic. Every partition of the consumer is revoked before it is assigned {@code
+   * assignment}, as Kafka does.
+   *
+   * @return a future for the offsets committed for the revoked partitions, which completes once the
+   *     rebalance is done
+   */
+  public CompletableFuture<Map<TopicPartition, OffsetAndMetadata>> rebalance(
+      MockConsumer<String, ByteBuffer> consumer, Collection<TopicPartition> assignment) {
+    CompletableFuture<Map<TopicPartition, OffsetAndMetadata>> rebalanced =
+        new CompletableFuture<>();
+    consumer.schedulePollTask(
+        () -> {
+          ConsumerRebalanceListener listener = rebalanceListeners.get(consumer);
+          Set<TopicPartition> revoked = new HashSet<>(consumer.assignment());
+          listener.onPartitionsRevoked(revoked);
+          // Committed offsets are forgotten by the MockConsumer once the partitions are reassigned
+          Map<TopicPartition, OffsetAndMetadata> committed = new HashMap<>();
+          for (TopicPartition tp : revoked) {
+            OffsetAndMetadata offset = consumer.committed(tp);
+            if (offset != null) {
+              committed.put(tp, offset);
+            }
+          }
+          consumer.rebalance(assignment);
+          listener.onPartitionsAssigned(assignment);
+          rebalanced.complete(committed);
+        });
+    return rebalanced;
+  }
+
+  /** Makes {@code topic} appear to have {@code partitions} to Producers created afterwards. */
+  public void configureProducerPartitions(String topic, int partitions) {
+    for (int i = 0; i < partitions; i++) {
+      producerPartitions.add(new PartitionInfo(topic, i, null, null, null));
+    }
+  }
+
+  /**
+   * Makes the first poll of each Consumer created afterwards for {@code subscription} return {@code
+   * records}, which must belong to partitions the Consumer is assigned by then.
+   */
+  public void configureRecordsForSubscription(
+      String subscription, List<ConsumerRecord<String, ByteBuffer>> records) {
+    consumerRecords.put(subscription, records);
+  }
+
+  /**
+   * Makes offsetsForTimes of the Consumers created for {@code subscription} return {@code offsets}
+   * regardless of the timestamps searched. Partitions without an offset have no such message.
+   */
+  public void configureOffsetsForTimes(String subscription, Map<TopicPartition, Long> offsets) {
+    timeOffsets.put(subscription, offsets);
+  }
+
   public void configureConsumersForSubscription(
       String topic, String subscription, int partitions, long startingOffset, long endingOffset) {
     consumerConfigurations.put(
@@ -0,0 +1,104 @@
+/*
+ * Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.partners.pubsub.kafka;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+import org.junit.Before;
+import org.junit.Test;
+
+public class OrderingKeySchedulerTest {
+
+  private OrderingKeyScheduler scheduler;
+
+  @Before
+  public void setUp() {
+    scheduler = new OrderingKeyScheduler();
+  }
+
+  private static OutstandingMessage message(long offset, String orderingKey) {
+    return OutstandingMessage.newBuilder().setOffset(offset).setOrderingKey(orderingKey).build();
+  }
+
+  private static List<Long> offsets(List<OutstandingMessage> messages) {
+    return messages.stream().map(OutstandingMessage::getOffset).collect(Collectors.toList());
+  }
+
+  @Test
+  public void admitsWholeBatchForKey() {
+    Set<String> batch = new HashSet<>();
+    assertTrue(scheduler.admit(message(0, "a"), batch));
+    assertTrue(scheduler.admit(message(1, "b"), batch));
+    assertTrue(scheduler.admit(message(2, "a"), batch));
+
+    // A later batch cannot deliver keys which are still outstanding
+    Set<String> next = new HashSet<>();
+    assertFalse(scheduler.admit(message(3, "a"), next));
+    assertTrue(scheduler.admit(message(4, "c"), next));
+    assertFalse(scheduler.admit(message(5, "c"), batch));
+    assertEquals(2, scheduler.heldMessages());
+  }
+
+  @Test
+  public void releasingBatchMakesHeldMessagesReady() {
+    Set<String> batch = new HashSet<>();
+    scheduler.admit(message(0, "a"), batch);
+    scheduler.admit(message(1, "a"), batch);
+    assertFalse(scheduler.admit(message(2, "a"), new HashSet<>()));
+    assertFalse(scheduler.admit(message(3, "a"), new HashSet<>()));
+
+    assertFalse(scheduler.release("a"));
+    List<OutstandingMessage> messages = new ArrayList<>();
+    assertEquals(0, scheduler.pollReady(messages, new HashSet<>(), 10, Long.MAX_VALUE));
+    assertTrue(scheduler.release("a"));
+
+    // Limits split the held messages across pulls without breaking their order
+    Set<String> ready = new HashSet<>();
+    scheduler.pollReady(messages, ready, 1, Long.MAX_VALUE);
+    assertEquals(Arrays.asList(2L), offsets(messages));
+    assertEquals(new HashSet<>(Arrays.asList("a")), ready);
+    assertTrue(scheduler.release("a"));
+    scheduler.pollReady(messages, ready, 10, Long.MAX_VALUE);
+    assertEquals(Arrays.asList(2L, 3L), offsets(messages));
+    assertEquals(0, scheduler.heldMessages());
+  }
+
+  @Test
+  public void expiredMessagesAreRedeliveredBeforeHeldMessages() {
+    Set<String> batch = new HashSet<>();
+    OutstandingMessage first = message(0, "a");
+    scheduler.admit(first, batch);
+    scheduler.admit(message(1, "a"), batch);
+    scheduler.admit(message(2, "a"), new HashSet<>());
+
+    scheduler.requeue(first);
+    assertFalse(scheduler.release("a"));
+    assertTrue(scheduler.release("a"));
+
+    List<OutstandingMessage> messages = new ArrayList<>();
+    scheduler.pollReady(messages, new HashSet<>(), 10, Long.MAX_VALUE);
+    assertEquals(Arrays.asList(0L, 2L), offsets(messages));
+  }
+}
@@ -0,0 +1,51 @@
+/*
+ * Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.partners.pubsub.kafka;
+
+import static org.junit.Assert.assertEquals;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedOutputStream;
+import com.google.pubsub.v1.PubsubMessage;
+import java.io.ByteArrayOutputStream;
+import org.junit.Test;
+
+public class OrderingKeysTest {
+
+  @Test
+  public void readsOrderingKeyFromNewerClients() throws Exception {
+    // Serialize the message the way a client aware of the ordering_key field would
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    CodedOutputStream output = CodedOutputStream.newInstance(bytes);
+    output.writeBytes(1, ByteString.copyFromUtf8("data"));
+    output.writeString(OrderingKeys.ORDERING_KEY_FIELD_NUMBER, "key-1");
+    output.flush();
+
+    PubsubMessage message = PubsubMessage.parseFrom(bytes.toByteArray());
+    assertEquals("data", message.getData().toStringUtf8());
+    assertEquals("key-1", OrderingKeys.get(message));
+    assertEquals("", OrderingKeys.get(PubsubMessage.getDefaultInstance()));
+  }
+
+  @Test
+  public void setSurvivesSerialization() throws Exception {
+    PubsubMessage message =
+        OrderingKeys.set(PubsubMessage.newBuilder().putAttributes("k", "v"), "key-2").build();
+    assertEquals("key-2", OrderingKeys.get(PubsubMessage.parseFrom(message.toByteString())));
+    assertEquals("key-3", OrderingKeys.get(OrderingKeys.set(message.toBuilder(), "key-3").build()));
+  }
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.partners.pubsub.kafka;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PartitionOffsetTrackerTest {
+
+  private PartitionOffsetTracker tracker;
+
+  @Before
+  public void setUp() {
+    tracker = new PartitionOffsetTracker();
+  }
+
+  @Test
+  public void emptyTrackerHasNoCommitOffset() {
+    assertNull(tracker.getCommitOffset());
+    assertFalse(tracker.acknowledge(0));
+  }
+
+  @Test
+  public void commitOffsetIsSmallestUnacknowledged() {
+    for (long offset = 10; offset < 20; offset++) {
+      assertTrue(tracker.add(offset));
+    }
+    assertEquals(Long.valueOf(10), tracker.getCommitOffset());
+
+    assertTrue(tracker.acknowledge(12));
+    assertTrue(tracker.acknowledge(11));
+    assertEquals(Long.valueOf(10), tracker.getCommitOffset());
+
+    assertTrue(tracker.acknowledge(10));
+    assertEquals(Long.valueOf(13), tracker.getCommitOffset());
+    assertFalse(tracker.acknowledge(10));
+  }
+
+  @Test
+  public void commitOffsetIsLargestPlusOneWhenAllAcknowledged() {
+    tracker.add(5);
+    tracker.add(6);
+    tracker.add(9); // Gaps in offsets are possible with compacted topics
+    tracker.acknowledge(9);
+    tracker.acknowledge(6);
+    tracker.acknowledge(5);
+    assertEquals(Long.valueOf(10), tracker.getCommitOffset());
+  }
+
+  @Test
+  public void releasePurgesDeliveredOffsets() {
+    tracker.add(0);
+    tracker.add(1);
+    tracker.add(3);
+    tracker.add(4);
+    tracker.acknowledge(0);
+    tracker.acknowledge(1);
+    tracker.acknowledge(3);
+
+    List<Long> released = new ArrayList<>();
+    assertEquals(3, tracker.release(tracker.getCommitOffset(), released::add));
+    assertEquals(Arrays.asList(0L, 1L, 3L), released);
+    assertEquals(Long.valueOf(4), tracker.getCommitOffset());
+
+    // Offsets below the released point are no longer tracked
+    assertFalse(tracker.add(3));
+    assertFalse(tracker.acknowledge(3));
+
+    tracker.acknowledge(4);
+    released.clear();
+    assertEquals(1, tracker.release(tracker.getCommitOffset(), released::add));
+    assertEquals(Arrays.asList(4L), released);
+    assertNull(tracker.getCommitOffset());
+  }
+
+  @Test
+  public void addExtendsRingBelowFirstOffset() {
+    // A concurrent pull leased the higher offsets first
+    for (long offset = 5; offset < 10; offset++) {
+      assertTrue(tracker.add(offset));
+      tracker.acknowledge(offset);
+    }
+    assertEquals(Long.valueOf(10), tracker.getCommitOffset());
+
+    for (long offset = 0; offset < 5; offset++) {
+      assertTrue(tracker.add(offset));
+    }
+    assertEquals(Long.valueOf(0), tracker.getCommitOffset());
+    tracker.acknowledge(0);
+    tracker.acknowledge(2);
+    assertEquals(Long.valueOf(1), tracker.getCommitOffset());
+    assertArrayEquals(new long[] {2, 5, 6, 7, 8, 9}, tracker.getAcknowledged());
+  }
+
+  @Test
+  public void commitOffsetSkipsOffsetsNeverDelivered() {
+    tracker.add(0);
+    tracker.acknowledge(0);
+    // Offset 1 was removed by compaction, so it is never delivered
+    tracker.add(2);
+    assertEquals(Long.valueOf(2), tracker.getCommitOffset());
+    tracker.acknowledge(2);
+    assertEquals(Long.valueOf(3), tracker.getCommitOffset());
+  }
+
+  @Test
+  public void addRefusesOffsetsBelowStartOffset() {
+    PartitionOffsetTracker started = new PartitionOffsetTracker(5);
+    assertFalse(started.add(4));
+    assertTrue(started.add(7));
+    started.acknowledge(7);
+    // Offsets between the start offset and the first added one can still be leased
+    assertTrue(started.add(5));
+    assertEquals(Long.valueOf(5), started.getCommitOffset());
+  }
+
+  @Test
+  public void redeliveryMovesWatermarkBack() {
+    tracker.add(0);
+    tracker.add(1);
+    tracker.acknowledge(0);
+    tracker.acknowledge(1);
+    assertEquals(Long.valueOf(2), tracker.getCommitOffset());
+
+    tracker.add(1);
+    assertEquals(Long.valueOf(1), tracker.getCommitOffset());
+  }
+
+  @Test
+  public void acknowledgedOffsetsAboveWatermark() {
+    assertArrayEquals(new long[0], tracker.getAcknowledged());
+    for (long offset = 0; offset < 200; offset++) {
+      tracker.add(offset);
+    }
+    tracker.acknowledge(0);
+    tracker.acknowledge(2);
+    tracker.acknowledge(63);
+    tracker.acknowledge(64);
+    tracker.acknowledge(150);
+    // Offset 0 is below the watermark, so it would not be delivered again
+    assertEquals(Long.valueOf(1), tracker.getCommitOffset());
+    assertArrayEquals(new long[] {2, 63, 64, 150}, tracker.getAcknowledged());
+
+    tracker.acknowledge(1);
+    tracker.release(tracker.getCommitOffset(), offset -> {});
+    assertArrayEquals(new long[] {63, 64, 150}, tracker.getAcknowledged());
+  }
+
+  @Test
+  public void growsBeyondInitialCapacity() {
+    int total = 100000;
+    for (long offset = 0; offset < total; offset++) {
+      tracker.add(offset);
+    }
+    for (long offset = total - 1; offset > 0; offset--) {
+      tracker.acknowledge(offset);
+    }
+    assertEquals(Long.valueOf(0), tracker.getCommitOffset());
+    tracker.acknowledge(0);
+    assertEquals(Long.valueOf(total), tracker.getCommitOffset());
+
+    int[] released = new int[1];
+    assertEquals(total, tracker.release(total, offset -> released[0]++));
+    assertEquals(total, released[0]);
+    assertNull(tracker.getCommitOffset());
+  }
+}
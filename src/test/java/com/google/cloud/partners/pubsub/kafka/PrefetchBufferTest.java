@@ -0,0 +1,221 @@
+/*
+ * Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.partners.pubsub.kafka;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.junit.Test;
+
+public class PrefetchBufferTest {
+
+  private static final String TOPIC = "test-topic";
+
+  @Test
+  public void drainToTracksSize() {
+    PrefetchBuffer buffer = new PrefetchBuffer(100, 1000);
+    List<ConsumerRecord<String, ByteBuffer>> records =
+        TestHelpers.generateConsumerRecords(TOPIC, 1, 5, null);
+    buffer.addAll(records);
+    assertEquals(5, buffer.size());
+    assertEquals(5 * records.get(0).serializedValueSize(), buffer.sizeBytes());
+
+    List<ConsumerRecord<String, ByteBuffer>> drained = new ArrayList<>();
+    assertEquals(3, buffer.drainTo(drained, 3));
+    assertEquals(records.subList(0, 3), drained);
+    assertEquals(2, buffer.size());
+    assertEquals(2 * records.get(0).serializedValueSize(), buffer.sizeBytes());
+
+    assertEquals(2, buffer.drainTo(drained, 10));
+    assertEquals(records, drained);
+    assertEquals(0, buffer.sizeBytes());
+  }
+
+  @Test
+  public void drainToStopsAtMaxBytes() {
+    PrefetchBuffer buffer = new PrefetchBuffer(100, 1000);
+    List<ConsumerRecord<String, ByteBuffer>> records =
+        TestHelpers.generateConsumerRecords(TOPIC, 1, 5, null);
+    buffer.addAll(records);
+    int recordSize = records.get(0).serializedValueSize();
+
+    // The record reaching the limit is included, so a single large record can always be drained
+    List<ConsumerRecord<String, ByteBuffer>> drained = new ArrayList<>();
+    assertEquals(2, buffer.drainTo(drained, 10, recordSize + 1));
+    assertEquals(1, buffer.drainTo(drained, 10, 1));
+    assertEquals(0, buffer.drainTo(drained, 10, 0));
+    assertEquals(records.subList(0, 3), drained);
+    assertEquals(2 * recordSize, buffer.sizeBytes());
+  }
+
+  @Test
+  public void fullAtMessageWatermark() {
+    PrefetchBuffer buffer = new PrefetchBuffer(4, 1000);
+    buffer.addAll(TestHelpers.generateConsumerRecords(TOPIC, 1, 4, null));
+    assertTrue(buffer.isFull());
+    assertFalse(buffer.canResume());
+
+    buffer.drainTo(new ArrayList<>(), 1);
+    assertFalse(buffer.isFull());
+    assertFalse(buffer.canResume());
+
+    buffer.drainTo(new ArrayList<>(), 1);
+    assertTrue(buffer.canResume());
+  }
+
+  @Test
+  public void fullAtByteWatermark() {
+    List<ConsumerRecord<String, ByteBuffer>> records =
+        TestHelpers.generateConsumerRecords(TOPIC, 1, 4, null);
+    PrefetchBuffer buffer = new PrefetchBuffer(100, 3 * records.get(0).serializedValueSize());
+    buffer.addAll(records.subList(0, 1));
+    assertFalse(buffer.isFull());
+    assertTrue(buffer.canResume());
+
+    buffer.addAll(records.subList(1, 4));
+    assertTrue(buffer.isFull());
+    buffer.drainTo(new ArrayList<>(), 2);
+    assertFalse(buffer.isFull());
+    assertFalse(buffer.canResume());
+  }
+
+  @Test
+  public void awaitChangeCompletesImmediatelyWhenRecordsAddedSince() {
+    PrefetchBuffer buffer = new PrefetchBuffer(100, 1000);
+    long since = buffer.changes();
+    buffer.addAll(TestHelpers.generateConsumerRecords(TOPIC, 1, 1, null));
+    assertTrue(buffer.awaitChange(since, deadline(10000)).getNow(false));
+    assertEquals(0, buffer.waiters());
+
+    // Records that were already buffered do not count as a change
+    CompletableFuture<Boolean> waiting = buffer.awaitChange(buffer.changes(), deadline(10000));
+    assertFalse(waiting.isDone());
+    assertEquals(1, buffer.waiters());
+  }
+
+  @Test
+  public void wakeWaitersCompletesEveryWaiter() {
+    PrefetchBuffer buffer = new PrefetchBuffer(100, 1000);
+    long since = buffer.changes();
+    CompletableFuture<Boolean> first = buffer.awaitChange(since, deadline(10000));
+    CompletableFuture<Boolean> second = buffer.awaitChange(since, deadline(20000));
+
+    buffer.wakeWaiters();
+    assertTrue(first.getNow(false));
+    assertTrue(second.getNow(false));
+    assertEquals(0, buffer.waiters());
+    assertTrue(buffer.awaitChange(since, deadline(10000)).getNow(false));
+  }
+
+  @Test
+  public void addAllWakesOneWaiterPerRecord() {
+    PrefetchBuffer buffer = new PrefetchBuffer(100, 1000);
+    CompletableFuture<Boolean> last = buffer.awaitChange(buffer.changes(), deadline(30000));
+    CompletableFuture<Boolean> first = buffer.awaitChange(buffer.changes(), deadline(10000));
+    CompletableFuture<Boolean> second = buffer.awaitChange(buffer.changes(), deadline(20000));
+    assertEquals(3, buffer.waiters());
+    assertFalse(first.isDone());
+
+    buffer.addAll(TestHelpers.generateConsumerRecords(TOPIC, 1, 2, null));
+    assertTrue(first.getNow(false));
+    assertTrue(second.getNow(false));
+    assertFalse(last.isDone());
+    assertEquals(1, buffer.waiters());
+  }
+
+  @Test
+  public void expireWaitersCompletesWaitersPastDeadline() throws Exception {
+    PrefetchBuffer buffer = new PrefetchBuffer(100, 1000);
+    CompletableFuture<Boolean> expiring = buffer.awaitChange(buffer.changes(), deadline(1));
+    CompletableFuture<Boolean> waiting = buffer.awaitChange(buffer.changes(), deadline(10000));
+    Thread.sleep(5);
+
+    buffer.expireWaiters();
+    assertFalse(expiring.getNow(true));
+    assertFalse(waiting.isDone());
+    assertEquals(1, buffer.waiters());
+  }
+
+  @Test
+  public void waiterExecutorCompletesAndExpiresWaiters() throws Exception {
+    ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+    try {
+      PrefetchBuffer buffer = new PrefetchBuffer(100, 1000, () -> {}, executor);
+      CompletableFuture<Thread> woken =
+          buffer
+              .awaitChange(buffer.changes(), deadline(10000))
+              .thenApply(available -> Thread.currentThread());
+      buffer.addAll(TestHelpers.generateConsumerRecords(TOPIC, 1, 1, null));
+      assertNotEquals(Thread.currentThread(), woken.get(5, TimeUnit.SECONDS));
+
+      buffer.drainTo(new ArrayList<>(), 1);
+      CompletableFuture<Boolean> expiring = buffer.awaitChange(buffer.changes(), deadline(50));
+      // Expired by the timer without any call to expireWaiters
+      assertFalse(expiring.get(5, TimeUnit.SECONDS));
+      assertEquals(0, buffer.waiters());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void closeReleasesWaiters() {
+    PrefetchBuffer buffer = new PrefetchBuffer(100, 1000);
+    CompletableFuture<Boolean> waiting = buffer.awaitChange(buffer.changes(), deadline(10000));
+
+    buffer.close();
+    assertFalse(waiting.getNow(true));
+    assertFalse(buffer.awaitChange(buffer.changes(), deadline(10000)).getNow(true));
+    assertEquals(0, buffer.waiters());
+  }
+
+  @Test
+  public void addAllInvokesListenerWhenRecordsAdded() {
+    AtomicInteger notifications = new AtomicInteger();
+    PrefetchBuffer buffer = new PrefetchBuffer(100, 1000, notifications::incrementAndGet, null);
+    buffer.addAll(Collections.emptyList());
+    assertEquals(0, notifications.get());
+
+    buffer.addAll(TestHelpers.generateConsumerRecords(TOPIC, 1, 2, null));
+    assertEquals(1, notifications.get());
+  }
+
+  @Test
+  public void recordFetchAccumulatesLatency() {
+    PrefetchBuffer buffer = new PrefetchBuffer(100, 1000);
+    buffer.recordFetch(100);
+    buffer.recordFetch(300);
+    assertEquals(2, buffer.getFetchCount());
+    assertEquals(400, buffer.getFetchLatencyNanos());
+  }
+
+  private static long deadline(long millis) {
+    return System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+  }
+}
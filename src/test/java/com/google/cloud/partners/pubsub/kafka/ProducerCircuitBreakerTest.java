@@ -0,0 +1,135 @@
+/*
+ * Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.partners.pubsub.kafka;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.google.cloud.partners.pubsub.kafka.ProducerCircuitBreaker.State;
+import com.google.cloud.partners.pubsub.kafka.properties.CircuitBreakerProperties;
+import java.time.Clock;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ProducerCircuitBreakerTest {
+
+  private Clock clock;
+  private CircuitBreakerProperties properties;
+
+  @Before
+  public void setUp() {
+    clock = mock(Clock.class);
+    when(clock.millis()).thenReturn(1000L);
+    properties = new CircuitBreakerProperties();
+    properties.setFailureThreshold(3);
+    properties.setOpenDurationMs(500);
+    properties.setHalfOpenTrials(1);
+  }
+
+  @Test
+  public void opensAfterConsecutiveFailures() {
+    ProducerCircuitBreaker breaker = new ProducerCircuitBreaker(properties, clock);
+    for (int i = 0; i < 2; i++) {
+      assertTrue(breaker.tryAcquire());
+      breaker.onFailure();
+    }
+    // A success resets the count of consecutive failures
+    assertTrue(breaker.tryAcquire());
+    breaker.onSuccess();
+    for (int i = 0; i < 2; i++) {
+      assertTrue(breaker.tryAcquire());
+      breaker.onFailure();
+    }
+    assertEquals(State.CLOSED, breaker.getState());
+
+    assertTrue(breaker.tryAcquire());
+    breaker.onFailure();
+    assertEquals(State.OPEN, breaker.getState());
+    assertFalse(breaker.tryAcquire());
+  }
+
+  @Test
+  public void halfOpenTrialClosesOnSuccess() {
+    ProducerCircuitBreaker breaker = open(new ProducerCircuitBreaker(properties, clock));
+
+    when(clock.millis()).thenReturn(1499L);
+    assertFalse(breaker.tryAcquire());
+    when(clock.millis()).thenReturn(1500L);
+    assertTrue(breaker.tryAcquire());
+    assertEquals(State.HALF_OPEN, breaker.getState());
+    assertFalse(breaker.tryAcquire()); // Only a single trial at a time
+
+    breaker.onSuccess();
+    assertEquals(State.CLOSED, breaker.getState());
+    assertTrue(breaker.tryAcquire());
+  }
+
+  @Test
+  public void halfOpenTrialReopensOnFailure() {
+    ProducerCircuitBreaker breaker = open(new ProducerCircuitBreaker(properties, clock));
+
+    when(clock.millis()).thenReturn(1600L);
+    assertTrue(breaker.tryAcquire());
+    breaker.onFailure();
+    assertEquals(State.OPEN, breaker.getState());
+
+    // The open period restarts from the failed trial
+    when(clock.millis()).thenReturn(2000L);
+    assertFalse(breaker.tryAcquire());
+    when(clock.millis()).thenReturn(2100L);
+    assertTrue(breaker.tryAcquire());
+  }
+
+  @Test
+  public void releaseReturnsHalfOpenTrialWithoutOutcome() {
+    ProducerCircuitBreaker breaker = open(new ProducerCircuitBreaker(properties, clock));
+
+    when(clock.millis()).thenReturn(1500L);
+    assertTrue(breaker.tryAcquire());
+    breaker.release();
+    assertEquals(State.HALF_OPEN, breaker.getState());
+
+    // The released trial can be taken by the next request, whose outcome still counts
+    assertTrue(breaker.tryAcquire());
+    assertFalse(breaker.tryAcquire());
+    breaker.onFailure();
+    assertEquals(State.OPEN, breaker.getState());
+  }
+
+  @Test
+  public void disabledWithoutThreshold() {
+    properties.setFailureThreshold(0);
+    ProducerCircuitBreaker breaker = new ProducerCircuitBreaker(properties, clock);
+    for (int i = 0; i < 10; i++) {
+      assertTrue(breaker.tryAcquire());
+      breaker.onFailure();
+    }
+    assertEquals(State.CLOSED, breaker.getState());
+  }
+
+  private ProducerCircuitBreaker open(ProducerCircuitBreaker breaker) {
+    for (int i = 0; i < properties.getFailureThreshold(); i++) {
+      breaker.tryAcquire();
+      breaker.onFailure();
+    }
+    assertEquals(State.OPEN, breaker.getState());
+    return breaker;
+  }
+}
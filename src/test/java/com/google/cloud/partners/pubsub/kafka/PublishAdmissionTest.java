@@ -0,0 +1,76 @@
+/*
+ * Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.partners.pubsub.kafka;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.google.cloud.partners.pubsub.kafka.properties.PublishLimitProperties;
+import java.util.Collections;
+import org.junit.Test;
+
+public class PublishAdmissionTest {
+
+  private static PublishLimitProperties limits(long maxBytes, int maxRequests) {
+    PublishLimitProperties limits = new PublishLimitProperties();
+    limits.setMaxInFlightBytes(maxBytes);
+    limits.setMaxInFlightRequests(maxRequests);
+    return limits;
+  }
+
+  @Test
+  public void unlimitedByDefault() {
+    PublishAdmission admission = new PublishAdmission(limits(0, 0), Collections.emptyMap());
+    for (int i = 0; i < 1000; i++) {
+      assertTrue(admission.tryAcquire("topic", Integer.MAX_VALUE));
+    }
+    assertEquals(1000, admission.getInFlightRequests());
+  }
+
+  @Test
+  public void globalLimits() {
+    PublishAdmission admission = new PublishAdmission(limits(100, 3), Collections.emptyMap());
+    assertTrue(admission.tryAcquire("a", 60));
+    assertFalse(admission.tryAcquire("b", 50));
+    assertTrue(admission.tryAcquire("b", 40));
+    assertFalse(admission.tryAcquire("b", 1));
+    assertEquals(100, admission.getInFlightBytes());
+
+    admission.release("a", 60);
+    assertTrue(admission.tryAcquire("a", 1));
+    assertTrue(admission.tryAcquire("a", 1));
+    assertFalse(admission.tryAcquire("a", 1)); // Request limit
+    assertEquals(3, admission.getInFlightRequests());
+  }
+
+  @Test
+  public void topicLimitsAndOversizedRequests() {
+    PublishAdmission admission =
+        new PublishAdmission(limits(0, 0), Collections.singletonMap("a", limits(10, 0)));
+    // A request larger than the budget is admitted when nothing else is in flight
+    assertTrue(admission.tryAcquire("a", 50));
+    assertFalse(admission.tryAcquire("a", 1));
+    assertTrue(admission.tryAcquire("b", 1000));
+
+    // Rejections by a topic budget do not leak room from the global budget
+    assertEquals(1050, admission.getInFlightBytes());
+    admission.release("a", 50);
+    assertTrue(admission.tryAcquire("a", 10));
+    assertEquals(1010, admission.getInFlightBytes());
+  }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.partners.pubsub.kafka;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.google.cloud.partners.pubsub.kafka.properties.DeduplicationProperties;
+import com.google.protobuf.ByteString;
+import com.google.pubsub.v1.PubsubMessage;
+import java.time.Clock;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PublishDeduplicatorTest {
+
+  private static final String ATTRIBUTE = "idempotency-key";
+  private static final String TOPIC = "topic";
+
+  private Clock clock;
+  private DeduplicationProperties properties;
+
+  @Before
+  public void setUp() {
+    clock = mock(Clock.class);
+    when(clock.millis()).thenReturn(0L);
+    properties = new DeduplicationProperties();
+    properties.setAttribute(ATTRIBUTE);
+    properties.setWindowSeconds(60);
+  }
+
+  @Test
+  public void ignoresMessagesWithoutKey() {
+    PublishDeduplicator deduplicator = new PublishDeduplicator(properties, clock);
+    assertNull(
+        deduplicator.claim(
+            TOPIC, PubsubMessage.newBuilder().setData(ByteString.copyFromUtf8("data")).build()));
+    assertEquals(0, deduplicator.size());
+  }
+
+  @Test
+  public void repeatsReceiveOriginalMessageId() {
+    PublishDeduplicator deduplicator = new PublishDeduplicator(properties, clock);
+    PublishDeduplicator.Entry original = deduplicator.claim(TOPIC, message("key-1"));
+    assertTrue(original.isOriginal());
+
+    PublishDeduplicator.Entry repeat = deduplicator.claim(TOPIC, message("key-1"));
+    assertFalse(repeat.isOriginal());
+    assertFalse(repeat.getMessageId().isDone());
+    deduplicator.published(original, "0-42");
+    assertEquals("0-42", repeat.getMessageId().join());
+    assertEquals("0-42", deduplicator.claim(TOPIC, message("key-1")).getMessageId().join());
+
+    // Keys are scoped to their topic
+    assertTrue(deduplicator.claim("other-topic", message("key-1")).isOriginal());
+    assertTrue(deduplicator.claim(TOPIC, message("key-2")).isOriginal());
+  }
+
+  @Test
+  public void failedOriginalIsForgotten() {
+    PublishDeduplicator deduplicator = new PublishDeduplicator(properties, clock);
+    PublishDeduplicator.Entry original = deduplicator.claim(TOPIC, message("key-1"));
+    PublishDeduplicator.Entry repeat = deduplicator.claim(TOPIC, message("key-1"));
+
+    deduplicator.failed(original, new RuntimeException("Send failed"));
+    assertTrue(repeat.getMessageId().isCompletedExceptionally());
+    assertTrue(deduplicator.claim(TOPIC, message("key-1")).isOriginal());
+  }
+
+  @Test
+  public void keysExpireAfterWindow() {
+    PublishDeduplicator deduplicator = new PublishDeduplicator(properties, clock);
+    deduplicator.published(deduplicator.claim(TOPIC, message("key-1")), "0-0");
+
+    when(clock.millis()).thenReturn(59999L);
+    assertFalse(deduplicator.claim(TOPIC, message("key-1")).isOriginal());
+    when(clock.millis()).thenReturn(60000L);
+    assertTrue(deduplicator.claim(TOPIC, message("key-1")).isOriginal());
+  }
+
+  @Test
+  public void oldestKeysEvictedBeyondMaxEntries() {
+    properties.setMaxEntries(2);
+    PublishDeduplicator deduplicator = new PublishDeduplicator(properties, clock);
+    deduplicator.claim(TOPIC, message("key-1"));
+    deduplicator.claim(TOPIC, message("key-2"));
+    deduplicator.claim(TOPIC, message("key-3"));
+    assertEquals(2, deduplicator.size());
+
+    assertFalse(deduplicator.claim(TOPIC, message("key-3")).isOriginal());
+    assertTrue(deduplicator.claim(TOPIC, message("key-1")).isOriginal());
+  }
+
+  private static PubsubMessage message(String key) {
+    return PubsubMessage.newBuilder()
+        .setData(ByteString.copyFromUtf8("data"))
+        .putAttributes(ATTRIBUTE, key)
+        .build();
+  }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.partners.pubsub.kafka;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.google.cloud.partners.pubsub.kafka.properties.PartitionerProperties;
+import com.google.pubsub.v1.PubsubMessage;
+import java.util.function.ToIntFunction;
+import org.junit.Test;
+
+public class PublishPartitionersTest {
+
+  private static final String TOPIC = "test-topic";
+
+  private static PartitionerProperties properties(String type, String attribute) {
+    PartitionerProperties properties = new PartitionerProperties();
+    properties.setType(type);
+    properties.setAttribute(attribute);
+    return properties;
+  }
+
+  private static PubsubMessage message(String attribute, String value) {
+    return PubsubMessage.newBuilder().putAttributes(attribute, value).build();
+  }
+
+  @Test
+  public void stickyUsesOnePartitionPerRequest() {
+    PublishPartitioner partitioner =
+        PublishPartitioners.create(properties(PublishPartitioners.STICKY, null));
+    ToIntFunction<PubsubMessage> first = partitioner.forRequest(TOPIC, 3);
+    ToIntFunction<PubsubMessage> second = partitioner.forRequest(TOPIC, 3);
+    PubsubMessage message = PubsubMessage.getDefaultInstance();
+
+    assertEquals(first.applyAsInt(message), first.applyAsInt(message));
+    assertEquals(second.applyAsInt(message), second.applyAsInt(message));
+    assertNotEquals(first.applyAsInt(message), second.applyAsInt(message));
+  }
+
+  @Test
+  public void roundRobinCyclesThroughPartitions() {
+    ToIntFunction<PubsubMessage> partitioning =
+        PublishPartitioners.create(properties(PublishPartitioners.ROUND_ROBIN, null))
+            .forRequest(TOPIC, 3);
+    PubsubMessage message = PubsubMessage.getDefaultInstance();
+    for (int i = 0; i < 6; i++) {
+      assertEquals(i % 3, partitioning.applyAsInt(message));
+    }
+  }
+
+  @Test
+  public void attributeHashRoutesOnAttributeValue() {
+    ToIntFunction<PubsubMessage> partitioning =
+        PublishPartitioners.create(properties(PublishPartitioners.ATTRIBUTE_HASH, "tenant"))
+            .forRequest(TOPIC, 16);
+
+    int partition = partitioning.applyAsInt(message("tenant", "a"));
+    assertTrue(partition >= 0 && partition < 16);
+    for (int i = 0; i < 5; i++) {
+      assertEquals(partition, partitioning.applyAsInt(message("tenant", "a")));
+    }
+    assertEquals(PublishPartitioner.UNASSIGNED, partitioning.applyAsInt(message("other", "a")));
+  }
+
+  @Test
+  public void createsCustomPartitioners() {
+    PublishPartitioner partitioner =
+        PublishPartitioners.create(properties(LastPartitioner.class.getName(), null));
+    assertEquals(
+        4, partitioner.forRequest(TOPIC, 5).applyAsInt(PubsubMessage.getDefaultInstance()));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void rejectsUnknownTypes() {
+    PublishPartitioners.create(properties("java.lang.String", null));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void attributeHashRequiresAttribute() {
+    PublishPartitioners.create(properties(PublishPartitioners.ATTRIBUTE_HASH, null));
+  }
+
+  public static class LastPartitioner implements PublishPartitioner {
+
+    @Override
+    public ToIntFunction<PubsubMessage> forRequest(String topic, int partitions) {
+      return message -> partitions - 1;
+    }
+  }
+}
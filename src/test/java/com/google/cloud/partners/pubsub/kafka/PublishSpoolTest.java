@@ -0,0 +1,164 @@
+/*
+ * Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.partners.pubsub.kafka;
+
+import static com.google.cloud.partners.pubsub.kafka.TestHelpers.generatePubsubMessages;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.google.cloud.partners.pubsub.kafka.properties.SpoolProperties;
+import com.google.cloud.partners.pubsub.kafka.properties.SpoolProperties.FsyncPolicy;
+import com.google.pubsub.v1.PublishRequest;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Objects;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class PublishSpoolTest {
+
+  @Rule public final TemporaryFolder folder = new TemporaryFolder();
+
+  private SpoolProperties properties;
+
+  @Before
+  public void setUp() {
+    properties = new SpoolProperties();
+    properties.setDirectory(folder.getRoot().getAbsolutePath());
+    properties.setSegmentBytes(4096);
+    properties.setFsync(FsyncPolicy.ALWAYS);
+  }
+
+  @Test
+  public void drainsInAppendOrder() throws IOException {
+    PublishSpool spool = new PublishSpool(properties);
+    assertFalse(spool.isActive());
+    assertNull(spool.peek());
+
+    assertEquals(Arrays.asList("spool-0", "spool-1"), spool.append(request("topic-1", 2)));
+    assertEquals(Arrays.asList("spool-2"), spool.append(request("topic-2", 1)));
+    assertTrue(spool.isActive());
+
+    PublishSpool.Entry entry = spool.peek();
+    assertEquals(request("topic-1", 2), entry.getRequest());
+    spool.markDrained(entry);
+    entry = spool.peek();
+    assertEquals(request("topic-2", 1), entry.getRequest());
+    spool.markDrained(entry);
+    assertFalse(spool.isActive());
+    assertNull(spool.peek());
+    spool.close();
+  }
+
+  @Test
+  public void recoversEntriesNotDrained() throws IOException {
+    PublishSpool spool = new PublishSpool(properties);
+    spool.append(request("topic-1", 2));
+    spool.append(request("topic-2", 2));
+    spool.markDrained(spool.peek());
+    spool.close();
+
+    spool = new PublishSpool(properties);
+    assertTrue(spool.isActive());
+    assertEquals(request("topic-2", 2), spool.peek().getRequest());
+    // Spool IDs continue after the recovered messages
+    assertEquals(Arrays.asList("spool-4"), spool.append(request("topic-3", 1)));
+    spool.close();
+  }
+
+  @Test
+  public void spoolIdsAreNotReusedAcrossRestarts() throws IOException {
+    PublishSpool spool = new PublishSpool(properties);
+    assertEquals(Arrays.asList("spool-0", "spool-1"), spool.append(request("topic-1", 2)));
+    spool.markDrained(spool.peek());
+    spool.close();
+
+    // The drained segment is kept, since it is the only record of the next sequence number
+    spool = new PublishSpool(properties);
+    assertFalse(spool.isActive());
+    assertEquals(1, segments());
+    assertEquals(Arrays.asList("spool-2"), spool.append(request("topic-1", 1)));
+    spool.markDrained(spool.peek());
+    spool.close();
+
+    spool = new PublishSpool(properties);
+    assertFalse(spool.isActive());
+    assertEquals(Arrays.asList("spool-3"), spool.append(request("topic-1", 1)));
+    spool.close();
+  }
+
+  @Test
+  public void recoveryStopsAtCorruptEntry() throws IOException {
+    PublishSpool spool = new PublishSpool(properties);
+    spool.append(request("topic-1", 1));
+    spool.close();
+
+    try (RandomAccessFile file = new RandomAccessFile(folder.getRoot().listFiles()[0], "rw")) {
+      file.seek(20);
+      file.write(~file.read());
+    }
+    spool = new PublishSpool(properties);
+    assertFalse(spool.isActive());
+    spool.close();
+  }
+
+  @Test
+  public void deletesDrainedSegments() throws IOException {
+    properties.setSegmentBytes(256);
+    PublishSpool spool = new PublishSpool(properties);
+    for (int i = 0; i < 10; i++) {
+      spool.append(request("topic-1", 3));
+    }
+    assertTrue(segments() > 1);
+
+    PublishSpool.Entry entry;
+    while ((entry = spool.peek()) != null) {
+      spool.markDrained(entry);
+    }
+    assertEquals(1, segments());
+    spool.close();
+  }
+
+  @Test
+  public void refusesRequestsBeyondMaxBytes() throws IOException {
+    properties.setMaxBytes(256);
+    PublishSpool spool = new PublishSpool(properties);
+    int appended = 0;
+    while (spool.append(request("topic-1", 3)) != null) {
+      appended++;
+    }
+    assertTrue(appended > 0);
+    assertTrue(spool.getSizeBytes() <= 256);
+    spool.close();
+  }
+
+  private int segments() {
+    return Objects.requireNonNull(folder.getRoot().listFiles()).length;
+  }
+
+  private static PublishRequest request(String topic, int messages) {
+    return PublishRequest.newBuilder()
+        .setTopic(topic)
+        .addAllMessages(generatePubsubMessages(messages))
+        .build();
+  }
+}
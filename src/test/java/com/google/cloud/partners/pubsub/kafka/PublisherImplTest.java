@@ -24,8 +24,16 @@ import static org.junit.Assert.fail;
 import static org.mockito.ArgumentMatchers.argThat;
 import static org.mockito.Mockito.*;
 
+import com.google.cloud.partners.pubsub.kafka.properties.CircuitBreakerProperties;
+import com.google.cloud.partners.pubsub.kafka.properties.DeduplicationProperties;
+import com.google.cloud.partners.pubsub.kafka.properties.PartitionerProperties;
+import com.google.cloud.partners.pubsub.kafka.properties.ProducerProfileProperties;
+import com.google.cloud.partners.pubsub.kafka.properties.ProducerProperties;
+import com.google.cloud.partners.pubsub.kafka.properties.PublishLimitProperties;
 import com.google.cloud.partners.pubsub.kafka.properties.SubscriptionProperties;
 import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
 import com.google.protobuf.ByteString;
 import com.google.pubsub.v1.DeleteTopicRequest;
 import com.google.pubsub.v1.GetTopicRequest;
@@ -36,14 +44,17 @@ import com.google.pubsub.v1.ListTopicsResponse;
 import com.google.pubsub.v1.PublishRequest;
 import com.google.pubsub.v1.PublishResponse;
 import com.google.pubsub.v1.PublisherGrpc;
+import com.google.pubsub.v1.PubsubMessage;
 import com.google.pubsub.v1.Topic;
 import io.grpc.Status;
 import io.grpc.StatusRuntimeException;
 import io.grpc.testing.GrpcServerRule;
 import java.nio.ByteBuffer;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.stream.Collectors;
 
 import org.apache.kafka.clients.producer.MockProducer;
 import org.apache.kafka.clients.producer.ProducerRecord;
@@ -52,6 +63,7 @@ import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.junit.runner.RunWith;
 import org.mockito.Mock;
 import org.mockito.junit.MockitoJUnitRunner;
@@ -65,6 +77,8 @@ public class PublisherImplTest {
       Executors.newSingleThreadScheduledExecutor();
   private static final String PROJECT_TOPIC_FORMAT = "projects/%s/topics/%s";
 
+  @Rule public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
   @Rule public final GrpcServerRule grpcServerRule = new GrpcServerRule().directExecutor();
 
   private PublisherGrpc.PublisherBlockingStub blockingStub;
@@ -551,6 +565,228 @@ public class PublisherImplTest {
     verify(statisticsManager, never()).computePublishError(anyString());
   }
 
+  @Test
+  public void publishWithOrderingKey() {
+    PubsubMessage ordered =
+        OrderingKeys.set(PubsubMessage.newBuilder().setData(ByteString.copyFromUtf8("a")), "key-1")
+            .build();
+    PubsubMessage unordered =
+        PubsubMessage.newBuilder().setData(ByteString.copyFromUtf8("b")).build();
+    PublishRequest request =
+        PublishRequest.newBuilder()
+            .setTopic(TOPIC1)
+            .addMessages(ordered)
+            .addMessages(unordered)
+            .build();
+    MockProducer<String, ByteBuffer> producer = kafkaClientFactory.getCreatedProducers().get(0);
+
+    ListenableFuture<PublishResponse> future =
+        PublisherGrpc.newFutureStub(grpcServerRule.getChannel()).publish(request);
+    producer.completeNext();
+    producer.completeNext();
+    assertEquals(2, Futures.getUnchecked(future).getMessageIdsCount());
+
+    List<ProducerRecord<String, ByteBuffer>> history = producer.history();
+    assertEquals("key-1", history.get(0).key());
+    assertEquals(null, history.get(1).key());
+  }
+
+  @Test
+  public void publishWithStickyPartitioner() {
+    PartitionerProperties sticky = new PartitionerProperties();
+    sticky.setType(PublishPartitioners.STICKY);
+    Map<String, PartitionerProperties> partitioners =
+        Configuration.getApplicationProperties()
+            .getKafkaProperties()
+            .getProducerProperties()
+            .getPartitioners();
+    partitioners.put(TOPIC1, sticky);
+    try {
+      kafkaClientFactory = new MockKafkaClientFactoryImpl();
+      kafkaClientFactory.configureProducerPartitions(TOPIC1, 3);
+      grpcServerRule
+          .getServiceRegistry()
+          .addService(new PublisherImpl(kafkaClientFactory, statisticsManager));
+      MockProducer<String, ByteBuffer> producer = kafkaClientFactory.getCreatedProducers().get(0);
+      PublishRequest request =
+          PublishRequest.newBuilder()
+              .setTopic(TOPIC1)
+              .addAllMessages(generatePubsubMessages(4))
+              .build();
+
+      for (int i = 0; i < 2; i++) {
+        ListenableFuture<PublishResponse> future =
+            PublisherGrpc.newFutureStub(grpcServerRule.getChannel()).publish(request);
+        while (producer.completeNext()) {}
+        PublishResponse response = Futures.getUnchecked(future);
+        assertEquals(4, response.getMessageIdsCount());
+        for (int j = 0; j < 4; j++) {
+          assertEquals(i + "-" + j, response.getMessageIds(j));
+        }
+      }
+    } finally {
+      partitioners.remove(TOPIC1);
+    }
+  }
+
+  @Test
+  public void publishWithProducerProfile() {
+    ProducerProfileProperties telemetry = new ProducerProfileProperties();
+    telemetry.setExecutors(2);
+    telemetry.setAcks("1");
+    ProducerProperties producerProperties =
+        Configuration.getApplicationProperties().getKafkaProperties().getProducerProperties();
+    producerProperties.getProfiles().put("telemetry", telemetry);
+    producerProperties.getTopicProfiles().put(TOPIC2, "telemetry");
+    try {
+      kafkaClientFactory = new MockKafkaClientFactoryImpl();
+      grpcServerRule
+          .getServiceRegistry()
+          .addService(new PublisherImpl(kafkaClientFactory, statisticsManager));
+      List<MockProducer<String, ByteBuffer>> producers = kafkaClientFactory.getCreatedProducers();
+      List<MockProducer<String, ByteBuffer>> profileProducers =
+          producers
+              .stream()
+              .filter(p -> kafkaClientFactory.getProducerProfile(p) == telemetry)
+              .collect(Collectors.toList());
+      assertEquals(producerProperties.getExecutors() + 2, producers.size());
+      assertEquals(2, profileProducers.size());
+
+      // Requests to the topic alternate between the KafkaProducers of its profile
+      for (int i = 0; i < 2; i++) {
+        PublishRequest request =
+            PublishRequest.newBuilder()
+                .setTopic(TOPIC2)
+                .addAllMessages(generatePubsubMessages(1))
+                .build();
+        ListenableFuture<PublishResponse> future =
+            PublisherGrpc.newFutureStub(grpcServerRule.getChannel()).publish(request);
+        assertTrue(profileProducers.get(i).completeNext());
+        Futures.getUnchecked(future);
+      }
+      assertEquals(1, profileProducers.get(0).history().size());
+      assertEquals(1, profileProducers.get(1).history().size());
+
+      PublishRequest request =
+          PublishRequest.newBuilder()
+              .setTopic(TOPIC1)
+              .addAllMessages(generatePubsubMessages(1))
+              .build();
+      ListenableFuture<PublishResponse> future =
+          PublisherGrpc.newFutureStub(grpcServerRule.getChannel()).publish(request);
+      assertTrue(producers.get(0).completeNext());
+      Futures.getUnchecked(future);
+      assertEquals(1, profileProducers.get(0).history().size());
+    } finally {
+      producerProperties.getTopicProfiles().remove(TOPIC2);
+      producerProperties.getProfiles().remove("telemetry");
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void publisherRejectsUnknownProducerProfile() {
+    Map<String, String> topicProfiles =
+        Configuration.getApplicationProperties()
+            .getKafkaProperties()
+            .getProducerProperties()
+            .getTopicProfiles();
+    topicProfiles.put(TOPIC2, "unknown");
+    try {
+      new PublisherImpl(new MockKafkaClientFactoryImpl(), statisticsManager);
+    } finally {
+      topicProfiles.remove(TOPIC2);
+    }
+  }
+
+  @Test
+  public void publishDeduplicatesRepeatedMessages() {
+    DeduplicationProperties deduplication =
+        Configuration.getApplicationProperties()
+            .getKafkaProperties()
+            .getProducerProperties()
+            .getDeduplication();
+    deduplication.setAttribute("idempotency-key");
+    try {
+      kafkaClientFactory = new MockKafkaClientFactoryImpl();
+      grpcServerRule
+          .getServiceRegistry()
+          .addService(new PublisherImpl(kafkaClientFactory, statisticsManager));
+      MockProducer<String, ByteBuffer> producer = kafkaClientFactory.getCreatedProducers().get(0);
+      PublishRequest first =
+          PublishRequest.newBuilder()
+              .setTopic(TOPIC1)
+              .addMessages(keyedMessage("key-1"))
+              .addMessages(keyedMessage("key-2"))
+              .build();
+      ListenableFuture<PublishResponse> future =
+          PublisherGrpc.newFutureStub(grpcServerRule.getChannel()).publish(first);
+      while (producer.completeNext()) {}
+      assertEquals(
+          Lists.newArrayList("0-0", "0-1"), Futures.getUnchecked(future).getMessageIdsList());
+
+      // The retry only writes the message whose key has not been seen before
+      PublishRequest retry =
+          PublishRequest.newBuilder()
+              .setTopic(TOPIC1)
+              .addMessages(keyedMessage("key-2"))
+              .addMessages(keyedMessage("key-3"))
+              .addMessages(keyedMessage("key-1"))
+              .build();
+      future = PublisherGrpc.newFutureStub(grpcServerRule.getChannel()).publish(retry);
+      assertEquals(3, producer.history().size());
+      while (producer.completeNext()) {}
+      assertEquals(
+          Lists.newArrayList("0-1", "0-2", "0-0"),
+          Futures.getUnchecked(future).getMessageIdsList());
+    } finally {
+      deduplication.setAttribute(null);
+    }
+  }
+
+  @Test
+  public void publishRejectedWhenTooManyInFlight() {
+    PublishLimitProperties limits =
+        Configuration.getApplicationProperties()
+            .getKafkaProperties()
+            .getProducerProperties()
+            .getLimits();
+    limits.setMaxInFlightRequests(1);
+    try {
+      kafkaClientFactory = new MockKafkaClientFactoryImpl();
+      grpcServerRule
+          .getServiceRegistry()
+          .addService(new PublisherImpl(kafkaClientFactory, statisticsManager));
+      MockProducer<String, ByteBuffer> producer = kafkaClientFactory.getCreatedProducers().get(0);
+      PublishRequest request =
+          PublishRequest.newBuilder()
+              .setTopic(TOPIC1)
+              .addAllMessages(generatePubsubMessages(2))
+              .build();
+
+      ListenableFuture<PublishResponse> inFlight =
+          PublisherGrpc.newFutureStub(grpcServerRule.getChannel()).publish(request);
+      try {
+        blockingStub.publish(request);
+        fail("Publish operation should be rejected");
+      } catch (StatusRuntimeException e) {
+        assertEquals(Status.RESOURCE_EXHAUSTED.getCode(), e.getStatus().getCode());
+      }
+      verify(statisticsManager).computePublishRejection(TOPIC1);
+
+      // Room is made once every message of the request in flight has been acknowledged by Kafka
+      producer.completeNext();
+      producer.completeNext();
+      assertEquals(2, Futures.getUnchecked(inFlight).getMessageIdsCount());
+      ListenableFuture<PublishResponse> next =
+          PublisherGrpc.newFutureStub(grpcServerRule.getChannel()).publish(request);
+      producer.completeNext();
+      producer.completeNext();
+      assertEquals(2, Futures.getUnchecked(next).getMessageIdsCount());
+    } finally {
+      limits.setMaxInFlightRequests(0);
+    }
+  }
+
   @Test
   public void publishProducerFails() {
     int messages = 5;
@@ -583,6 +819,250 @@ public class PublisherImplTest {
     }
   }
 
+  @Test
+  public void publishProducerThrows() {
+    PublishRequest request =
+        PublishRequest.newBuilder()
+            .setTopic(TOPIC1)
+            .addAllMessages(generatePubsubMessages(2))
+            .build();
+    kafkaClientFactory.getCreatedProducers().get(0).close();
+
+    try {
+      blockingStub.publish(request);
+      fail("Publish operation should fail");
+    } catch (StatusRuntimeException e) {
+      assertEquals(Status.INTERNAL.getCode(), e.getStatus().getCode());
+      verify(statisticsManager, atLeastOnce()).computePublishError(eq(TOPIC1));
+    }
+  }
+
+  @Test
+  public void publishFailsFastWhileCircuitBreakerOpen() {
+    CircuitBreakerProperties circuitBreaker =
+        Configuration.getApplicationProperties()
+            .getKafkaProperties()
+            .getProducerProperties()
+            .getCircuitBreaker();
+    circuitBreaker.setFailureThreshold(1);
+    circuitBreaker.setOpenDurationMs(60000);
+    try {
+      kafkaClientFactory = new MockKafkaClientFactoryImpl();
+      grpcServerRule
+          .getServiceRegistry()
+          .addService(new PublisherImpl(kafkaClientFactory, statisticsManager));
+      PublishRequest request =
+          PublishRequest.newBuilder()
+              .setTopic(TOPIC1)
+              .addAllMessages(generatePubsubMessages(2))
+              .build();
+      kafkaClientFactory.getCreatedProducers().get(0).close();
+
+      try {
+        blockingStub.publish(request);
+        fail("Publish operation should fail");
+      } catch (StatusRuntimeException e) {
+        assertEquals(Status.INTERNAL.getCode(), e.getStatus().getCode());
+      }
+      try {
+        blockingStub.publish(request);
+        fail("Publish operation should be refused");
+      } catch (StatusRuntimeException e) {
+        assertEquals(Status.UNAVAILABLE.getCode(), e.getStatus().getCode());
+      }
+      verify(statisticsManager, times(2)).computePublishError(TOPIC1);
+      verify(statisticsManager).computePublishRejection(TOPIC1);
+    } finally {
+      circuitBreaker.setFailureThreshold(5);
+      circuitBreaker.setOpenDurationMs(5000);
+    }
+  }
+
+  @Test
+  public void publishRepeatsDoNotCloseHalfOpenCircuitBreaker() throws Exception {
+    ProducerProperties producerProperties =
+        Configuration.getApplicationProperties().getKafkaProperties().getProducerProperties();
+    producerProperties.getCircuitBreaker().setFailureThreshold(2);
+    producerProperties.getCircuitBreaker().setOpenDurationMs(200);
+    producerProperties.getDeduplication().setAttribute("idempotency-key");
+    try {
+      kafkaClientFactory = new MockKafkaClientFactoryImpl();
+      grpcServerRule
+          .getServiceRegistry()
+          .addService(new PublisherImpl(kafkaClientFactory, statisticsManager));
+      MockProducer<String, ByteBuffer> producer = kafkaClientFactory.getCreatedProducers().get(0);
+      PublisherGrpc.PublisherFutureStub stub =
+          PublisherGrpc.newFutureStub(grpcServerRule.getChannel());
+      ListenableFuture<PublishResponse> future = stub.publish(keyedRequest("key-1"));
+      assertTrue(producer.completeNext());
+      assertEquals(Lists.newArrayList("0-0"), Futures.getUnchecked(future).getMessageIdsList());
+
+      // Two consecutive failures open the circuit breaker
+      for (String key : Lists.newArrayList("key-2", "key-3")) {
+        future = stub.publish(keyedRequest(key));
+        assertTrue(producer.errorNext(new RuntimeException("Broker unavailable")));
+        assertPublishFails(future, Status.Code.INTERNAL);
+      }
+      assertPublishFails(stub.publish(keyedRequest("key-4")), Status.Code.UNAVAILABLE);
+      Thread.sleep(300);
+
+      // A repeat does not reach Kafka, so it neither closes the breaker nor keeps its trial
+      future = stub.publish(keyedRequest("key-1"));
+      assertEquals(Lists.newArrayList("0-0"), Futures.getUnchecked(future).getMessageIdsList());
+
+      // The breaker is still half-open, so a single failed trial opens it again
+      future = stub.publish(keyedRequest("key-5"));
+      assertTrue(producer.errorNext(new RuntimeException("Broker unavailable")));
+      assertPublishFails(future, Status.Code.INTERNAL);
+      assertPublishFails(stub.publish(keyedRequest("key-6")), Status.Code.UNAVAILABLE);
+    } finally {
+      producerProperties.getCircuitBreaker().setFailureThreshold(5);
+      producerProperties.getCircuitBreaker().setOpenDurationMs(5000);
+      producerProperties.getDeduplication().setAttribute(null);
+    }
+  }
+
+  @Test
+  public void publishSpoolsWhileCircuitBreakerOpen() throws Exception {
+    ProducerProperties producerProperties =
+        Configuration.getApplicationProperties().getKafkaProperties().getProducerProperties();
+    producerProperties.getCircuitBreaker().setFailureThreshold(1);
+    producerProperties.getCircuitBreaker().setOpenDurationMs(500);
+    producerProperties.getSpool().setDirectory(temporaryFolder.getRoot().getAbsolutePath());
+    PublisherImpl spoolingPublisher = null;
+    try {
+      kafkaClientFactory = new MockKafkaClientFactoryImpl();
+      spoolingPublisher = new PublisherImpl(kafkaClientFactory, statisticsManager);
+      grpcServerRule.getServiceRegistry().addService(spoolingPublisher);
+      MockProducer<String, ByteBuffer> producer = kafkaClientFactory.getCreatedProducers().get(0);
+      List<PubsubMessage> messages = generatePubsubMessages(2);
+      PublishRequest request =
+          PublishRequest.newBuilder().setTopic(TOPIC1).addAllMessages(messages).build();
+
+      ListenableFuture<PublishResponse> failed =
+          PublisherGrpc.newFutureStub(grpcServerRule.getChannel()).publish(request);
+      producer.errorNext(new RuntimeException("Broker unavailable"));
+      producer.completeNext();
+      try {
+        Futures.getUnchecked(failed);
+        fail("Publish operation should fail");
+      } catch (RuntimeException e) {
+        assertEquals(Status.INTERNAL.getCode(), Status.fromThrowable(e).getCode());
+      }
+
+      // Accepted while the circuit breaker is open, then drained to Kafka once it lets trials in
+      PublishResponse response = blockingStub.publish(request);
+      assertEquals(Lists.newArrayList("spool-0", "spool-1"), response.getMessageIdsList());
+      for (int i = 0; i < messages.size(); i++) {
+        while (producer.history().size() < 3 + i) {
+          Thread.sleep(10);
+        }
+        assertEquals(
+            messages.get(i).getData().asReadOnlyByteBuffer(),
+            producer.history().get(2 + i).value());
+        producer.completeNext();
+      }
+      // Once for the message of the failed request that made it, then for both spooled messages
+      verify(statisticsManager, timeout(5000).times(3))
+          .computePublish(eq(TOPIC1), any(ByteString.class), anyLong());
+    } finally {
+      if (spoolingPublisher != null) {
+        spoolingPublisher.shutdown();
+      }
+      producerProperties.getCircuitBreaker().setFailureThreshold(5);
+      producerProperties.getCircuitBreaker().setOpenDurationMs(5000);
+      producerProperties.getSpool().setDirectory(null);
+    }
+  }
+
+  @Test
+  public void publishSpoolDeduplicatesRepeatedMessages() {
+    ProducerProperties producerProperties =
+        Configuration.getApplicationProperties().getKafkaProperties().getProducerProperties();
+    producerProperties.getCircuitBreaker().setFailureThreshold(1);
+    producerProperties.getSpool().setDirectory(temporaryFolder.getRoot().getAbsolutePath());
+    producerProperties.getDeduplication().setAttribute("idempotency-key");
+    PublisherImpl spoolingPublisher = null;
+    try {
+      kafkaClientFactory = new MockKafkaClientFactoryImpl();
+      spoolingPublisher = new PublisherImpl(kafkaClientFactory, statisticsManager);
+      grpcServerRule.getServiceRegistry().addService(spoolingPublisher);
+      MockProducer<String, ByteBuffer> producer = kafkaClientFactory.getCreatedProducers().get(0);
+      ListenableFuture<PublishResponse> failed =
+          PublisherGrpc.newFutureStub(grpcServerRule.getChannel())
+              .publish(
+                  PublishRequest.newBuilder()
+                      .setTopic(TOPIC1)
+                      .addAllMessages(generatePubsubMessages(1))
+                      .build());
+      producer.errorNext(new RuntimeException("Broker unavailable"));
+      try {
+        Futures.getUnchecked(failed);
+        fail("Publish operation should fail");
+      } catch (RuntimeException e) {
+        assertEquals(Status.INTERNAL.getCode(), Status.fromThrowable(e).getCode());
+      }
+
+      PublishResponse response =
+          blockingStub.publish(
+              PublishRequest.newBuilder()
+                  .setTopic(TOPIC1)
+                  .addMessages(keyedMessage("key-1"))
+                  .addMessages(keyedMessage("key-2"))
+                  .build());
+      assertEquals(Lists.newArrayList("spool-0", "spool-1"), response.getMessageIdsList());
+
+      // The retry only spools the message whose key has not been seen before
+      response =
+          blockingStub.publish(
+              PublishRequest.newBuilder()
+                  .setTopic(TOPIC1)
+                  .addMessages(keyedMessage("key-2"))
+                  .addMessages(keyedMessage("key-3"))
+                  .addMessages(keyedMessage("key-1"))
+                  .build());
+      assertEquals(
+          Lists.newArrayList("spool-1", "spool-2", "spool-0"), response.getMessageIdsList());
+    } finally {
+      if (spoolingPublisher != null) {
+        spoolingPublisher.shutdown();
+      }
+      producerProperties.getCircuitBreaker().setFailureThreshold(5);
+      producerProperties.getSpool().setDirectory(null);
+      producerProperties.getDeduplication().setAttribute(null);
+    }
+  }
+
+  @Test
+  public void publishCompletesFromProducerCallbacks() throws Exception {
+    int messages = 3;
+    PublishRequest request =
+        PublishRequest.newBuilder()
+            .setTopic(TOPIC1)
+            .addAllMessages(generatePubsubMessages(messages))
+            .build();
+    MockProducer<String, ByteBuffer> producer = kafkaClientFactory.getCreatedProducers().get(0);
+
+    // The server runs on a direct executor, so the call only returns here if publish does not wait
+    ListenableFuture<PublishResponse> future =
+        PublisherGrpc.newFutureStub(grpcServerRule.getChannel()).publish(request);
+    assertEquals(messages, producer.history().size());
+    assertFalse(future.isDone());
+
+    producer.completeNext();
+    producer.completeNext();
+    assertFalse(future.isDone());
+    verify(statisticsManager, times(2))
+        .computePublish(eq(TOPIC1), any(ByteString.class), anyLong());
+
+    producer.completeNext();
+    PublishResponse response = future.get();
+    assertEquals(messages, response.getMessageIdsCount());
+    assertEquals("0-0", response.getMessageIds(0));
+    assertEquals("0-1", response.getMessageIds(1));
+    assertEquals("0-2", response.getMessageIds(2));
+  }
+
   @Test
   public void publishProducerTimesOut() {
     int messages = 5;
@@ -618,4 +1098,25 @@ public class PublisherImplTest {
             anyLong());
     verify(statisticsManager, never()).computePublishError(anyString());
   }
+
+  private static PublishRequest keyedRequest(String key) {
+    return PublishRequest.newBuilder().setTopic(TOPIC1).addMessages(keyedMessage(key)).build();
+  }
+
+  private static void assertPublishFails(
+      ListenableFuture<PublishResponse> future, Status.Code code) {
+    try {
+      Futures.getUnchecked(future);
+      fail("Publish operation should fail");
+    } catch (RuntimeException e) {
+      assertEquals(code, Status.fromThrowable(e).getCode());
+    }
+  }
+
+  private static PubsubMessage keyedMessage(String key) {
+    return PubsubMessage.newBuilder()
+        .setData(ByteString.copyFromUtf8("message-" + key))
+        .putAttributes("idempotency-key", key)
+        .build();
+  }
 }
@@ -43,9 +43,13 @@ public class SpyingSubscriptionManageFactoryImpl implements SubscriptionManagerF
   public SubscriptionManager create(
       SubscriptionProperties subscription,
       KafkaClientFactory clientFactory,
-      ScheduledExecutorService commitExecutor) {
+      ScheduledExecutorService commitExecutor,
+      SharedConsumerPool sharedConsumers,
+      TopicTailCache tailCache) {
     SubscriptionManager spy =
-        spy(new SubscriptionManager(subscription, clientFactory, commitExecutor));
+        spy(
+            new SubscriptionManager(
+                subscription, clientFactory, commitExecutor, sharedConsumers, tailCache));
     managerMap.put(subscription.getName(), spy);
     return spy;
   }
@@ -125,6 +125,18 @@ public class StatisticsManagerTest {
         DELTA);
   }
 
+  @Test
+  public void computePublisherRejection() {
+    statisticsManager.computePublishRejection(TEST_TOPIC_1);
+    statisticsManager.computePublishRejection(TEST_TOPIC_1);
+
+    StatisticsInformation information =
+        statisticsManager.getPublishInformationByTopic().get(TEST_TOPIC_1);
+    assertEquals(2, information.getRejectedCount().intValue());
+    assertEquals(0, information.getCount().intValue());
+    assertEquals(0F, information.getErrorRating(), DELTA);
+  }
+
   @Test
   public void computeSubscriber() {
     long durationSeconds = 3L;
@@ -0,0 +1,215 @@
+/*
+ * Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.partners.pubsub.kafka;
+
+import static com.google.cloud.partners.pubsub.kafka.TestHelpers.TOPIC1;
+import static com.google.cloud.partners.pubsub.kafka.TestHelpers.useTestApplicationConfig;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.google.cloud.partners.pubsub.kafka.common.StreamingPublishRequest;
+import com.google.cloud.partners.pubsub.kafka.common.StreamingPublishResponse;
+import com.google.cloud.partners.pubsub.kafka.common.StreamingPublisherGrpc;
+import com.google.cloud.partners.pubsub.kafka.common.StreamingPubsubMessage;
+import com.google.cloud.partners.pubsub.kafka.properties.ProducerProperties;
+import com.google.protobuf.ByteString;
+import io.grpc.Status;
+import io.grpc.stub.StreamObserver;
+import io.grpc.testing.GrpcServerRule;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.apache.kafka.clients.producer.MockProducer;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnitRunner;
+
+@RunWith(MockitoJUnitRunner.class)
+public class StreamingPublisherImplTest {
+
+  @Rule public final GrpcServerRule grpcServerRule = new GrpcServerRule().directExecutor();
+
+  @Mock private StatisticsManager statisticsManager;
+
+  private MockKafkaClientFactoryImpl kafkaClientFactory;
+  private PublisherImpl publisher;
+  private MockProducer<String, ByteBuffer> producer;
+
+  @BeforeClass
+  public static void setUpBeforeClass() {
+    useTestApplicationConfig(1, 1);
+  }
+
+  @Before
+  public void setUp() {
+    kafkaClientFactory = new MockKafkaClientFactoryImpl();
+    publisher = new PublisherImpl(kafkaClientFactory, statisticsManager);
+    producer = kafkaClientFactory.getCreatedProducers().get(0);
+  }
+
+  @Test
+  public void acknowledgesBatchesWithSequenceNumbers() throws Exception {
+    grpcServerRule.getServiceRegistry().addService(new StreamingPublisherImpl(publisher));
+    RecordingObserver responses = new RecordingObserver();
+    StreamObserver<StreamingPublishRequest> requests = openStream(responses);
+    assertEquals(64, responses.next().getWindowSize());
+
+    requests.onNext(batch(TOPIC1, 1, 2));
+    requests.onNext(batch("", 2, 1)); // The topic is only read from the first request
+    awaitHistory(3);
+    assertNull(responses.queue.poll());
+
+    while (producer.completeNext()) {}
+    StreamingPublishResponse first = responses.next();
+    assertEquals(1, first.getSequenceNumber());
+    assertEquals(Arrays.asList("0-0", "0-1"), first.getMessageIdsList());
+    StreamingPublishResponse second = responses.next();
+    assertEquals(2, second.getSequenceNumber());
+    assertEquals(Arrays.asList("0-2"), second.getMessageIdsList());
+    assertEquals(TOPIC1, producer.history().get(2).topic());
+
+    requests.onCompleted();
+    assertTrue(responses.completed.await(5, TimeUnit.SECONDS));
+  }
+
+  @Test
+  public void failedBatchDoesNotCloseStream() throws Exception {
+    grpcServerRule.getServiceRegistry().addService(new StreamingPublisherImpl(publisher));
+    RecordingObserver responses = new RecordingObserver();
+    StreamObserver<StreamingPublishRequest> requests = openStream(responses);
+    responses.next();
+
+    requests.onNext(batch(TOPIC1, 1, 1));
+    awaitHistory(1);
+    producer.errorNext(new RuntimeException("Send failed"));
+    StreamingPublishResponse failed = responses.next();
+    assertEquals(1, failed.getSequenceNumber());
+    assertEquals(Status.Code.INTERNAL.value(), failed.getStatus().getCode());
+
+    requests.onNext(batch(TOPIC1, 2, 1));
+    awaitHistory(2);
+    producer.completeNext();
+    StreamingPublishResponse published = responses.next();
+    assertEquals(2, published.getSequenceNumber());
+    assertEquals(1, published.getMessageIdsCount());
+    requests.onCompleted();
+  }
+
+  @Test
+  public void unknownTopicFailsStream() throws Exception {
+    grpcServerRule.getServiceRegistry().addService(new StreamingPublisherImpl(publisher));
+    RecordingObserver responses = new RecordingObserver();
+    StreamObserver<StreamingPublishRequest> requests = openStream(responses);
+    responses.next();
+
+    requests.onNext(batch("unknown-topic", 1, 1));
+    assertTrue(responses.completed.await(5, TimeUnit.SECONDS));
+    assertEquals(Status.Code.NOT_FOUND, Status.fromThrowable(responses.error).getCode());
+  }
+
+  @Test
+  public void windowLimitsBatchesInFlight() throws Exception {
+    ProducerProperties producerProperties =
+        Configuration.getApplicationProperties().getKafkaProperties().getProducerProperties();
+    producerProperties.setStreamingPublishWindow(1);
+    try {
+      grpcServerRule.getServiceRegistry().addService(new StreamingPublisherImpl(publisher));
+      RecordingObserver responses = new RecordingObserver();
+      StreamObserver<StreamingPublishRequest> requests = openStream(responses);
+      assertEquals(1, responses.next().getWindowSize());
+
+      requests.onNext(batch(TOPIC1, 1, 1));
+      requests.onNext(batch(TOPIC1, 2, 1));
+      awaitHistory(1);
+      Thread.sleep(100);
+      assertEquals(1, producer.history().size());
+
+      // Acknowledging the first batch lets the second one be read
+      producer.completeNext();
+      assertEquals(1, responses.next().getSequenceNumber());
+      awaitHistory(2);
+      producer.completeNext();
+      assertEquals(2, responses.next().getSequenceNumber());
+      requests.onCompleted();
+    } finally {
+      producerProperties.setStreamingPublishWindow(64);
+    }
+  }
+
+  private StreamObserver<StreamingPublishRequest> openStream(RecordingObserver responses) {
+    return StreamingPublisherGrpc.newStub(grpcServerRule.getChannel()).streamingPublish(responses);
+  }
+
+  private void awaitHistory(int records) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 5000;
+    while (producer.history().size() < records && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    assertEquals(records, producer.history().size());
+  }
+
+  private static StreamingPublishRequest batch(String topic, long sequenceNumber, int messages) {
+    StreamingPublishRequest.Builder builder =
+        StreamingPublishRequest.newBuilder().setTopic(topic).setSequenceNumber(sequenceNumber);
+    for (int i = 0; i < messages; i++) {
+      builder.addMessages(
+          StreamingPubsubMessage.newBuilder()
+              .setData(ByteString.copyFromUtf8("message-" + sequenceNumber + "-" + i))
+              .putAttributes("index", String.valueOf(i)));
+    }
+    return builder.build();
+  }
+
+  private static final class RecordingObserver implements StreamObserver<StreamingPublishResponse> {
+
+    private final BlockingQueue<StreamingPublishResponse> queue = new LinkedBlockingQueue<>();
+    private final CountDownLatch completed = new CountDownLatch(1);
+    private volatile Throwable error;
+
+    private StreamingPublishResponse next() throws InterruptedException {
+      StreamingPublishResponse response = queue.poll(5, TimeUnit.SECONDS);
+      if (response == null) {
+        throw new AssertionError("No response received");
+      }
+      return response;
+    }
+
+    @Override
+    public void onNext(StreamingPublishResponse response) {
+      queue.add(response);
+    }
+
+    @Override
+    public void onError(Throwable t) {
+      error = t;
+      completed.countDown();
+    }
+
+    @Override
+    public void onCompleted() {
+      completed.countDown();
+    }
+  }
+}
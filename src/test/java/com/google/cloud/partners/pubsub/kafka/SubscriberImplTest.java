@@ -39,6 +39,7 @@ import static org.junit.Assert.assertTrue;
 import static org.mockito.Mockito.any;
 import static org.mockito.Mockito.argThat;
 import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.eq;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
@@ -48,14 +49,19 @@ import com.google.common.collect.Lists;
 import com.google.protobuf.Empty;
 import com.google.protobuf.Timestamp;
 import com.google.pubsub.v1.AcknowledgeRequest;
+import com.google.pubsub.v1.CreateSnapshotRequest;
 import com.google.pubsub.v1.DeleteSubscriptionRequest;
 import com.google.pubsub.v1.GetSubscriptionRequest;
+import com.google.pubsub.v1.ListSnapshotsRequest;
+import com.google.pubsub.v1.ListSnapshotsResponse;
 import com.google.pubsub.v1.ListSubscriptionsRequest;
 import com.google.pubsub.v1.ListSubscriptionsResponse;
 import com.google.pubsub.v1.ModifyAckDeadlineRequest;
 import com.google.pubsub.v1.PullRequest;
 import com.google.pubsub.v1.PullResponse;
 import com.google.pubsub.v1.ReceivedMessage;
+import com.google.pubsub.v1.SeekRequest;
+import com.google.pubsub.v1.Snapshot;
 import com.google.pubsub.v1.StreamingPullRequest;
 import com.google.pubsub.v1.StreamingPullResponse;
 import com.google.pubsub.v1.SubscriberGrpc;
@@ -79,6 +85,8 @@ import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 import org.apache.kafka.clients.consumer.MockConsumer;
+import org.apache.kafka.common.KafkaException;
+import org.apache.kafka.common.errors.TimeoutException;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.BeforeClass;
@@ -411,6 +419,88 @@ public class SubscriberImplTest {
     assertEquals(10, responseForThirdPage.getSubscriptions(0).getAckDeadlineSeconds());
   }
 
+  @Test
+  public void createAndListSnapshots() {
+    String name = format("projects/%s/snapshots/%s", PROJECT, "snapshot-1");
+    CreateSnapshotRequest request =
+        CreateSnapshotRequest.newBuilder()
+            .setName(name)
+            .setSubscription(SUBSCRIPTION1)
+            .putLabels("purpose", "replay")
+            .build();
+    Snapshot snapshot = blockingStub.createSnapshot(request);
+    assertEquals(name, snapshot.getName());
+    assertEquals(TOPIC1, snapshot.getTopic());
+    assertEquals("replay", snapshot.getLabelsMap().get("purpose"));
+    assertTrue(snapshot.getExpireTime().getSeconds() > System.currentTimeMillis() / 1000);
+
+    assertStatus(Status.ALREADY_EXISTS, () -> blockingStub.createSnapshot(request));
+    assertStatus(
+        Status.NOT_FOUND,
+        () ->
+            blockingStub.createSnapshot(
+                request.toBuilder().setSubscription(SUBSCRIPTION_NOT_EXISTS).build()));
+    assertStatus(
+        Status.INVALID_ARGUMENT,
+        () -> blockingStub.createSnapshot(request.toBuilder().clearName().build()));
+
+    ListSnapshotsResponse response =
+        blockingStub.listSnapshots(ListSnapshotsRequest.getDefaultInstance());
+    assertEquals(Collections.singletonList(snapshot), response.getSnapshotsList());
+    assertTrue(response.getNextPageToken().isEmpty());
+  }
+
+  @Test
+  public void seek() {
+    String name = format("projects/%s/snapshots/%s", PROJECT, "snapshot-2");
+    blockingStub.createSnapshot(
+        CreateSnapshotRequest.newBuilder().setName(name).setSubscription(SUBSCRIPTION1).build());
+
+    // Snapshots can be used by any Subscription of the same topic
+    SeekRequest request =
+        SeekRequest.newBuilder().setSubscription(SUBSCRIPTION2).setSnapshot(name).build();
+    blockingStub.seek(request);
+    blockingStub.seek(
+        SeekRequest.newBuilder()
+            .setSubscription(SUBSCRIPTION2)
+            .setTime(Timestamp.newBuilder().setSeconds(System.currentTimeMillis() / 1000))
+            .build());
+
+    assertStatus(
+        Status.FAILED_PRECONDITION,
+        () -> blockingStub.seek(request.toBuilder().setSubscription(SUBSCRIPTION3).build()));
+    assertStatus(
+        Status.NOT_FOUND,
+        () -> blockingStub.seek(request.toBuilder().setSnapshot(name + "-unknown").build()));
+    assertStatus(
+        Status.NOT_FOUND,
+        () ->
+            blockingStub.seek(
+                request.toBuilder().setSubscription(SUBSCRIPTION_NOT_EXISTS).build()));
+    assertStatus(
+        Status.INVALID_ARGUMENT,
+        () -> blockingStub.seek(request.toBuilder().clearSnapshot().build()));
+
+    // Seeks whose fetchers fail to move are reported rather than acknowledged
+    SubscriptionManager subscriptionManager =
+        subscriptionManageFactory.getForSubscription(SUBSCRIPTION2);
+    doThrow(new TimeoutException("Timed out waiting for the fetchers"))
+        .doThrow(new KafkaException("Failed to move the fetchers"))
+        .when(subscriptionManager)
+        .seekToSnapshot(any());
+    assertStatus(Status.DEADLINE_EXCEEDED, () -> blockingStub.seek(request));
+    assertStatus(Status.UNAVAILABLE, () -> blockingStub.seek(request));
+  }
+
+  private static void assertStatus(Status expected, Runnable call) {
+    try {
+      call.run();
+      fail("Expected " + expected.getCode());
+    } catch (StatusRuntimeException e) {
+      assertEquals(expected.getCode(), e.getStatus().getCode());
+    }
+  }
+
   @Test
   public void pullEmptyResponse() {
     PullRequest request =
@@ -456,6 +546,7 @@ public class SubscriberImplTest {
             .getReceivedMessagesList()
             .stream()
             .map(ReceivedMessage::getAckId)
+            .map(SubscriberImplTest::toMessageId)
             .sorted()
             .collect(Collectors.toList());
     List<String> messages =
@@ -510,6 +601,7 @@ public class SubscriberImplTest {
             .getReceivedMessagesList()
             .stream()
             .map(ReceivedMessage::getAckId)
+            .map(SubscriberImplTest::toMessageId)
             .sorted()
             .collect(Collectors.toList());
     List<String> messages =
@@ -599,7 +691,7 @@ public class SubscriberImplTest {
             .getReceivedMessagesList()
             .forEach(
                 rm -> {
-                  ackIds.add(rm.getAckId());
+                  ackIds.add(toMessageId(rm.getAckId()));
                   messages.add(rm.getMessage().getData().toString(TestHelpers.UTF8));
                 });
       } catch (ExecutionException | InterruptedException e) {
@@ -838,7 +930,8 @@ public class SubscriberImplTest {
 
     assertEquals(6, ackIds.size());
     assertEquals(6, messages.size());
-    List<String> sortedAckIds = ackIds.stream().sorted().collect(Collectors.toList());
+    List<String> sortedAckIds =
+        ackIds.stream().map(SubscriberImplTest::toMessageId).sorted().collect(Collectors.toList());
     List<String> sortedMessages = messages.stream().sorted().collect(Collectors.toList());
     assertEquals(sortedAckIds.get(0), "0-0");
     assertEquals(sortedAckIds.get(1), "0-1");
@@ -912,7 +1005,8 @@ public class SubscriberImplTest {
 
     assertEquals(6, ackIds.size());
     assertEquals(6, messages.size());
-    List<String> sortedAckIds = ackIds.stream().sorted().collect(Collectors.toList());
+    List<String> sortedAckIds =
+        ackIds.stream().map(SubscriberImplTest::toMessageId).sorted().collect(Collectors.toList());
     List<String> sortedMessages = messages.stream().sorted().collect(Collectors.toList());
     assertEquals(sortedAckIds.get(0), "0-0");
     assertEquals(sortedAckIds.get(1), "0-1");
@@ -974,7 +1068,8 @@ public class SubscriberImplTest {
     }
     requestObserver.onCompleted();
     waitForMessageReceipt();
-    verify(subscriptionManageFactory.getForSubscription(SUBSCRIPTION1)).pull(500, true, 30);
+    verify(subscriptionManageFactory.getForSubscription(SUBSCRIPTION1), atLeastOnce())
+        .pull(500, true, 30);
     verify(subscriptionManageFactory.getForSubscription(SUBSCRIPTION1), atLeastOnce())
         .commitFromAcknowledgments();
 
@@ -1042,7 +1137,8 @@ public class SubscriberImplTest {
 
     assertEquals(6, ackIds.size());
     assertEquals(6, messages.size());
-    List<String> sortedAckIds = ackIds.stream().sorted().collect(Collectors.toList());
+    List<String> sortedAckIds =
+        ackIds.stream().map(SubscriberImplTest::toMessageId).sorted().collect(Collectors.toList());
     List<String> sortedMessages = messages.stream().sorted().collect(Collectors.toList());
     assertEquals(sortedAckIds.get(0), "0-0");
     assertEquals(sortedAckIds.get(1), "0-1");
@@ -1122,4 +1218,10 @@ public class SubscriberImplTest {
       System.out.println("Unexpected InterruptedException during wait");
     }
   }
+
+  /** Returns the partition-offset message ID of the message that {@code ackId} was issued for */
+  private static String toMessageId(String ackId) {
+    long key = AckId.decodeKey(ackId);
+    return AckId.partition(key) + "-" + AckId.offset(key);
+  }
 }
@@ -18,27 +18,46 @@ package com.google.cloud.partners.pubsub.kafka;
 
 import static java.util.stream.Collectors.toMap;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import com.google.cloud.partners.pubsub.kafka.properties.ConsumerProperties;
+import com.google.cloud.partners.pubsub.kafka.properties.OffsetStoreProperties;
 import com.google.cloud.partners.pubsub.kafka.properties.SubscriptionProperties;
+import com.google.cloud.partners.pubsub.kafka.properties.TailCacheProperties;
+import com.google.protobuf.ByteString;
 import com.google.pubsub.v1.PubsubMessage;
+import com.google.pubsub.v1.ReceivedMessage;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.time.Instant;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
 import java.util.stream.Collectors;
 import org.apache.kafka.clients.consumer.ConsumerRecord;
 import org.apache.kafka.clients.consumer.MockConsumer;
 import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.clients.producer.MockProducer;
+import org.apache.kafka.common.KafkaException;
 import org.apache.kafka.common.TopicPartition;
 import org.apache.kafka.common.header.Header;
 import org.apache.kafka.common.header.internals.RecordHeader;
+import org.apache.kafka.common.header.internals.RecordHeaders;
+import org.apache.kafka.common.record.TimestampType;
 import org.junit.Before;
 import org.junit.Test;
 
@@ -73,16 +92,20 @@ public class SubscriptionManagerTest {
     TestHelpers.generateConsumerRecords(TOPIC, partitions, recordsPerPartition, null)
         .forEach(mockConsumer::addRecord);
 
-    List<PubsubMessage> response = subscriptionManager.pull(10, false);
+    List<ReceivedMessage> response = subscriptionManager.pull(10, false);
     assertEquals(6, response.size());
 
     // Sort messageIds and data for easier evaluation
     List<String> messageIds =
-        response.stream().map(PubsubMessage::getMessageId).sorted().collect(Collectors.toList());
+        response
+            .stream()
+            .map(m -> m.getMessage().getMessageId())
+            .sorted()
+            .collect(Collectors.toList());
     List<String> messages =
         response
             .stream()
-            .map(m -> m.getData().toString(TestHelpers.UTF8))
+            .map(m -> m.getMessage().getData().toString(TestHelpers.UTF8))
             .sorted()
             .collect(Collectors.toList());
 
@@ -115,22 +138,27 @@ public class SubscriptionManagerTest {
     TestHelpers.generateConsumerRecords(TOPIC, partitions, recordsPerPartition, headers)
         .forEach(mockConsumer::addRecord);
 
-    List<PubsubMessage> response = subscriptionManager.pull(10, false);
+    List<ReceivedMessage> response = subscriptionManager.pull(10, false);
     assertEquals(6, response.size());
 
     // Sort messageIds and data for easier evaluation
     List<String> messageIds =
-        response.stream().map(PubsubMessage::getMessageId).sorted().collect(Collectors.toList());
+        response
+            .stream()
+            .map(m -> m.getMessage().getMessageId())
+            .sorted()
+            .collect(Collectors.toList());
     List<String> messages =
         response
             .stream()
-            .map(m -> m.getData().toString(TestHelpers.UTF8))
+            .map(m -> m.getMessage().getData().toString(TestHelpers.UTF8))
             .sorted()
             .collect(Collectors.toList());
 
     Map<String, Map<String, String>> attributesMaps =
         response
             .stream()
+            .map(ReceivedMessage::getMessage)
             .collect(toMap(PubsubMessage::getMessageId, PubsubMessage::getAttributesMap));
 
     assertEquals("0-0", messageIds.get(0));
@@ -159,6 +187,65 @@ public class SubscriptionManagerTest {
     assertEquals("message-0005", messages.get(5));
   }
 
+  @Test
+  public void pullWrapsRecordValuesWithoutCopying() {
+    configureSubscriptionManager(1, 1, 10);
+    MockConsumer<String, ByteBuffer> mockConsumer =
+        kafkaClientFactory.getConsumersForSubscription(SUBSCRIPTION).get(0);
+    byte[] payload = "payload".getBytes(TestHelpers.UTF8);
+    RecordHeaders headers = new RecordHeaders();
+    headers.add("key", "v\u00e4lue".getBytes(TestHelpers.UTF8));
+    long timestamp = 1500000000123L;
+    mockConsumer.addRecord(record(0, timestamp, ByteBuffer.wrap(payload), headers));
+    mockConsumer.addRecord(record(1, timestamp, null, new RecordHeaders()));
+
+    List<ReceivedMessage> response = subscriptionManager.pull(10, false);
+    assertEquals(2, response.size());
+    PubsubMessage first = response.get(0).getMessage();
+    PubsubMessage second = response.get(1).getMessage();
+    assertEquals("payload", first.getData().toString(TestHelpers.UTF8));
+    assertEquals("v\u00e4lue", first.getAttributesOrThrow("key"));
+    assertEquals(1500000000, first.getPublishTime().getSeconds());
+    assertEquals(123000000, first.getPublishTime().getNanos());
+    assertEquals(ByteString.EMPTY, second.getData());
+    assertSame(first.getPublishTime(), second.getPublishTime());
+
+    // The message shares the record's value rather than holding a copy of it
+    payload[0] = 'P';
+    assertEquals("Payload", first.getData().toString(TestHelpers.UTF8));
+  }
+
+  private static ConsumerRecord<String, ByteBuffer> record(
+      long offset, long timestamp, ByteBuffer value, RecordHeaders headers) {
+    return new ConsumerRecord<>(
+        TOPIC,
+        0,
+        offset,
+        timestamp,
+        TimestampType.CREATE_TIME,
+        (long) ConsumerRecord.NULL_CHECKSUM,
+        ConsumerRecord.NULL_SIZE,
+        value == null ? ConsumerRecord.NULL_SIZE : value.remaining(),
+        null,
+        value,
+        headers);
+  }
+
+  private static ConsumerRecord<String, ByteBuffer> keyedRecord(long offset, String key) {
+    return new ConsumerRecord<>(
+        TOPIC,
+        0,
+        offset,
+        0,
+        TimestampType.CREATE_TIME,
+        (long) ConsumerRecord.NULL_CHECKSUM,
+        key.length(),
+        1,
+        key,
+        ByteBuffer.wrap(new byte[] {(byte) offset}),
+        new RecordHeaders());
+  }
+
   private void assertPubSubAttributesMap(
       Map<String, Map<String, String>> attributesMaps, String messageId) {
     assertEquals("value1", attributesMaps.get(messageId).get("key1"));
@@ -186,79 +273,502 @@ public class SubscriptionManagerTest {
                                 .filter(r -> r.partition() == tp.partition())
                                 .forEach(c::addRecord)));
 
-    // Each Pull should use a different Consumer which is subscribed to a single partition
-    List<PubsubMessage> response = subscriptionManager.pull(10, false);
+    // Each Consumer is fetched from in the background and pulls are served from the shared buffer
+    List<ReceivedMessage> response = new ArrayList<>();
+    while (response.size() < 15) {
+      List<ReceivedMessage> pulled = subscriptionManager.pull(10, false);
+      assertTrue(pulled.size() <= 10);
+      assertFalse(pulled.isEmpty());
+      response.addAll(pulled);
+    }
+    assertEquals(15, response.size());
+
     // Sort messageIds and data for easier evaluation
     List<String> messageIds =
-        response.stream().map(PubsubMessage::getMessageId).sorted().collect(Collectors.toList());
+        response
+            .stream()
+            .map(m -> m.getMessage().getMessageId())
+            .sorted()
+            .collect(Collectors.toList());
     List<String> messages =
         response
             .stream()
-            .map(m -> m.getData().toString(TestHelpers.UTF8))
+            .map(m -> m.getMessage().getData().toString(TestHelpers.UTF8))
             .sorted()
             .collect(Collectors.toList());
-    assertEquals(5, response.size());
-    assertEquals("0-0", messageIds.get(0));
-    assertEquals("0-1", messageIds.get(1));
-    assertEquals("0-2", messageIds.get(2));
-    assertEquals("0-3", messageIds.get(3));
-    assertEquals("0-4", messageIds.get(4));
+    for (int p = 0; p < partitions; p++) {
+      for (int r = 0; r < recordsPerPartition; r++) {
+        int i = p * recordsPerPartition + r;
+        assertEquals(p + "-" + r, messageIds.get(i));
+        assertEquals(String.format("message-%04d", i), messages.get(i));
+      }
+    }
+    assertEquals(Collections.emptyList(), subscriptionManager.pull(10, true));
+  }
 
-    assertEquals("message-0000", messages.get(0));
-    assertEquals("message-0001", messages.get(1));
-    assertEquals("message-0002", messages.get(2));
-    assertEquals("message-0003", messages.get(3));
-    assertEquals("message-0004", messages.get(4));
+  @Test
+  public void pullEmpty() {
+    List<ReceivedMessage> response = subscriptionManager.pull(100, false);
+    assertEquals(true, response.isEmpty());
+  }
 
-    response = subscriptionManager.pull(10, false);
-    assertEquals(5, response.size());
-    messageIds.addAll(
-        response.stream().map(PubsubMessage::getMessageId).sorted().collect(Collectors.toList()));
-    messages.addAll(
-        response
+  @Test
+  public void pullAsyncCompletesWhenRecordsAreFetched() throws Exception {
+    MockConsumer<String, ByteBuffer> mockConsumer =
+        kafkaClientFactory.getConsumersForSubscription(SUBSCRIPTION).get(0);
+    CompletableFuture<List<ReceivedMessage>> future = subscriptionManager.pullAsync(10, false, 10);
+    assertFalse(future.isDone());
+
+    // Add every record during a single poll so that they are buffered together
+    List<ConsumerRecord<String, ByteBuffer>> records =
+        TestHelpers.generateConsumerRecords(TOPIC, 3, 2, null);
+    mockConsumer.schedulePollTask(() -> records.forEach(mockConsumer::addRecord));
+    assertEquals(6, future.get(5, TimeUnit.SECONDS).size());
+    assertEquals(0, subscriptionManager.getPrefetchBuffer().waiters());
+  }
+
+  @Test
+  public void messageListenerNotifiedWhenMessagesAvailable() throws Exception {
+    configureSubscriptionManager(1, 1, 1);
+    MockConsumer<String, ByteBuffer> mockConsumer =
+        kafkaClientFactory.getConsumersForSubscription(SUBSCRIPTION).get(0);
+    Semaphore notifications = new Semaphore(0);
+    subscriptionManager.addMessageListener(notifications::release);
+    assertEquals(Collections.emptyList(), subscriptionManager.pull(10, true));
+
+    // Notified once the records are fetched
+    List<ConsumerRecord<String, ByteBuffer>> records =
+        TestHelpers.generateConsumerRecords(TOPIC, 1, 2, null);
+    mockConsumer.schedulePollTask(() -> records.forEach(mockConsumer::addRecord));
+    assertTrue(notifications.tryAcquire(5, TimeUnit.SECONDS));
+    assertEquals(2, subscriptionManager.pull(10, true).size());
+
+    // Notified again by the fetchers once the unacknowledged messages expire
+    notifications.drainPermits();
+    assertTrue(notifications.tryAcquire(5, TimeUnit.SECONDS));
+    assertEquals(2, subscriptionManager.pull(10, true).size());
+  }
+
+  @Test
+  public void fetcherReplacesFailedConsumer() {
+    configureSubscriptionManager(1, 1, 10);
+    List<MockConsumer<String, ByteBuffer>> consumers =
+        kafkaClientFactory.getConsumersForSubscription(SUBSCRIPTION);
+    MockConsumer<String, ByteBuffer> failed = consumers.get(0);
+    TestHelpers.generateConsumerRecords(TOPIC, 1, 2, null).forEach(failed::addRecord);
+    assertEquals(2, subscriptionManager.pull(10, false).size());
+
+    failed.setException(new KafkaException("Broker unavailable"));
+    waitFor(() -> consumers.size() == 2);
+    assertTrue(failed.closed());
+
+    // The replacement continues from the next offset that was not yet fetched
+    MockConsumer<String, ByteBuffer> replacement = consumers.get(1);
+    TopicPartition topicPartition = new TopicPartition(TOPIC, 0);
+    waitFor(() -> replacement.assignment().contains(topicPartition));
+    replacement.schedulePollTask(
+        () -> {
+          replacement.addRecord(record(2, 0, ByteBuffer.wrap(new byte[1]), new RecordHeaders()));
+          replacement.addRecord(record(3, 0, ByteBuffer.wrap(new byte[1]), new RecordHeaders()));
+        });
+    List<String> messageIds =
+        subscriptionManager
+            .pull(10, false)
             .stream()
-            .map(m -> m.getData().toString(TestHelpers.UTF8))
-            .sorted()
-            .collect(Collectors.toList()));
-    assertEquals("1-0", messageIds.get(5));
-    assertEquals("1-1", messageIds.get(6));
-    assertEquals("1-2", messageIds.get(7));
-    assertEquals("1-3", messageIds.get(8));
-    assertEquals("1-4", messageIds.get(9));
+            .map(m -> m.getMessage().getMessageId())
+            .collect(Collectors.toList());
+    assertEquals(Arrays.asList("0-2", "0-3"), messageIds);
+  }
 
-    assertEquals("message-0005", messages.get(5));
-    assertEquals("message-0006", messages.get(6));
-    assertEquals("message-0007", messages.get(7));
-    assertEquals("message-0008", messages.get(8));
-    assertEquals("message-0009", messages.get(9));
-
-    response = subscriptionManager.pull(10, false);
-    assertEquals(5, response.size());
-    messageIds.addAll(
-        response.stream().map(PubsubMessage::getMessageId).sorted().collect(Collectors.toList()));
-    messages.addAll(
-        response
+  @Test
+  public void fetcherReplacesConsumerAfterUnexpectedError() {
+    configureSubscriptionManager(1, 1, 10);
+    List<MockConsumer<String, ByteBuffer>> consumers =
+        kafkaClientFactory.getConsumersForSubscription(SUBSCRIPTION);
+    MockConsumer<String, ByteBuffer> failed = consumers.get(0);
+    failed.schedulePollTask(
+        () -> {
+          throw new IllegalStateException("This consumer has already been closed.");
+        });
+    assertTrue(subscriptionManager.pull(10, true).isEmpty());
+
+    // The fetcher keeps running and replaces the consumer rather than exiting
+    waitFor(() -> consumers.size() == 2);
+    assertTrue(failed.closed());
+    MockConsumer<String, ByteBuffer> replacement = consumers.get(1);
+    TopicPartition topicPartition = new TopicPartition(TOPIC, 0);
+    waitFor(() -> replacement.assignment().contains(topicPartition));
+    replacement.schedulePollTask(
+        () ->
+            replacement.addRecord(record(0, 0, ByteBuffer.wrap(new byte[1]), new RecordHeaders())));
+    assertEquals(1, subscriptionManager.pull(10, false).size());
+  }
+
+  @Test
+  public void clusterModeServesOnlyOwnedPartitions() throws Exception {
+    configureSubscriptionManager(1, 2, 10, 1000, true);
+    MockConsumer<String, ByteBuffer> consumer =
+        kafkaClientFactory.getConsumersForSubscription(SUBSCRIPTION).get(0);
+    assertEquals(Collections.singleton(TOPIC), consumer.subscription());
+    TopicPartition partition0 = new TopicPartition(TOPIC, 0);
+    TopicPartition partition1 = new TopicPartition(TOPIC, 1);
+    List<ConsumerRecord<String, ByteBuffer>> records =
+        TestHelpers.generateConsumerRecords(TOPIC, 2, 3, null);
+
+    kafkaClientFactory.rebalance(consumer, Arrays.asList(partition0, partition1));
+    consumer.schedulePollTask(
+        () -> records.stream().filter(r -> r.offset() < 2).forEach(consumer::addRecord));
+    Map<String, String> ackIds = ackIdsByMessageId(subscriptionManager.pull(10, false));
+    assertEquals(new HashSet<>(Arrays.asList("0-0", "0-1", "1-0", "1-1")), ackIds.keySet());
+    assertEquals(
+        2,
+        subscriptionManager
+            .acknowledge(Arrays.asList(ackIds.get("0-0"), ackIds.get("1-0")))
+            .size());
+
+    // Acknowledged offsets are committed before partition 0 moves to another instance
+    Map<TopicPartition, OffsetAndMetadata> committed =
+        kafkaClientFactory
+            .rebalance(consumer, Collections.singletonList(partition1))
+            .get(5, TimeUnit.SECONDS);
+    assertEquals(1, committed.get(partition0).offset());
+    assertEquals(1, committed.get(partition1).offset());
+
+    // Leases for the lost partition are dropped, while those of the retained one remain valid
+    assertTrue(subscriptionManager.acknowledge(Arrays.asList(ackIds.get("0-1"))).isEmpty());
+    assertEquals(1, subscriptionManager.acknowledge(Arrays.asList(ackIds.get("1-1"))).size());
+
+    // The retained partition continues after the records that were already fetched
+    consumer.schedulePollTask(
+        () ->
+            records
+                .stream()
+                .filter(r -> r.partition() == 1 && r.offset() > 0)
+                .forEach(consumer::addRecord));
+    List<String> messageIds =
+        subscriptionManager
+            .pull(10, false)
             .stream()
-            .map(m -> m.getData().toString(TestHelpers.UTF8))
-            .sorted()
-            .collect(Collectors.toList()));
-    assertEquals("2-0", messageIds.get(10));
-    assertEquals("2-1", messageIds.get(11));
-    assertEquals("2-2", messageIds.get(12));
-    assertEquals("2-3", messageIds.get(13));
-    assertEquals("2-4", messageIds.get(14));
+            .map(m -> m.getMessage().getMessageId())
+            .collect(Collectors.toList());
+    assertEquals(Collections.singletonList("1-2"), messageIds);
+  }
 
-    assertEquals("message-0010", messages.get(10));
-    assertEquals("message-0011", messages.get(11));
-    assertEquals("message-0012", messages.get(12));
-    assertEquals("message-0013", messages.get(13));
-    assertEquals("message-0014", messages.get(14));
+  @Test
+  public void sharedConsumersFetchForEverySubscriptionOfTopic() {
+    String offsetTopic = "emulator-offsets";
+    String sharedGroup = offsetTopic + "-" + TOPIC;
+    OffsetStoreProperties offsetStoreProperties = new OffsetStoreProperties();
+    offsetStoreProperties.setTopic(offsetTopic);
+    kafkaClientFactory.configureConsumersForSubscription(offsetTopic, offsetTopic, 1, 0L, 0L);
+    kafkaClientFactory.configureConsumersForSubscription(TOPIC, sharedGroup, 2, 0L, 0L);
+    SharedConsumerPool sharedConsumers =
+        new SharedConsumerPool(kafkaClientFactory, offsetStoreProperties);
+    try {
+      List<SubscriptionManager> managers = new ArrayList<>();
+      for (String name : Arrays.asList("first", "second")) {
+        SubscriptionProperties subscriptionProperties = new SubscriptionProperties();
+        subscriptionProperties.setName(name);
+        subscriptionProperties.setTopic(TOPIC);
+        subscriptionProperties.setAckDeadlineSeconds(10);
+        subscriptionProperties.setCommitBatchSize(1);
+        managers.add(
+            new SubscriptionManager(
+                subscriptionProperties,
+                kafkaClientFactory,
+                scheduledExecutor,
+                sharedConsumers,
+                null));
+        assertTrue(managers.get(managers.size() - 1).pull(10, true).isEmpty());
+      }
+      // Neither Subscription has consumers of its own
+      assertNull(kafkaClientFactory.getConsumersForSubscription("first"));
+      List<MockConsumer<String, ByteBuffer>> consumers =
+          kafkaClientFactory.getConsumersForSubscription(sharedGroup);
+      assertEquals(1, consumers.size());
+      waitFor(() -> sharedConsumers.attached(TOPIC) == 2);
+
+      MockConsumer<String, ByteBuffer> consumer = consumers.get(0);
+      consumer.schedulePollTask(
+          () ->
+              TestHelpers.generateConsumerRecords(TOPIC, 2, 2, null).forEach(consumer::addRecord));
+      Map<String, String> ackIds = null;
+      for (SubscriptionManager manager : managers) {
+        ackIds = ackIdsByMessageId(manager.pull(10, false));
+        assertEquals(new HashSet<>(Arrays.asList("0-0", "0-1", "1-0", "1-1")), ackIds.keySet());
+      }
+
+      // Acknowledgements are committed to the offset store rather than through the consumer
+      SubscriptionManager second = managers.get(1);
+      second.acknowledge(Arrays.asList(ackIds.get("0-0"), ackIds.get("0-1")));
+      MockProducer<String, ByteBuffer> producer = kafkaClientFactory.getCreatedProducers().get(0);
+      waitFor(() -> producer.history().size() == 2);
+      while (producer.completeNext()) {}
+      // The view is updated by the committing thread if the writes completed before it looked
+      waitFor(() -> sharedConsumers.getOffsetStore().committed("second").size() == 2);
+      Map<Integer, OffsetAndMetadata> committed =
+          sharedConsumers.getOffsetStore().committed("second");
+      assertEquals(2, committed.get(0).offset());
+      assertEquals(0, committed.get(1).offset());
+      assertTrue(sharedConsumers.getOffsetStore().committed("first").isEmpty());
+      assertNull(consumer.committed(new TopicPartition(TOPIC, 0)));
+    } finally {
+      sharedConsumers.shutdown();
+    }
   }
 
   @Test
-  public void pullEmpty() {
-    List<PubsubMessage> response = subscriptionManager.pull(100, false);
-    assertEquals(true, response.isEmpty());
+  public void sharedConsumersKeepFetchingWhileOneSubscriptionIsFull() {
+    String offsetTopic = "emulator-offsets";
+    String sharedGroup = offsetTopic + "-" + TOPIC;
+    Configuration.getApplicationProperties()
+        .getKafkaProperties()
+        .getConsumerProperties()
+        .setPrefetchMaxMessages(2);
+    OffsetStoreProperties offsetStoreProperties = new OffsetStoreProperties();
+    offsetStoreProperties.setTopic(offsetTopic);
+    kafkaClientFactory.configureConsumersForSubscription(offsetTopic, offsetTopic, 1, 0L, 0L);
+    kafkaClientFactory.configureConsumersForSubscription(TOPIC, sharedGroup, 1, 0L, 0L);
+    SharedConsumerPool sharedConsumers =
+        new SharedConsumerPool(kafkaClientFactory, offsetStoreProperties);
+    try {
+      List<SubscriptionManager> managers = new ArrayList<>();
+      for (String name : Arrays.asList("idle", "active")) {
+        SubscriptionProperties subscriptionProperties = new SubscriptionProperties();
+        subscriptionProperties.setName(name);
+        subscriptionProperties.setTopic(TOPIC);
+        subscriptionProperties.setAckDeadlineSeconds(10);
+        managers.add(
+            new SubscriptionManager(
+                subscriptionProperties,
+                kafkaClientFactory,
+                scheduledExecutor,
+                sharedConsumers,
+                null));
+        assertTrue(managers.get(managers.size() - 1).pull(10, true).isEmpty());
+      }
+      waitFor(() -> sharedConsumers.attached(TOPIC) == 2);
+      SubscriptionManager idle = managers.get(0);
+      SubscriptionManager active = managers.get(1);
+      MockConsumer<String, ByteBuffer> consumer =
+          kafkaClientFactory.getConsumersForSubscription(sharedGroup).get(0);
+      TopicPartition topicPartition = new TopicPartition(TOPIC, 0);
+      List<ConsumerRecord<String, ByteBuffer>> records =
+          TestHelpers.generateConsumerRecords(TOPIC, 1, 4, null);
+
+      // Both buffers reach the watermark, so the partition is paused
+      consumer.schedulePollTask(() -> records.subList(0, 2).forEach(consumer::addRecord));
+      waitFor(() -> idle.getPrefetchBuffer().size() == 2);
+      waitFor(() -> consumer.paused().contains(topicPartition));
+
+      // Draining the active Subscription resumes fetching for it alone
+      assertEquals(
+          new HashSet<>(Arrays.asList("0-0", "0-1")),
+          ackIdsByMessageId(active.pull(10, false)).keySet());
+      waitFor(() -> consumer.paused().isEmpty());
+      consumer.schedulePollTask(() -> records.subList(2, 4).forEach(consumer::addRecord));
+      assertEquals(
+          new HashSet<>(Arrays.asList("0-2", "0-3")),
+          ackIdsByMessageId(active.pull(10, false)).keySet());
+      assertEquals(2, idle.getPrefetchBuffer().size());
+
+      // Once drained, the idle Subscription is fetched again from its own position
+      assertEquals(
+          new HashSet<>(Arrays.asList("0-0", "0-1")),
+          ackIdsByMessageId(idle.pull(10, false)).keySet());
+      waitFor(() -> consumer.position(topicPartition) == 2);
+      consumer.schedulePollTask(() -> records.subList(2, 4).forEach(consumer::addRecord));
+      assertEquals(
+          new HashSet<>(Arrays.asList("0-2", "0-3")),
+          ackIdsByMessageId(idle.pull(10, false)).keySet());
+      assertTrue(active.pull(10, true).isEmpty());
+    } finally {
+      sharedConsumers.shutdown();
+    }
+  }
+
+  @Test
+  public void tailCacheServesSubscriptionsOfSameTopic() {
+    TailCacheProperties tailCacheProperties = new TailCacheProperties();
+    tailCacheProperties.setMaxMessages(100);
+    TopicTailCache tailCache = new TopicTailCache(tailCacheProperties);
+    TopicPartition topicPartition = new TopicPartition(TOPIC, 0);
+    List<SubscriptionManager> managers = new ArrayList<>();
+    for (String name : Arrays.asList("first", "second")) {
+      kafkaClientFactory.configureConsumersForSubscription(TOPIC, name, 1, 0L, 0L);
+      SubscriptionProperties subscriptionProperties = new SubscriptionProperties();
+      subscriptionProperties.setName(name);
+      subscriptionProperties.setTopic(TOPIC);
+      subscriptionProperties.setAckDeadlineSeconds(10);
+      managers.add(
+          new SubscriptionManager(
+              subscriptionProperties, kafkaClientFactory, scheduledExecutor, null, tailCache));
+    }
+    try {
+      MockConsumer<String, ByteBuffer> first =
+          kafkaClientFactory.getConsumersForSubscription("first").get(0);
+      MockConsumer<String, ByteBuffer> second =
+          kafkaClientFactory.getConsumersForSubscription("second").get(0);
+      TestHelpers.generateConsumerRecords(TOPIC, 1, 3, null).forEach(first::addRecord);
+      List<ReceivedMessage> fetched = managers.get(0).pull(10, false);
+      assertEquals(3, fetched.size());
+
+      // The second Subscription is served from the records fetched by the first one
+      List<ReceivedMessage> cached = managers.get(1).pull(10, false);
+      assertEquals(3, cached.size());
+      for (int i = 0; i < cached.size(); i++) {
+        assertSame(fetched.get(i).getMessage(), cached.get(i).getMessage());
+      }
+      waitFor(() -> second.paused().contains(topicPartition));
+
+      // New records are only fetched by the first Subscription's consumer
+      first.schedulePollTask(
+          () ->
+              first.addRecord(
+                  new ConsumerRecord<>(TOPIC, 0, 3, null, ByteBuffer.wrap(new byte[] {4}))));
+      for (SubscriptionManager manager : managers) {
+        List<ReceivedMessage> messages = manager.pull(10, false);
+        assertEquals(1, messages.size());
+        assertEquals("0-3", messages.get(0).getMessage().getMessageId());
+      }
+      assertTrue(second.paused().contains(topicPartition));
+    } finally {
+      managers.forEach(SubscriptionManager::shutdown);
+    }
+  }
+
+  @Test
+  public void pullLimitedByMaxOutstandingMessages() {
+    subscriptionManager.getSubscriptionProperties().setMaxOutstandingMessages(4);
+    MockConsumer<String, ByteBuffer> mockConsumer =
+        kafkaClientFactory.getConsumersForSubscription(SUBSCRIPTION).get(0);
+    TestHelpers.generateConsumerRecords(TOPIC, 3, 2, null).forEach(mockConsumer::addRecord);
+    Semaphore notifications = new Semaphore(0);
+
+    List<String> ackIds =
+        subscriptionManager
+            .pull(10, false)
+            .stream()
+            .map(ReceivedMessage::getAckId)
+            .collect(Collectors.toList());
+    assertEquals(4, ackIds.size());
+    assertEquals(Collections.emptyList(), subscriptionManager.pull(10, false));
+
+    // Acknowledgements make room for more messages and notify listeners that they are available
+    subscriptionManager.addMessageListener(notifications::release);
+    assertEquals(ackIds.subList(0, 2), subscriptionManager.acknowledge(ackIds.subList(0, 2)));
+    assertEquals(1, notifications.availablePermits());
+    assertEquals(2, subscriptionManager.pull(10, true).size());
+    assertEquals(Collections.emptyList(), subscriptionManager.pull(10, true));
+  }
+
+  @Test
+  public void pullLimitedByMaxOutstandingBytes() {
+    // Each generated message is 12 bytes, and the message reaching the limit is still delivered
+    subscriptionManager.getSubscriptionProperties().setMaxOutstandingBytes(30);
+    MockConsumer<String, ByteBuffer> mockConsumer =
+        kafkaClientFactory.getConsumersForSubscription(SUBSCRIPTION).get(0);
+    TestHelpers.generateConsumerRecords(TOPIC, 3, 2, null).forEach(mockConsumer::addRecord);
+
+    List<String> ackIds =
+        subscriptionManager
+            .pull(10, false)
+            .stream()
+            .map(ReceivedMessage::getAckId)
+            .collect(Collectors.toList());
+    assertEquals(3, ackIds.size());
+    assertEquals(Collections.emptyList(), subscriptionManager.pull(10, true));
+
+    assertEquals(ackIds, subscriptionManager.acknowledge(ackIds));
+    assertEquals(3, subscriptionManager.pull(10, true).size());
+  }
+
+  @Test
+  public void pullDeliversOneBatchPerOrderingKey() throws InterruptedException {
+    subscriptionManager.getSubscriptionProperties().setEnableMessageOrdering(true);
+    MockConsumer<String, ByteBuffer> mockConsumer =
+        kafkaClientFactory.getConsumersForSubscription(SUBSCRIPTION).get(0);
+    Arrays.asList(keyedRecord(0, "a"), keyedRecord(1, "b"), keyedRecord(2, "a"))
+        .forEach(mockConsumer::addRecord);
+
+    List<ReceivedMessage> first = subscriptionManager.pull(10, false);
+    Map<String, String> ackIds = ackIdsByMessageId(first);
+    assertEquals(new HashSet<>(Arrays.asList("0-0", "0-1", "0-2")), ackIds.keySet());
+    assertEquals("a", OrderingKeys.get(first.get(0).getMessage()));
+    assertEquals("b", OrderingKeys.get(first.get(1).getMessage()));
+
+    mockConsumer.schedulePollTask(
+        () ->
+            Arrays.asList(keyedRecord(3, "a"), keyedRecord(4, "b"), keyedRecord(5, "c"))
+                .forEach(mockConsumer::addRecord));
+    Map<String, String> second = ackIdsByMessageId(subscriptionManager.pull(10, false));
+    assertEquals(Collections.singleton("0-5"), second.keySet());
+
+    // Releasing the batch of a key notifies listeners that its held messages can be delivered
+    List<String> acks = Arrays.asList(ackIds.get("0-1"), second.get("0-5"));
+    Semaphore notifications = new Semaphore(0);
+    subscriptionManager.addMessageListener(notifications::release);
+    assertEquals(acks, subscriptionManager.acknowledge(acks));
+    assertEquals(1, notifications.availablePermits());
+    Map<String, String> third = ackIdsByMessageId(subscriptionManager.pull(10, true));
+    assertEquals(Collections.singleton("0-4"), third.keySet());
+
+    // Only part of the batch for key a was acknowledged, so 0-3 is still held
+    acks = Arrays.asList(ackIds.get("0-2"), third.get("0-4"));
+    assertEquals(acks, subscriptionManager.acknowledge(acks));
+    assertEquals(Collections.emptyList(), subscriptionManager.pull(10, true));
+
+    // Held messages are tracked so that commits cannot skip past them
+    acks = Collections.singletonList(ackIds.get("0-0"));
+    assertEquals(acks, subscriptionManager.acknowledge(acks));
+    assertEquals(
+        3,
+        subscriptionManager.commitFromAcknowledgments().get(new TopicPartition(TOPIC, 0)).offset());
+
+    // An expired message is redelivered with the next batch of its key
+    List<String> fourth =
+        subscriptionManager
+            .pull(10, true)
+            .stream()
+            .map(ReceivedMessage::getAckId)
+            .collect(Collectors.toList());
+    assertEquals(1, fourth.size());
+    assertEquals(fourth, subscriptionManager.modifyAckDeadline(fourth, 0));
+    Thread.sleep(5); // Ensure that the deadline is in the past
+    List<ReceivedMessage> redelivered = subscriptionManager.pull(10, true);
+    assertEquals(1, redelivered.size());
+    assertEquals("0-3", redelivered.get(0).getMessage().getMessageId());
+    assertEquals("a", OrderingKeys.get(redelivered.get(0).getMessage()));
+  }
+
+  @Test
+  public void pullAsyncWokenWhenOrderingKeyReleased() throws Exception {
+    subscriptionManager.getSubscriptionProperties().setEnableMessageOrdering(true);
+    MockConsumer<String, ByteBuffer> mockConsumer =
+        kafkaClientFactory.getConsumersForSubscription(SUBSCRIPTION).get(0);
+    mockConsumer.addRecord(keyedRecord(0, "a"));
+    List<String> acks =
+        subscriptionManager
+            .pull(10, false)
+            .stream()
+            .map(ReceivedMessage::getAckId)
+            .collect(Collectors.toList());
+    assertEquals(1, acks.size());
+
+    // The next message of key a is buffered but held until the first one is acknowledged
+    Semaphore notifications = new Semaphore(0);
+    subscriptionManager.addMessageListener(notifications::release);
+    mockConsumer.schedulePollTask(() -> mockConsumer.addRecord(keyedRecord(1, "a")));
+    assertTrue(notifications.tryAcquire(5, TimeUnit.SECONDS));
+    CompletableFuture<List<ReceivedMessage>> future = subscriptionManager.pullAsync(10, false, 10);
+    assertFalse(future.isDone());
+    assertEquals(1, subscriptionManager.getPrefetchBuffer().waiters());
+
+    // Releasing the key wakes the parked pull well before its deadline
+    assertEquals(acks, subscriptionManager.acknowledge(acks));
+    List<ReceivedMessage> response = future.get(2, TimeUnit.SECONDS);
+    assertEquals(1, response.size());
+    assertEquals("0-1", response.get(0).getMessage().getMessageId());
   }
 
   @Test
@@ -274,7 +784,7 @@ public class SubscriptionManagerTest {
         subscriptionManager
             .pull(10, false)
             .stream()
-            .map(PubsubMessage::getMessageId)
+            .map(ReceivedMessage::getAckId)
             .collect(Collectors.toList());
     assertEquals(ackIds, subscriptionManager.acknowledge(ackIds));
     // Confirm that one scheduled future was present in the executor service
@@ -301,7 +811,7 @@ public class SubscriptionManagerTest {
     subscriptionManager
         .pull(10, false)
         .stream()
-        .map(PubsubMessage::getMessageId)
+        .map(ReceivedMessage::getAckId)
         .forEach(
             ackId ->
                 assertEquals(
@@ -319,11 +829,85 @@ public class SubscriptionManagerTest {
     }
   }
 
+  @Test
+  public void acknowledgeCommitsImmediatelyAtBatchSize() {
+    int partitions = 3;
+    int recordsPerPartition = 2;
+    subscriptionManager.getSubscriptionProperties().setCommitIntervalMillis(60000);
+    subscriptionManager.getSubscriptionProperties().setCommitBatchSize(4);
+    MockConsumer<String, ByteBuffer> mockConsumer =
+        kafkaClientFactory.getConsumersForSubscription(SUBSCRIPTION).get(0);
+    TestHelpers.generateConsumerRecords(TOPIC, partitions, recordsPerPartition, null)
+        .forEach(mockConsumer::addRecord);
+    List<String> ackIds =
+        subscriptionManager
+            .pull(10, false)
+            .stream()
+            .map(ReceivedMessage::getAckId)
+            .collect(Collectors.toList());
+
+    // Below the batch size, the commit waits for the commit interval
+    assertEquals(ackIds.subList(0, 3), subscriptionManager.acknowledge(ackIds.subList(0, 3)));
+    assertEquals(null, mockConsumer.committed(new TopicPartition(TOPIC, 0)));
+
+    // Reaching it brings the pending commit forward
+    assertEquals(ackIds.subList(3, 6), subscriptionManager.acknowledge(ackIds.subList(3, 6)));
+    for (int i = 0; i < partitions; i++) {
+      TopicPartition topicPartition = new TopicPartition(TOPIC, i);
+      waitFor(() -> mockConsumer.committed(topicPartition) != null);
+      assertEquals(2, mockConsumer.committed(topicPartition).offset());
+    }
+  }
+
+  @Test
+  public void acknowledgePartiallyCommitsSmallestUnacknowledged() {
+    int partitions = 3;
+    int recordsPerPartition = 3;
+    MockConsumer<String, ByteBuffer> mockConsumer =
+        kafkaClientFactory.getConsumersForSubscription(SUBSCRIPTION).get(0);
+    TestHelpers.generateConsumerRecords(TOPIC, partitions, recordsPerPartition, null)
+        .forEach(mockConsumer::addRecord);
+    Map<String, String> ackIdsByMessageId = ackIdsByMessageId(subscriptionManager.pull(10, false));
+    assertEquals(9, ackIdsByMessageId.size());
+
+    // Leave a gap in partition 0, everything acked in partition 1 and nothing in partition 2
+    List<String> ackIds =
+        Arrays.asList("0-0", "0-2", "1-0", "1-1", "1-2")
+            .stream()
+            .map(ackIdsByMessageId::get)
+            .collect(Collectors.toList());
+    assertEquals(ackIds, subscriptionManager.acknowledge(ackIds));
+    Map<TopicPartition, OffsetAndMetadata> commits =
+        subscriptionManager.commitFromAcknowledgments();
+    assertEquals(1, commits.get(new TopicPartition(TOPIC, 0)).offset());
+    assertEquals(3, commits.get(new TopicPartition(TOPIC, 1)).offset());
+    assertEquals(0, commits.get(new TopicPartition(TOPIC, 2)).offset());
+
+    // Filling the gap allows the partition to advance past the previously acked offset
+    List<String> gap = Collections.singletonList(ackIdsByMessageId.get("0-1"));
+    assertEquals(gap, subscriptionManager.acknowledge(gap));
+    commits = subscriptionManager.commitFromAcknowledgments();
+    assertEquals(3, commits.get(new TopicPartition(TOPIC, 0)).offset());
+    assertEquals(null, commits.get(new TopicPartition(TOPIC, 1)));
+    assertEquals(0, commits.get(new TopicPartition(TOPIC, 2)).offset());
+
+    // Committed messages are purged and can no longer be acknowledged
+    assertEquals(Collections.emptyList(), subscriptionManager.acknowledge(ackIds));
+  }
+
   @Test
   public void acknowledgeUnknownAckIds() {
+    MockConsumer<String, ByteBuffer> mockConsumer =
+        kafkaClientFactory.getConsumersForSubscription(SUBSCRIPTION).get(0);
+    TestHelpers.generateConsumerRecords(TOPIC, 1, 1, null).forEach(mockConsumer::addRecord);
+    assertEquals(1, subscriptionManager.pull(10, false).size());
+
+    // Malformed ack IDs and ack IDs for messages that are not outstanding are ignored
+    String unknown = AckId.encode(AckId.key(0, 1), 1);
     assertEquals(
         Collections.emptyList(),
-        subscriptionManager.acknowledge(Arrays.asList("0-0", "0-1", "0-2")));
+        subscriptionManager.acknowledge(
+            Arrays.asList("0-0", "0-1", "", "***************?", unknown)));
   }
 
   @Test
@@ -340,7 +924,7 @@ public class SubscriptionManagerTest {
         subscriptionManager
             .pull(10, false)
             .stream()
-            .map(PubsubMessage::getMessageId)
+            .map(ReceivedMessage::getAckId)
             .collect(Collectors.toList());
     assertEquals(Collections.emptyList(), subscriptionManager.acknowledge(ackIds));
     assertEquals(0, scheduledExecutor.shutdownNow().size());
@@ -349,7 +933,8 @@ public class SubscriptionManagerTest {
     for (int i = 0; i < partitions; i++) {
       TopicPartition topicPartition = new TopicPartition(TOPIC, i);
       assertEquals(0, commits.get(topicPartition).offset());
-      assertEquals(0, mockConsumer.position(topicPartition));
+      // Committing does not rewind the consumer to refetch the outstanding messages
+      assertEquals(2, mockConsumer.position(topicPartition));
     }
   }
 
@@ -367,7 +952,7 @@ public class SubscriptionManagerTest {
         subscriptionManager
             .pull(10, false)
             .stream()
-            .map(PubsubMessage::getMessageId)
+            .map(ReceivedMessage::getAckId)
             .collect(Collectors.toList());
     assertEquals(ackIds, subscriptionManager.modifyAckDeadline(ackIds, 10));
 
@@ -407,7 +992,7 @@ public class SubscriptionManagerTest {
         subscriptionManager
             .pull(10, false)
             .stream()
-            .map(PubsubMessage::getMessageId)
+            .map(ReceivedMessage::getAckId)
             .collect(Collectors.toList());
     assertEquals(Collections.emptyList(), subscriptionManager.modifyAckDeadline(ackIds, 10));
     assertEquals(Collections.emptyList(), subscriptionManager.acknowledge(ackIds));
@@ -417,14 +1002,268 @@ public class SubscriptionManagerTest {
     for (int i = 0; i < partitions; i++) {
       TopicPartition topicPartition = new TopicPartition(TOPIC, i);
       assertEquals(0, commits.get(topicPartition).offset());
-      assertEquals(0, mockConsumer.position(topicPartition));
+      // Committing does not rewind the consumer to refetch the outstanding messages
+      assertEquals(2, mockConsumer.position(topicPartition));
+    }
+  }
+
+  @Test
+  public void pullRedeliversExpiredMessages() {
+    int partitions = 3;
+    int recordsPerPartition = 2;
+    configureSubscriptionManager(1, partitions, -1);
+    MockConsumer<String, ByteBuffer> mockConsumer =
+        kafkaClientFactory.getConsumersForSubscription(SUBSCRIPTION).get(0);
+    TestHelpers.generateConsumerRecords(TOPIC, partitions, recordsPerPartition, null)
+        .forEach(mockConsumer::addRecord);
+
+    List<ReceivedMessage> expired = subscriptionManager.pull(10, false);
+    assertEquals(6, expired.size());
+
+    // Expired messages are served again from memory with a new deadline
+    List<ReceivedMessage> redelivered = subscriptionManager.pull(10, true, 10);
+    assertEquals(
+        expired.stream().map(ReceivedMessage::getMessage).collect(Collectors.toList()),
+        redelivered.stream().map(ReceivedMessage::getMessage).collect(Collectors.toList()));
+
+    // Ack IDs from the expired deliveries are not able to acknowledge the redelivered messages
+    List<String> expiredAckIds =
+        expired.stream().map(ReceivedMessage::getAckId).collect(Collectors.toList());
+    assertEquals(Collections.emptyList(), subscriptionManager.acknowledge(expiredAckIds));
+    List<String> ackIds =
+        redelivered.stream().map(ReceivedMessage::getAckId).collect(Collectors.toList());
+    assertEquals(ackIds, subscriptionManager.acknowledge(ackIds));
+    Map<TopicPartition, OffsetAndMetadata> commits =
+        subscriptionManager.commitFromAcknowledgments();
+    for (int i = 0; i < partitions; i++) {
+      TopicPartition topicPartition = new TopicPartition(TOPIC, i);
+      assertEquals(2, commits.get(topicPartition).offset());
+      assertEquals(2, mockConsumer.position(topicPartition));
     }
+    assertEquals(Collections.emptyList(), subscriptionManager.pull(10, true));
+  }
+
+  @Test
+  public void modifyAckDeadlineZeroRedelivers() throws InterruptedException {
+    int partitions = 1;
+    int recordsPerPartition = 3;
+    configureSubscriptionManager(1, partitions, 10);
+    MockConsumer<String, ByteBuffer> mockConsumer =
+        kafkaClientFactory.getConsumersForSubscription(SUBSCRIPTION).get(0);
+    TestHelpers.generateConsumerRecords(TOPIC, partitions, recordsPerPartition, null)
+        .forEach(mockConsumer::addRecord);
+
+    Map<String, String> ackIdsByMessageId = ackIdsByMessageId(subscriptionManager.pull(10, false));
+    assertEquals(3, ackIdsByMessageId.size());
+    List<String> nacked = Collections.singletonList(ackIdsByMessageId.get("0-1"));
+    assertEquals(nacked, subscriptionManager.modifyAckDeadline(nacked, 0));
+    Thread.sleep(5); // Ensure that the deadline is in the past
+
+    List<ReceivedMessage> redelivered = subscriptionManager.pull(10, true);
+    assertEquals(1, redelivered.size());
+    assertEquals("0-1", redelivered.get(0).getMessage().getMessageId());
+
+    // Only the redelivered lease can be acknowledged
+    assertEquals(Collections.emptyList(), subscriptionManager.acknowledge(nacked));
+    ackIdsByMessageId.putAll(ackIdsByMessageId(redelivered));
+    List<String> ackIds = new ArrayList<>(ackIdsByMessageId.values());
+    assertEquals(ackIds, subscriptionManager.acknowledge(ackIds));
+    assertEquals(
+        3,
+        subscriptionManager.commitFromAcknowledgments().get(new TopicPartition(TOPIC, 0)).offset());
+  }
+
+  @Test
+  public void pullPausesFetchingAtHighWatermark() {
+    configureSubscriptionManager(1, 1, 10, 2);
+    MockConsumer<String, ByteBuffer> mockConsumer =
+        kafkaClientFactory.getConsumersForSubscription(SUBSCRIPTION).get(0);
+    TestHelpers.generateConsumerRecords(TOPIC, 1, 6, null).forEach(mockConsumer::addRecord);
+    TopicPartition topicPartition = new TopicPartition(TOPIC, 0);
+
+    // The first poll overshoots the watermark, so the partition is paused on the next iteration
+    assertEquals(1, subscriptionManager.pull(1, false).size());
+    waitFor(() -> mockConsumer.paused().contains(topicPartition));
+    assertEquals(5, subscriptionManager.getPrefetchBuffer().size());
+
+    // Draining to half of the watermark resumes fetching
+    assertEquals(4, subscriptionManager.pull(4, true).size());
+    waitFor(() -> mockConsumer.paused().isEmpty());
+    assertEquals(1, subscriptionManager.pull(10, true).size());
+  }
+
+  @Test
+  public void seekToSnapshotRedeliversMessagesUnacknowledgedAtSnapshot() {
+    configureSubscriptionManager(1, 1, 10);
+    TopicPartition tp = new TopicPartition(TOPIC, 0);
+    MockConsumer<String, ByteBuffer> mockConsumer =
+        kafkaClientFactory.getConsumersForSubscription(SUBSCRIPTION).get(0);
+    List<ConsumerRecord<String, ByteBuffer>> records =
+        TestHelpers.generateConsumerRecords(TOPIC, 1, 5, null);
+    records.forEach(mockConsumer::addRecord);
+    Map<String, String> ackIds = ackIdsByMessageId(subscriptionManager.pull(10, false));
+    assertEquals(5, ackIds.size());
+    subscriptionManager.acknowledge(Arrays.asList(ackIds.get("0-0"), ackIds.get("0-2")));
+
+    SubscriptionSnapshot snapshot =
+        subscriptionManager.createSnapshot("snapshot", Collections.emptyMap());
+    assertEquals(TOPIC, snapshot.getTopic());
+    assertEquals(Long.valueOf(1), snapshot.getOffsets().get(0));
+    assertTrue(Arrays.equals(new long[] {2}, snapshot.getAcknowledged().get(0)));
+
+    subscriptionManager.acknowledge(
+        Arrays.asList(ackIds.get("0-1"), ackIds.get("0-3"), ackIds.get("0-4")));
+    assertEquals(5, subscriptionManager.commitFromAcknowledgments().get(tp).offset());
+
+    subscriptionManager.seekToSnapshot(snapshot);
+    assertEquals(1, mockConsumer.position(tp));
+    assertEquals(1, mockConsumer.committed(tp).offset());
+
+    // The consumer reads the partition again from the snapshot's offset, skipping what was acked
+    records.forEach(mockConsumer::addRecord);
+    ackIds = ackIdsByMessageId(subscriptionManager.pull(10, false));
+    assertEquals(new HashSet<>(Arrays.asList("0-1", "0-3", "0-4")), ackIds.keySet());
+    subscriptionManager.acknowledge(new ArrayList<>(ackIds.values()));
+    assertEquals(5, subscriptionManager.commitFromAcknowledgments().get(tp).offset());
+  }
+
+  @Test
+  public void pullAsyncWaitsForSeekToComplete() throws Exception {
+    configureSubscriptionManager(1, 1, 10);
+    MockConsumer<String, ByteBuffer> mockConsumer =
+        kafkaClientFactory.getConsumersForSubscription(SUBSCRIPTION).get(0);
+    List<ConsumerRecord<String, ByteBuffer>> records =
+        TestHelpers.generateConsumerRecords(TOPIC, 1, 3, null);
+    records.forEach(mockConsumer::addRecord);
+    List<String> ackIds =
+        subscriptionManager
+            .pull(10, false)
+            .stream()
+            .map(ReceivedMessage::getAckId)
+            .collect(Collectors.toList());
+    assertEquals(3, ackIds.size());
+    SubscriptionSnapshot snapshot =
+        subscriptionManager.createSnapshot("snapshot", Collections.emptyMap());
+
+    CompletableFuture<List<ReceivedMessage>> future;
+    CompletableFuture<Void> seek;
+    // The fetcher cannot apply the seek while the consumer is locked
+    synchronized (mockConsumer) {
+      seek = CompletableFuture.runAsync(() -> subscriptionManager.seekToSnapshot(snapshot));
+      // Deliveries are dropped once the seek starts
+      waitFor(() -> subscriptionManager.modifyAckDeadline(ackIds, 10).isEmpty());
+
+      // Records buffered during the seek do not wake pulls until it completes
+      subscriptionManager.getPrefetchBuffer().addAll(records);
+      future = subscriptionManager.pullAsync(10, false, 10);
+      assertFalse(future.isDone());
+      assertEquals(0, subscriptionManager.getPrefetchBuffer().waiters());
+    }
+    seek.get(5, TimeUnit.SECONDS);
+
+    // The records buffered from the previous offsets were discarded, so they are read again
+    records.forEach(mockConsumer::addRecord);
+    assertEquals(
+        new HashSet<>(Arrays.asList("0-0", "0-1", "0-2")),
+        ackIdsByMessageId(future.get(2, TimeUnit.SECONDS)).keySet());
+  }
+
+  @Test
+  public void seekToSnapshotDoesNotCommitPastUnacknowledgedMessages() {
+    configureSubscriptionManager(1, 1, 10);
+    TopicPartition tp = new TopicPartition(TOPIC, 0);
+    MockConsumer<String, ByteBuffer> mockConsumer =
+        kafkaClientFactory.getConsumersForSubscription(SUBSCRIPTION).get(0);
+    List<ConsumerRecord<String, ByteBuffer>> records =
+        TestHelpers.generateConsumerRecords(TOPIC, 1, 5, null);
+    records.forEach(mockConsumer::addRecord);
+    Map<String, String> ackIds = ackIdsByMessageId(subscriptionManager.pull(10, false));
+    subscriptionManager.acknowledge(Arrays.asList(ackIds.get("0-1"), ackIds.get("0-3")));
+    SubscriptionSnapshot snapshot =
+        subscriptionManager.createSnapshot("snapshot", Collections.emptyMap());
+    assertEquals(Long.valueOf(0), snapshot.getOffsets().get(0));
+    assertTrue(Arrays.equals(new long[] {1, 3}, snapshot.getAcknowledged().get(0)));
+    subscriptionManager.acknowledge(new ArrayList<>(ackIds.values()));
+    assertEquals(5, subscriptionManager.commitFromAcknowledgments().get(tp).offset());
+
+    subscriptionManager.seekToSnapshot(snapshot);
+    records.forEach(mockConsumer::addRecord);
+    ackIds = ackIdsByMessageId(subscriptionManager.pull(10, false));
+    assertEquals(new HashSet<>(Arrays.asList("0-0", "0-2", "0-4")), ackIds.keySet());
+
+    // Offset 0 is still unacknowledged, so nothing beyond it may be committed
+    subscriptionManager.acknowledge(Arrays.asList(ackIds.get("0-2"), ackIds.get("0-4")));
+    assertEquals(0, subscriptionManager.commitFromAcknowledgments().get(tp).offset());
+    subscriptionManager.acknowledge(Collections.singletonList(ackIds.get("0-0")));
+    assertEquals(5, subscriptionManager.commitFromAcknowledgments().get(tp).offset());
+  }
+
+  @Test
+  public void seekToTimeMovesPartitionsToOffsetsForTimes() {
+    configureSubscriptionManager(1, 2, 10);
+    MockConsumer<String, ByteBuffer> mockConsumer =
+        kafkaClientFactory.getConsumersForSubscription(SUBSCRIPTION).get(0);
+    List<ConsumerRecord<String, ByteBuffer>> records =
+        TestHelpers.generateConsumerRecords(TOPIC, 2, 3, null);
+    records.forEach(mockConsumer::addRecord);
+    List<ReceivedMessage> received = subscriptionManager.pull(10, false);
+    assertEquals(6, received.size());
+    // Leases outstanding at the time of the seek are dropped
+    String outstanding = received.get(0).getAckId();
+
+    Map<TopicPartition, Long> timeOffsets = new HashMap<>();
+    timeOffsets.put(new TopicPartition(TOPIC, 0), 1L);
+    kafkaClientFactory.configureOffsetsForTimes(SUBSCRIPTION, timeOffsets);
+    // Partition 1 has no messages after the time, so it moves to its end
+    kafkaClientFactory.configureConsumersForSubscription(TOPIC, SUBSCRIPTION, 2, 0L, 3L);
+    subscriptionManager.seekToTime(Instant.now());
+    assertEquals(1, mockConsumer.position(new TopicPartition(TOPIC, 0)));
+    assertEquals(3, mockConsumer.position(new TopicPartition(TOPIC, 1)));
+    assertEquals(1, mockConsumer.committed(new TopicPartition(TOPIC, 0)).offset());
+    assertEquals(3, mockConsumer.committed(new TopicPartition(TOPIC, 1)).offset());
+    assertEquals(
+        Collections.emptyList(),
+        subscriptionManager.acknowledge(Collections.singletonList(outstanding)));
+
+    records.forEach(mockConsumer::addRecord);
+    Map<String, String> ackIds = ackIdsByMessageId(subscriptionManager.pull(10, false));
+    assertEquals(new HashSet<>(Arrays.asList("0-1", "0-2")), ackIds.keySet());
+  }
+
+  private static Map<String, String> ackIdsByMessageId(List<ReceivedMessage> messages) {
+    return messages
+        .stream()
+        .collect(toMap(m -> m.getMessage().getMessageId(), ReceivedMessage::getAckId));
   }
 
   /** Sets {@link this#subscriptionManager} with specified configuration parameters */
   private void configureSubscriptionManager(
       int consumersPerSubscription, int topicPartitions, int ackDeadlineSecs) {
+    configureSubscriptionManager(consumersPerSubscription, topicPartitions, ackDeadlineSecs, 1000);
+  }
+
+  /** Sets {@link this#subscriptionManager} with specified configuration parameters */
+  private void configureSubscriptionManager(
+      int consumersPerSubscription,
+      int topicPartitions,
+      int ackDeadlineSecs,
+      int prefetchMaxMessages) {
+    configureSubscriptionManager(
+        consumersPerSubscription, topicPartitions, ackDeadlineSecs, prefetchMaxMessages, false);
+  }
+
+  /** Sets {@link this#subscriptionManager} with specified configuration parameters */
+  private void configureSubscriptionManager(
+      int consumersPerSubscription,
+      int topicPartitions,
+      int ackDeadlineSecs,
+      int prefetchMaxMessages,
+      boolean clusterMode) {
     TestHelpers.useTestApplicationConfig(1, consumersPerSubscription);
+    ConsumerProperties consumerProperties =
+        Configuration.getApplicationProperties().getKafkaProperties().getConsumerProperties();
+    consumerProperties.setPrefetchMaxMessages(prefetchMaxMessages);
+    consumerProperties.setClusterMode(clusterMode);
     scheduledExecutor = Executors.newSingleThreadScheduledExecutor();
     kafkaClientFactory = new MockKafkaClientFactoryImpl();
     kafkaClientFactory.configureConsumersForSubscription(
@@ -436,4 +1275,19 @@ public class SubscriptionManagerTest {
     subscriptionManager =
         new SubscriptionManager(subscriptionProperties, kafkaClientFactory, scheduledExecutor);
   }
+
+  /** Waits up to 5 seconds for {@code condition} to become true. */
+  private static void waitFor(BooleanSupplier condition) {
+    long deadline = System.currentTimeMillis() + 5000;
+    while (!condition.getAsBoolean()) {
+      if (System.currentTimeMillis() > deadline) {
+        fail("Condition was not met within 5 seconds");
+      }
+      try {
+        Thread.sleep(10);
+      } catch (InterruptedException e) {
+        fail("Interrupted while waiting for condition");
+      }
+    }
+  }
 }
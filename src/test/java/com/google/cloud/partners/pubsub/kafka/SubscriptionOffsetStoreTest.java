@@ -0,0 +1,205 @@
+/*
+ * Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.partners.pubsub.kafka;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.google.cloud.partners.pubsub.kafka.properties.OffsetStoreProperties;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.clients.producer.MockProducer;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.KafkaException;
+import org.apache.kafka.common.TopicPartition;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SubscriptionOffsetStoreTest {
+
+  private static final String OFFSET_TOPIC = "emulator-offsets";
+  private static final String SUBSCRIPTION = "subscription";
+  private static final String TOPIC = "topic";
+
+  private MockKafkaClientFactoryImpl kafkaClientFactory;
+  private OffsetStoreProperties properties;
+
+  @Before
+  public void setUp() {
+    kafkaClientFactory = new MockKafkaClientFactoryImpl();
+    properties = new OffsetStoreProperties();
+    properties.setTopic(OFFSET_TOPIC);
+    properties.setLoadTimeoutMs(5000);
+  }
+
+  @Test
+  public void loadsLatestOffsetsFromTopic() {
+    kafkaClientFactory.configureConsumersForSubscription(OFFSET_TOPIC, OFFSET_TOPIC, 1, 0L, 5L);
+    kafkaClientFactory.configureRecordsForSubscription(
+        OFFSET_TOPIC,
+        Arrays.asList(
+            record(0, SUBSCRIPTION + "/0", value(10, "first")),
+            record(1, SUBSCRIPTION + "/1", value(20, "")),
+            record(2, SUBSCRIPTION + "/0", value(15, "second")),
+            record(3, "deleted/0", value(5, "")),
+            record(4, "deleted/0", null)));
+
+    SubscriptionOffsetStore store = new SubscriptionOffsetStore(kafkaClientFactory, properties);
+    Map<Integer, OffsetAndMetadata> committed = store.committed(SUBSCRIPTION);
+    assertEquals(2, committed.size());
+    assertEquals(new OffsetAndMetadata(15, "second"), committed.get(0));
+    assertEquals(new OffsetAndMetadata(20, ""), committed.get(1));
+    assertTrue(store.committed("deleted").isEmpty());
+  }
+
+  @Test
+  public void failsWithoutTopic() {
+    try {
+      new SubscriptionOffsetStore(kafkaClientFactory, properties);
+      fail("Expected IllegalStateException");
+    } catch (IllegalStateException e) {
+      assertTrue(e.getMessage().contains(OFFSET_TOPIC));
+    }
+  }
+
+  @Test
+  public void commitIsVisibleOnceWritten() {
+    kafkaClientFactory.configureConsumersForSubscription(OFFSET_TOPIC, OFFSET_TOPIC, 1, 0L, 0L);
+    SubscriptionOffsetStore store = new SubscriptionOffsetStore(kafkaClientFactory, properties);
+    MockProducer<String, ByteBuffer> producer = kafkaClientFactory.getCreatedProducers().get(0);
+
+    Map<TopicPartition, OffsetAndMetadata> commits = new HashMap<>();
+    commits.put(new TopicPartition(TOPIC, 0), new OffsetAndMetadata(7, "metadata"));
+    CompletableFuture<Void> committed = store.commit(SUBSCRIPTION, commits);
+    assertFalse(committed.isDone());
+    assertTrue(store.committed(SUBSCRIPTION).isEmpty());
+
+    ProducerRecord<String, ByteBuffer> written = producer.history().get(0);
+    assertEquals(OFFSET_TOPIC, written.topic());
+    assertEquals(SUBSCRIPTION + "/0", written.key());
+    assertEquals(value(7, "metadata"), written.value());
+
+    assertTrue(producer.completeNext());
+    assertTrue(committed.isDone());
+    assertEquals(
+        Collections.singletonMap(0, new OffsetAndMetadata(7, "metadata")),
+        store.committed(SUBSCRIPTION));
+  }
+
+  @Test
+  public void failedCommitIsNotVisible() {
+    kafkaClientFactory.configureConsumersForSubscription(OFFSET_TOPIC, OFFSET_TOPIC, 1, 0L, 0L);
+    SubscriptionOffsetStore store = new SubscriptionOffsetStore(kafkaClientFactory, properties);
+    MockProducer<String, ByteBuffer> producer = kafkaClientFactory.getCreatedProducers().get(0);
+
+    CompletableFuture<Void> committed =
+        store.commit(
+            SUBSCRIPTION,
+            Collections.singletonMap(new TopicPartition(TOPIC, 0), new OffsetAndMetadata(7)));
+    assertTrue(producer.errorNext(new KafkaException("Broker unavailable")));
+    assertTrue(committed.isCompletedExceptionally());
+    assertTrue(store.committed(SUBSCRIPTION).isEmpty());
+  }
+
+  @Test
+  public void deleteWritesTombstones() {
+    kafkaClientFactory.configureConsumersForSubscription(OFFSET_TOPIC, OFFSET_TOPIC, 1, 0L, 0L);
+    SubscriptionOffsetStore store = new SubscriptionOffsetStore(kafkaClientFactory, properties);
+    MockProducer<String, ByteBuffer> producer = kafkaClientFactory.getCreatedProducers().get(0);
+    store.commit(
+        SUBSCRIPTION,
+        Collections.singletonMap(new TopicPartition(TOPIC, 3), new OffsetAndMetadata(7)));
+    producer.completeNext();
+
+    store.delete(SUBSCRIPTION);
+    assertTrue(store.committed(SUBSCRIPTION).isEmpty());
+    ProducerRecord<String, ByteBuffer> tombstone = producer.history().get(1);
+    assertEquals(SUBSCRIPTION + "/3", tombstone.key());
+    assertNull(tombstone.value());
+  }
+
+  @Test
+  public void latestCommitWinsOverHigherOffset() {
+    kafkaClientFactory.configureConsumersForSubscription(OFFSET_TOPIC, OFFSET_TOPIC, 1, 0L, 0L);
+    SubscriptionOffsetStore store = new SubscriptionOffsetStore(kafkaClientFactory, properties);
+    MockProducer<String, ByteBuffer> producer = kafkaClientFactory.getCreatedProducers().get(0);
+    TopicPartition tp = new TopicPartition(TOPIC, 0);
+
+    store.commit(SUBSCRIPTION, Collections.singletonMap(tp, new OffsetAndMetadata(10)));
+    store.commit(SUBSCRIPTION, Collections.singletonMap(tp, new OffsetAndMetadata(4, "seek")));
+    assertTrue(producer.completeNext());
+    assertEquals(new OffsetAndMetadata(10), store.committed(SUBSCRIPTION).get(0));
+
+    // A seek backwards commits a lower offset, which replaces the higher one
+    assertTrue(producer.completeNext());
+    assertEquals(new OffsetAndMetadata(4, "seek"), store.committed(SUBSCRIPTION).get(0));
+  }
+
+  @Test
+  public void commitCompletingAfterDeleteIsDropped() {
+    kafkaClientFactory.configureConsumersForSubscription(OFFSET_TOPIC, OFFSET_TOPIC, 1, 0L, 0L);
+    SubscriptionOffsetStore store = new SubscriptionOffsetStore(kafkaClientFactory, properties);
+    MockProducer<String, ByteBuffer> producer = kafkaClientFactory.getCreatedProducers().get(0);
+    TopicPartition tp = new TopicPartition(TOPIC, 0);
+    store.commit(SUBSCRIPTION, Collections.singletonMap(tp, new OffsetAndMetadata(3)));
+    assertTrue(producer.completeNext());
+
+    CompletableFuture<Void> inFlight =
+        store.commit(
+            SUBSCRIPTION,
+            Collections.singletonMap(new TopicPartition(TOPIC, 1), new OffsetAndMetadata(7)));
+    store.delete(SUBSCRIPTION);
+    while (producer.completeNext()) {}
+    assertTrue(inFlight.isDone());
+    assertTrue(store.committed(SUBSCRIPTION).isEmpty());
+
+    // The partition committed in flight is deleted once more after its record was written
+    ProducerRecord<String, ByteBuffer> tombstone =
+        producer.history().get(producer.history().size() - 1);
+    assertEquals(SUBSCRIPTION + "/1", tombstone.key());
+    assertNull(tombstone.value());
+
+    // A Subscription created again with the same name commits from scratch
+    store.commit(SUBSCRIPTION, Collections.singletonMap(tp, new OffsetAndMetadata(1)));
+    while (producer.completeNext()) {}
+    assertEquals(
+        Collections.singletonMap(0, new OffsetAndMetadata(1)), store.committed(SUBSCRIPTION));
+  }
+
+  private static ConsumerRecord<String, ByteBuffer> record(
+      long offset, String key, ByteBuffer value) {
+    return new ConsumerRecord<>(OFFSET_TOPIC, 0, offset, key, value);
+  }
+
+  private static ByteBuffer value(long offset, String metadata) {
+    byte[] bytes = metadata.getBytes(StandardCharsets.UTF_8);
+    ByteBuffer value = ByteBuffer.allocate(Long.BYTES + bytes.length);
+    value.putLong(offset).put(bytes);
+    value.flip();
+    return value;
+  }
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.partners.pubsub.kafka;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import com.google.cloud.partners.pubsub.kafka.properties.TailCacheProperties;
+import com.google.pubsub.v1.PubsubMessage;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.common.TopicPartition;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TopicTailCacheTest {
+
+  private static final String TOPIC = "test-topic";
+  private static final TopicPartition PARTITION = new TopicPartition(TOPIC, 0);
+
+  private final Object leader = new Object();
+  private final Object follower = new Object();
+  private TopicTailCache tailCache;
+
+  @Before
+  public void setUp() {
+    TailCacheProperties properties = new TailCacheProperties();
+    properties.setMaxMessages(5);
+    tailCache = new TopicTailCache(properties);
+  }
+
+  @Test
+  public void readsRecordsWithinWindow() {
+    tailCache.append(PARTITION, 10, records(10, 13), leader);
+
+    List<ConsumerRecord<String, ByteBuffer>> read = new ArrayList<>();
+    assertEquals(2, tailCache.read(PARTITION, 11, 10, read));
+    assertEquals(asList(11, 12), offsets(read));
+    assertEquals(0, tailCache.read(PARTITION, 9, 10, read));
+    assertEquals(0, tailCache.read(PARTITION, 13, 10, read));
+    assertEquals(0, tailCache.read(new TopicPartition(TOPIC, 1), 10, 10, read));
+
+    // Records already in the window are ignored when appended again
+    tailCache.append(PARTITION, 11, records(11, 15), follower);
+    read.clear();
+    assertEquals(5, tailCache.read(PARTITION, 10, 10, read));
+    assertEquals(asList(10, 11, 12, 13, 14), offsets(read));
+  }
+
+  @Test
+  public void evictsOldestRecords() {
+    tailCache.append(PARTITION, 0, records(0, 8), leader);
+    assertEquals(5, tailCache.size(PARTITION));
+
+    List<ConsumerRecord<String, ByteBuffer>> read = new ArrayList<>();
+    assertEquals(0, tailCache.read(PARTITION, 2, 10, read));
+    assertFalse(tailCache.isServedFromCache(PARTITION, 2, follower));
+    assertEquals(5, tailCache.read(PARTITION, 3, 10, read));
+    assertEquals(asList(3, 4, 5, 6, 7), offsets(read));
+  }
+
+  @Test
+  public void readerAheadOfWindowStartsNewWindow() {
+    tailCache.append(PARTITION, 0, records(0, 3), leader);
+    tailCache.append(PARTITION, 10, records(10, 12), follower);
+
+    List<ConsumerRecord<String, ByteBuffer>> read = new ArrayList<>();
+    assertEquals(0, tailCache.read(PARTITION, 0, 10, read));
+    assertEquals(2, tailCache.read(PARTITION, 10, 10, read));
+    assertEquals(asList(10, 11), offsets(read));
+  }
+
+  @Test
+  public void followersWaitForLeaderAtEndOfWindow() throws InterruptedException {
+    tailCache.append(PARTITION, 0, records(0, 3), leader);
+    assertFalse(tailCache.isServedFromCache(PARTITION, 3, leader));
+    assertTrue(tailCache.isServedFromCache(PARTITION, 3, follower));
+    assertTrue(tailCache.isServedFromCache(PARTITION, 1, follower));
+
+    // The follower reaching the end of the window does not take over from a live leader
+    tailCache.append(PARTITION, 3, Collections.emptyList(), follower);
+    assertFalse(tailCache.isServedFromCache(PARTITION, 3, leader));
+
+    // Once the leader stops fetching, the next reader at the end of the window takes over
+    Thread.sleep(600);
+    assertFalse(tailCache.isServedFromCache(PARTITION, 3, follower));
+    tailCache.append(PARTITION, 3, Collections.emptyList(), follower);
+    assertTrue(tailCache.isServedFromCache(PARTITION, 3, leader));
+  }
+
+  @Test
+  public void cachedRecordsAreConvertedOnce() {
+    List<ConsumerRecord<String, ByteBuffer>> records = records(0, 1);
+    tailCache.append(PARTITION, 0, records, leader);
+    AtomicInteger conversions = new AtomicInteger();
+
+    PubsubMessage first = tailCache.getMessage(records.get(0), false, r -> convert(conversions));
+    assertSame(first, tailCache.getMessage(records.get(0), false, r -> convert(conversions)));
+    assertEquals(1, conversions.get());
+    tailCache.getMessage(records.get(0), true, r -> convert(conversions));
+    assertEquals(2, conversions.get());
+
+    // Records fetched separately from the cached ones are always converted
+    tailCache.getMessage(records(0, 1).get(0), false, r -> convert(conversions));
+    assertEquals(3, conversions.get());
+  }
+
+  private static List<ConsumerRecord<String, ByteBuffer>> records(long from, long to) {
+    List<ConsumerRecord<String, ByteBuffer>> records = new ArrayList<>();
+    for (long offset = from; offset < to; offset++) {
+      records.add(new ConsumerRecord<>(TOPIC, 0, offset, null, ByteBuffer.allocate(1)));
+    }
+    return records;
+  }
+
+  private static List<Long> offsets(List<ConsumerRecord<String, ByteBuffer>> records) {
+    return records.stream().map(ConsumerRecord::offset).collect(Collectors.toList());
+  }
+
+  private static List<Long> asList(long... offsets) {
+    List<Long> list = new ArrayList<>();
+    for (long offset : offsets) {
+      list.add(offset);
+    }
+    return list;
+  }
+
+  private static PubsubMessage convert(AtomicInteger conversions) {
+    conversions.incrementAndGet();
+    return PubsubMessage.getDefaultInstance().toBuilder().build();
+  }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.partners.pubsub.kafka.integration;
+
+import static org.junit.Assert.assertEquals;
+
+import com.google.cloud.partners.pubsub.kafka.common.Metric;
+import com.google.cloud.partners.pubsub.kafka.common.StatisticsRequest;
+import com.google.cloud.partners.pubsub.kafka.enums.MetricProperty;
+import com.google.cloud.partners.pubsub.kafka.integration.util.BaseIT;
+import com.google.cloud.partners.pubsub.kafka.properties.SubscriptionProperties;
+import com.google.cloud.pubsub.v1.Publisher;
+import com.google.cloud.pubsub.v1.Subscriber;
+import com.google.protobuf.ByteString;
+import com.google.pubsub.v1.PubsubMessage;
+import java.util.Set;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+import org.junit.Test;
+
+/**
+ * Verifies that the records of a Subscription are fetched from Kafka once, no matter how many
+ * commits are made while messages are outstanding.
+ */
+public class FetchAccountingIT extends BaseIT {
+
+  private static final Logger LOGGER = Logger.getLogger(FetchAccountingIT.class.getName());
+  private static final String TOPIC = "fetch-accounting";
+  private static final int MESSAGES = 500;
+  private static final int MESSAGE_SIZE = 1000;
+
+  /**
+   * Acknowledges messages slowly so that many commits are issued while later messages are still
+   * outstanding, then compares the bytes fetched for the topic with the bytes delivered.
+   */
+  @Test(timeout = 120000)
+  public void commitsDoNotRefetchOutstandingMessages() throws Exception {
+    SubscriptionProperties subscriptionProperties = getSubscriptionPropertiesByTopic(TOPIC);
+    Set<String> publishedIds = new ConcurrentSkipListSet<>();
+    Set<String> receivedIds = new ConcurrentSkipListSet<>();
+    LongAdder deliveredBytes = new LongAdder();
+    CountDownLatch published = new CountDownLatch(MESSAGES);
+    CountDownLatch received = new CountDownLatch(MESSAGES);
+
+    Subscriber subscriber =
+        getSubscriber(
+            subscriptionProperties,
+            (message, consumer) -> {
+              deliveredBytes.add(message.getData().size());
+              try {
+                Thread.sleep(5);
+              } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+              }
+              consumer.ack();
+              if (receivedIds.add(message.getMessageId())) {
+                received.countDown();
+              }
+            });
+    subscriber.startAsync().awaitRunning();
+
+    Publisher publisher = getPublisher(subscriptionProperties);
+    ByteString data = ByteString.copyFrom(new byte[MESSAGE_SIZE]);
+    for (int i = 0; i < MESSAGES; i++) {
+      publish(
+          publisher,
+          PubsubMessage.newBuilder().setData(data).build(),
+          (throwable) -> LOGGER.warning("Unexpected error during Publish"),
+          (result) -> {
+            publishedIds.add(result);
+            published.countDown();
+          });
+    }
+    published.await();
+    received.await();
+    subscriber.stopAsync().awaitTerminated();
+    publisher.shutdown();
+
+    assertEquals(publishedIds, receivedIds);
+    long fetchedBytes = getFetchedBytes(TOPIC);
+    LOGGER.info("Fetched " + fetchedBytes + " bytes, delivered " + deliveredBytes.sum() + " bytes");
+    assertEquals((long) MESSAGES * MESSAGE_SIZE, fetchedBytes);
+    assertEquals(fetchedBytes, deliveredBytes.sum());
+  }
+
+  private static long getFetchedBytes(String topic) {
+    return getAdminStub()
+        .statistics(StatisticsRequest.newBuilder().build())
+        .getSubscriberByTopicMap()
+        .get(topic)
+        .getMetricsList()
+        .stream()
+        .filter(m -> m.getName().equals(MetricProperty.FETCHED_BYTES.getName()))
+        .map(Metric::getValue)
+        .mapToLong(Long::parseLong)
+        .sum();
+  }
+}